@@ -78,6 +78,9 @@ public class Main
                     
                     System.out.println("Stopping Listeners...");
                     manager.stopListeners();
+                    
+                    System.out.println("Stopping shared resources...");
+                    manager.sharedResources().shutdown();
                 }
             });
         
@@ -29,17 +29,29 @@ import com.arm.connector.bridge.coordinator.processors.ibm.WatsonIoTPeerProcesso
 import com.arm.connector.bridge.coordinator.processors.ms.MSIoTHubPeerProcessorFactory;
 import com.arm.connector.bridge.coordinator.processors.interfaces.MDSInterface;
 import com.arm.connector.bridge.coordinator.processors.arm.MDSProcessor;
+import com.arm.connector.bridge.coordinator.processors.core.BasePeerProcessorFactory;
+import com.arm.connector.bridge.coordinator.processors.core.CommandBuffer;
+import com.arm.connector.bridge.coordinator.processors.core.DeregistrationPipeline;
+import com.arm.connector.bridge.coordinator.processors.core.ResourcePoller;
 import com.arm.connector.bridge.coordinator.processors.aws.AWSIoTPeerProcessorFactory;
 import com.arm.connector.bridge.coordinator.processors.interfaces.PeerInterface;
 import com.arm.connector.bridge.coordinator.processors.sample.Sample3rdPartyProcessor;
 import com.arm.connector.bridge.core.ErrorLogger;
+import com.arm.connector.bridge.core.SharedResources;
+import com.arm.connector.bridge.core.StateJournal;
+import com.arm.connector.bridge.core.TimerService;
 import com.arm.connector.bridge.json.JSONGenerator;
 import com.arm.connector.bridge.json.JSONParser;
 import com.arm.connector.bridge.json.JSONGeneratorFactory;
 import com.arm.connector.bridge.preferences.PreferenceManager;
 import com.arm.connector.bridge.transport.HttpTransport;
 import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
 import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ScheduledExecutorService;
 
 import javax.servlet.http.HttpServlet;
 import javax.servlet.http.HttpServletRequest;
@@ -65,11 +77,28 @@ public class Orchestrator implements MDSInterface, PeerInterface {
 
     private HttpTransport            m_http = null;
     
+    private SharedResources          m_shared_resources = null;
+    private Executor                 m_executor = null;
+    private StateJournal             m_state_journal = null;
+    private DeregistrationPipeline   m_deregistration_pipeline = null;
+    private CommandBuffer            m_command_buffer = null;
+    private ResourcePoller           m_resource_poller = null;
+    
     private JSONGeneratorFactory     m_json_factory = null;
     private JSONGenerator            m_json_generator = null;
     private JSONParser               m_json_parser = null;
     private boolean                  m_listeners_initialized = false;
     
+    // staged startup: per-component readiness and deferred webhook registration
+    private ConcurrentHashMap<String,String> m_startup_status = null;
+    private int                      m_startup_num_components = 0;
+    private int                      m_startup_num_ready = 0;
+    private int                      m_startup_num_done = 0;
+    private int                      m_startup_required_ready = 0;
+    private long                     m_startup_begin_ms = 0;
+    private boolean                  m_webhook_requested = false;
+    private boolean                  m_webhook_initialized = false;
+    
     private final String             m_mds_non_domain = null;
     private String                   m_mds_domain = null;
     
@@ -83,8 +112,15 @@ public class Orchestrator implements MDSInterface, PeerInterface {
             this.m_mds_domain = domain;
         }
           
+        // borrow from the process-wide resources (our executor is quota limited per domain)
+        this.m_shared_resources = SharedResources.getInstance(error_logger,preference_manager);
+        this.m_executor = this.m_shared_resources.executorFor(domain);
+        
+        // checkpointed state for warm restarts (loaded before any processor is created)... one journal per domain or mDC account
+        this.m_state_journal = new StateJournal(error_logger,preference_manager,this.m_shared_resources.timers(),this.stateJournalName());
+        
         // JSON Factory
-        this.m_json_factory = JSONGeneratorFactory.getInstance();
+        this.m_json_factory = this.m_shared_resources.jsonFactory();
         
         // create the JSON Generator
         this.m_json_generator = this.m_json_factory.newJsonGenerator();
@@ -100,6 +136,16 @@ public class Orchestrator implements MDSInterface, PeerInterface {
         
         // initialize our peer processor list
         this.initPeerProcessorList();
+        
+        // de-registrations are queued and processed in batches off the webhook thread
+        this.m_deregistration_pipeline = new DeregistrationPipeline(this);
+        
+        // commands to sleeping queue-mode endpoints are held until they wake
+        this.m_command_buffer = new CommandBuffer(this);
+        
+        // configured non-observable resources are polled and published as observations
+        this.m_resource_poller = new ResourcePoller(this);
+        this.m_resource_poller.start();
                 
         // create the console manager
         this.m_console_manager = new ConsoleManager(this);
@@ -168,30 +214,183 @@ public class Orchestrator implements MDSInterface, PeerInterface {
         return this.m_listeners_initialized; 
     }
     
-    // initialize peer listener
+    // initialize peer listener (components are started concurrently on our share of the worker pool)
     public void initPeerListener() {
-        if (!this.m_listeners_initialized) {
-            // MQTT Listener
-            for(int i=0;i<this.m_peer_processor_list.size();++i) {
-                this.m_peer_processor_list.get(i).initListener();
+        HashMap<String,PeerInterface> components = null;
+        synchronized(this) {
+            if (this.m_listeners_initialized) {
+                return;
             }
             this.m_listeners_initialized = true;
+            
+            // enumerate our startup components: each MQTT broker connection within a factory is started on its own
+            components = this.startupComponents();
+            this.m_startup_status = new ConcurrentHashMap<>();
+            this.m_startup_num_components = components.size();
+            this.m_startup_num_ready = 0;
+            this.m_startup_num_done = 0;
+            this.m_startup_begin_ms = System.currentTimeMillis();
+            
+            // number of components that must be live before we register our webhook (default: all)
+            this.m_startup_required_ready = this.preferences().intValueOf("bridge_startup_required_peers");
+            if (this.m_startup_required_ready < 0 || this.m_startup_required_ready > this.m_startup_num_components) {
+                this.m_startup_required_ready = this.m_startup_num_components;
+            }
+            for (String name : components.keySet()) {
+                this.m_startup_status.put(name,"STARTING");
+            }
+        }
+        
+        // DEBUG
+        this.errorLogger().info("Orchestrator(" + this.domainName() + "): starting " + components.size() + " peer components (webhook after " + this.m_startup_required_ready + " ready)");
+        
+        // launch the components
+        for (Map.Entry<String,PeerInterface> entry : components.entrySet()) {
+            final String name = entry.getKey();
+            final PeerInterface peer = entry.getValue();
+            this.executor().execute(new Runnable() {
+                @Override
+                public void run() {
+                    boolean ready = false;
+                    try {
+                        peer.initListener();
+                        ready = (peer instanceof GenericMQTTProcessor) ? ((GenericMQTTProcessor)peer).isListenerReady() : true;
+                    }
+                    catch (Exception ex) {
+                        errorLogger().warning("Orchestrator(" + domainName() + "): component " + name + " failed to start: " + ex.getMessage(),ex);
+                    }
+                    componentStarted(name,ready);
+                }
+            });
+        }
+        
+        // nothing to wait for...
+        if (components.isEmpty() == true) {
+            this.checkStartupProgress();
         }
     }
     
+    // build the list of startup components
+    private HashMap<String,PeerInterface> startupComponents() {
+        HashMap<String,PeerInterface> components = new HashMap<>();
+        for(int i=0;i<this.m_peer_processor_list.size();++i) {
+            PeerInterface peer = this.m_peer_processor_list.get(i);
+            if (peer instanceof BasePeerProcessorFactory) {
+                BasePeerProcessorFactory factory = (BasePeerProcessorFactory)peer;
+                for(int j=0;j<factory.numProcessors();++j) {
+                    GenericMQTTProcessor p = factory.mqttProcessor(j);
+                    components.put(p.getClass().getSimpleName() + "[" + i + "." + j + "]",p);
+                }
+            }
+            else {
+                components.put(peer.getClass().getSimpleName() + "[" + i + "]",peer);
+            }
+        }
+        return components;
+    }
+    
+    // record that a startup component has finished starting
+    private void componentStarted(String name,boolean ready) {
+        synchronized(this) {
+            this.m_startup_status.put(name,(ready == true) ? "READY" : "FAILED");
+            ++this.m_startup_num_done;
+            if (ready == true) {
+                ++this.m_startup_num_ready;
+            }
+            
+            // DEBUG
+            this.errorLogger().info("Orchestrator(" + this.domainName() + "): component " + name + ": " + this.m_startup_status.get(name) + " (" + this.m_startup_num_ready + "/" + this.m_startup_num_components + " ready, " + (System.currentTimeMillis() - this.m_startup_begin_ms) + "ms)");
+        }
+        this.checkStartupProgress();
+    }
+    
+    // register our webhook once enough peer components are live (or all have finished trying)
+    private void checkStartupProgress() {
+        boolean register = false;
+        synchronized(this) {
+            if (this.m_webhook_requested == true && this.m_webhook_initialized == false && this.m_listeners_initialized == true) {
+                if (this.m_startup_num_ready >= this.m_startup_required_ready) {
+                    register = true;
+                }
+                else if (this.m_startup_num_done >= this.m_startup_num_components) {
+                    // everything has finished trying... proceed anyway so that mDS events are not lost entirely
+                    this.errorLogger().warning("Orchestrator(" + this.domainName() + "): only " + this.m_startup_num_ready + " of " + this.m_startup_required_ready + " required peers ready. Registering webhook anyway...");
+                    register = true;
+                }
+                this.m_webhook_initialized = register;
+            }
+        }
+        if (register == true) {
+            this.executor().execute(new Runnable() {
+                @Override
+                public void run() {
+                    registerMDSWebhook();
+                }
+            });
+        }
+    }
+    
+    // get the per-component startup status
+    public Map<String,String> startupStatus() {
+        HashMap<String,String> status = new HashMap<>();
+        if (this.m_startup_status != null) {
+            status.putAll(this.m_startup_status);
+        }
+        status.put("webhook",(this.m_webhook_initialized == true) ? "READY" : "PENDING");
+        return status;
+    }
+    
+    // our state journal name: mDC accounts share the default (non-domain) domain, so they are keyed by account name
+    private String stateJournalName() {
+        String name = (this.m_mds_domain != null) ? this.m_mds_domain : this.preferences().account();
+        return "bridge-state" + ((name != null) ? "-" + name.replaceAll("[^A-Za-z0-9._-]","_") : "");
+    }
+    
+    // our domain name (for logging)
+    private String domainName() {
+        return (this.m_mds_domain != null) ? this.m_mds_domain : this.preferences().valueOf("mds_def_domain");
+    }
+    
     // stop the peer listener
     public void stopPeerListener() {
-        if (this.m_listeners_initialized) {
-            // MQTT Listener
-            for(int i=0;i<this.m_peer_processor_list.size();++i) {
-                this.m_peer_processor_list.get(i).stopListener();
+        synchronized(this) {
+            if (this.m_listeners_initialized == false) {
+                return;
             }
             this.m_listeners_initialized = false;
         }
+        
+        // MQTT Listener
+        for(int i=0;i<this.m_peer_processor_list.size();++i) {
+            this.m_peer_processor_list.get(i).stopListener();
+        }
+        
+        // stop processing de-registrations
+        this.m_deregistration_pipeline.stop();
+        
+        // stop buffering queue-mode commands
+        this.m_command_buffer.stop();
+        
+        // stop polling resources
+        this.m_resource_poller.stop();
+        
+        // persist a final snapshot of our state
+        this.m_state_journal.close();
     }
     
-    // initialize the mDS webhook
+    // initialize the mDS webhook (deferred until our required peers are live)
     public void initMDSWebhook() {
+        synchronized(this) {
+            this.m_webhook_requested = true;
+        }
+        this.checkStartupProgress();
+    }
+    
+    // register the mDS webhook
+    private void registerMDSWebhook() {
+        // DEBUG
+        this.errorLogger().info("Orchestrator(" + this.domainName() + "): registering mDS webhook (" + (System.currentTimeMillis() - this.m_startup_begin_ms) + "ms after startup)");
+        
         if (this.m_mds_rest_processor != null) {
             // set the webhook
             this.m_mds_rest_processor.setNotificationCallbackURL();
@@ -263,6 +462,41 @@ public class Orchestrator implements MDSInterface, PeerInterface {
         return this.m_mds_domain;
     }
     
+    // get our (quota limited) share of the process-wide worker pool
+    public Executor executor() {
+        return this.m_executor;
+    }
+    
+    // get the process-wide scheduler
+    public ScheduledExecutorService scheduler() {
+        return this.m_shared_resources.scheduler();
+    }
+    
+    // get our persisted state journal
+    public StateJournal stateJournal() {
+        return this.m_state_journal;
+    }
+    
+    // get the de-registration pipeline
+    public DeregistrationPipeline deregistrationPipeline() {
+        return this.m_deregistration_pipeline;
+    }
+    
+    // get the queue-mode command buffer
+    public CommandBuffer commandBuffer() {
+        return this.m_command_buffer;
+    }
+    
+    // get the resource poller
+    public ResourcePoller resourcePoller() {
+        return this.m_resource_poller;
+    }
+    
+    // get the process-wide timer service
+    public TimerService timers() {
+        return this.m_shared_resources.timers();
+    }
+    
     // get the JSON parser instance
     public JSONParser getJSONParser() {
         return this.m_json_parser;
@@ -359,40 +593,55 @@ public class Orchestrator implements MDSInterface, PeerInterface {
 
     @Override
     public void processNewRegistration(Map message) {
+        this.cancelPendingDeregistrations(message,"registrations");
         for(int i=0;this.m_peer_processor_list != null && i<this.m_peer_processor_list.size();++i) {
             this.peerProcessor(i).processNewRegistration(message);
         }
+        this.m_command_buffer.registered(message,"registrations");
+        this.m_resource_poller.registered(message,"registrations");
     }
 
     @Override
     public void processReRegistration(Map message) {
+        this.cancelPendingDeregistrations(message,"reg-updates");
         for(int i=0;this.m_peer_processor_list != null && i<this.m_peer_processor_list.size();++i) {
             this.peerProcessor(i).processReRegistration(message);
         }
+        
+        // any reg-update means the endpoint is awake: flush its buffered commands
+        this.m_command_buffer.registered(message,"reg-updates");
+        this.m_resource_poller.registered(message,"reg-updates");
     }
 
     @Override
     public String[] processDeregistrations(Map message) {
-        ArrayList<String> deregistrations = new ArrayList<>();
-        for(int i=0;this.m_peer_processor_list != null && i<this.m_peer_processor_list.size();++i) {
-            String[] ith_deregistrations = this.peerProcessor(i).processDeregistrations(message);
-            for(int j=0;ith_deregistrations != null && j<ith_deregistrations.length;++j) {
-                boolean add = deregistrations.add(ith_deregistrations[j]);
-            }
-        }
-        String[] dereg_str_array = new String[deregistrations.size()];
-        return deregistrations.toArray(dereg_str_array); 
+        // queue for batched processing... the mDS webhook is acknowledged immediately
+        String[] deregistrations = DeregistrationPipeline.endpoints(message);
+        this.m_deregistration_pipeline.enqueue(deregistrations);
+        this.m_command_buffer.deregistered(deregistrations);
+        this.m_resource_poller.deregistered(deregistrations);
+        return deregistrations;
     }
 
     @Override
     public void processRegistrationsExpired(Map message) {
-        for(int i=0;this.m_peer_processor_list != null && i<this.m_peer_processor_list.size();++i) {
-            this.peerProcessor(i).processRegistrationsExpired(message);
+        // expired registrations are de-registered the same way
+        this.processDeregistrations(message);
+    }
+    
+    // endpoints that (re)register must not be removed by a de-registration still waiting in the queue
+    private void cancelPendingDeregistrations(Map message,String key) {
+        List endpoints = (List)message.get(key);
+        for(int i=0;endpoints != null && this.m_deregistration_pipeline.pendingCount() > 0 && i<endpoints.size();++i) {
+            Map endpoint = (Map)endpoints.get(i);
+            this.m_deregistration_pipeline.cancel((String)endpoint.get("ep"));
         }
     }
 
     @Override
     public void processAsyncResponses(Map message) {
+        // our resource polls first... peers ignore AsyncResponses they have no record of
+        this.m_resource_poller.processAsyncResponses(message);
         for(int i=0;this.m_peer_processor_list != null && i<this.m_peer_processor_list.size();++i) {
             this.peerProcessor(i).processAsyncResponses(message);
         }
@@ -403,6 +652,7 @@ public class Orchestrator implements MDSInterface, PeerInterface {
         for(int i=0;this.m_peer_processor_list != null && i<this.m_peer_processor_list.size();++i) {
             this.peerProcessor(i).processNotification(message);
         }
+        this.m_command_buffer.notified(message);
     }
 
     @Override
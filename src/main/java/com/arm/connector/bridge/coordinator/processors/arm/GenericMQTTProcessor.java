@@ -24,18 +24,25 @@
 package com.arm.connector.bridge.coordinator.processors.arm;
 
 import com.arm.connector.bridge.coordinator.processors.core.AsyncResponseManager;
+import com.arm.connector.bridge.coordinator.processors.core.AsyncResponseRecord;
+import com.arm.connector.bridge.coordinator.processors.core.CommandBuffer;
+import com.arm.connector.bridge.coordinator.processors.core.DeregistrationPipeline;
 import com.arm.connector.bridge.coordinator.Orchestrator;
 import com.arm.connector.bridge.coordinator.processors.core.Processor;
+import com.arm.connector.bridge.coordinator.processors.core.RegistrationFingerprints;
 import com.arm.connector.bridge.coordinator.processors.core.SubscriptionList;
 import com.arm.connector.bridge.coordinator.processors.interfaces.PeerInterface;
 import com.arm.connector.bridge.core.Utils;
 import com.arm.connector.bridge.transport.HttpTransport;
 import com.arm.connector.bridge.transport.MQTTTransport;
+import com.arm.connector.bridge.transport.ReconnectionManager;
 import com.arm.connector.bridge.core.Transport;
 import com.arm.connector.bridge.core.TransportReceiveThread;
+import java.util.ArrayList;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.concurrent.atomic.AtomicBoolean;
 import org.fusesource.mqtt.client.QoS;
 import org.fusesource.mqtt.client.Topic;
 
@@ -46,6 +53,7 @@ import org.fusesource.mqtt.client.Topic;
 public class GenericMQTTProcessor extends Processor implements Transport.ReceiveListener, PeerInterface {
     private String                          m_topic_root = null;
     protected SubscriptionList              m_subscriptions = null;
+    protected RegistrationFingerprints      m_registrations = null;
     protected boolean                       m_auto_subscribe_to_obs_resources = false;
     protected TransportReceiveThread        m_mqtt_thread = null;
     protected String                        m_mqtt_host = null;
@@ -59,6 +67,9 @@ public class GenericMQTTProcessor extends Processor implements Transport.Receive
     private AsyncResponseManager            m_async_response_manager = null;
     private HttpTransport                   m_http = null;
     protected boolean                       m_use_clean_session = false;
+    private volatile boolean                m_listener_ready = false;
+    private boolean                         m_notify_async_response_timeout = false;
+    private String                          m_reply_to_prefix = null;
     
     // constructor (singleton)
     public GenericMQTTProcessor(Orchestrator orchestrator,MQTTTransport mqtt,HttpTransport http) {
@@ -116,12 +127,28 @@ public class GenericMQTTProcessor extends Processor implements Transport.Receive
         // initialize subscriptions
         this.m_subscriptions = new SubscriptionList(orchestrator.errorLogger(),orchestrator.preferences());
         
+        // last-seen registration per endpoint (no-op reg-updates are dropped)
+        this.m_registrations = new RegistrationFingerprints(orchestrator.errorLogger(),orchestrator.preferences());
+        
+        // warm restart: restore our subscriptions and outstanding AsyncResponses
+        this.m_subscriptions.persistTo(orchestrator.stateJournal(),this.stateTable("subscriptions"));
+        this.m_async_response_manager.persistTo(orchestrator.stateJournal(),this.stateTable("async-responses"),this);
+        
         // initialize the topic root
         this.initTopicRoot();
         
         // auto-subscribe behavior
         this.m_auto_subscribe_to_obs_resources = orchestrator.preferences().booleanValueOf("mqtt_obs_auto_subscribe",this.m_suffix);
         
+        // notify requestors when their AsyncResponse never arrives
+        this.m_notify_async_response_timeout = orchestrator.preferences().booleanValueOf("mds_async_response_timeout_notify",this.m_suffix);
+        
+        // reply-to topics must stay under this prefix (default: our own topic root and domain)
+        this.m_reply_to_prefix = orchestrator.preferences().valueOf("mqtt_reply_to_prefix",this.m_suffix);
+        if (this.m_reply_to_prefix == null || this.m_reply_to_prefix.length() == 0 || this.m_reply_to_prefix.equalsIgnoreCase("off") == true) {
+            this.m_reply_to_prefix = this.getTopicRoot() + this.getDomain() + "/";
+        }
+        
         // setup our MQTT listener if we have one...
         if (mqtt != null) {
             // MQTT Processor listener thread setup
@@ -158,6 +185,34 @@ public class GenericMQTTProcessor extends Processor implements Transport.Receive
         return this.m_async_response_manager;
     }
     
+    // name of our table in the state journal for a given kind of state
+    protected String stateTable(String kind) {
+        return kind + ":" + this.getClass().getSimpleName() + ((this.m_suffix != null) ? "_" + this.m_suffix : "");
+    }
+    
+    // persist a provisioned endpoint (name -> type) so it can be resumed after a restart
+    protected void persistEndpoint(String ep_name,String ep_type) {
+        if (ep_name != null) {
+            this.orchestrator().stateJournal().put(this.stateTable("endpoints"),ep_name,(ep_type != null) ? ep_type : "");
+        }
+    }
+    
+    // forget a persisted endpoint
+    protected void unpersistEndpoint(String ep_name) {
+        this.orchestrator().stateJournal().remove(this.stateTable("endpoints"),ep_name);
+    }
+    
+    // get the persisted endpoints (name -> type)
+    protected Map<String,String> persistedEndpoints() {
+        return this.orchestrator().stateJournal().table(this.stateTable("endpoints"));
+    }
+    
+    // transport for replying to a given endpoint (per-endpoint connection if we have one)
+    public MQTTTransport replyTransport(String ep_name) {
+        MQTTTransport mqtt = (ep_name != null) ? this.mqtt(ep_name) : null;
+        return (mqtt != null) ? mqtt : this.mqtt();
+    }
+    
     // get our defaulted reply topic
     public String getReplyTopic(String ep_name,String ep_type,String def) {
         return def;
@@ -251,14 +306,52 @@ public class GenericMQTTProcessor extends Processor implements Transport.Receive
             if (this.m_mqtt_thread != null) {
                 this.m_mqtt_thread.start();
             }
+            this.m_listener_ready = true;
         } 
+        else if (this.mqtt() != null && this.mqtt().isReconnecting() == true) {
+            // the broker is not reachable yet: the transport keeps trying in the background... start listening once it connects
+            this.errorLogger().warning("GenericMQTTProcessor: MQTT broker not reachable yet... listening once connected");
+            this.initListenerOnConnect(this.mqtt());
+        }
+    }
+    
+    // run initListener() again (once) when the transport's background connect succeeds
+    private void initListenerOnConnect(MQTTTransport mqtt) {
+        final AtomicBoolean started = new AtomicBoolean(false);
+        final Runnable init = new Runnable() {
+            @Override
+            public void run() {
+                initListener();
+            }
+        };
+        mqtt.addConnectionListener(new ReconnectionManager.Listener() {
+            @Override
+            public void onConnectionStateChange(MQTTTransport transport,ReconnectionManager.State previous,ReconnectionManager.State current) {
+                if (current == ReconnectionManager.State.CONNECTED && started.compareAndSet(false,true) == true) {
+                    transport.removeConnectionListener(this);
+                    orchestrator().executor().execute(init);
+                }
+            }
+        });
+        
+        // connected before the listener was added
+        if (mqtt.isConnected() == true && started.compareAndSet(false,true) == true) {
+            this.orchestrator().executor().execute(init);
+        }
+    }
+    
+    // is our listener connected and ready to process requests?
+    public boolean isListenerReady() {
+        return this.m_listener_ready;
     }
     
     @Override
     public void stopListener() {
+        this.m_listener_ready = false;
         if (this.mqtt() != null) {
             this.mqtt().disconnect();
         }
+        this.m_async_response_manager.stop();
     }
     
     // process a mDS notification for generic MQTT peers
@@ -314,18 +407,46 @@ public class GenericMQTTProcessor extends Processor implements Transport.Receive
         List notifications = (List)data.get("reg-updates");
         for(int i=0;notifications != null && i<notifications.size();++i) {
             Map endpoint = (Map)notifications.get(i);
+            
+            // same registration as last time: nothing to do
+            if (this.m_registrations.isUnchanged(endpoint) == true) {
+                continue;
+            }
+            
+            // re-register this endpoint once if any of its observable resources are not yet subscribed
             List resources = (List)endpoint.get("resources");
             for(int j=0;resources != null && j<resources.size();++j) {
                 Map resource = (Map)resources.get(j); 
                 if (this.isObservableResource(resource)) {
-                    this.errorLogger().info("MQTTProcessor(MQTT-STD) : CoAP re-registration: " + endpoint + " Resource: " + resource);
                     if (this.m_subscriptions.containsSubscription(this.m_mds_domain,(String)endpoint.get("ep"),(String)endpoint.get("ept"),(String)resource.get("path")) == false) {
                         this.errorLogger().info("MQTTProcessor(MQTT-STD) : CoAP re-registering OBS resources for: " + endpoint + " Resource: " + resource);
-                        this.processRegistration(data,"reg-updates");
-                        this.m_subscriptions.addSubscription(this.m_mds_domain,(String)endpoint.get("ep"),(String)endpoint.get("ept"),(String)resource.get("path"));
+                        this.processRegistration(this.registrationOf(endpoint,"reg-updates"),"reg-updates");
+                        this.addObservableSubscriptions(endpoint);
+                        break;
                     }
                 }
             }
+            this.m_registrations.record(endpoint);
+        }
+    }
+    
+    // wrap a single endpoint entry as a registration message under the given key
+    protected Map registrationOf(Map endpoint,String key) {
+        ArrayList<Map> endpoints = new ArrayList<>();
+        endpoints.add(endpoint);
+        HashMap<String,Object> registration = new HashMap<>();
+        registration.put(key,endpoints);
+        return registration;
+    }
+    
+    // record subscriptions for all of an endpoint's observable resources
+    private void addObservableSubscriptions(Map endpoint) {
+        List resources = (List)endpoint.get("resources");
+        for(int j=0;resources != null && j<resources.size();++j) {
+            Map resource = (Map)resources.get(j); 
+            if (this.isObservableResource(resource)) {
+                this.m_subscriptions.addSubscription(this.m_mds_domain,(String)endpoint.get("ep"),(String)endpoint.get("ept"),(String)resource.get("path"));
+            }
         }
     }
     
@@ -336,8 +457,12 @@ public class GenericMQTTProcessor extends Processor implements Transport.Receive
      */
     @Override
     public String[] processDeregistrations(Map parsed) {
+        // mDS subscriptions are removed by the orchestrator's de-registration pipeline... we clean up our local indexes
         String[] deregistrations = this.parseDeRegistrationBody(parsed);
-        this.orchestrator().processDeregistrations(deregistrations);
+        for(int i=0;i<deregistrations.length;++i) {
+            this.m_registrations.remove(deregistrations[i]);
+            this.m_subscriptions.removeEndpointSubscriptions(deregistrations[i]);
+        }
         return deregistrations;
     }
     
@@ -401,26 +526,59 @@ public class GenericMQTTProcessor extends Processor implements Transport.Receive
                     this.m_subscriptions.removeSubscription(this.m_mds_domain,(String)endpoint.get("ep"),(String)endpoint.get("ept"),(String)resource.get("path"));
                     this.m_subscriptions.addSubscription(this.m_mds_domain,(String)endpoint.get("ep"),(String)endpoint.get("ept"),(String)resource.get("path"));
                 }
-            }            
+            }
+            
+            // remember this registration so unchanged reg-updates are no-ops
+            this.m_registrations.record(endpoint);
         }
     }
     
     // parse the de-registration body
     protected String[] parseDeRegistrationBody(Map body) {
-        List list = (List)body.get("de-registrations");
-        if (list != null && list.size() > 0) {
-            return list.toString().replace("[","").replace("]", "").replace(",", " ").split(" ");
-        }
-        list = (List)body.get("registrations-expired");
-        if (list != null && list.size() > 0) {
-            return list.toString().replace("[","").replace("]", "").replace(",", " ").split(" ");
-        }
-        return new String[0];
+        return DeregistrationPipeline.endpoints(body);
     }
     
     // MQTT: messages from MQTT come here and are processed...
     @Override
-    public void onMessageReceive(String topic, String message) {
+    public void onMessageReceive(final String topic,final String message) {
+        // optional request correlation: replies echo the correlation-id and may be redirected via reply-to
+        Map request = this.tryJSONParse(message);
+        final String correlation_id = (request != null) ? this.stringValue(request.get("correlation-id")) : null;
+        final String reply_to = (request != null) ? this.validReplyTo(topic,this.stringValue(request.get("reply-to"))) : null;
+        
+        if (correlation_id != null) {
+            // correlated requests can be answered out of order... so pipeline them on the worker pool
+            this.orchestrator().executor().execute(new Runnable() {
+                @Override
+                public void run() {
+                    processRequest(topic,message,correlation_id,reply_to,false);
+                }
+            });
+        }
+        else {
+            // uncorrelated requests are answered in arrival order
+            this.processRequest(topic,message,null,reply_to,false);
+        }
+    }
+    
+    // hold a CoAP command for a sleeping queue-mode endpoint (true if buffered)... it is re-delivered to onMessageReceive() when the endpoint wakes
+    protected boolean bufferCommand(String ep_name,String coap_verb,String uri,final String topic,final String message) {
+        return this.orchestrator().commandBuffer().offer(new CommandBuffer.Command(ep_name,coap_verb,uri) {
+            @Override
+            public void dispatch() {
+                onMessageReceive(topic,message);
+            }
+            
+            @Override
+            public void reply(int status,String reason) {
+                // no reply channel for PUT/POST/DELETE here... just note it
+                errorLogger().info("MQTTProcessor: " + this.verb() + " " + this.uri() + " for " + this.endpoint() + ": " + status + " (" + reason + ")");
+            }
+        });
+    }
+    
+    // process an inbound MQTT request (flushed: re-delivered from the queue-mode command buffer)
+    private void processRequest(final String topic,final String message,final String correlation_id,final String reply_to,boolean flushed) {
         String verb = "PUT";
         
         // DEBUG
@@ -431,8 +589,8 @@ public class GenericMQTTProcessor extends Processor implements Transport.Receive
             Map options = (Map)this.parseJson(message);
             String json = this.orchestrator().performDeviceDiscovery(options);
             if (json != null && json.length() > 0) {
-                String response_topic = this.stripRequestTAG(topic);
-                this.mqtt().sendMessage(response_topic, json);
+                String response_topic = this.responseTopic(topic,reply_to);
+                this.mqtt().sendMessage(response_topic, this.correlateReply(json,correlation_id));
             }
         }
         
@@ -447,6 +605,25 @@ public class GenericMQTTProcessor extends Processor implements Transport.Receive
                     verb = "GET";
                 }
                 
+                // writes to a sleeping queue-mode endpoint are held until it wakes (the requester is told it is queued)
+                if (flushed == false && verb.equalsIgnoreCase("get") == false) {
+                    final String endpoint = this.getElementFromTopic(topic,4);                  // topic position SENSITIVE
+                    boolean buffered = this.orchestrator().commandBuffer().offer(new CommandBuffer.Command(endpoint,verb,this.buildURIFromTopic(topic,endpoint)) {
+                        @Override
+                        public void dispatch() {
+                            processRequest(topic,message,correlation_id,reply_to,true);
+                        }
+                        
+                        @Override
+                        public void reply(int status,String reason) {
+                            sendCommandStatus(this,status,reason,topic,correlation_id,reply_to);
+                        }
+                    });
+                    if (buffered == true) {
+                        return;
+                    }
+                }
+                
                 // perform the operation
                 json = this.orchestrator().processEndpointResourceOperation(verb, this.stripRequestTAG(topic), options);
             }
@@ -454,7 +631,7 @@ public class GenericMQTTProcessor extends Processor implements Transport.Receive
             // send a response back if we have one...
             if (json != null && json.length() > 0) {
                 // Strip the request tag
-                String response_topic = this.stripRequestTAG(topic);
+                String response_topic = this.responseTopic(topic,reply_to);
                 
                 // DEBUG
                 this.errorLogger().info("onMessageReceive(MQTT-STD): sending reply for " + verb + ": " + json);
@@ -463,11 +640,11 @@ public class GenericMQTTProcessor extends Processor implements Transport.Receive
             
                 // AsyncResponse detection and recording...
                 if (this.isAsyncResponse(json) == true) {
-                    if (verb.equalsIgnoreCase("get") == true) {
-                        // its an AsyncResponse to a GET.. so record it... 
+                    if (verb.equalsIgnoreCase("get") == true || flushed == true) {
+                        // its an AsyncResponse to a GET (or to a buffered command whose requester awaits its result).. so record it... 
                         String endpoint = this.getElementFromTopic(topic,4);                        // topic position SENSITIVE
                         String uri = this.buildURIFromTopic(topic,endpoint);
-                        this.recordAsyncResponse(json,verb,this.mqtt(),this,response_topic,message,endpoint,uri);
+                        this.recordAsyncResponse(json,verb,this.mqtt(),this,response_topic,message,endpoint,uri,correlation_id,reply_to);
                     }
                     else {
                         // we dont process AsyncResponses to PUT,POST,DELETE
@@ -476,7 +653,7 @@ public class GenericMQTTProcessor extends Processor implements Transport.Receive
                 }
                 else {
                     // not an AsyncResponse... so just emit it immediately... (GET only)
-                    this.mqtt().sendMessage(response_topic, json);
+                    this.mqtt().sendMessage(response_topic, this.correlateReply(json,correlation_id));
                 }
             }
         }
@@ -485,8 +662,8 @@ public class GenericMQTTProcessor extends Processor implements Transport.Receive
         else if (this.isEndpointResourcesDiscovery(topic)) {
             String json = this.orchestrator().performDeviceResourceDiscovery(this.stripRequestTAG(topic));
             if (json != null && json.length() > 0) {
-                String response_topic = this.stripRequestTAG(topic);
-                this.mqtt().sendMessage(response_topic, json);
+                String response_topic = this.responseTopic(topic,reply_to);
+                this.mqtt().sendMessage(response_topic, this.correlateReply(json,correlation_id));
             }
         }
         
@@ -504,6 +681,9 @@ public class GenericMQTTProcessor extends Processor implements Transport.Receive
                 String ep_type = this.getElementFromTopic(topic,2);                         // topic position SENSITIVE
                 String uri = this.buildURIFromTopic(topic,endpoint);
                 this.m_subscriptions.removeSubscription(this.m_mds_domain,endpoint,ep_type,uri);
+                
+                // the next reg-update must not be skipped as unchanged: it re-checks the endpoint's subscriptions
+                this.m_registrations.remove(endpoint);
             }
             else {
                 // Subscribe
@@ -523,7 +703,7 @@ public class GenericMQTTProcessor extends Processor implements Transport.Receive
             }
             
             if (json != null && json.length() > 0) {                
-                String response_topic = this.stripRequestTAG(topic);
+                String response_topic = this.responseTopic(topic,reply_to);
                 
                 // SYNC: because we simply are processing subscription management... we can just emit the message directly...
                 
@@ -532,16 +712,27 @@ public class GenericMQTTProcessor extends Processor implements Transport.Receive
                     //this.recordAsyncResponse(json,verb,this,response_topic,message);
                     
                     // just send it...
-                    this.mqtt().sendMessage(response_topic, json);
+                    this.mqtt().sendMessage(response_topic, this.correlateReply(json,correlation_id));
                 }
                 else {
                     // just send it...
-                    this.mqtt().sendMessage(response_topic, json);
+                    this.mqtt().sendMessage(response_topic, this.correlateReply(json,correlation_id));
                 }
             }
         }
     }
     
+    // send the status of a buffered command to its requester
+    private void sendCommandStatus(CommandBuffer.Command command,int status,String reason,String topic,String correlation_id,String reply_to) {
+        HashMap<String,Object> reply = new HashMap<>();
+        reply.put("status",status);
+        reply.put("reason",reason);
+        reply.put("verb",command.verb());
+        reply.put("ep",command.endpoint());
+        reply.put("path",command.uri());
+        this.mqtt().sendMessage(this.responseTopic(topic,reply_to),this.correlateReply(this.jsonGenerator().generateJson(reply),correlation_id));
+    }
+    
     // test to check if a topic is requesting endpoint resource subscription actions
     private boolean isEndpointNotificationSubscription(String topic) {
         boolean is_endpoint_notification_subscription = false;
@@ -669,7 +860,71 @@ public class GenericMQTTProcessor extends Processor implements Transport.Receive
     
     // record AsyncResponses
     protected void recordAsyncResponse(String response,String coap_verb,MQTTTransport mqtt,GenericMQTTProcessor proc,String response_topic, String message, String ep_name, String uri) {
-        this.asyncResponseManager().recordAsyncResponse(response, coap_verb, mqtt, proc, response_topic, this.getReplyTopic(ep_name,this.m_subscriptions.endpointTypeFromEndpointName(ep_name),response_topic), message, ep_name, uri);
+        this.recordAsyncResponse(response,coap_verb,mqtt,proc,response_topic,message,ep_name,uri,null,null);
+    }
+    
+    // record AsyncResponses (correlated: an explicit reply-to overrides the defaulted reply topic)
+    protected void recordAsyncResponse(String response,String coap_verb,MQTTTransport mqtt,GenericMQTTProcessor proc,String response_topic, String message, String ep_name, String uri, String correlation_id, String reply_to) {
+        String reply_topic = (reply_to != null) ? reply_to : this.getReplyTopic(ep_name,this.m_subscriptions.endpointTypeFromEndpointName(ep_name),response_topic);
+        this.asyncResponseManager().recordAsyncResponse(response, coap_verb, mqtt, proc, response_topic, reply_topic, message, ep_name, uri, correlation_id);
+    }
+    
+    // a client supplied reply-to is only honored under our reply prefix, outside the request topics and without wildcards (null otherwise)
+    private String validReplyTo(String topic,String reply_to) {
+        if (reply_to == null || reply_to.length() == 0) {
+            return null;
+        }
+        if (reply_to.indexOf('+') < 0 && reply_to.indexOf('#') < 0 && reply_to.indexOf('\u0000') < 0 &&
+            reply_to.startsWith(this.m_reply_to_prefix) == true && reply_to.startsWith(this.getTopicRoot() + this.m_mds_mqtt_request_tag) == false) {
+            return reply_to;
+        }
+        
+        // DEBUG
+        this.errorLogger().warning("GenericMQTTProcessor: ignoring reply-to outside " + this.m_reply_to_prefix + ": " + reply_to + " (request topic: " + topic + ")");
+        return null;
+    }
+    
+    // response topic for a request: the caller's (validated) reply-to if given, otherwise the request topic without the request TAG
+    protected String responseTopic(String topic,String reply_to) {
+        if (reply_to != null && reply_to.length() > 0) {
+            return reply_to;
+        }
+        return this.stripRequestTAG(topic);
+    }
+    
+    // echo the request correlation-id in a reply (non-object replies are wrapped)
+    public String correlateReply(String json,String correlation_id) {
+        if (json == null || correlation_id == null) {
+            return json;
+        }
+        Map parsed = null;
+        try {
+            parsed = this.orchestrator().getJSONParser().parseJson(json);
+        }
+        catch (Exception ex) {
+            // silent
+        }
+        HashMap<String,Object> reply = new HashMap<>();
+        if (parsed != null && parsed.size() == 1 && parsed.get("root") instanceof List) {
+            // JSON arrays are parsed as {"root":[...]}
+            reply.put("response",parsed.get("root"));
+        }
+        else if (parsed != null) {
+            reply.putAll(parsed);
+        }
+        else {
+            reply.put("response",json);
+        }
+        reply.put("correlation-id",correlation_id);
+        return this.jsonGenerator().generateJson(reply);
+    }
+    
+    // coerce a JSON value to a string (null if absent or empty)
+    private String stringValue(Object value) {
+        if (value != null && value.toString().length() > 0) {
+            return value.toString();
+        }
+        return null;
     }
     
     // process AsyncResponses
@@ -681,6 +936,24 @@ public class GenericMQTTProcessor extends Processor implements Transport.Receive
         }
     }
     
+    // AsyncResponse deadline passed without a reply from mDS: optionally tell the requestor
+    public void onAsyncResponseTimeout(AsyncResponseRecord record) {
+        MQTTTransport mqtt = (record.mqtt() != null) ? record.mqtt() : this.replyTransport(record.endpointName());
+        if (this.m_notify_async_response_timeout == true && mqtt != null && record.responseTopic() != null) {
+            HashMap<String,Object> reply = new HashMap<>();
+            reply.put("async-response-id",record.id());
+            reply.put("ep",record.endpointName());
+            reply.put("path",record.uri());
+            reply.put("coap_verb",record.verb());
+            reply.put("status",504);
+            reply.put("error","timeout");
+            if (record.correlationId() != null) {
+                reply.put("correlation-id",record.correlationId());
+            }
+            mqtt.sendMessage(record.responseTopic(),this.jsonGenerator().generateJson(reply));
+        }
+    }
+    
     // split AsyncID
     private String[] splitAsyncID(String id) {
         String[] parts = null;
@@ -770,6 +1043,16 @@ public class GenericMQTTProcessor extends Processor implements Transport.Receive
                 this.errorLogger().warning("formatAsyncResponseAsReply(IoTF): Exception during GET reply -> observation creation. Not sending GET as observation...",ex);
             }
         }
+        else if (verb != null && async_response != null) {
+            // PUT/POST/DELETE (buffered commands): reply with the CoAP status
+            HashMap<String,Object> reply = new HashMap<>();
+            reply.put("status",async_response.get("status"));
+            reply.put("verb",verb.toUpperCase());
+            if (async_response.get("error") != null) {
+                reply.put("error",async_response.get("error"));
+            }
+            return this.jsonGenerator().generateJson(reply);
+        }
         return null;
     }
     
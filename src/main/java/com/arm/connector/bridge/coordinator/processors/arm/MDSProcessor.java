@@ -32,7 +32,9 @@ import com.arm.connector.bridge.transport.HttpTransport;
 import java.io.BufferedReader;
 import java.io.IOException;
 import java.io.PrintWriter;
+import java.util.ArrayList;
 import java.util.HashMap;
+import java.util.List;
 import java.util.Map;
 import javax.servlet.http.HttpServletRequest;
 import javax.servlet.http.HttpServletResponse;
@@ -73,6 +75,8 @@ public class MDSProcessor extends Processor implements MDSInterface {
     private int                        m_webhook_validator_poll_ms = -1;
     private WebhookValidator           m_webhook_validator = null;
     private boolean                    m_webhook_validator_enable = false;
+    private boolean                    m_using_websocket_channel = false;
+    private MDSWebSocketChannel        m_websocket_channel = null;
     
     // constructor
     public MDSProcessor(Orchestrator orchestrator,HttpTransport http) {
@@ -105,6 +109,7 @@ public class MDSProcessor extends Processor implements MDSInterface {
             // enabling webhook/subscription validation
             this.m_webhook_validator_poll_ms = orchestrator.preferences().intValueOf("mds_webhook_validator_poll_ms");
             this.m_webhook_validator = new WebhookValidator(this,this.m_webhook_validator_poll_ms);
+            this.m_webhook_validator.persistTo(orchestrator.stateJournal(),"webhook-subscriptions");
         
             // DEBUG
             orchestrator.errorLogger().warning("MDSProcessor: mds/mDC webhook/subscription validator ENABLED (interval: " + this.m_webhook_validator_poll_ms + "ms)");
@@ -208,6 +213,11 @@ public class MDSProcessor extends Processor implements MDSInterface {
         
         // set the boolean checker...
         this.m_using_callback_webhooks = (this.m_mds_gw_callback.equalsIgnoreCase("callback") == true);
+        this.m_using_websocket_channel = (this.m_mds_gw_callback.equalsIgnoreCase("websocket") == true);
+        if (this.m_using_websocket_channel == true) {
+            // DEBUG
+            this.errorLogger().info("MDSProcessor: using WebSocket notification channel");
+        }
     }
     
     // our the mDS notifications coming in over the webhook validatable?
@@ -232,7 +242,7 @@ public class MDSProcessor extends Processor implements MDSInterface {
     
     // is our mDS instance actually mDC?
     private boolean mdsIsConnector() {
-        return (this.m_use_api_token == true && this.m_using_callback_webhooks == true && this.m_use_https_dispatch == true);
+        return (this.m_use_api_token == true && (this.m_using_callback_webhooks == true || this.m_using_websocket_channel == true) && this.m_use_https_dispatch == true);
     }
     
     // mDS is using Token Auth
@@ -291,11 +301,82 @@ public class MDSProcessor extends Processor implements MDSInterface {
         return this.createBaseURL() + this.getDomain() + "/notification/" + this.m_mds_gw_callback;
     }
     
+    // create the WebSocket notification channel connect URL
+    private String createWebSocketConnectURL() {
+        String scheme = "ws://";
+        if (this.m_use_https_dispatch == true) {
+            scheme = "wss://";
+        }
+        return scheme + this.m_mds_host + ":" + this.m_mds_port + this.getDomain() + "/notification/websocket-connect";
+    }
+    
+    // register (or refresh) the WebSocket notification channel with mDS/mDC
+    public boolean registerWebSocketChannel() {
+        String dispatch_url = this.createDispatchURL();
+        
+        // DEBUG
+        this.errorLogger().info("registerWebSocketChannel: registering notification channel: " + dispatch_url);
+        
+        // SSL vs. HTTP
+        if (this.m_use_https_dispatch == true) {
+            this.httpsPut(dispatch_url);
+        }
+        else {
+            this.httpPut(dispatch_url);
+        }
+        
+        // check the status...
+        int status = this.getLastResponseCode() - 200;
+        return (status >= 0 && status < 100);
+    }
+    
+    // establish the WebSocket notification channel
+    private void setNotificationChannel() {
+        if (this.registerWebSocketChannel() == false) {
+            // DEBUG
+            this.errorLogger().warning("setNotificationChannel: ERROR: unable to register WebSocket notification channel. Status: " + this.getLastResponseCode());
+        }
+        
+        // (re)start the channel if its not already running... it will reconnect on its own if dropped
+        if (this.m_websocket_channel == null) {
+            this.m_websocket_channel = new MDSWebSocketChannel(this,this.createWebSocketConnectURL(),this.m_api_token);
+            this.m_websocket_channel.startChannel();
+        }
+        
+        // record the channel as our webhook
+        if (this.m_webhook_validator != null) {
+            this.m_webhook_validator.setWebhook(this.m_websocket_channel.getConnectURL());
+        }
+    }
+    
+    // tear down the WebSocket notification channel
+    private void removeNotificationChannel() {
+        if (this.m_websocket_channel != null) {
+            this.m_websocket_channel.stopChannel();
+            this.m_websocket_channel = null;
+        }
+        this.removeNotificationCallback();
+    }
+    
+    // process a message received over the WebSocket notification channel
+    void processChannelMessage(String json) {
+        // no servlet request... channel messages are authenticated by the channel itself
+        this.processMDSMessage(json, null);
+    }
+    
     // get the currently configured callback URL
     public String getNotificationCallbackURL() {
         String url = null;
         String headers = null;
         
+        // WebSocket channel: the "callback" is the channel itself
+        if (this.m_using_websocket_channel == true) {
+            if (this.m_websocket_channel != null && this.m_websocket_channel.isConnected() == true) {
+                url = this.m_websocket_channel.getConnectURL();
+            }
+            return url;
+        }
+        
         // create the dispatch URL
         String dispatch_url = this.createDispatchURL();
         
@@ -395,7 +476,11 @@ public class MDSProcessor extends Processor implements MDSInterface {
     // reset the mDS Notification Callback URL
     @Override
     public void resetNotificationCallbackURL() {
-        if (this.validatableNotifications() == true) {
+        if (this.m_using_websocket_channel == true) {
+            // tear down the channel
+            this.removeNotificationChannel();
+        }
+        else if (this.validatableNotifications() == true) {
             // we simply delete the webhook 
             this.removeNotificationCallback(); 
         }
@@ -410,6 +495,11 @@ public class MDSProcessor extends Processor implements MDSInterface {
     // set our mDS Notification Callback URL
     @Override
     public void setNotificationCallbackURL() {
+        if (this.m_using_websocket_channel == true) {
+            // use the WebSocket notification channel instead of a webhook
+            this.setNotificationChannel();
+            return;
+        }
         String target_url = this.createCallbackURL();
         this.setNotificationCallbackURL(target_url);
     }
@@ -967,7 +1057,44 @@ public class MDSProcessor extends Processor implements MDSInterface {
         // return the result
         return subscribed;
     }
-    
+
+    // get the resource subscriptions of a single endpoint in one call: /{domain}/subscriptions/{endpoint-name} (null if not retrievable)
+    public List<String> getEndpointSubscriptions(String url) {
+        String list = null;
+        this.errorLogger().info("getEndpointSubscriptions: getting endpoint subscriptions: " + url);
+        if (this.mdsRequiresSSL()) {
+            list = this.httpsGet(url);
+        }
+        else {
+            list = this.httpGet(url);
+        }
+
+        // check the status...
+        int status = this.getLastResponseCode();
+        if (status == 404) {
+            // no subscriptions for this endpoint
+            return new ArrayList<>();
+        }
+        status = status - 200;
+        if (status >= 0 && status < 100) {
+            // 20x response - OK... one subscribed resource path per line
+            ArrayList<String> subscriptions = new ArrayList<>();
+            if (list != null) {
+                String[] lines = list.split("\\r?\\n");
+                for(int i=0;i<lines.length;++i) {
+                    String path = lines[i].trim();
+                    if (path.length() > 0) {
+                        subscriptions.add(path);
+                    }
+                }
+            }
+            return subscriptions;
+        }
+
+        // unable to retrieve the endpoint subscriptions
+        return null;
+    }
+
     // process endpoint resource operation request
     @Override
     public String processEndpointResourceOperation(String verb,String ep_name,String uri) {
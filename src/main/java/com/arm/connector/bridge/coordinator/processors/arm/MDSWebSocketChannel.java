@@ -0,0 +1,525 @@
+/**
+ * @file    MDSWebSocketChannel.java
+ * @brief   mDS/mDC WebSocket notification channel for the connector bridge
+ * @author  Doug Anson
+ * @version 1.0
+ * @see
+ *
+ * Copyright 2015. ARM Ltd. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+
+package com.arm.connector.bridge.coordinator.processors.arm;
+
+import com.arm.connector.bridge.core.ErrorLogger;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.net.SocketTimeoutException;
+import java.net.URI;
+import java.nio.charset.Charset;
+import java.security.MessageDigest;
+import java.security.SecureRandom;
+import java.security.cert.X509Certificate;
+import java.util.concurrent.atomic.AtomicLong;
+import javax.net.ssl.SSLContext;
+import javax.net.ssl.SSLSocket;
+import javax.net.ssl.TrustManager;
+import javax.net.ssl.X509TrustManager;
+import org.apache.commons.codec.binary.Base64;
+
+/**
+ * This class maintains a single long-lived WebSocket to mDS/mDC and feeds each notification frame into MDSProcessor
+ *
+ * @author Doug Anson
+ */
+public class MDSWebSocketChannel extends Thread {
+    private static final String     WS_GUID = "258EAFA5-E914-47DA-95CA-C5AB0DC85B11";
+    private static final Charset    UTF8 = Charset.forName("UTF-8");
+    private static final int        OPCODE_CONTINUATION = 0x0;
+    private static final int        OPCODE_TEXT = 0x1;
+    private static final int        OPCODE_BINARY = 0x2;
+    private static final int        OPCODE_CLOSE = 0x8;
+    private static final int        OPCODE_PING = 0x9;
+    private static final int        OPCODE_PONG = 0xA;
+
+    private MDSProcessor            m_mds = null;
+    private String                  m_connect_url = null;
+    private String                  m_api_token = null;
+    private Socket                  m_socket = null;
+    private InputStream             m_input = null;
+    private OutputStream            m_output = null;
+    private SecureRandom            m_random = null;
+    private volatile boolean        m_running = false;
+    private final Object            m_run_lock = new Object();
+    private volatile boolean        m_connected = false;
+    private int                     m_reconnect_min_ms = 0;
+    private int                     m_reconnect_max_ms = 0;
+    private int                     m_ping_interval_ms = 0;
+    private int                     m_connect_timeout_ms = 0;
+    private int                     m_max_frame_size = 0;
+
+    // channel statistics (updated by the channel thread, read by metrics callers)
+    private final AtomicLong        m_num_messages = new AtomicLong(0);
+    private final AtomicLong        m_num_reconnects = new AtomicLong(0);
+    private final AtomicLong        m_total_dispatch_ns = new AtomicLong(0);
+
+    // default constructor
+    public MDSWebSocketChannel(MDSProcessor mds,String connect_url,String api_token) {
+        this.m_mds = mds;
+        this.m_connect_url = connect_url;
+        this.m_api_token = api_token;
+        this.m_random = new SecureRandom();
+        this.m_running = false;
+        this.m_connected = false;
+
+        // reconnect backoff and keepalive configuration
+        this.m_reconnect_min_ms = this.intPreference("mds_websocket_reconnect_min_ms",1000);
+        this.m_reconnect_max_ms = this.intPreference("mds_websocket_reconnect_max_ms",60000);
+        this.m_ping_interval_ms = this.intPreference("mds_websocket_ping_interval_ms",30000);
+        this.m_connect_timeout_ms = this.intPreference("mds_websocket_connect_timeout_ms",10000);
+        this.m_max_frame_size = this.intPreference("mds_websocket_max_frame_size",1048576);
+
+        // name our thread
+        this.setName("mds-websocket-channel");
+        this.setDaemon(true);
+    }
+
+    // get our error logger
+    private ErrorLogger errorLogger() {
+        return this.m_mds.errorLogger();
+    }
+
+    // read an integer preference with a default
+    private int intPreference(String key,int def_value) {
+        int value = this.m_mds.preferences().intValueOf(key);
+        if (value <= 0) {
+            value = def_value;
+        }
+        return value;
+    }
+
+    // get the channel URL we are bound to
+    public String getConnectURL() {
+        return this.m_connect_url;
+    }
+
+    // are we connected?
+    public boolean isConnected() {
+        return this.m_connected;
+    }
+
+    // number of messages dispatched over the channel
+    public long getMessageCount() {
+        return this.m_num_messages.get();
+    }
+
+    // number of times we have had to reconnect
+    public long getReconnectCount() {
+        return this.m_num_reconnects.get();
+    }
+
+    // average per-message dispatch time in microseconds
+    public long getAverageDispatchMicros() {
+        long num_messages = this.m_num_messages.get();
+        if (num_messages > 0) {
+            return (this.m_total_dispatch_ns.get() / num_messages) / 1000;
+        }
+        return 0;
+    }
+
+    // start the channel
+    public void startChannel() {
+        if (this.m_running == false) {
+            // DEBUG
+            this.errorLogger().info("MDSWebSocketChannel: starting notification channel: " + this.m_connect_url);
+
+            // start our thread...
+            this.m_running = true;
+            this.start();
+        }
+    }
+
+    // stop the channel
+    public void stopChannel() {
+        // DEBUG
+        this.errorLogger().info("MDSWebSocketChannel: stopping notification channel. Messages: " + this.m_num_messages.get() + " Reconnects: " + this.m_num_reconnects.get() + " Avg dispatch: " + this.getAverageDispatchMicros() + "us");
+
+        // stop the thread and close the socket (under the run lock, so a re-registration in progress completes first)
+        synchronized (this.m_run_lock) {
+            this.m_running = false;
+        }
+        this.sendFrame(OPCODE_CLOSE,new byte[0]);
+        this.closeSocket();
+        this.interrupt();
+    }
+
+    /**
+     * run method for the channel thread
+     */
+    @Override
+    public void run() {
+        this.channelLoop();
+    }
+
+    /**
+     * main thread loop - (re)connect with backoff and process frames until stopped
+     */
+    @SuppressWarnings("empty-statement")
+    private void channelLoop() {
+        int backoff_ms = this.m_reconnect_min_ms;
+        while (this.m_running == true) {
+            if (this.connect() == true) {
+                // connected... reset our backoff
+                backoff_ms = this.m_reconnect_min_ms;
+
+                // process frames until the socket drops
+                this.receiveLoop();
+            }
+
+            // not connected anymore
+            this.m_connected = false;
+            this.closeSocket();
+
+            // wait a bit and retry...
+            if (this.m_running == true) {
+                this.m_num_reconnects.incrementAndGet();
+
+                // DEBUG
+                this.errorLogger().info("MDSWebSocketChannel: channel disconnected. Reconnecting in " + backoff_ms + "ms...");
+                try {
+                    Thread.sleep(backoff_ms);
+                }
+                catch(InterruptedException ex) {
+                    // silent
+                    ;
+                }
+                backoff_ms = Math.min(backoff_ms * 2,this.m_reconnect_max_ms);
+
+                // resume: mDS/mDC queues notifications while the channel is registered... re-register in case the channel expired
+                // (unless we were stopped during the backoff: the channel has been removed from mDS/mDC)
+                synchronized (this.m_run_lock) {
+                    if (this.m_running == true) {
+                        this.m_mds.registerWebSocketChannel();
+                    }
+                }
+            }
+        }
+    }
+
+    // connect and perform the WebSocket handshake
+    private boolean connect() {
+        try {
+            URI uri = new URI(this.m_connect_url);
+            boolean use_ssl = "wss".equalsIgnoreCase(uri.getScheme());
+            int port = uri.getPort();
+            if (port <= 0) {
+                port = (use_ssl == true) ? 443 : 80;
+            }
+
+            // open the socket... connect, TLS and upgrade handshakes are all bounded by our connect timeout
+            Socket socket = new Socket();
+            this.m_socket = socket;
+            socket.connect(new InetSocketAddress(uri.getHost(),port),this.m_connect_timeout_ms);
+            socket.setSoTimeout(this.m_connect_timeout_ms);
+            if (use_ssl == true) {
+                SSLSocket ssl_socket = (SSLSocket)this.createSSLContext().getSocketFactory().createSocket(socket,uri.getHost(),port,true);
+                this.m_socket = ssl_socket;
+                ssl_socket.startHandshake();
+            }
+            this.m_socket.setTcpNoDelay(true);
+            this.m_socket.setKeepAlive(true);
+            this.m_input = this.m_socket.getInputStream();
+            this.m_output = this.m_socket.getOutputStream();
+
+            // build the upgrade request
+            byte[] nonce = new byte[16];
+            this.m_random.nextBytes(nonce);
+            String key = Base64.encodeBase64String(nonce).trim();
+            String path = uri.getRawPath();
+            if (uri.getRawQuery() != null) {
+                path = path + "?" + uri.getRawQuery();
+            }
+            StringBuilder request = new StringBuilder();
+            request.append("GET ").append(path).append(" HTTP/1.1\r\n");
+            request.append("Host: ").append(uri.getHost()).append(":").append(port).append("\r\n");
+            request.append("Upgrade: websocket\r\n");
+            request.append("Connection: Upgrade\r\n");
+            request.append("Sec-WebSocket-Key: ").append(key).append("\r\n");
+            request.append("Sec-WebSocket-Version: 13\r\n");
+            if (this.m_api_token != null && this.m_api_token.length() > 0) {
+                request.append("Authorization: Bearer ").append(this.m_api_token).append("\r\n");
+            }
+            request.append("\r\n");
+            this.m_output.write(request.toString().getBytes(UTF8));
+            this.m_output.flush();
+
+            // read the upgrade response headers
+            String status = this.readLine();
+            String accept = null;
+            String line = this.readLine();
+            while (line != null && line.length() > 0) {
+                int index = line.indexOf(':');
+                if (index > 0 && line.substring(0,index).trim().equalsIgnoreCase("Sec-WebSocket-Accept")) {
+                    accept = line.substring(index + 1).trim();
+                }
+                line = this.readLine();
+            }
+
+            // validate the response
+            if (status == null || status.contains(" 101") == false) {
+                this.errorLogger().warning("MDSWebSocketChannel: handshake rejected: " + status);
+                return false;
+            }
+            if (accept == null || accept.equals(this.computeAccept(key)) == false) {
+                this.errorLogger().warning("MDSWebSocketChannel: handshake failed: invalid Sec-WebSocket-Accept: " + accept);
+                return false;
+            }
+
+            // use the ping interval as our read timeout so we can detect a stale channel
+            this.m_socket.setSoTimeout(this.m_ping_interval_ms);
+            this.m_connected = true;
+
+            // DEBUG
+            this.errorLogger().info("MDSWebSocketChannel: connected: " + this.m_connect_url);
+            return true;
+        }
+        catch (Exception ex) {
+            this.errorLogger().warning("MDSWebSocketChannel: unable to connect to: " + this.m_connect_url + " Exception: " + ex.getMessage());
+        }
+        return false;
+    }
+
+    // read frames and dispatch text messages until the channel drops
+    private void receiveLoop() {
+        ByteArrayOutputStream message = new ByteArrayOutputStream();
+        int message_opcode = -1;
+        boolean awaiting_pong = false;
+
+        while (this.m_running == true && this.m_connected == true) {
+            try {
+                int b0 = this.readByte();
+                int b1 = this.readByte();
+                boolean fin = ((b0 & 0x80) != 0);
+                int opcode = (b0 & 0x0F);
+                boolean masked = ((b1 & 0x80) != 0);
+                long length = (b1 & 0x7F);
+                if (length == 126) {
+                    length = (this.readByte() << 8) | this.readByte();
+                }
+                else if (length == 127) {
+                    length = 0;
+                    for(int i=0;i<8;++i) {
+                        length = (length << 8) | this.readByte();
+                    }
+                }
+                if (length > this.m_max_frame_size || (message.size() + length) > this.m_max_frame_size) {
+                    this.errorLogger().warning("MDSWebSocketChannel: frame too large (" + length + " bytes). Dropping channel...");
+                    return;
+                }
+                byte[] mask = null;
+                if (masked == true) {
+                    mask = this.readFully(4);
+                }
+                byte[] payload = this.readFully((int)length);
+                if (mask != null) {
+                    for(int i=0;i<payload.length;++i) {
+                        payload[i] = (byte)(payload[i] ^ mask[i % 4]);
+                    }
+                }
+
+                // any traffic means the channel is alive
+                awaiting_pong = false;
+
+                // act on the frame
+                switch (opcode) {
+                    case OPCODE_TEXT:
+                    case OPCODE_BINARY:
+                        message.reset();
+                        message_opcode = opcode;
+                        message.write(payload);
+                        if (fin == true) {
+                            this.dispatch(message.toByteArray());
+                            message.reset();
+                        }
+                        break;
+                    case OPCODE_CONTINUATION:
+                        if (message_opcode >= 0) {
+                            message.write(payload);
+                            if (fin == true) {
+                                this.dispatch(message.toByteArray());
+                                message.reset();
+                                message_opcode = -1;
+                            }
+                        }
+                        break;
+                    case OPCODE_PING:
+                        this.sendFrame(OPCODE_PONG,payload);
+                        break;
+                    case OPCODE_PONG:
+                        break;
+                    case OPCODE_CLOSE:
+                        this.errorLogger().info("MDSWebSocketChannel: close received from mDS/mDC");
+                        this.sendFrame(OPCODE_CLOSE,payload);
+                        return;
+                    default:
+                        this.errorLogger().warning("MDSWebSocketChannel: unknown opcode: " + opcode + " (ignoring)");
+                        break;
+                }
+            }
+            catch (SocketTimeoutException ex) {
+                // idle... ping once and if nothing comes back by the next timeout, drop and reconnect
+                if (awaiting_pong == true) {
+                    this.errorLogger().warning("MDSWebSocketChannel: no response to ping. Dropping channel...");
+                    return;
+                }
+                awaiting_pong = this.sendFrame(OPCODE_PING,new byte[0]);
+            }
+            catch (IOException ex) {
+                if (this.m_running == true) {
+                    this.errorLogger().warning("MDSWebSocketChannel: channel read failed: " + ex.getMessage());
+                }
+                return;
+            }
+        }
+    }
+
+    // dispatch a message into the existing MDSProcessor notification path
+    private void dispatch(byte[] data) {
+        long start = System.nanoTime();
+        this.m_mds.processChannelMessage(new String(data,UTF8));
+        this.m_total_dispatch_ns.addAndGet(System.nanoTime() - start);
+        this.m_num_messages.incrementAndGet();
+    }
+
+    // send a (masked) client frame
+    private synchronized boolean sendFrame(int opcode,byte[] payload) {
+        if (this.m_output == null) {
+            return false;
+        }
+        try {
+            ByteArrayOutputStream frame = new ByteArrayOutputStream();
+            frame.write(0x80 | opcode);
+            if (payload.length < 126) {
+                frame.write(0x80 | payload.length);
+            }
+            else if (payload.length < 65536) {
+                frame.write(0x80 | 126);
+                frame.write((payload.length >> 8) & 0xFF);
+                frame.write(payload.length & 0xFF);
+            }
+            else {
+                frame.write(0x80 | 127);
+                for(int i=7;i>=0;--i) {
+                    frame.write((int)(((long)payload.length >> (8*i)) & 0xFF));
+                }
+            }
+            byte[] mask = new byte[4];
+            this.m_random.nextBytes(mask);
+            frame.write(mask);
+            for(int i=0;i<payload.length;++i) {
+                frame.write(payload[i] ^ mask[i % 4]);
+            }
+            this.m_output.write(frame.toByteArray());
+            this.m_output.flush();
+            return true;
+        }
+        catch (IOException ex) {
+            // DEBUG
+            this.errorLogger().info("MDSWebSocketChannel: unable to send frame: " + ex.getMessage());
+        }
+        return false;
+    }
+
+    // read a single byte
+    private int readByte() throws IOException {
+        int b = this.m_input.read();
+        if (b < 0) {
+            throw new IOException("channel closed by mDS/mDC");
+        }
+        return b;
+    }
+
+    // read a fixed number of bytes
+    private byte[] readFully(int length) throws IOException {
+        byte[] data = new byte[length];
+        int offset = 0;
+        while (offset < length) {
+            int n = this.m_input.read(data,offset,length - offset);
+            if (n < 0) {
+                throw new IOException("channel closed by mDS/mDC");
+            }
+            offset += n;
+        }
+        return data;
+    }
+
+    // read a CRLF terminated header line
+    private String readLine() throws IOException {
+        StringBuilder line = new StringBuilder();
+        int b = this.m_input.read();
+        while (b >= 0 && b != '\n') {
+            if (b != '\r') {
+                line.append((char)b);
+            }
+            b = this.m_input.read();
+        }
+        if (b < 0 && line.length() == 0) {
+            return null;
+        }
+        return line.toString();
+    }
+
+    // compute the expected Sec-WebSocket-Accept value
+    private String computeAccept(String key) throws Exception {
+        MessageDigest sha1 = MessageDigest.getInstance("SHA-1");
+        return Base64.encodeBase64String(sha1.digest((key + WS_GUID).getBytes(UTF8))).trim();
+    }
+
+    // create an SSL context (trust model matches HttpTransport)
+    private SSLContext createSSLContext() throws Exception {
+        TrustManager[] trustAllCerts = new TrustManager[]{new X509TrustManager(){
+            @Override
+            public X509Certificate[] getAcceptedIssuers(){return null;}
+            @Override
+            public void checkClientTrusted(X509Certificate[] certs, String authType){}
+            @Override
+            public void checkServerTrusted(X509Certificate[] certs, String authType){}
+        }};
+        SSLContext sc = SSLContext.getInstance("TLS");
+        sc.init(null, trustAllCerts, new SecureRandom());
+        return sc;
+    }
+
+    // close the socket
+    @SuppressWarnings("empty-statement")
+    private synchronized void closeSocket() {
+        try {
+            if (this.m_socket != null) {
+                this.m_socket.close();
+            }
+        }
+        catch (IOException ex) {
+            // silent
+            ;
+        }
+        this.m_socket = null;
+        this.m_input = null;
+        this.m_output = null;
+    }
+}
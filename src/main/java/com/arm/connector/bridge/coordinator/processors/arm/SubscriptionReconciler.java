@@ -0,0 +1,425 @@
+/**
+ * @file    SubscriptionReconciler.java
+ * @brief   mDS/mDC resource subscription reconciler (desired vs. actual)
+ * @author  Doug Anson
+ * @version 1.0
+ * @see
+ *
+ * Copyright 2015. ARM Ltd. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+package com.arm.connector.bridge.coordinator.processors.arm;
+
+import com.arm.connector.bridge.core.ErrorLogger;
+import com.arm.connector.bridge.core.SharedResources;
+import com.arm.connector.bridge.core.TimerService;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashSet;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * This class reconciles the bridge's desired resource subscriptions with those mDS/mDC actually holds: it lists
+ * each endpoint's subscriptions, diffs them against the desired set and issues only the missing subscribes and
+ * stale deletes, in rate limited batches on the shared timer service
+ *
+ * @author Doug Anson
+ */
+public class SubscriptionReconciler {
+    private static final int            DEF_BATCH_SIZE = 25;
+    private static final int            DEF_MAX_OPS_PER_SEC = 10;
+    private static final String         SUBSCRIPTIONS_PATH = "/subscriptions/";
+
+    // reconciliation operations
+    private static final int            OP_DIFF = 0;
+    private static final int            OP_SUBSCRIBE = 1;
+    private static final int            OP_DELETE = 2;
+
+    private MDSProcessor                m_mds = null;
+    private WebhookValidator            m_validator = null;
+    private int                         m_batch_size = 0;
+    private int                         m_max_ops_per_sec = 0;
+    private int                         m_max_retry_count = 0;
+    private boolean                     m_delete_stale = false;
+
+    // pending work (guarded by this)
+    private LinkedHashSet<String>       m_requested = null;
+    private ArrayDeque<Operation>       m_operations = null;
+    private boolean                     m_running = false;
+    private boolean                     m_stopped = false;
+    private TimerService.Timer          m_timer = null;
+
+    // drift statistics: this pass and cumulative
+    private Drift                       m_pass = null;
+    private final AtomicLong            m_passes = new AtomicLong(0);
+    private final AtomicLong            m_missing = new AtomicLong(0);
+    private final AtomicLong            m_stale = new AtomicLong(0);
+    private final AtomicLong            m_unverified = new AtomicLong(0);
+    private final AtomicLong            m_subscribed = new AtomicLong(0);
+    private final AtomicLong            m_deleted = new AtomicLong(0);
+    private final AtomicLong            m_failed = new AtomicLong(0);
+
+    // default constructor
+    public SubscriptionReconciler(MDSProcessor mds,WebhookValidator validator) {
+        this.m_mds = mds;
+        this.m_validator = validator;
+        this.m_requested = new LinkedHashSet<>();
+        this.m_operations = new ArrayDeque<>();
+        this.m_max_retry_count = mds.preferences().intValueOf("mds_webhook_retry_max_tries");
+        this.m_batch_size = mds.preferences().intValueOf("mds_reconcile_batch_size");
+        if (this.m_batch_size <= 0) {
+            this.m_batch_size = DEF_BATCH_SIZE;
+        }
+        this.m_max_ops_per_sec = mds.preferences().intValueOf("mds_reconcile_max_ops_per_sec");
+        if (this.m_max_ops_per_sec <= 0) {
+            this.m_max_ops_per_sec = DEF_MAX_OPS_PER_SEC;
+        }
+        String delete_stale = mds.preferences().valueOf("mds_reconcile_delete_stale");
+        if (delete_stale != null && delete_stale.length() > 0) {
+            this.m_delete_stale = mds.preferences().booleanValueOf("mds_reconcile_delete_stale");
+        }
+    }
+
+    // get our error logger
+    private ErrorLogger errorLogger() {
+        return this.m_mds.errorLogger();
+    }
+
+    // request reconciliation of the endpoints owning the given subscription URLs
+    public synchronized void reconcile(Collection<String> urls) {
+        if (this.m_stopped == true || urls == null || urls.isEmpty() == true) {
+            return;
+        }
+        for (String url : urls) {
+            String listing_url = SubscriptionReconciler.listingURL(url);
+            this.m_requested.add((listing_url != null) ? listing_url : url);
+        }
+        if (this.m_running == false) {
+            this.m_running = true;
+            this.arm(0);
+        }
+    }
+
+    // (re)start reconciling
+    public synchronized void start() {
+        this.m_stopped = false;
+    }
+
+    // stop reconciling (pending work is dropped)
+    public synchronized void stop() {
+        this.m_stopped = true;
+        this.m_requested.clear();
+        this.m_operations.clear();
+        this.m_running = false;
+        if (this.m_timer != null) {
+            this.m_timer.cancel();
+            this.m_timer = null;
+        }
+    }
+
+    // is a reconciliation pass in progress?
+    public synchronized boolean isRunning() {
+        return this.m_running;
+    }
+
+    // cumulative drift statistics
+    public String metrics() {
+        return "passes=" + this.m_passes.get() + " missing=" + this.m_missing.get() + " stale=" + this.m_stale.get() + " unverified=" + this.m_unverified.get() + " subscribed=" + this.m_subscribed.get() + " deleted=" + this.m_deleted.get() + " failed=" + this.m_failed.get();
+    }
+
+    // arm the next batch on the shared timer service
+    private synchronized void arm(long delay_ms) {
+        if (this.m_stopped == false) {
+            this.m_timer = SharedResources.getInstance().timers().schedule("subscription-reconciler",new Runnable() {
+                @Override
+                public void run() {
+                    runBatch();
+                }
+            },delay_ms);
+        }
+    }
+
+    // run one batch of operations and pace the next one to our rate limit
+    private void runBatch() {
+        long start_ms = System.currentTimeMillis();
+        int executed = 0;
+        try {
+            for(int i=0;i<this.m_batch_size;++i) {
+                Operation operation = this.nextOperation();
+                if (operation == null) {
+                    break;
+                }
+                this.execute(operation);
+                ++executed;
+            }
+        }
+        catch (Exception ex) {
+            // DEBUG
+            this.errorLogger().info("SubscriptionReconciler: caught exception: " + ex.getMessage() + " (OK)... will retry later.");
+        }
+        finally {
+            synchronized (this) {
+                if (this.m_operations.isEmpty() == true && this.m_requested.isEmpty() == true) {
+                    // pass complete
+                    this.completePass();
+                    this.m_running = false;
+                }
+                else {
+                    long budget_ms = ((long)executed * 1000) / this.m_max_ops_per_sec;
+                    this.arm(Math.max(0,budget_ms - (System.currentTimeMillis() - start_ms)));
+                }
+            }
+        }
+    }
+
+    // next operation... begins a new pass (one diff per requested endpoint) when the queue has drained
+    private synchronized Operation nextOperation() {
+        if (this.m_operations.isEmpty() == true && this.m_requested.isEmpty() == false) {
+            this.completePass();
+            this.beginPass();
+        }
+        return this.m_operations.poll();
+    }
+
+    // begin a pass: queue a diff for each requested endpoint
+    private void beginPass() {
+        this.m_pass = new Drift();
+        for (String key : this.m_requested) {
+            this.m_operations.add(new Operation(OP_DIFF,key));
+        }
+        this.m_requested.clear();
+    }
+
+    // complete a pass: record and report its drift
+    private void completePass() {
+        if (this.m_pass != null) {
+            this.m_passes.incrementAndGet();
+
+            // DEBUG
+            this.errorLogger().info("SubscriptionReconciler: pass complete: " + this.m_pass.toString() + " (totals: " + this.metrics() + ")");
+            this.m_pass = null;
+        }
+    }
+
+    // queue an operation
+    private synchronized void enqueue(Operation operation) {
+        this.m_operations.add(operation);
+    }
+
+    // desired subscriptions for an endpoint (or single URL)... read from the validator when used, as subscriptions
+    // added after the pass began must not be taken as stale
+    private List<String> desired(String key) {
+        return this.m_validator.subscriptionURLs(key);
+    }
+
+    // execute an operation
+    private void execute(Operation operation) {
+        switch (operation.m_type) {
+            case OP_DIFF:
+                this.diff(operation.m_url);
+                break;
+            case OP_SUBSCRIBE:
+                this.subscribe(operation);
+                break;
+            case OP_DELETE:
+                this.delete(operation);
+                break;
+            default:
+                break;
+        }
+    }
+
+    // diff an endpoint's desired subscriptions against those mDS actually holds
+    private void diff(String key) {
+        List<String> desired = this.desired(key);
+        Drift pass = this.m_pass;
+        pass.m_endpoints++;
+        pass.m_desired += desired.size();
+
+        // list what mDS actually has for this endpoint (one call)
+        String listing_url = key.equals(SubscriptionReconciler.listingURL(key + "/")) ? key : null;
+        List<String> listing = null;
+        if (listing_url != null) {
+            listing = this.m_mds.getEndpointSubscriptions(listing_url);
+        }
+        if (listing == null) {
+            // cannot see the actual state... (re)subscribe everything desired
+            pass.m_unverified += desired.size();
+            this.m_unverified.addAndGet(desired.size());
+            for (String url : desired) {
+                this.enqueue(new Operation(OP_SUBSCRIBE,url));
+            }
+            return;
+        }
+
+        // missing: desired but not held by mDS
+        HashSet<String> actual = SubscriptionReconciler.actualPaths(listing_url,listing);
+        HashSet<String> desired_paths = new HashSet<>();
+        for (String url : desired) {
+            String path = SubscriptionReconciler.resourcePath(url);
+            desired_paths.add(path);
+            if (actual.contains(path) == false) {
+                pass.m_missing++;
+                this.m_missing.incrementAndGet();
+                this.enqueue(new Operation(OP_SUBSCRIBE,url));
+            }
+        }
+
+        // stale: held by mDS but no longer desired... only those the bridge made are deleted (the account may be shared)
+        for (String path : actual) {
+            if (desired_paths.contains(path) == false) {
+                pass.m_stale++;
+                this.m_stale.incrementAndGet();
+                if (this.m_delete_stale == true && this.m_validator.isRetired(listing_url + path) == true) {
+                    this.enqueue(new Operation(OP_DELETE,listing_url + path));
+                }
+            }
+        }
+    }
+
+    // subscribe a missing resource
+    private void subscribe(Operation operation) {
+        this.m_mds.subscribeToEndpointResource(operation.m_url);
+        int status = this.m_mds.getLastResponseCode();
+        if (status == 429 && ++operation.m_attempts < this.m_max_retry_count) {
+            // queue-mode endpoint unavailable... retry at the back of the queue
+            this.errorLogger().info("SubscriptionReconciler: retrying... (" + operation.m_url + ") endpoint reports unavailable...");
+            this.enqueue(operation);
+        }
+        else if (status == 404) {
+            // endpoint is gone... just remove this resource
+            this.errorLogger().info("SubscriptionReconciler: endpoint gone... removing: " + operation.m_url);
+            this.m_validator.removeSubscription(operation.m_url);
+        }
+        else if (status >= 200 && status < 300) {
+            this.m_pass.m_subscribed++;
+            this.m_subscribed.incrementAndGet();
+        }
+        else {
+            // DEBUG
+            this.errorLogger().info("SubscriptionReconciler: subscribe failed: " + operation.m_url + " RESULT: " + status);
+            this.m_pass.m_failed++;
+            this.m_failed.incrementAndGet();
+        }
+    }
+
+    // delete a stale subscription (unless it has been added since the diff)
+    private void delete(Operation operation) {
+        String listing_url = SubscriptionReconciler.listingURL(operation.m_url);
+        String path = SubscriptionReconciler.resourcePath(operation.m_url);
+        for (String url : this.desired(listing_url)) {
+            if (path.equals(SubscriptionReconciler.resourcePath(url)) == true) {
+                // DEBUG
+                this.errorLogger().info("SubscriptionReconciler: no longer stale (subscribed since the diff): " + operation.m_url);
+                return;
+            }
+        }
+        this.m_mds.unsubscribeFromEndpointResource(operation.m_url);
+        int status = this.m_mds.getLastResponseCode();
+        if ((status >= 200 && status < 300) || status == 404) {
+            this.m_validator.forgetRetired(operation.m_url);
+            this.m_pass.m_deleted++;
+            this.m_deleted.incrementAndGet();
+        }
+        else {
+            // DEBUG
+            this.errorLogger().info("SubscriptionReconciler: delete failed: " + operation.m_url + " RESULT: " + status);
+            this.m_pass.m_failed++;
+            this.m_failed.incrementAndGet();
+        }
+    }
+
+    // endpoint listing URL (.../{domain}/subscriptions/{endpoint}) for a subscription URL (null if it does not follow the per-endpoint form)
+    static String listingURL(String url) {
+        int index = url.indexOf(SUBSCRIPTIONS_PATH);
+        if (index >= 0) {
+            int start = index + SUBSCRIPTIONS_PATH.length();
+            int end = url.indexOf('/',start);
+            if (end > start) {
+                return url.substring(0,end);
+            }
+        }
+        return null;
+    }
+
+    // resource path of a subscription URL (query string removed)
+    static String resourcePath(String url) {
+        String listing_url = SubscriptionReconciler.listingURL(url);
+        if (listing_url != null) {
+            return SubscriptionReconciler.stripQuery(url.substring(listing_url.length()));
+        }
+        return null;
+    }
+
+    // resource paths from an endpoint subscription listing (entries may be "/{endpoint}/{path}" or just "/{path}")
+    static HashSet<String> actualPaths(String listing_url,List<String> listing) {
+        HashSet<String> paths = new HashSet<>();
+        String prefix = listing_url.substring(listing_url.lastIndexOf('/')) + "/";
+        for (String entry : listing) {
+            String path = SubscriptionReconciler.stripQuery(entry);
+            int index = path.indexOf(prefix);
+            if (index >= 0) {
+                path = path.substring(index + prefix.length() - 1);
+            }
+            if (path.startsWith("/") == false) {
+                path = "/" + path;
+            }
+            paths.add(path);
+        }
+        return paths;
+    }
+
+    // remove any query string
+    private static String stripQuery(String path) {
+        int query = path.indexOf('?');
+        return (query >= 0) ? path.substring(0,query) : path;
+    }
+
+    /**
+     * A single reconciliation operation
+     */
+    private static class Operation {
+        private final int               m_type;
+        private final String            m_url;
+        private int                     m_attempts = 0;
+
+        Operation(int type,String url) {
+            this.m_type = type;
+            this.m_url = url;
+        }
+    }
+
+    /**
+     * Drift found (and repaired) in one reconciliation pass
+     */
+    private static class Drift {
+        private int                     m_endpoints = 0;
+        private int                     m_desired = 0;
+        private int                     m_missing = 0;
+        private int                     m_stale = 0;
+        private int                     m_unverified = 0;
+        private int                     m_subscribed = 0;
+        private int                     m_deleted = 0;
+        private int                     m_failed = 0;
+
+        @Override
+        public String toString() {
+            return "endpoints=" + this.m_endpoints + " desired=" + this.m_desired + " missing=" + this.m_missing + " stale=" + this.m_stale + " unverified=" + this.m_unverified + " subscribed=" + this.m_subscribed + " deleted=" + this.m_deleted + " failed=" + this.m_failed;
+        }
+    }
+}
@@ -23,29 +23,116 @@
 package com.arm.connector.bridge.coordinator.processors.arm;
 
 import com.arm.connector.bridge.core.ErrorLogger;
+import com.arm.connector.bridge.core.FanOut;
+import com.arm.connector.bridge.core.SharedResources;
+import com.arm.connector.bridge.core.StateJournal;
+import com.arm.connector.bridge.core.TimerService;
 import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Locale;
+import java.util.Set;
+import java.util.concurrent.ConcurrentLinkedQueue;
 
 /**
- * This class periodically polls mDS/mDC and validates the webhook and subscription settings
+ * This class periodically polls mDS/mDC and validates the webhook and subscription settings.
+ * Validation runs as a rolling window: each cycle is spread over a number of slices across the poll interval,
+ * each slice checks its endpoints in parallel (one subscription listing call per endpoint where possible),
+ * and the interval backs off while healthy and tightens again after failures.
  * 
  * @author Doug Anson
  */
-public class WebhookValidator extends Thread {
-    private MDSProcessor        m_mds = null;
-    private int                 m_poll_interval_ms = 0;
-    private String              m_webhook_url = null;
-    private ArrayList<String>   m_subscriptions = null;
-    private boolean             m_running = false;
-    private int                 m_max_retry_count = 0;
+public class WebhookValidator {
+    private static final int            DEF_PARALLELISM = 4;
+    private static final int            DEF_SLICES = 10;
+    private static final int            DEF_MIN_INTERVAL_DIVISOR = 4;
+    private static final int            DEF_MAX_INTERVAL_MULTIPLIER = 10;
+    private static final int            DEF_MAX_RETIRED = 10000;
+    
+    private MDSProcessor                m_mds = null;
+    private int                         m_poll_interval_ms = 0;
+    private String                      m_webhook_url = null;
+    private LinkedHashMap<String,String> m_subscriptions = null;
+    private HashMap<String,HashSet<String>> m_by_endpoint = null;
+    private LinkedHashSet<String>       m_retired = null;
+    private TimerService.Timer          m_timer = null;
+    private boolean                     m_polling = false;
+    private SubscriptionReconciler      m_reconciler = null;
+    private StateJournal                m_journal = null;
+    private String                      m_journal_table = null;
+    
+    // rolling window/adaptive interval state (only touched by the validation chain: one slice at a time)
+    private int                         m_parallelism = 0;
+    private int                         m_slices = 0;
+    private long                        m_min_interval_ms = 0;
+    private long                        m_max_interval_ms = 0;
+    private volatile long               m_interval_ms = 0;
+    private ArrayList<EndpointSubscriptions> m_cycle = null;
+    private int                         m_cycle_cursor = 0;
+    private int                         m_cycle_checked = 0;
+    private int                         m_cycle_failures = 0;
     
     // default constructor
     public WebhookValidator(MDSProcessor mds,int poll_interval_ms) {
         this.m_mds = mds;
         this.m_poll_interval_ms = poll_interval_ms;
         this.m_webhook_url = null;
-        this.m_subscriptions = new ArrayList<>();
-        this.m_running = false;
-        this.m_max_retry_count = mds.preferences().intValueOf("mds_webhook_retry_max_tries");
+        this.m_subscriptions = new LinkedHashMap<>();
+        this.m_by_endpoint = new HashMap<>();
+        this.m_retired = new LinkedHashSet<>();
+        this.m_timer = null;
+        this.m_reconciler = new SubscriptionReconciler(mds,this);
+        
+        // bounded parallelism and rolling window sizing
+        this.m_parallelism = mds.preferences().intValueOf("mds_webhook_validator_parallelism");
+        if (this.m_parallelism <= 0) {
+            this.m_parallelism = DEF_PARALLELISM;
+        }
+        this.m_slices = mds.preferences().intValueOf("mds_webhook_validator_slices");
+        if (this.m_slices <= 0) {
+            this.m_slices = DEF_SLICES;
+        }
+        
+        // adaptive interval bounds
+        this.m_min_interval_ms = mds.preferences().intValueOf("mds_webhook_validator_min_poll_ms");
+        if (this.m_min_interval_ms <= 0) {
+            this.m_min_interval_ms = Math.max(1,poll_interval_ms / DEF_MIN_INTERVAL_DIVISOR);
+        }
+        this.m_max_interval_ms = mds.preferences().intValueOf("mds_webhook_validator_max_poll_ms");
+        if (this.m_max_interval_ms <= 0) {
+            this.m_max_interval_ms = (long)poll_interval_ms * DEF_MAX_INTERVAL_MULTIPLIER;
+        }
+        this.m_interval_ms = Math.max(this.m_min_interval_ms,Math.min(this.m_max_interval_ms,poll_interval_ms));
+    }
+    
+    // restore our subscription list from (and persist future changes to) the state journal
+    public synchronized void persistTo(StateJournal journal,String table) {
+        this.m_journal = journal;
+        this.m_journal_table = table;
+        if (journal != null && journal.enabled() == true) {
+            for (String url : journal.table(table).keySet()) {
+                this.index(url);
+            }
+            
+            // DEBUG
+            this.errorLogger().info("WebhookValidator: restored " + this.m_subscriptions.size() + " subscriptions from " + table);
+        }
+    }
+    
+    // persist the addition/removal of a subscription
+    private void journal(String url,boolean added) {
+        if (this.m_journal != null) {
+            if (added == true) {
+                this.m_journal.put(this.m_journal_table,url,"");
+            }
+            else {
+                this.m_journal.remove(this.m_journal_table,url);
+            }
+        }
     }
     
     // get our error logger
@@ -54,15 +141,130 @@ public class WebhookValidator extends Thread {
     }
     
     // initialize the poller
-    public void startPolling() {
-        // DEBUG
-        this.errorLogger().info("Beginning Webhook/Subscription Poll: " + this.m_poll_interval_ms + "ms...");
-        // start our thread...
-        this.start();
+    public synchronized void startPolling() {
+        if (this.m_polling == false) {
+            // DEBUG
+            this.errorLogger().info("Beginning Webhook/Subscription Poll: " + this.m_interval_ms + "ms (" + this.m_slices + " slices, parallelism: " + this.m_parallelism + ")...");
+
+            // validate now and then one slice at a time across the (adaptive) poll interval
+            this.m_polling = true;
+            this.m_reconciler.start();
+            this.arm(0);
+        }
+    }
+    
+    // stop the poller
+    public synchronized void stopPolling() {
+        this.m_polling = false;
+        this.m_reconciler.stop();
+        if (this.m_timer != null) {
+            this.m_timer.cancel();
+            this.m_timer = null;
+        }
+    }
+    
+    // subscription reconciliation drift statistics
+    public String reconcilerMetrics() {
+        return this.m_reconciler.metrics();
+    }
+    
+    // current (adaptive) validation interval
+    public long currentIntervalMs() {
+        return this.m_interval_ms;
     }
     
-    // validate
-    public void validate() {
+    // arm the next validation slice on the shared timer service
+    private synchronized void arm(long delay_ms) {
+        if (this.m_polling == true) {
+            this.m_timer = SharedResources.getInstance().timers().schedule("webhook-validator",new Runnable() {
+                @Override
+                public void run() {
+                    tick();
+                }
+            },delay_ms);
+        }
+    }
+    
+    // run one slice and re-arm for the next one once it completes
+    private void tick() {
+        Runnable next = new Runnable() {
+            @Override
+            public void run() {
+                arm(Math.max(1,m_interval_ms / m_slices));
+            }
+        };
+        try {
+            this.validate(next);
+        }
+        catch (Exception ex) {
+            // DEBUG
+            this.errorLogger().warning("WebhookValidator: validation slice failed: " + ex.getMessage(),ex);
+            next.run();
+        }
+    }
+    
+    // validate the next slice of the current cycle (a new cycle re-validates the webhook first)... next runs when the slice is done
+    private void validate(final Runnable next) {
+        // start a new cycle if the last one is done
+        if (this.m_cycle == null || this.m_cycle_cursor >= this.m_cycle.size()) {
+            this.completeCycle();
+            if (this.beginCycle() == false) {
+                // webhook had to be (re)established... the cycle restarts next slice
+                next.run();
+                return;
+            }
+        }
+        
+        // take our slice of endpoints
+        int count = (this.m_cycle.size() + this.m_slices - 1) / this.m_slices;
+        int end = Math.min(this.m_cycle.size(),this.m_cycle_cursor + Math.max(1,count));
+        final List<EndpointSubscriptions> slice = this.m_cycle.subList(this.m_cycle_cursor,end);
+        this.m_cycle_cursor = end;
+        if (slice.isEmpty() == true) {
+            next.run();
+            return;
+        }
+        
+        // validate the resource subscriptions... the slice completes on the last of our workers
+        final ConcurrentLinkedQueue<String> failed = new ConcurrentLinkedQueue<>();
+        FanOut.run(this.errorLogger(),"WebhookValidator",SharedResources.getInstance().executor(),slice,this.m_parallelism,new FanOut.Work<EndpointSubscriptions>() {
+            @Override
+            public void run(EndpointSubscriptions endpoint) {
+                validateEndpoint(endpoint,failed);
+            }
+        },new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    completeSlice(slice,new ArrayList<>(failed));
+                }
+                finally {
+                    next.run();
+                }
+            }
+        });
+    }
+    
+    // note the results of a validated slice and reconcile the endpoints that failed
+    private void completeSlice(List<EndpointSubscriptions> slice,List<String> failed) {
+        for (EndpointSubscriptions endpoint : slice) {
+            this.m_cycle_checked += endpoint.m_urls.size();
+        }
+        if (failed.isEmpty() == false) {
+            // DEBUG
+            this.errorLogger().info("Webhook OK. " + failed.size() + " subscriptions failed validation. Reconciling their endpoints...");
+            
+            // failures: validate more often until we see a healthy cycle again
+            this.m_cycle_failures += failed.size();
+            this.m_interval_ms = this.m_min_interval_ms;
+            
+            // reconcile just the affected endpoints
+            this.m_reconciler.reconcile(failed);
+        }
+    }
+    
+    // begin a validation cycle: validate the webhook and snapshot the subscriptions grouped by endpoint
+    private boolean beginCycle() {
         // DEBUG
         this.errorLogger().info("Validating mDS/mDC webhook status...");
         
@@ -70,50 +272,43 @@ public class WebhookValidator extends Thread {
         if (this.validateWebhook() == true) {
             // DEBUG
             this.errorLogger().info("Webhook OK. Validating Subscriptions...");
+            this.m_cycle = this.groupByEndpoint(this.subscriptionURLs());
+            this.m_cycle_cursor = 0;
+            this.m_cycle_checked = 0;
+            this.m_cycle_failures = 0;
+            return true;
+        }
         
-            // validate the resource subscriptions
-            if (this.validateResourceSubscriptions() == true) {
-                // DEBUG
-                this.errorLogger().info("Webhook OK. Subscriptions OK...");
-            }
-            else {
-                // DEBUG
-                this.errorLogger().info("Webhook OK. Re-Initializing Subscriptions...");
-                
-                // reset the subscriptions
-                if (this.reInitializeSubscriptions() == true) {
-                    // DEBUG
-                    this.errorLogger().info("Webhook OK. Subscriptions OK (reset)...");
-                }
-                else {
-                    // DEBUG
-                    this.errorLogger().info("Webhook OK. Subscription re-initialize FAILED.");
-                }
-            }
+        // DEBUG
+        this.errorLogger().info("Re-Initializing webhook...");
+        this.m_cycle = null;
+        this.m_interval_ms = this.m_min_interval_ms;
+
+        // reset the webhook
+        if (this.reInitializeWebhook() == true) {
+            // DEBUG
+            this.errorLogger().info("Webhook OK (reset). Reconciling Subscriptions...");
+
+            // reconcile all of the subscriptions
+            this.m_reconciler.reconcile(this.subscriptionURLs());
         }
         else {
             // DEBUG
-            this.errorLogger().info("Re-Initializing webhook...");
-            
-            // reset the webhook
-            if (this.reInitializeWebhook() == true) {
-                // DEBUG
-                this.errorLogger().info("Webhook OK (reset). Re-Initializing Subscriptions...");
-            
-                // reset the subscriptions
-                if (this.reInitializeSubscriptions() == true) {
-                    // DEBUG
-                    this.errorLogger().info("Webhook OK (reset). Subscriptions OK (reset)...");
-                }
-                else {
-                    // DEBUG
-                    this.errorLogger().info("Webhook OK  (reset). Subscription re-initialize FAILED.");
-                }
-            }
-            else {
-                // DEBUG
-                this.errorLogger().info("Webhook re-initialize FAILED.");
+            this.errorLogger().info("Webhook re-initialize FAILED.");
+        }
+        return false;
+    }
+    
+    // complete a validation cycle: adapt the interval (back off while healthy)
+    private void completeCycle() {
+        if (this.m_cycle != null) {
+            if (this.m_cycle_failures == 0) {
+                this.m_interval_ms = Math.min(this.m_max_interval_ms,this.m_interval_ms * 2);
             }
+            
+            // DEBUG
+            this.errorLogger().info("WebhookValidator: validation cycle complete: endpoints: " + this.m_cycle.size() + " subscriptions: " + this.m_cycle_checked + " failures: " + this.m_cycle_failures + " next interval: " + this.m_interval_ms + "ms");
+            this.m_cycle = null;
         }
     }
     
@@ -130,20 +325,38 @@ public class WebhookValidator extends Thread {
     }
     
     // add a subscription 
-    public void addSubscription(String url) {
-        if (!this.isSubscribed(url)) {
-            this.m_subscriptions.add(url);
+    public synchronized void addSubscription(String url) {
+        if (this.index(url) == true) {
+            this.journal(url,true);
         }
     }
     
     // remove all subscriptions for a given endpoint
     public synchronized void removeSubscriptionsforEndpoint(String endpoint) {
         if (endpoint != null && endpoint.length() > 0) {
-            String key = "/" + endpoint + "/";
-            for(int i=0;i<this.m_subscriptions.size();++i) {
-                if (this.m_subscriptions.get(i).contains(key) == true) {
-                    // delete this resource
-                    this.m_subscriptions.remove(i);
+            // subscriptions indexed under the endpoint
+            HashSet<String> keys = this.m_by_endpoint.remove(endpoint);
+            for(String key : (keys != null) ? keys : new HashSet<String>()) {
+                String url = this.m_subscriptions.remove(key);
+                if (url != null) {
+                    this.retire(url);
+                    this.journal(url,false);
+                }
+            }
+            
+            // subscriptions whose URL form we could not index
+            HashSet<String> unindexed = this.m_by_endpoint.get("");
+            if (unindexed != null) {
+                String match = "/" + endpoint + "/";
+                Iterator<String> iterator = unindexed.iterator();
+                while (iterator.hasNext()) {
+                    String url = this.m_subscriptions.get(iterator.next());
+                    if (url != null && url.contains(match) == true) {
+                        iterator.remove();
+                        this.m_subscriptions.remove(url.toLowerCase(Locale.ROOT));
+                        this.retire(url);
+                        this.journal(url,false);
+                    }
                 }
             }
         }
@@ -151,63 +364,98 @@ public class WebhookValidator extends Thread {
     
     // remove a subscription
     public synchronized void removeSubscription(String url) {
-        int index = getSubscriptionIndex(url);
-        if (index >= 0) {
-            this.m_subscriptions.remove(index);
+        String key = url.toLowerCase(Locale.ROOT);
+        String subscription = this.m_subscriptions.remove(key);
+        if (subscription != null) {
+            HashSet<String> keys = this.m_by_endpoint.get(this.endpointOf(subscription));
+            if (keys != null) {
+                keys.remove(key);
+                if (keys.isEmpty() == true) {
+                    this.m_by_endpoint.remove(this.endpointOf(subscription));
+                }
+            }
+            this.retire(subscription);
+            this.journal(subscription,false);
         }
         else {
             this.errorLogger().warning("removeSubscription: NOT FOUND: " + url);
         }
     }
     
-    // already subscribed?
-    private boolean isSubscribed(String url) {
-        return (this.getSubscriptionIndex(url) >= 0);
+    // a subscription the bridge made is no longer wanted (mDS may still hold it): remember it (the oldest are forgotten first)
+    private void retire(String url) {
+        this.m_retired.add(WebhookValidator.retiredKey(url));
+        if (this.m_retired.size() > DEF_MAX_RETIRED) {
+            Iterator<String> iterator = this.m_retired.iterator();
+            iterator.next();
+            iterator.remove();
+        }
     }
     
-    // already subscribed?
-    private int getSubscriptionIndex(String url) {
-        int index = -1;
-        
-        //  is the subscription already in the list?
-        for(int i=0;i<this.m_subscriptions.size() && index<0;++i) {
-            if (this.m_subscriptions.get(i).equalsIgnoreCase(url)) {
-                index = i;
-            }
-        }
-        
-        return index;
+    // did the bridge make (and since drop) this subscription?
+    synchronized boolean isRetired(String url) {
+        return this.m_retired.contains(WebhookValidator.retiredKey(url));
     }
     
-    /**
-     * run method for the receive thread
-     */
-    @Override
-    public void run() {
-        if (!this.m_running) {
-            this.m_running = true;
-            this.validatorLoop();
-        }
+    // a retired subscription has been removed from mDS
+    synchronized void forgetRetired(String url) {
+        this.m_retired.remove(WebhookValidator.retiredKey(url));
     }
-
-    /**
-     * main thread loop
-     */
-    @SuppressWarnings("empty-statement")
-    private void validatorLoop() {
-        while (this.m_running == true) {
-            // validate the webhook and subscriptions
-            this.validate();
-            
-            // sleep for a bit...
-            try {
-                Thread.sleep(this.m_poll_interval_ms);
+    
+    // key of a retired subscription: its endpoint listing URL and resource path (no query string)
+    private static String retiredKey(String url) {
+        String listing_url = SubscriptionReconciler.listingURL(url);
+        return ((listing_url != null) ? listing_url + SubscriptionReconciler.resourcePath(url) : url).toLowerCase(Locale.ROOT);
+    }
+    
+    // snapshot of our (desired) subscriptions
+    synchronized ArrayList<String> subscriptionURLs() {
+        return new ArrayList<>(this.m_subscriptions.values());
+    }
+    
+    // current subscription URLs under an endpoint listing URL (or the single URL, if it has no listing form)
+    synchronized ArrayList<String> subscriptionURLs(String key) {
+        ArrayList<String> urls = new ArrayList<>();
+        String listing_url = SubscriptionReconciler.listingURL(key + "/");
+        if (key.equals(listing_url) == false) {
+            String url = this.m_subscriptions.get(key.toLowerCase(Locale.ROOT));
+            if (url != null) {
+                urls.add(url);
+            }
+            return urls;
+        }
+        HashSet<String> keys = this.m_by_endpoint.get(this.endpointOf(key + "/"));
+        for(String url_key : (keys != null) ? keys : new HashSet<String>()) {
+            String url = this.m_subscriptions.get(url_key);
+            if (url != null && key.equals(SubscriptionReconciler.listingURL(url)) == true) {
+                urls.add(url);
             }
-            catch(InterruptedException ex) {
-                // silent
-                ;
+        }
+        return urls;
+    }
+    
+    // add a subscription to our list and endpoint index (false if already present)
+    private boolean index(String url) {
+        String key = url.toLowerCase(Locale.ROOT);
+        if (this.m_subscriptions.containsKey(key) == false) {
+            this.m_retired.remove(WebhookValidator.retiredKey(url));
+            this.m_subscriptions.put(key,url);
+            String endpoint = this.endpointOf(url);
+            HashSet<String> keys = this.m_by_endpoint.get(endpoint);
+            if (keys == null) {
+                keys = new HashSet<>();
+                this.m_by_endpoint.put(endpoint,keys);
             }
+            keys.add(key);
+            return true;
         }
+        return false;
+    }
+    
+    // endpoint name of a subscription URL ("" if it does not follow the per-endpoint form)
+    private String endpointOf(String url) {
+        String listing_url = SubscriptionReconciler.listingURL(url);
+        return (listing_url != null) ? listing_url.substring(listing_url.lastIndexOf('/') + 1) : "";
     }
     
     // re-ininitialize the webhook
@@ -242,75 +490,6 @@ public class WebhookValidator extends Thread {
         return reinitialized;
     }
     
-    // re-initialize the subscriptions
-    private synchronized boolean reInitializeSubscriptions() {
-        int count = 0;
-        boolean reinitialized = true;
-        try {
-            for(int i=0;i<this.m_subscriptions.size();++i) {
-                // remove any previous subscription
-                this.m_mds.unsubscribeFromEndpointResource(this.m_subscriptions.get(i));
-
-                // re-subscribe
-                String url = this.m_subscriptions.get(i);
-                this.m_mds.subscribeToEndpointResource(this.m_subscriptions.get(i));
-
-                // check the HTTP result code
-                int status = this.m_mds.getLastResponseCode();
-
-                // check for queue-mode endpoint unavailable...
-                if (status == 429) {
-                    // endpoint is in queue mode and is unavailable... retry
-                     ++count;
-                    if (count < this.m_max_retry_count) {
-                        // retrying...
-                        this.errorLogger().info("reInitializeSubscriptions: retrying... (" + this.m_subscriptions.get(i) + ") endpoint reports unavailable...");
-
-                        // backup and retry...
-                        --i;
-                        reinitialized = true;
-                    }
-                    else {
-                        // giving up on this endpoint
-                        this.errorLogger().info("reInitializeSubscriptions: giving up: " + this.m_subscriptions.get(i) + " endpoint reports unavailable...");
-
-                        // continue retrying other endpoints though...
-                        reinitialized = true;
-                    }
-                }
-                else if (status == 404) {
-                    // endpoint is gone... just remove this resource
-                    this.errorLogger().info("reInitializeSubscriptions: endpoint gone... removing: " + this.m_subscriptions.get(i)); 
-                    this.m_subscriptions.remove(i);
-                }   
-                else {
-                    // general case...
-                    status = status - 200;
-                    if (status >= 0 && status < 100) {
-                        // 20x response - OK
-                        reinitialized = true;
-
-                        // DEBUG
-                        this.errorLogger().info("reInitializeSubscriptions: re-init subscription: " + url + " RESULT: " + (status+200));
-
-                    }
-                    else {
-                        // DEBUG
-                        this.errorLogger().info("reInitializeSubscriptions: re-init subscription: " + url + " RESULT: " + (status+200));
-                        reinitialized = false;
-                    }
-                }
-            }
-        }
-        catch (Exception ex) {
-            // giving up on this endpoint
-            this.errorLogger().info("reInitializeSubscriptions: caught exception: " + ex.getMessage() + " (OK)... will retry later.");
-        }
-        
-        // return true
-        return reinitialized;
-    }
-    
     // validate the webhook
     private boolean validateWebhook() {
         boolean validated = false;
@@ -339,17 +518,67 @@ public class WebhookValidator extends Thread {
         return validated;
     }
     
-    // validate the resource subscriptions
-    private boolean validateResourceSubscriptions() {
-        boolean validated = true;
-        
-        // loop through - either all the subscriptions are valid or we reset...
-        for(int i=0;i<this.m_subscriptions.size() && validated;++i) {
-            // check the ith subscription
-            validated = this.m_mds.getEndpointResourceSubscriptionStatus(this.m_subscriptions.get(i));
+    // validate an endpoint of a slice, collecting its failed subscription URLs
+    private void validateEndpoint(EndpointSubscriptions endpoint,ConcurrentLinkedQueue<String> failed) {
+        try {
+            failed.addAll(this.validateEndpoint(endpoint));
+        }
+        catch (Exception ex) {
+            // not a validation failure... we will check again next cycle
+            this.errorLogger().info("validateResourceSubscriptions: caught exception: " + ex.getMessage() + " (OK)... will retry later.");
+        }
+    }
+    
+    // validate the subscriptions of a single endpoint: one listing call if we can, else one check per subscription
+    private List<String> validateEndpoint(EndpointSubscriptions endpoint) {
+        ArrayList<String> failed = new ArrayList<>();
+        Set<String> actual = null;
+        if (endpoint.m_listing_url != null) {
+            List<String> listing = this.m_mds.getEndpointSubscriptions(endpoint.m_listing_url);
+            if (listing != null) {
+                actual = SubscriptionReconciler.actualPaths(endpoint.m_listing_url,listing);
+            }
+        }
+        for (String url : endpoint.m_urls) {
+            boolean validated = false;
+            if (actual != null) {
+                validated = actual.contains(SubscriptionReconciler.resourcePath(url));
+            }
+            else {
+                validated = this.m_mds.getEndpointResourceSubscriptionStatus(url);
+            }
+            if (validated == false) {
+                failed.add(url);
+            }
         }
+        return failed;
+    }
+    
+    // group subscription URLs (.../{domain}/subscriptions/{endpoint}/{path}) by their endpoint listing URL
+    private ArrayList<EndpointSubscriptions> groupByEndpoint(List<String> urls) {
+        LinkedHashMap<String,EndpointSubscriptions> endpoints = new LinkedHashMap<>();
+        for (String url : urls) {
+            String listing_url = SubscriptionReconciler.listingURL(url);
+            String key = (listing_url != null) ? listing_url : url;
+            EndpointSubscriptions endpoint = endpoints.get(key);
+            if (endpoint == null) {
+                endpoint = new EndpointSubscriptions(listing_url);
+                endpoints.put(key,endpoint);
+            }
+            endpoint.m_urls.add(url);
+        }
+        return new ArrayList<>(endpoints.values());
+    }
+    
+    /**
+     * The subscriptions of one endpoint (validated together)
+     */
+    private static class EndpointSubscriptions {
+        private final String            m_listing_url;
+        private final ArrayList<String> m_urls = new ArrayList<>();
         
-        // return the status;
-        return validated;
+        EndpointSubscriptions(String listing_url) {
+            this.m_listing_url = listing_url;
+        }
     }
 }
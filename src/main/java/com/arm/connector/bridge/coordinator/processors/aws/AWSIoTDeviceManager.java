@@ -25,6 +25,7 @@ package com.arm.connector.bridge.coordinator.processors.aws;
 import com.arm.connector.bridge.coordinator.Orchestrator;
 import com.arm.connector.bridge.core.BaseClass;
 import com.arm.connector.bridge.core.ErrorLogger;
+import com.arm.connector.bridge.core.StateJournal;
 import com.arm.connector.bridge.core.Utils;
 import com.arm.connector.bridge.preferences.PreferenceManager;
 import com.arm.connector.bridge.transport.HttpTransport;
@@ -45,6 +46,8 @@ public class AWSIoTDeviceManager extends BaseClass {
     private HashMap<String,HashMap<String,String>>  m_endpoint_details = null;
     
     private ArrayList<String>                       m_keys_cert_ids = null;
+    private StateJournal                            m_journal = null;
+    private String                                  m_journal_table = null;
     
     // XXX make configurable
     private String                                  m_policy_name = null;
@@ -75,6 +78,28 @@ public class AWSIoTDeviceManager extends BaseClass {
         this.m_policy_document = this.orchestrator().preferences().valueOf("aws_iot_policy_document",this.m_suffix);
     }
     
+    // restore provisioned device details from (and persist future changes to) the state journal
+    public void persistTo(StateJournal journal,String table) {
+        this.m_journal = journal;
+        this.m_journal_table = table;
+        if (journal != null && journal.enabled() == true) {
+            Map<String,String> saved = journal.table(table);
+            for (Map.Entry<String,String> entry : saved.entrySet()) {
+                HashMap<String,String> ep = StateJournal.unpackMap(entry.getValue());
+                this.m_endpoint_details.put(entry.getKey(),ep);
+                
+                // restored certificates are in use
+                String cert_id = ep.get("certificateId");
+                if (cert_id != null && this.isUsedCert(cert_id) == false) {
+                    this.m_keys_cert_ids.add(cert_id);
+                }
+            }
+            
+            // DEBUG
+            this.errorLogger().info("AWSIoTDeviceManager: restored " + saved.size() + " provisioned devices from " + table);
+        }
+    }
+    
     // get the orchestrator
     private Orchestrator orchestrator() { return this.m_orchestrator; }
     
@@ -91,6 +116,12 @@ public class AWSIoTDeviceManager extends BaseClass {
         String device_type = (String)message.get("ept");
         String device = (String)message.get("ep");
         
+        // already provisioned (this run or restored from the state journal)... nothing to do
+        if (this.getEndpointDetails(device) != null) {
+            this.errorLogger().info("registerNewDevice: " + device + " already provisioned (OK)");
+            return true;
+        }
+        
         // see if we already have a device...
         HashMap<String,String> ep = this.getDeviceDetails(device);
         if (ep != null) {
@@ -243,6 +274,9 @@ public class AWSIoTDeviceManager extends BaseClass {
         
         // remove the endpoint details
         this.m_endpoint_details.remove(device);
+        if (this.m_journal != null) {
+            this.m_journal.remove(this.m_journal_table,device);
+        }
         
         // return our status
         return status;
@@ -500,6 +534,9 @@ public class AWSIoTDeviceManager extends BaseClass {
         if (this.getEndpointDetails(device) == null) {
             // save off the endpoint details
             this.m_endpoint_details.put(device,entry);
+            if (this.m_journal != null) {
+                this.m_journal.put(this.m_journal_table,device,StateJournal.packMap(entry));
+            }
         }
     }
     
@@ -25,7 +25,11 @@ package com.arm.connector.bridge.coordinator.processors.aws;
 
 import com.arm.connector.bridge.coordinator.processors.arm.GenericMQTTProcessor;
 import com.arm.connector.bridge.coordinator.Orchestrator;
+import com.arm.connector.bridge.coordinator.processors.core.IdleSessionReaper;
+import com.arm.connector.bridge.coordinator.processors.core.PendingConnectBuffer;
 import com.arm.connector.bridge.coordinator.processors.interfaces.PeerInterface;
+import com.arm.connector.bridge.core.ConnectionAdmissionQueue;
+import com.arm.connector.bridge.core.SharedResources;
 import com.arm.connector.bridge.core.Utils;
 import com.arm.connector.bridge.transport.HttpTransport;
 import com.arm.connector.bridge.transport.MQTTTransport;
@@ -42,7 +46,7 @@ import org.fusesource.mqtt.client.Topic;
  * AWS IoT peer processor based on MQTT
  * @author Doug Anson
  */
-public class AWSIoTMQTTProcessor extends GenericMQTTProcessor implements Transport.ReceiveListener, PeerInterface {
+public class AWSIoTMQTTProcessor extends GenericMQTTProcessor implements Transport.ReceiveListener, PeerInterface, IdleSessionReaper.Sessions {
     public static int                               NUM_COAP_VERBS = 4;                                   // GET, PUT, POST, DELETE
     public static int                               NUM_COAP_TOPICS = 1;                                  // # of MQTT Topics for CoAP verbs
     
@@ -57,6 +61,8 @@ public class AWSIoTMQTTProcessor extends GenericMQTTProcessor implements Transpo
         
     private HashMap<String,Object>                  m_aws_iot_gw_endpoints = null;
     private HashMap<String,TransportReceiveThread>  m_mqtt_thread_list = null;
+    private IdleSessionReaper                       m_idle_sessions = null;
+    private PendingConnectBuffer                    m_pending_connects = null;
         
     // AWSIoT Device Manager
     private AWSIoTDeviceManager                     m_aws_iot_gw_device_manager = null;
@@ -79,6 +85,10 @@ public class AWSIoTMQTTProcessor extends GenericMQTTProcessor implements Transpo
         // initialize the listener thread map
         this.m_mqtt_thread_list = new HashMap<>();
         
+        // idle endpoint sessions are closed and reopened on demand (if enabled)
+        this.m_idle_sessions = new IdleSessionReaper(this.orchestrator(),this.m_suffix,this);
+        this.m_pending_connects = new PendingConnectBuffer(this.orchestrator(),this.m_suffix);
+        
         // Observation notification topic
         this.m_aws_iot_observe_notification_topic = this.orchestrator().preferences().valueOf("aws_iot_observe_notification_topic",this.m_suffix); 
         
@@ -90,6 +100,7 @@ public class AWSIoTMQTTProcessor extends GenericMQTTProcessor implements Transpo
                          
         // AWSIoT Device Manager - will initialize and update our AWSIoT bindings/metadata
         this.m_aws_iot_gw_device_manager = new AWSIoTDeviceManager(this.orchestrator().errorLogger(),this.orchestrator().preferences(),this.m_suffix,http,this.orchestrator());
+        this.m_aws_iot_gw_device_manager.persistTo(this.orchestrator().stateJournal(),this.stateTable("devices"));
                                              
         // initialize our MQTT transport list
         this.initMQTTTransportList();
@@ -107,20 +118,40 @@ public class AWSIoTMQTTProcessor extends GenericMQTTProcessor implements Transpo
         return Utils.createHash(this.prefValue("aws_iot_gw_sas_token",this.m_suffix));
     }
     
-    // OVERRIDE: initListener() needs to accomodate a MQTT connection for each endpoint
+    // OVERRIDE: initListener() needs to accomodate a MQTT connection for each endpoint... resume those restored from the state journal
     @Override
-    @SuppressWarnings("empty-statement")
     public void initListener() {
-        // do nothing...
-        ;
+        Map<String,String> endpoints = this.persistedEndpoints();
+        for (final Map.Entry<String,String> endpoint : endpoints.entrySet()) {
+            if (this.m_aws_iot_gw_device_manager.getEndpointDetails(endpoint.getKey()) != null) {
+                // no recent activity yet: restored endpoints connect in journal order at the admission rate
+                this.admitConnection(endpoint.getKey(),(endpoint.getValue().length() > 0) ? endpoint.getValue() : null,0);
+            }
+            else {
+                // no provisioning details... it will be re-provisioned when it re-registers
+                unpersistEndpoint(endpoint.getKey());
+            }
+        }
+        
+        // DEBUG
+        if (endpoints.isEmpty() == false) {
+            this.errorLogger().info("AWSIoT: resuming " + endpoints.size() + " endpoint(s) from saved state");
+        }
+    }
+    
+    // OVERRIDE: MQTT connections are per-endpoint and created on registration, so we are always ready
+    @Override
+    public boolean isListenerReady() {
+        return true;
     }
     
     // OVERRIDE: stopListener() needs to accomodate a MQTT connection for each endpoint
     @Override
     @SuppressWarnings("empty-statement")
     public void stopListener() {
-        // do nothing...
-        ;
+        // just stop closing idle sessions and expiring async responses...
+        this.m_idle_sessions.stop();
+        this.asyncResponseManager().stop();
     }
     
     // Connection to AWSIoT MQTT vs. generic MQTT...
@@ -132,7 +163,7 @@ public class AWSIoTMQTTProcessor extends GenericMQTTProcessor implements Transpo
     private boolean connect(String ep_name,String client_id) {
         // if not connected attempt
         if (!this.isConnected(ep_name)) {
-            if (this.mqtt(ep_name).connect(this.m_mqtt_host,this.m_mqtt_port,client_id,this.m_use_clean_session)) {
+            if (this.mqtt(ep_name).connect(this.m_mqtt_host,this.m_mqtt_port,client_id,this.useCleanSession())) {
                 this.orchestrator().errorLogger().info("AWSIoT: Setting CoAP command listener...");
                 this.mqtt(ep_name).setOnReceiveListener(this);
                 this.orchestrator().errorLogger().info("AWSIoT: connection completed successfully");
@@ -148,6 +179,40 @@ public class AWSIoTMQTTProcessor extends GenericMQTTProcessor implements Transpo
         return this.isConnected(ep_name);
     }
     
+    // persistent sessions when idle sessions are closed... the broker holds commands sent while closed
+    private boolean useCleanSession() {
+        return (this.m_idle_sessions.isEnabled() == true) ? false : this.m_use_clean_session;
+    }
+    
+    // IdleSessionReaper.Sessions: close an idle endpoint session (its SSL context and stored messages are kept for a quick reopen)
+    @Override
+    public synchronized void closeIdleSession(String ep_name) {
+        if (this.m_idle_sessions.confirmIdle(ep_name) == false) {
+            // active (or reopened) since it was swept
+            return;
+        }
+        
+        // DEBUG
+        this.errorLogger().info("AWSIoT: closing idle MQTT session for endpoint: " + ep_name);
+        if (this.m_mqtt_thread_list.get(ep_name) != null) {
+            this.m_mqtt_thread_list.get(ep_name).disconnect();
+            this.m_mqtt_thread_list.remove(ep_name);
+        }
+        if (this.mqtt(ep_name) != null) {
+            this.mqtt(ep_name).suspend();
+            this.remove(ep_name);
+        }
+    }
+    
+    // IdleSessionReaper.Sessions: reopen an idle endpoint session and restore its command subscriptions
+    @Override
+    public boolean reopenIdleSession(String ep_name) {
+        // DEBUG
+        this.errorLogger().info("AWSIoT: reopening idle MQTT session for endpoint: " + ep_name);
+        this.subscribe(ep_name,this.getTypeFromEndpointName(ep_name));
+        return this.isConnected(ep_name);
+    }
+    
     // OVERRIDE: process a mDS notification for AWSIoT
     @Override
     public void processNotification(Map data) {
@@ -197,9 +262,28 @@ public class AWSIoTMQTTProcessor extends GenericMQTTProcessor implements Transpo
             this.errorLogger().info("AWSIoT: CoAP notification (STR): " + aws_iot_gw_coap_json);
             this.errorLogger().info("AWSIoT: CoAP notification (JSON): " + notification);
             
+            // note the activity first (keeps a session swept as idle from closing), then reopen it on demand if already closed
+            this.m_idle_sessions.touch(ep_name);
+            if (this.m_idle_sessions.isIdle(ep_name) == true) {
+                this.m_idle_sessions.reopen(ep_name);
+            }
+            
+            // still waiting for its admitted connect (or its held notifications are still being sent): hold it so it stays in order
+            String topic = this.customizeTopic(this.m_aws_iot_observe_notification_topic,ep_name,ep_type) + path;
+            if (this.m_pending_connects.isConnecting(ep_name) == true) {
+                if (this.mqtt(ep_name) == null && SharedResources.getInstance() != null) {
+                    // move it up the admission queue
+                    SharedResources.getInstance().connectionAdmission().bump(this.admissionKey(ep_name));
+                }
+                if (this.m_pending_connects.hold(ep_name,topic,aws_iot_gw_coap_json,QoS.AT_MOST_ONCE) == true) {
+                    // DEBUG
+                    this.errorLogger().info("AWSIoT: CoAP notification held until the endpoint connects");
+                    continue;
+                }
+            }
+            
             // send to AWSIoT...
             if (this.mqtt(ep_name) != null) {
-                String topic = this.customizeTopic(this.m_aws_iot_observe_notification_topic,ep_name,ep_type) + path;
                 boolean status = this.mqtt(ep_name).sendMessage(topic,aws_iot_gw_coap_json,QoS.AT_MOST_ONCE);           
                 if (status == true) {
                     // not connected
@@ -223,17 +307,28 @@ public class AWSIoTMQTTProcessor extends GenericMQTTProcessor implements Transpo
         List notifications = (List)data.get("reg-updates");
         for(int i=0;notifications != null && i<notifications.size();++i) {
             Map entry = (Map)notifications.get(i);
+            
+            // same registration as last time (and still subscribed): nothing to do
+            if (this.hasSubscriptions((String)entry.get("ep")) == true && this.m_registrations.isUnchanged(entry) == true) {
+                continue;
+            }
+            
             // DEBUG
             // this.errorLogger().info("AWSIoT : CoAP re-registration: " + entry);
             if (this.hasSubscriptions((String)entry.get("ep")) == false) {
                 // no subscriptions - so process as a new registration
                 this.errorLogger().info("AWSIoT : CoAP re-registration: no subscriptions.. processing as new registration...");
-                this.processRegistration(data,"reg-updates");
+                this.processRegistration(this.registrationOf(entry,"reg-updates"),"reg-updates");
             }
             else {
                 // already subscribed (OK)
                 this.errorLogger().info("AWSIoT : CoAP re-registration: already subscribed (OK)");
             }
+            
+            // remember this registration once the endpoint is fully subscribed
+            if (this.hasSubscriptions((String)entry.get("ep")) == true) {
+                this.m_registrations.record(entry);
+            }
         }
     }
     
@@ -313,8 +408,8 @@ public class AWSIoTMQTTProcessor extends GenericMQTTProcessor implements Transpo
             try {
                 // subscribe for AWSIoT as well..
                 this.errorLogger().info("processRegistration: calling subscribe(): " + endpoint);
-                this.subscribe((String)endpoint.get("ep"),(String)endpoint.get("ept"));
-                this.errorLogger().info("processRegistration: subscribe() completed");
+                this.admitConnection((String)endpoint.get("ep"),(String)endpoint.get("ept"),System.currentTimeMillis());
+                this.errorLogger().info("processRegistration: subscribe() queued for admission");
             }
             catch (Exception ex) {
                 this.errorLogger().warning("processRegistration: caught exception in subscribe(): " + endpoint,ex); 
@@ -398,6 +493,7 @@ public class AWSIoTMQTTProcessor extends GenericMQTTProcessor implements Transpo
                     this.m_aws_iot_gw_endpoints.remove(ep_name);
                     this.m_aws_iot_gw_endpoints.put(ep_name,topic_data);
                     this.subscribe_to_topics(ep_name,(Topic[])topic_data.get("topic_list"));
+                    this.persistEndpoint(ep_name,ep_type);
                 }
                 else {
                     this.orchestrator().errorLogger().warning("AWSIoT: GET/PUT/POST/DELETE topic data NULL. GET/PUT/POST/DELETE disabled");
@@ -445,6 +541,7 @@ public class AWSIoTMQTTProcessor extends GenericMQTTProcessor implements Transpo
         
         // clean up
         if (ep_name != null) this.m_aws_iot_gw_endpoints.remove(ep_name);
+        this.m_registrations.remove(ep_name);
         
         // return the unsubscribe status
         return unsubscribed;
@@ -580,6 +677,7 @@ public class AWSIoTMQTTProcessor extends GenericMQTTProcessor implements Transpo
         // parse the topic to get the endpoint
         // format: mbed/__DEVICE_TYPE__/__EPNAME__/coap/__COMMAND_TYPE__/#
         String ep_name = this.getEndpointNameFromTopic(topic);
+        this.m_idle_sessions.touch(ep_name);
         
         // parse the topic to get the endpoint type
         String ep_type = this.getTypeFromEndpointName(ep_name);
@@ -610,6 +708,11 @@ public class AWSIoTMQTTProcessor extends GenericMQTTProcessor implements Transpo
             ep_name = this.getCoAPEndpointName(message);
         }
         
+        // writes to a sleeping queue-mode endpoint are held until it wakes
+        if (this.bufferCommand(ep_name,coap_verb,uri,topic,message) == true) {
+            return;
+        }
+        
         // dispatch the coap resource operation request
         String response = this.orchestrator().processEndpointResourceOperation(coap_verb,ep_name,uri,value);
         
@@ -732,6 +835,38 @@ public class AWSIoTMQTTProcessor extends GenericMQTTProcessor implements Transpo
         return null;
     }
     
+    // our key for an endpoint in the connection admission queue
+    private String admissionKey(String ep_name) {
+        return "AWSIoT:" + this.m_suffix + ":" + ep_name;
+    }
+    
+    // connect (and subscribe) the endpoint through the connection admission queue so that restarts and bulk registrations ramp up at the configured connect rate
+    private void admitConnection(final String ep_name,final String ep_type,long last_activity_ms) {
+        if (ep_name == null) {
+            return;
+        }
+        this.m_pending_connects.connecting(ep_name);
+        Runnable connect = new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    subscribe(ep_name,ep_type);
+                }
+                finally {
+                    // send the notifications held while we waited
+                    m_pending_connects.connected(ep_name,mqtt(ep_name));
+                }
+            }
+        };
+        ConnectionAdmissionQueue admission = (SharedResources.getInstance() != null) ? SharedResources.getInstance().connectionAdmission() : null;
+        if (admission != null) {
+            admission.admit(this.admissionKey(ep_name),last_activity_ms,connect);
+        }
+        else {
+            this.orchestrator().executor().execute(connect);
+        }
+    }
+    
     // validate the MQTT Connection
     private synchronized boolean validateMQTTConnection(String ep_name,String ep_type) {        
         // see if we already have a connection for this endpoint...
@@ -751,8 +886,8 @@ public class AWSIoTMQTTProcessor extends GenericMQTTProcessor implements Transpo
             // create the device in AWSIoT
             Boolean success = this.m_aws_iot_gw_device_manager.registerNewDevice(message);
             
-            // if successful, validate (i.e. add...) an MQTT Connection
-            if (success == true) this.validateMQTTConnection((String)message.get("ep"),(String)message.get("ept"));
+            // if successful, add an MQTT Connection (via the connection admission queue)
+            if (success == true) this.admitConnection((String)message.get("ep"),(String)message.get("ept"),System.currentTimeMillis());
             
             // return status
             return success;
@@ -780,7 +915,10 @@ public class AWSIoTMQTTProcessor extends GenericMQTTProcessor implements Transpo
             }
             
             // also remove MQTT Transport instance too...
+            this.m_idle_sessions.forget(device);
+            this.m_pending_connects.forget(device);
             this.disconnect(device);
+            this.unpersistEndpoint(device);
             
             // remove the device from AWSIoT
             if (this.m_aws_iot_gw_device_manager.deregisterDevice(device) == false) {
@@ -839,10 +977,15 @@ public class AWSIoTMQTTProcessor extends GenericMQTTProcessor implements Transpo
                 listener.setOnReceiveListener(this);
                 this.m_mqtt_thread_list.put(ep_name,listener);
                 listener.start();
+                this.m_idle_sessions.opened(ep_name);
             } 
             else {
                 // unable to connect!
                 this.errorLogger().critical("AWSIoT: Unable to connect to MQTT for endpoint: " + ep_name + " type: " + ep_type);
+                if (this.mqtt(ep_name) != null) {
+                    // no background retries for a dropped transport... the endpoint reconnects when next admitted
+                    this.mqtt(ep_name).disconnect(true);
+                }
                 this.remove(ep_name);
                 
                 // ensure we only have 1 thread/endpoint
@@ -26,22 +26,73 @@ package com.arm.connector.bridge.coordinator.processors.core;
 import com.arm.connector.bridge.coordinator.Orchestrator;
 import com.arm.connector.bridge.coordinator.processors.arm.GenericMQTTProcessor;
 import com.arm.connector.bridge.core.ErrorLogger;
+import com.arm.connector.bridge.core.StateJournal;
+import com.arm.connector.bridge.core.TimerService;
 import com.arm.connector.bridge.json.JSONParser;
 import com.arm.connector.bridge.transport.MQTTTransport;
-import java.util.HashMap;
 import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicLong;
 
 /**
  * async response manager handling async responses from mDS for connector-bridge
  * @author Doug Anson
  */
 public class AsyncResponseManager {
-    private HashMap<String,HashMap<String,Object>>  m_responses;
-    private Orchestrator                            m_manager;
+    private static final int                                            DEF_TIMEOUT_MS = 60000;
+    private static final int                                            DEF_TICK_MS = 1000;
+    
+    private ConcurrentHashMap<String,AsyncResponseRecord>               m_responses;
+    private ConcurrentHashMap<Long,ConcurrentLinkedQueue<String>>       m_wheel;
+    private ConcurrentHashMap<String,AsyncResponseRecord>               m_held;
+    private Orchestrator                                                m_manager;
+    private TimerService.Timer                                          m_expiry_timer = null;
+    private long                                                        m_timeout_ms = DEF_TIMEOUT_MS;
+    private long                                                        m_tick_ms = DEF_TICK_MS;
+    private StateJournal                                                m_journal = null;
+    private String                                                      m_journal_table = null;
+    
+    // metrics
+    private final AtomicLong                                            m_recorded = new AtomicLong(0);
+    private final AtomicLong                                            m_completed = new AtomicLong(0);
+    private final AtomicLong                                            m_expired = new AtomicLong(0);
+    private final AtomicLong                                            m_total_response_ms = new AtomicLong(0);
+    private final AtomicLong                                            m_max_response_ms = new AtomicLong(0);
     
     public AsyncResponseManager(Orchestrator manager) {
         this.m_manager = manager;
-        this.m_responses = new HashMap<>();
+        this.m_responses = new ConcurrentHashMap<>();
+        this.m_wheel = new ConcurrentHashMap<>();
+        this.m_held = new ConcurrentHashMap<>();
+        
+        // deadline configuration
+        int timeout_ms = manager.preferences().intValueOf("mds_async_response_timeout_ms");
+        if (timeout_ms > 0) {
+            this.m_timeout_ms = timeout_ms;
+        }
+        int tick_ms = manager.preferences().intValueOf("mds_async_response_tick_ms");
+        if (tick_ms > 0) {
+            this.m_tick_ms = tick_ms;
+        }
+        
+        // the expiry sweep advances the wheel one tick at a time
+        if (manager.timers() != null) {
+            this.m_expiry_timer = manager.timers().schedulePeriodic("async-response-expiry",new Runnable() {
+                @Override
+                public void run() {
+                    expire();
+                }
+            },this.m_tick_ms,this.m_tick_ms);
+        }
+    }
+    
+    // stop the expiry sweep (outstanding records are kept)
+    public void stop() {
+        if (this.m_expiry_timer != null) {
+            this.m_expiry_timer.cancel();
+            this.m_expiry_timer = null;
+        }
     }
     
     // get the error logger
@@ -58,91 +109,249 @@ public class AsyncResponseManager {
     private String id(Map response) {
         return (String)response.get("id");
     }
+    
+    // restore outstanding AsyncResponses for a processor from (and persist future records to) the state journal
+    public void persistTo(StateJournal journal,String table,GenericMQTTProcessor proc) {
+        this.m_journal = journal;
+        this.m_journal_table = table;
+        if (journal == null || journal.enabled() == false) {
+            return;
+        }
+        Map<String,String> saved = journal.table(table);
+        for (Map.Entry<String,String> entry : saved.entrySet()) {
+            try {
+                String[] fields = StateJournal.unpack(entry.getValue());
+                
+                // the transport is re-resolved from the processor when the reply is sent
+                AsyncResponseRecord record = new AsyncResponseRecord(entry.getKey(),fields[0],fields[1],null,proc,fields[2],fields[3],fields[4],fields[5],fields[6],fields[7],Long.parseLong(fields[8]));
+                this.m_responses.put(record.id(),record);
+                this.slot(this.tick(record.deadline())).add(record.id());
+            }
+            catch (Exception ex) {
+                // unusable record
+                journal.remove(table,entry.getKey());
+            }
+        }
         
-    // do we have a recording for a given AsyncResponse?
-    private boolean haveRecordForAsyncResponse(String id) {
-        return (this.m_responses.containsKey(id) == true);
+        // DEBUG
+        if (saved.isEmpty() == false) {
+            this.errorLogger().info("AsyncResponseManager: restored " + this.m_responses.size() + " outstanding AsyncResponse(s) from " + table);
+        }
+    }
+    
+    // number of AsyncResponses still awaiting a reply
+    public int pendingCount() {
+        return this.m_responses.size();
+    }
+    
+    // AsyncResponse metrics
+    public String metrics() {
+        long completed = this.m_completed.get();
+        long avg_response_ms = (completed > 0) ? (this.m_total_response_ms.get() / completed) : 0;
+        return "pending=" + this.pendingCount() + " held=" + this.m_held.size() + " recorded=" + this.m_recorded.get() + " completed=" + completed + " expired=" + this.m_expired.get() + " avg_response_ms=" + avg_response_ms + " max_response_ms=" + this.m_max_response_ms.get();
     }
     
     // record an AsyncResponse
     public void recordAsyncResponse(String response,String coap_verb,MQTTTransport mqtt,GenericMQTTProcessor proc,String response_topic,String reply_topic,String message, String ep_name, String uri) {
-        // create a new AsyncResponse record
-        HashMap<String,Object> record = new HashMap<>();
-       
-        // fill it... 
-        record.put("verb", coap_verb);
-        record.put("response",response);
-        record.put("mqtt",mqtt);
-        record.put("proc",proc);
-        record.put("response_topic",response_topic);
-        record.put("reply_topic",reply_topic);
-        record.put("message",message);
-        record.put("ep_name",ep_name);
-        record.put("uri",uri);
-        
-        // parse the
+        this.recordAsyncResponse(response,coap_verb,mqtt,proc,response_topic,reply_topic,message,ep_name,uri,null);
+    }
+    
+    // record an AsyncResponse (the correlation-id, if any, is echoed in the eventual reply)
+    public void recordAsyncResponse(String response,String coap_verb,MQTTTransport mqtt,GenericMQTTProcessor proc,String response_topic,String reply_topic,String message, String ep_name, String uri, String correlation_id) {
+        // parse the response to get its ID
         JSONParser parser = this.manager().getJSONParser();
         Map parsed = parser.parseJson(response);
+        String id = (parsed != null) ? (String)parsed.get("async-response-id") : null;
+        if (id == null) {
+            // DEBUG
+            this.errorLogger().warning("recordAsyncResponse: no async-response-id in response: " + response);
+            return;
+        }
         
-        // add it to the record too
-        record.put("response_map",parsed);
+        // create a new AsyncResponse record
+        AsyncResponseRecord record = new AsyncResponseRecord(id,coap_verb,response,mqtt,proc,response_topic,reply_topic,message,ep_name,uri,correlation_id,System.currentTimeMillis() + this.m_timeout_ms);
         
-        // add the record to our list
-        this.m_responses.put((String)parsed.get("async-response-id"), record);
+        // add the record to our table and to the wheel slot for its deadline
+        this.m_responses.put(id,record);
+        this.slot(this.tick(record.deadline())).add(id);
+        this.m_recorded.incrementAndGet();
+        this.persist(record);
         
         // DEBUG
-        this.errorLogger().info("recordAsyncResponse: Adding Record: ID:" + (String)parsed.get("async-response-id") + " RECORD: " + record);
+        this.errorLogger().info("recordAsyncResponse: Adding Record: ID:" + id + " RECORD: " + record);
     }
 
     // process AsyncResponse
-    @SuppressWarnings("empty-statement")
     public void processAsyncResponse(Map response) {
         // get our AsyncResponse ID
         String id = this.id(response);
-        
-        // do we have a record for this AsyncResponse?
-        if (this.haveRecordForAsyncResponse(id) == true) {
-            // Get the record
-            HashMap<String,Object> record = this.m_responses.get(id);
+        AsyncResponseRecord record = (id != null) ? this.m_responses.get(id) : null;
+        if (record == null) {
+            // processing something we have no record on...
             
-            // pull the requisite elements from the record
-            MQTTTransport mqtt = (MQTTTransport)record.get("mqtt");
-            String response_topic = (String)record.get("response_topic");
-            String verb = (String)record.get("verb");
-            GenericMQTTProcessor proc = (GenericMQTTProcessor)record.get("proc");
+            // DEBUG
+            //this.errorLogger().info("processAsyncResponse: No AsyncResponse record for ID: " + id + " Ignoring: " + response.toString());
+            return;
+        }
+        
+        // no transport yet (restored from the journal, or the endpoint is still connecting): hold the reply until there is one
+        MQTTTransport mqtt = this.transport(record);
+        if (mqtt == null) {
+            record.holdReply(response);
+            this.m_held.put(id,record);
             
-            // construct the reply message value
-            String reply = proc.formatAsyncResponseAsReply(response,verb);
-            if (reply != null) {
-                // GETs come back over as observations...
-                String target_topic = response_topic;
-                if (verb.equalsIgnoreCase("get") == true && record.get("reply_topic") != null) {
-                    target_topic = (String)record.get("reply_topic");
-                }
-                
-                // DEBUG
-                this.errorLogger().info("processAsyncResponse: sending reply(" + verb + ") to AsyncResponse: ID: " + id + " Topic: " + target_topic + " Message: " + reply);
-
-                // send the reply...
-                mqtt.sendMessage(target_topic, reply);
-            }
-            else {
-                // DEBUG
-                this.errorLogger().info("processAsyncResponse: not sending reply(" + verb + ") to AsyncResponse: ID: " + id + " (OK).");
+            // DEBUG
+            this.errorLogger().info("processAsyncResponse: no transport yet for AsyncResponse: ID: " + id + "... holding the reply");
+            return;
+        }
+        this.reply(record,response,mqtt);
+    }
+    
+    // the transport a record's reply goes out on (null if none exists yet)
+    private MQTTTransport transport(AsyncResponseRecord record) {
+        if (record.mqtt() != null) {
+            return record.mqtt();
+        }
+        return (record.proc() != null) ? record.proc().replyTransport(record.endpointName()) : null;
+    }
+    
+    // send the reply for a record
+    private void reply(AsyncResponseRecord record,Map response,MQTTTransport mqtt) {
+        // claim the record (only one thread can win the remove)
+        String id = record.id();
+        if (this.m_responses.remove(id,record) == false) {
+            return;
+        }
+        this.m_held.remove(id);
+        
+        // record time-to-response
+        this.recordCompletion(record.ageMillis());
+        this.unpersist(record);
+        
+        // construct the reply message value
+        String verb = record.verb();
+        String reply = record.proc().correlateReply(record.proc().formatAsyncResponseAsReply(response,verb),record.correlationId());
+        if (reply != null) {
+            // GETs come back over as observations...
+            String target_topic = record.responseTopic();
+            if (verb.equalsIgnoreCase("get") == true && record.replyTopic() != null) {
+                target_topic = record.replyTopic();
             }
             
             // DEBUG
-            this.errorLogger().info("processAsyncResponse: Removing record for AsyncResponse: ID: " + id);
-                    
-            // finally delete the record
-            this.m_responses.remove(id);
+            this.errorLogger().info("processAsyncResponse: sending reply(" + verb + ") to AsyncResponse: ID: " + id + " Topic: " + target_topic + " Message: " + reply);
+
+            // send the reply...
+            mqtt.sendMessage(target_topic, reply);
         }
         else {
-            // processing something we have no record on...
-            ;
-            
             // DEBUG
-            //this.errorLogger().info("processAsyncResponse: No AsyncResponse record for ID: " + id + " Ignoring: " + response.toString());
+            this.errorLogger().info("processAsyncResponse: not sending reply(" + verb + ") to AsyncResponse: ID: " + id + " (OK).");
+        }
+        
+        // DEBUG
+        this.errorLogger().info("processAsyncResponse: Removed record for AsyncResponse: ID: " + id);
+    }
+    
+    // send the held replies whose transport has since come up
+    private void sendHeldReplies() {
+        for (AsyncResponseRecord record : this.m_held.values()) {
+            MQTTTransport mqtt = this.transport(record);
+            if (mqtt != null && record.heldReply() != null) {
+                this.reply(record,record.heldReply(),mqtt);
+            }
+        }
+    }
+    
+    // expire every record whose wheel slot has come due
+    private void expire() {
+        this.sendHeldReplies();
+        long now = System.currentTimeMillis();
+        long now_tick = this.tick(now);
+        int num_expired = 0;
+        for (Long tick : this.m_wheel.keySet()) {
+            if (tick > now_tick) {
+                continue;
+            }
+            ConcurrentLinkedQueue<String> slot = this.m_wheel.remove(tick);
+            String id = (slot != null) ? slot.poll() : null;
+            while (id != null) {
+                AsyncResponseRecord record = this.m_responses.get(id);
+                if (record != null && record.isExpired(now) == false) {
+                    // re-recorded under the same ID with a later deadline
+                    this.slot(this.tick(record.deadline())).add(id);
+                }
+                else if (record != null && this.m_responses.remove(id,record) == true) {
+                    this.m_expired.incrementAndGet();
+                    this.unpersist(record);
+                    ++num_expired;
+                    if (this.m_held.remove(id) != null) {
+                        // DEBUG
+                        this.errorLogger().warning("AsyncResponseManager: no transport before the deadline... dropping the reply: " + record);
+                    }
+                    else {
+                        this.timeout(record);
+                    }
+                }
+                id = slot.poll();
+            }
+        }
+        
+        // DEBUG
+        if (num_expired > 0) {
+            this.errorLogger().info("AsyncResponseManager: expired " + num_expired + " AsyncResponse(s): " + this.metrics());
+        }
+    }
+    
+    // notify the originating processor that its AsyncResponse never arrived
+    private void timeout(AsyncResponseRecord record) {
+        // DEBUG
+        this.errorLogger().warning("AsyncResponseManager: AsyncResponse timed out after " + record.ageMillis() + "ms: " + record);
+        try {
+            record.proc().onAsyncResponseTimeout(record);
+        }
+        catch (Exception ex) {
+            this.errorLogger().warning("AsyncResponseManager: timeout callback failed: " + ex.getMessage(),ex);
+        }
+    }
+    
+    // journal an outstanding record
+    private void persist(AsyncResponseRecord record) {
+        if (this.m_journal != null && this.m_journal.enabled() == true) {
+            String fields = StateJournal.pack(record.verb(),record.response(),record.responseTopic(),record.replyTopic(),record.message(),record.endpointName(),record.uri(),record.correlationId(),"" + record.deadline());
+            this.m_journal.put(this.m_journal_table,record.id(),fields);
+        }
+    }
+    
+    // remove a completed/expired record from the journal
+    private void unpersist(AsyncResponseRecord record) {
+        if (this.m_journal != null) {
+            this.m_journal.remove(this.m_journal_table,record.id());
+        }
+    }
+    
+    // accumulate time-to-response
+    private void recordCompletion(long response_ms) {
+        this.m_completed.incrementAndGet();
+        this.m_total_response_ms.addAndGet(response_ms);
+        long max = this.m_max_response_ms.get();
+        while (response_ms > max && this.m_max_response_ms.compareAndSet(max,response_ms) == false) {
+            max = this.m_max_response_ms.get();
+        }
+    }
+    
+    // wheel tick for a given time (rounded up so a record never expires early)
+    private long tick(long time_ms) {
+        return (time_ms + this.m_tick_ms - 1) / this.m_tick_ms;
+    }
+    
+    // get (or create) the wheel slot for a tick
+    private ConcurrentLinkedQueue<String> slot(long tick) {
+        ConcurrentLinkedQueue<String> slot = this.m_wheel.get(tick);
+        if (slot == null) {
+            this.m_wheel.putIfAbsent(tick,new ConcurrentLinkedQueue<String>());
+            slot = this.m_wheel.get(tick);
         }
+        return slot;
     }
 }
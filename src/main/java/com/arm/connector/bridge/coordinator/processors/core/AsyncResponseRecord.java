@@ -0,0 +1,99 @@
+/**
+ * @file    AsyncResponseRecord.java
+ * @brief   typed record of an outstanding mDS AsyncResponse
+ * @author  Doug Anson
+ * @version 1.0
+ * @see
+ *
+ * Copyright 2015. ARM Ltd. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * 
+ */
+
+package com.arm.connector.bridge.coordinator.processors.core;
+
+import com.arm.connector.bridge.coordinator.processors.arm.GenericMQTTProcessor;
+import com.arm.connector.bridge.transport.MQTTTransport;
+import java.util.Map;
+
+/**
+ * outstanding AsyncResponse record
+ * @author Doug Anson
+ */
+public class AsyncResponseRecord {
+    private final String                m_id;
+    private final String                m_verb;
+    private final String                m_response;
+    private final MQTTTransport         m_mqtt;
+    private final GenericMQTTProcessor  m_proc;
+    private final String                m_response_topic;
+    private final String                m_reply_topic;
+    private final String                m_message;
+    private final String                m_ep_name;
+    private final String                m_uri;
+    private final String                m_correlation_id;
+    private final long                  m_created_ns;
+    private final long                  m_deadline_ms;
+    private volatile Map                m_held_reply = null;
+    
+    public AsyncResponseRecord(String id,String verb,String response,MQTTTransport mqtt,GenericMQTTProcessor proc,String response_topic,String reply_topic,String message,String ep_name,String uri,String correlation_id,long deadline_ms) {
+        this.m_id = id;
+        this.m_verb = verb;
+        this.m_response = response;
+        this.m_mqtt = mqtt;
+        this.m_proc = proc;
+        this.m_response_topic = response_topic;
+        this.m_reply_topic = reply_topic;
+        this.m_message = message;
+        this.m_ep_name = ep_name;
+        this.m_uri = uri;
+        this.m_correlation_id = correlation_id;
+        this.m_created_ns = System.nanoTime();
+        this.m_deadline_ms = deadline_ms;
+    }
+    
+    public String id() { return this.m_id; }
+    public String verb() { return this.m_verb; }
+    public String response() { return this.m_response; }
+    public MQTTTransport mqtt() { return this.m_mqtt; }
+    public GenericMQTTProcessor proc() { return this.m_proc; }
+    public String responseTopic() { return this.m_response_topic; }
+    public String replyTopic() { return this.m_reply_topic; }
+    public String message() { return this.m_message; }
+    public String endpointName() { return this.m_ep_name; }
+    public String uri() { return this.m_uri; }
+    public String correlationId() { return this.m_correlation_id; }
+    public long deadline() { return this.m_deadline_ms; }
+    public Map heldReply() { return this.m_held_reply; }
+    
+    // hold the mDS reply until there is a transport to send it on
+    public void holdReply(Map reply) {
+        this.m_held_reply = reply;
+    }
+    
+    // elapsed time since the record was created (ms)
+    public long ageMillis() {
+        return (System.nanoTime() - this.m_created_ns) / 1000000;
+    }
+    
+    // has our deadline passed?
+    public boolean isExpired(long now_ms) {
+        return (now_ms >= this.m_deadline_ms);
+    }
+    
+    @Override
+    public String toString() {
+        return "id=" + this.m_id + " verb=" + this.m_verb + " ep=" + this.m_ep_name + " uri=" + this.m_uri + " response_topic=" + this.m_response_topic + " reply_topic=" + this.m_reply_topic + " correlation_id=" + this.m_correlation_id;
+    }
+}
@@ -95,6 +95,14 @@ public class BasePeerProcessorFactory extends Processor implements Transport.Rec
         return this.m_mqtt_list.size();
     }
     
+    // get the ith processor
+    public GenericMQTTProcessor mqttProcessor(int index) {
+        if (index >= 0 && index < this.m_mqtt_list.size()) {
+            return this.m_mqtt_list.get(index);
+        }
+        return null;
+    }
+    
     // get the default processor
     public GenericMQTTProcessor mqttProcessor() { 
         if (this.m_mqtt_list.size() > 0) {
@@ -0,0 +1,424 @@
+/**
+ * @file    CommandBuffer.java
+ * @brief   outbound command buffer for CoAP queue-mode endpoints
+ * @author  Doug Anson
+ * @version 1.0
+ * @see
+ *
+ * Copyright 2015. ARM Ltd. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+
+package com.arm.connector.bridge.coordinator.processors.core;
+
+import com.arm.connector.bridge.coordinator.Orchestrator;
+import com.arm.connector.bridge.core.ErrorLogger;
+import com.arm.connector.bridge.core.TimerService;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Outbound command buffer for CoAP queue-mode endpoints: PUT/POST/DELETE requests to a sleeping endpoint
+ * are held (bounded, per endpoint) and flushed in order when a registration, reg-update or notification shows
+ * the endpoint is awake. A later PUT/DELETE to a resource supersedes the write still waiting for it. Commands offered
+ * while an endpoint's buffer is being flushed queue behind it, so they never overtake the buffered ones.
+ * @author Doug Anson
+ */
+public class CommandBuffer {
+    private static final int                DEF_MAX_COMMANDS = 16;
+    private static final long               DEF_AWAKE_MS = 20000;
+    private static final long               DEF_COMMAND_TTL_MS = 3600000;
+    private static final long               EXPIRY_SWEEP_MS = 30000;
+
+    // reply status codes
+    public static final int                 STATUS_QUEUED = 202;
+    public static final int                 STATUS_SUPERSEDED = 409;
+    public static final int                 STATUS_GONE = 410;
+    public static final int                 STATUS_QUEUE_FULL = 503;
+    public static final int                 STATUS_EXPIRED = 504;
+
+    private Orchestrator                    m_manager = null;
+    private boolean                         m_enabled = false;
+    private int                             m_max_commands = DEF_MAX_COMMANDS;
+    private long                            m_awake_ms = DEF_AWAKE_MS;
+    private long                            m_command_ttl_ms = DEF_COMMAND_TTL_MS;
+    private HashSet<String>                 m_queue_mode = null;
+    private HashMap<String,Long>            m_last_awake = null;
+    private HashMap<String,LinkedHashMap<String,Command>> m_pending = null;
+    private HashSet<String>                 m_flushing = null;
+    private TimerService.Timer              m_expiry_timer = null;
+    private long                            m_sequence = 0;
+
+    // metrics
+    private final AtomicLong                m_buffered = new AtomicLong(0);
+    private final AtomicLong                m_superseded = new AtomicLong(0);
+    private final AtomicLong                m_rejected = new AtomicLong(0);
+    private final AtomicLong                m_expired = new AtomicLong(0);
+    private final AtomicLong                m_flushed = new AtomicLong(0);
+
+    /**
+     * A buffered command: the issuing processor supplies how to run it and how to answer its requester
+     */
+    public static abstract class Command {
+        private String      m_endpoint = null;
+        private String      m_verb = null;
+        private String      m_uri = null;
+        private long        m_created_ms = 0;
+
+        // constructor
+        public Command(String endpoint,String verb,String uri) {
+            this.m_endpoint = endpoint;
+            this.m_verb = (verb != null) ? verb.toUpperCase() : null;
+            this.m_uri = uri;
+            this.m_created_ms = System.currentTimeMillis();
+        }
+
+        // target endpoint
+        public String endpoint() {
+            return this.m_endpoint;
+        }
+
+        // CoAP verb (upper case)
+        public String verb() {
+            return this.m_verb;
+        }
+
+        // target resource
+        public String uri() {
+            return this.m_uri;
+        }
+
+        // age of the command
+        public long ageMillis() {
+            return System.currentTimeMillis() - this.m_created_ms;
+        }
+
+        // run the command now (the endpoint is awake)
+        public abstract void dispatch();
+
+        // answer the requester without (or before) running the command
+        public abstract void reply(int status,String reason);
+    }
+
+    // constructor
+    public CommandBuffer(Orchestrator manager) {
+        this.m_manager = manager;
+        this.m_queue_mode = new HashSet<>();
+        this.m_last_awake = new HashMap<>();
+        this.m_pending = new HashMap<>();
+        this.m_flushing = new HashSet<>();
+        this.m_enabled = manager.preferences().booleanValueOf("mds_queue_mode_buffering");
+        int max_commands = manager.preferences().intValueOf("mds_queue_mode_max_commands");
+        if (max_commands > 0) {
+            this.m_max_commands = max_commands;
+        }
+        int awake_ms = manager.preferences().intValueOf("mds_queue_mode_awake_ms");
+        if (awake_ms > 0) {
+            this.m_awake_ms = awake_ms;
+        }
+        int command_ttl_ms = manager.preferences().intValueOf("mds_queue_mode_command_ttl_ms");
+        if (command_ttl_ms > 0) {
+            this.m_command_ttl_ms = command_ttl_ms;
+        }
+    }
+
+    // get the error logger
+    private ErrorLogger errorLogger() {
+        return this.m_manager.errorLogger();
+    }
+
+    // is buffering enabled?
+    public boolean isEnabled() {
+        return this.m_enabled;
+    }
+
+    // note the endpoints in a "registrations"/"reg-updates" message: queue-mode flag and awake... flush anything waiting
+    public void registered(Map message,String key) {
+        List endpoints = (List)message.get(key);
+        for(int i=0;this.m_enabled == true && endpoints != null && i<endpoints.size();++i) {
+            Map endpoint = (Map)endpoints.get(i);
+            String ep_name = (String)endpoint.get("ep");
+            if (ep_name != null) {
+                Object queue_mode = endpoint.get("q");
+                synchronized (this) {
+                    if (queue_mode != null && queue_mode.toString().equalsIgnoreCase("true") == true) {
+                        this.m_queue_mode.add(ep_name);
+                    }
+                    else if (queue_mode != null) {
+                        this.m_queue_mode.remove(ep_name);
+                    }
+                }
+                this.awake(ep_name);
+            }
+        }
+    }
+
+    // note the endpoints in a "notifications" message as awake... flush anything waiting
+    public void notified(Map message) {
+        List notifications = (List)message.get("notifications");
+        for(int i=0;this.m_enabled == true && notifications != null && i<notifications.size();++i) {
+            Map notification = (Map)notifications.get(i);
+            String ep_name = (String)notification.get("ep");
+            if (ep_name != null) {
+                this.awake(ep_name);
+            }
+        }
+    }
+
+    // forget de-registered endpoints (anything still waiting is answered as gone)
+    public void deregistered(String[] endpoints) {
+        for(int i=0;this.m_enabled == true && endpoints != null && i<endpoints.length;++i) {
+            LinkedHashMap<String,Command> commands = null;
+            synchronized (this) {
+                this.m_queue_mode.remove(endpoints[i]);
+                this.m_last_awake.remove(endpoints[i]);
+                commands = this.m_pending.remove(endpoints[i]);
+            }
+            if (commands != null) {
+                this.m_rejected.addAndGet(commands.size());
+                this.replyAll(new ArrayList<>(commands.values()),STATUS_GONE,"endpoint de-registered");
+            }
+        }
+        this.updateExpiryTimer();
+    }
+
+    /**
+     * offer a command: buffered (true) if its endpoint is a sleeping queue-mode endpoint, otherwise the caller dispatches it
+     * @param command
+     * @return true if the command was taken by the buffer
+     */
+    public boolean offer(Command command) {
+        if (this.m_enabled == false || command.endpoint() == null || command.verb() == null || command.verb().equals("GET") == true) {
+            return false;
+        }
+
+        Command superseded = null;
+        boolean full = false;
+        boolean flushing = false;
+        synchronized (this) {
+            String ep_name = command.endpoint();
+            flushing = this.m_flushing.contains(ep_name);
+            if (this.m_queue_mode.contains(ep_name) == false || (flushing == false && this.isAwake(ep_name) == true)) {
+                return false;
+            }
+            LinkedHashMap<String,Command> commands = this.m_pending.get(ep_name);
+            if (commands == null) {
+                commands = new LinkedHashMap<>();
+                this.m_pending.put(ep_name,commands);
+            }
+
+            // PUT/DELETE are idempotent: the latest write to a resource replaces (and moves behind) any earlier one still waiting
+            String key = (command.verb().equals("POST") == true) ? "POST#" + (++this.m_sequence) : "WRITE " + command.uri();
+            superseded = commands.remove(key);
+            if (superseded == null && commands.size() >= this.m_max_commands) {
+                full = true;
+            }
+            else {
+                commands.put(key,command);
+                this.m_buffered.incrementAndGet();
+            }
+        }
+
+        if (superseded != null) {
+            this.m_superseded.incrementAndGet();
+            this.reply(superseded,STATUS_SUPERSEDED,"superseded by a later " + command.verb());
+        }
+        if (full == true) {
+            // DEBUG
+            this.m_rejected.incrementAndGet();
+            this.errorLogger().warning("CommandBuffer: command queue full for " + command.endpoint() + ". Rejecting " + command.verb() + " " + command.uri());
+            this.reply(command,STATUS_QUEUE_FULL,"command queue full");
+        }
+        else if (flushing == true) {
+            // DEBUG
+            this.errorLogger().info("CommandBuffer: buffered " + command.verb() + " " + command.uri() + " behind the commands being flushed to " + command.endpoint());
+            this.reply(command,STATUS_QUEUED,"queued behind the endpoint's buffered commands");
+        }
+        else {
+            // DEBUG
+            this.errorLogger().info("CommandBuffer: buffered " + command.verb() + " " + command.uri() + " for sleeping endpoint " + command.endpoint());
+            this.reply(command,STATUS_QUEUED,"queued until the endpoint wakes");
+        }
+        this.updateExpiryTimer();
+        return true;
+    }
+
+    // number of commands waiting
+    public synchronized int pendingCount() {
+        int count = 0;
+        Iterator<LinkedHashMap<String,Command>> iterator = this.m_pending.values().iterator();
+        while (iterator.hasNext() == true) {
+            count += iterator.next().size();
+        }
+        return count;
+    }
+
+    // buffer metrics
+    public String metrics() {
+        int queue_mode = 0;
+        synchronized (this) {
+            queue_mode = this.m_queue_mode.size();
+        }
+        return "queue_mode_endpoints=" + queue_mode + " pending=" + this.pendingCount() + " buffered=" + this.m_buffered.get() + " flushed=" + this.m_flushed.get()
+                + " superseded=" + this.m_superseded.get() + " rejected=" + this.m_rejected.get() + " expired=" + this.m_expired.get();
+    }
+
+    // stop buffering (anything still waiting is dropped)
+    public synchronized void stop() {
+        this.m_enabled = false;
+        this.m_pending.clear();
+        if (this.m_expiry_timer != null) {
+            this.m_expiry_timer.cancel();
+            this.m_expiry_timer = null;
+        }
+    }
+
+    // is the endpoint within its awake window?
+    private boolean isAwake(String ep_name) {
+        Long last_awake = this.m_last_awake.get(ep_name);
+        return (last_awake != null && (System.currentTimeMillis() - last_awake) < this.m_awake_ms);
+    }
+
+    // mark the endpoint awake and flush its commands (in order, off the webhook thread)
+    private void awake(final String ep_name) {
+        final LinkedHashMap<String,Command> commands;
+        synchronized (this) {
+            this.m_last_awake.put(ep_name,System.currentTimeMillis());
+            if (this.m_flushing.contains(ep_name) == true) {
+                // the running flush picks up anything new
+                return;
+            }
+            commands = this.m_pending.remove(ep_name);
+            if (commands == null || commands.isEmpty() == true) {
+                return;
+            }
+            this.m_flushing.add(ep_name);
+        }
+
+        // DEBUG
+        this.errorLogger().info("CommandBuffer: endpoint " + ep_name + " is awake. Flushing " + commands.size() + " command(s)");
+        try {
+            this.m_manager.executor().execute(new Runnable() {
+                @Override
+                public void run() {
+                    flush(ep_name,commands);
+                }
+            });
+        }
+        catch (RejectedExecutionException ex) {
+            // no worker available: flush on this thread
+            this.flush(ep_name,commands);
+        }
+    }
+
+    // dispatch the commands in order... commands buffered meanwhile are dispatched too
+    private void flush(String ep_name,LinkedHashMap<String,Command> commands) {
+        while (commands != null) {
+            Iterator<Command> iterator = commands.values().iterator();
+            while (iterator.hasNext() == true) {
+                Command command = iterator.next();
+                try {
+                    command.dispatch();
+                    this.m_flushed.incrementAndGet();
+                }
+                catch (Exception ex) {
+                    // note but continue with the rest
+                    this.errorLogger().warning("CommandBuffer: dispatch of " + command.verb() + " " + command.uri() + " to " + ep_name + " failed: " + ex.getMessage(),ex);
+                }
+            }
+            synchronized (this) {
+                commands = this.m_pending.remove(ep_name);
+                if (commands == null || commands.isEmpty() == true) {
+                    commands = null;
+                    this.m_flushing.remove(ep_name);
+                }
+            }
+        }
+        this.updateExpiryTimer();
+    }
+
+    // run the expiry sweep only while something is waiting
+    private synchronized void updateExpiryTimer() {
+        boolean waiting = (this.m_pending.isEmpty() == false);
+        if (waiting == true && this.m_expiry_timer == null && this.m_enabled == true && this.m_manager.timers() != null) {
+            this.m_expiry_timer = this.m_manager.timers().schedulePeriodic("command-buffer-expiry",new Runnable() {
+                @Override
+                public void run() {
+                    expire();
+                }
+            },EXPIRY_SWEEP_MS,EXPIRY_SWEEP_MS);
+        }
+        else if (waiting == false && this.m_expiry_timer != null) {
+            this.m_expiry_timer.cancel();
+            this.m_expiry_timer = null;
+        }
+    }
+
+    // answer (and drop) commands that have waited longer than their TTL
+    private void expire() {
+        ArrayList<Command> expired = new ArrayList<>();
+        synchronized (this) {
+            Iterator<LinkedHashMap<String,Command>> endpoints = this.m_pending.values().iterator();
+            while (endpoints.hasNext() == true) {
+                Iterator<Command> commands = endpoints.next().values().iterator();
+                while (commands.hasNext() == true) {
+                    Command command = commands.next();
+                    if (command.ageMillis() >= this.m_command_ttl_ms) {
+                        expired.add(command);
+                        commands.remove();
+                    }
+                }
+            }
+            Iterator<Map.Entry<String,LinkedHashMap<String,Command>>> entries = this.m_pending.entrySet().iterator();
+            while (entries.hasNext() == true) {
+                if (entries.next().getValue().isEmpty() == true) {
+                    entries.remove();
+                }
+            }
+        }
+        if (expired.isEmpty() == false) {
+            // DEBUG
+            this.m_expired.addAndGet(expired.size());
+            this.errorLogger().info("CommandBuffer: expired " + expired.size() + " command(s): " + this.metrics());
+            this.replyAll(expired,STATUS_EXPIRED,"endpoint did not wake in time");
+        }
+        this.updateExpiryTimer();
+    }
+
+    // answer a list of commands
+    private void replyAll(List<Command> commands,int status,String reason) {
+        for(int i=0;i<commands.size();++i) {
+            this.reply(commands.get(i),status,reason);
+        }
+    }
+
+    // answer a command's requester (never lets a failed reply escape)
+    private void reply(Command command,int status,String reason) {
+        try {
+            command.reply(status,reason);
+        }
+        catch (Exception ex) {
+            // DEBUG
+            this.errorLogger().warning("CommandBuffer: unable to reply to " + command.verb() + " " + command.uri() + ": " + ex.getMessage(),ex);
+        }
+    }
+}
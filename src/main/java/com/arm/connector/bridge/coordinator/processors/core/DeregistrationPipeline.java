@@ -0,0 +1,285 @@
+/**
+ * @file    DeregistrationPipeline.java
+ * @brief   batched, asynchronous de-registration pipeline
+ * @author  Doug Anson
+ * @version 1.0
+ * @see
+ *
+ * Copyright 2015. ARM Ltd. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+
+package com.arm.connector.bridge.coordinator.processors.core;
+
+import com.arm.connector.bridge.coordinator.Orchestrator;
+import com.arm.connector.bridge.coordinator.processors.interfaces.PeerInterface;
+import com.arm.connector.bridge.core.ErrorLogger;
+import com.arm.connector.bridge.core.FanOut;
+import com.arm.connector.bridge.core.TimerService;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * De-registration pipeline: de-registered/expired endpoints are queued (so the mDS webhook is acknowledged at once)
+ * and processed in batches, fanning each batch out with bounded parallelism to mDS and to every peer processor
+ * (cloud registries and local indexes)
+ * @author Doug Anson
+ */
+public class DeregistrationPipeline {
+    private static final int                DEF_BATCH_SIZE = 100;
+    private static final int                DEF_PARALLELISM = 4;
+
+    private Orchestrator                    m_manager = null;
+    private LinkedHashSet<String>           m_pending = null;
+    private HashSet<String>                 m_in_flight = null;
+    private boolean                         m_running = false;
+    private boolean                         m_stopped = false;
+    private TimerService.Timer              m_timer = null;
+    private int                             m_batch_size = DEF_BATCH_SIZE;
+    private int                             m_parallelism = DEF_PARALLELISM;
+
+    // metrics
+    private final AtomicLong                m_queued = new AtomicLong(0);
+    private final AtomicLong                m_cancelled = new AtomicLong(0);
+    private final AtomicLong                m_processed = new AtomicLong(0);
+    private final AtomicLong                m_batches = new AtomicLong(0);
+
+    // constructor
+    public DeregistrationPipeline(Orchestrator manager) {
+        this.m_manager = manager;
+        this.m_pending = new LinkedHashSet<>();
+        this.m_in_flight = new HashSet<>();
+        int batch_size = manager.preferences().intValueOf("bridge_deregistration_batch_size");
+        if (batch_size > 0) {
+            this.m_batch_size = batch_size;
+        }
+        int parallelism = manager.preferences().intValueOf("bridge_deregistration_parallelism");
+        if (parallelism > 0) {
+            this.m_parallelism = parallelism;
+        }
+    }
+
+    // get the error logger
+    private ErrorLogger errorLogger() {
+        return this.m_manager.errorLogger();
+    }
+
+    // queue endpoints for de-registration (duplicates collapse)
+    public synchronized void enqueue(String[] endpoints) {
+        if (this.m_stopped == true || endpoints == null) {
+            return;
+        }
+        for(int i=0;i<endpoints.length;++i) {
+            if (this.m_pending.add(endpoints[i]) == true) {
+                this.m_queued.incrementAndGet();
+            }
+        }
+        if (this.m_running == false && this.m_pending.isEmpty() == false) {
+            this.m_running = true;
+            this.arm();
+        }
+    }
+
+    // the endpoint has (re)registered before its de-registration was processed: drop it from the queue (or the running batch)
+    public synchronized boolean cancel(String endpoint) {
+        if (endpoint != null && (this.m_pending.remove(endpoint) == true || this.m_in_flight.remove(endpoint) == true)) {
+            this.m_cancelled.incrementAndGet();
+            return true;
+        }
+        return false;
+    }
+
+    // number of endpoints awaiting de-registration (queued or in the running batch)
+    public synchronized int pendingCount() {
+        return this.m_pending.size() + this.m_in_flight.size();
+    }
+
+    // pipeline metrics
+    public String metrics() {
+        return "pending=" + this.pendingCount() + " queued=" + this.m_queued.get() + " cancelled=" + this.m_cancelled.get() + " processed=" + this.m_processed.get() + " batches=" + this.m_batches.get();
+    }
+
+    // stop the pipeline (anything still queued is dropped)
+    public synchronized void stop() {
+        this.m_stopped = true;
+        this.m_running = false;
+        this.m_pending.clear();
+        this.m_in_flight.clear();
+        if (this.m_timer != null) {
+            this.m_timer.cancel();
+            this.m_timer = null;
+        }
+    }
+
+    // arm the next batch on the shared timer service
+    private synchronized void arm() {
+        if (this.m_stopped == false && this.m_manager.timers() != null) {
+            this.m_timer = this.m_manager.timers().schedule("deregistration-pipeline",new Runnable() {
+                @Override
+                public void run() {
+                    runBatch();
+                }
+            },0);
+        }
+    }
+
+    // start the next batch... the pipeline re-arms when it completes
+    private void runBatch() {
+        try {
+            String[] batch = this.nextBatch();
+            if (batch.length > 0) {
+                this.dispatch(batch);
+                return;
+            }
+        }
+        catch (Exception ex) {
+            // DEBUG
+            this.errorLogger().warning("DeregistrationPipeline: batch failed: " + ex.getMessage(),ex);
+        }
+        this.batchDone(new String[0]);
+    }
+
+    // a batch has completed: re-arm while there is more queued
+    private synchronized void batchDone(String[] batch) {
+        for(int i=0;i<batch.length;++i) {
+            this.m_in_flight.remove(batch[i]);
+        }
+        if (this.m_pending.isEmpty() == true) {
+            this.m_running = false;
+        }
+        else {
+            this.arm();
+        }
+    }
+
+    // take the next batch off the queue
+    private synchronized String[] nextBatch() {
+        int count = Math.min(this.m_batch_size,this.m_pending.size());
+        String[] batch = new String[count];
+        Iterator<String> iterator = this.m_pending.iterator();
+        for(int i=0;i<count;++i) {
+            batch[i] = iterator.next();
+            iterator.remove();
+            this.m_in_flight.add(batch[i]);
+        }
+        return batch;
+    }
+
+    // the endpoints that are still to be de-registered (those that re-registered since the batch was taken are skipped)
+    private synchronized String[] stillDeregistering(String[] endpoints) {
+        ArrayList<String> live = new ArrayList<>();
+        for(int i=0;i<endpoints.length;++i) {
+            if (this.m_in_flight.contains(endpoints[i]) == true) {
+                live.add(endpoints[i]);
+            }
+        }
+        return live.toArray(new String[live.size()]);
+    }
+
+    // fan a batch out to mDS (in chunks) and to each peer processor, at most m_parallelism at a time (without waiting for them)
+    private void dispatch(final String[] batch) {
+        ArrayList<Runnable> tasks = new ArrayList<>();
+
+        // mDS: remove the endpoint subscriptions, chunked across our workers
+        int chunk = (batch.length + this.m_parallelism - 1) / this.m_parallelism;
+        for(int start=0;start<batch.length;start+=chunk) {
+            final String[] endpoints = Arrays.copyOfRange(batch,start,Math.min(batch.length,start + chunk));
+            tasks.add(new Runnable() {
+                @Override
+                public void run() {
+                    String[] live = stillDeregistering(endpoints);
+                    if (live.length > 0) {
+                        m_manager.processDeregistrations(live);
+                    }
+                }
+            });
+        }
+
+        // peers: each removes the batch from its cloud registry and local indexes
+        List<PeerInterface> peers = this.m_manager.peer_processor_list();
+        for(int i=0;peers != null && i<peers.size();++i) {
+            final PeerInterface peer = peers.get(i);
+            tasks.add(new Runnable() {
+                @Override
+                public void run() {
+                    String[] live = stillDeregistering(batch);
+                    if (live.length > 0) {
+                        peer.processDeregistrations(DeregistrationPipeline.deregistrationMessage(live));
+                    }
+                }
+            });
+        }
+
+        // run the tasks: the last one to finish completes the batch
+        FanOut.run(this.errorLogger(),"DeregistrationPipeline",this.m_manager.executor(),tasks,this.m_parallelism,new FanOut.Work<Runnable>() {
+            @Override
+            public void run(Runnable task) {
+                task.run();
+            }
+        },new Runnable() {
+            @Override
+            public void run() {
+                // DEBUG
+                m_processed.addAndGet(batch.length);
+                m_batches.incrementAndGet();
+                batchDone(batch);
+                errorLogger().info("DeregistrationPipeline: de-registered " + batch.length + " endpoint(s): " + metrics());
+            }
+        });
+    }
+
+    // build a de-registration message for a batch (as mDS would send it)
+    private static Map deregistrationMessage(String[] endpoints) {
+        HashMap<String,Object> message = new HashMap<>();
+        message.put("de-registrations",new ArrayList<>(Arrays.asList(endpoints)));
+        return message;
+    }
+
+    // parse the endpoint names out of a "de-registrations" or "registrations-expired" message
+    public static String[] endpoints(Map body) {
+        LinkedHashSet<String> endpoints = new LinkedHashSet<>();
+        if (body != null) {
+            DeregistrationPipeline.addEndpoints(endpoints,body.get("de-registrations"));
+            DeregistrationPipeline.addEndpoints(endpoints,body.get("registrations-expired"));
+        }
+        return endpoints.toArray(new String[endpoints.size()]);
+    }
+
+    // add the (non-empty) endpoint names in a list
+    private static void addEndpoints(LinkedHashSet<String> endpoints,Object list) {
+        if (list instanceof List) {
+            List entries = (List)list;
+            for(int i=0;i<entries.size();++i) {
+                Object entry = entries.get(i);
+                if (entry instanceof Map) {
+                    entry = ((Map)entry).get("ep");
+                }
+                if (entry != null) {
+                    String endpoint = entry.toString().trim();
+                    if (endpoint.length() > 0) {
+                        endpoints.add(endpoint);
+                    }
+                }
+            }
+        }
+    }
+}
@@ -0,0 +1,289 @@
+/**
+ * @file    IdleSessionReaper.java
+ * @brief   closes idle per-endpoint peer sessions and reopens them on demand
+ * @author  Doug Anson
+ * @version 1.0
+ * @see
+ *
+ * Copyright 2015. ARM Ltd. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+
+package com.arm.connector.bridge.coordinator.processors.core;
+
+import com.arm.connector.bridge.coordinator.Orchestrator;
+import com.arm.connector.bridge.core.ErrorLogger;
+import com.arm.connector.bridge.core.TimerService;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Lifecycle policy for per-endpoint peer sessions (i.e. one cloud MQTT connection per device): sessions with no
+ * traffic for mqtt_idle_session_ms are closed and reopened on demand when the endpoint next has something to send.
+ * Commands sent to a closed session are held by the broker (persistent session) and collected when it reopens... an
+ * optional periodic wakeup (mqtt_idle_wakeup_ms) reopens idle sessions briefly to collect them sooner. Open session
+ * counts then follow the active endpoints rather than the registered ones.
+ * @author Doug Anson
+ */
+public class IdleSessionReaper {
+    private static final long                   MAX_SWEEP_MS = 60000;
+    private static final long                   DEF_WAKEUP_LINGER_MS = 10000;
+
+    /**
+     * The processor owning the sessions
+     */
+    public interface Sessions {
+        // close an idle endpoint session
+        public void closeIdleSession(String ep_name);
+
+        // reopen an idle endpoint session (true if it is connected again)
+        public boolean reopenIdleSession(String ep_name);
+    }
+
+    private Orchestrator                        m_manager = null;
+    private Sessions                            m_sessions = null;
+    private long                                m_idle_ms = 0;
+    private long                                m_wakeup_ms = 0;
+    private long                                m_linger_ms = DEF_WAKEUP_LINGER_MS;
+    private ConcurrentHashMap<String,Long>      m_open = null;
+    private ConcurrentHashMap<String,Long>      m_idle = null;
+    private Set<String>                         m_closed = null;
+    private TimerService.Timer                  m_timer = null;
+
+    // metrics
+    private final AtomicLong                    m_reaped = new AtomicLong(0);
+    private final AtomicLong                    m_reopened = new AtomicLong(0);
+    private final AtomicLong                    m_wakeups = new AtomicLong(0);
+
+    // constructor
+    public IdleSessionReaper(Orchestrator manager,String suffix,Sessions sessions) {
+        this.m_manager = manager;
+        this.m_sessions = sessions;
+        this.m_open = new ConcurrentHashMap<>();
+        this.m_idle = new ConcurrentHashMap<>();
+        this.m_closed = Collections.newSetFromMap(new ConcurrentHashMap<String,Boolean>());
+        int idle_ms = manager.preferences().intValueOf("mqtt_idle_session_ms",suffix);
+        if (idle_ms > 0) {
+            this.m_idle_ms = idle_ms;
+        }
+        int wakeup_ms = manager.preferences().intValueOf("mqtt_idle_wakeup_ms",suffix);
+        if (wakeup_ms > 0) {
+            this.m_wakeup_ms = wakeup_ms;
+        }
+        int linger_ms = manager.preferences().intValueOf("mqtt_idle_wakeup_linger_ms",suffix);
+        if (linger_ms > 0) {
+            this.m_linger_ms = linger_ms;
+        }
+        this.m_linger_ms = Math.min(this.m_linger_ms,this.m_idle_ms);
+
+        // sweep periodically (only when enabled)
+        if (this.isEnabled() == true) {
+            long sweep_ms = Math.max(1000,Math.min(MAX_SWEEP_MS,this.m_idle_ms / 4));
+            this.m_timer = manager.timers().schedulePeriodic("idle-session-reaper",new Runnable() {
+                @Override
+                public void run() {
+                    sweep();
+                }
+            },sweep_ms,sweep_ms);
+
+            // DEBUG
+            this.errorLogger().info("IdleSessionReaper: closing sessions idle for " + this.m_idle_ms + "ms" + ((this.m_wakeup_ms > 0) ? " (wakeup every " + this.m_wakeup_ms + "ms)" : ""));
+        }
+    }
+
+    // get the error logger
+    private ErrorLogger errorLogger() {
+        return this.m_manager.errorLogger();
+    }
+
+    // is idle reaping enabled?
+    public boolean isEnabled() {
+        return (this.m_idle_ms > 0);
+    }
+
+    // a session has been opened for the endpoint
+    public synchronized void opened(String ep_name) {
+        if (this.isEnabled() == true && ep_name != null) {
+            this.m_idle.remove(ep_name);
+            this.m_closed.remove(ep_name);
+            this.m_open.put(ep_name,System.currentTimeMillis());
+        }
+    }
+
+    // the endpoint's session carried traffic (a session swept as idle but not yet closed is kept open)
+    public synchronized void touch(String ep_name) {
+        if (this.isEnabled() == false || ep_name == null) {
+            return;
+        }
+        if (this.m_open.containsKey(ep_name) == true) {
+            this.m_open.put(ep_name,System.currentTimeMillis());
+        }
+        else if (this.m_closed.contains(ep_name) == false && this.m_idle.remove(ep_name) != null) {
+            this.m_open.put(ep_name,System.currentTimeMillis());
+        }
+    }
+
+    // has the endpoint's session been closed as idle?
+    public boolean isIdle(String ep_name) {
+        return (ep_name != null && this.m_closed.contains(ep_name) == true);
+    }
+
+    /**
+     * called by the owner before it closes an idle session: the session may only be closed if this returns true
+     * @param ep_name
+     * @return false if the session has seen traffic (or been reopened) since it was swept as idle
+     */
+    public synchronized boolean confirmIdle(String ep_name) {
+        if (ep_name == null || this.m_idle.containsKey(ep_name) == false) {
+            return false;
+        }
+        this.m_closed.add(ep_name);
+        return true;
+    }
+
+    // the endpoint is gone
+    public synchronized void forget(String ep_name) {
+        if (ep_name != null) {
+            this.m_open.remove(ep_name);
+            this.m_idle.remove(ep_name);
+            this.m_closed.remove(ep_name);
+        }
+    }
+
+    /**
+     * reopen an idle session on demand (no-op if it is not idle)
+     * @param ep_name
+     * @return true if the session is open
+     */
+    public boolean reopen(String ep_name) {
+        Long closed_at = null;
+        synchronized (this) {
+            if (ep_name == null || this.m_closed.remove(ep_name) == false) {
+                return false;
+            }
+            closed_at = this.m_idle.remove(ep_name);
+        }
+        boolean reopened = false;
+        try {
+            reopened = this.m_sessions.reopenIdleSession(ep_name);
+        }
+        catch (Exception ex) {
+            this.errorLogger().warning("IdleSessionReaper: exception reopening session for: " + ep_name + ": " + ex.getMessage());
+        }
+        synchronized (this) {
+            if (reopened == true) {
+                this.m_reopened.incrementAndGet();
+                this.m_open.put(ep_name,System.currentTimeMillis());
+            }
+            else if (this.m_open.containsKey(ep_name) == false) {
+                // still closed... the next attempt will retry
+                this.m_idle.putIfAbsent(ep_name,(closed_at != null) ? closed_at : System.currentTimeMillis());
+                this.m_closed.add(ep_name);
+            }
+        }
+        return reopened;
+    }
+
+    // stop sweeping
+    public void stop() {
+        if (this.m_timer != null) {
+            this.m_timer.cancel();
+            this.m_timer = null;
+        }
+    }
+
+    // session metrics
+    public String metrics() {
+        return "open=" + this.m_open.size() + " idle=" + this.m_closed.size() + " closing=" + Math.max(0,this.m_idle.size() - this.m_closed.size()) + " reaped=" + this.m_reaped.get() + " reopened=" + this.m_reopened.get() + " wakeups=" + this.m_wakeups.get();
+    }
+
+    // close the sessions that have gone idle and wake those due for a command check
+    private void sweep() {
+        long now = System.currentTimeMillis();
+        ArrayList<String> idle = new ArrayList<>();
+        for (Map.Entry<String,Long> entry : this.m_open.entrySet()) {
+            if ((now - entry.getValue()) >= this.m_idle_ms) {
+                synchronized (this) {
+                    // swept... touch() can still rescue it until the owner confirms the close
+                    if (this.m_open.remove(entry.getKey(),entry.getValue()) == true) {
+                        this.m_idle.put(entry.getKey(),now);
+                        idle.add(entry.getKey());
+                    }
+                }
+            }
+        }
+        ArrayList<String> wakeup = new ArrayList<>();
+        if (this.m_wakeup_ms > 0) {
+            for (Map.Entry<String,Long> entry : this.m_idle.entrySet()) {
+                if (this.m_closed.contains(entry.getKey()) == true && (now - entry.getValue()) >= this.m_wakeup_ms) {
+                    wakeup.add(entry.getKey());
+                }
+            }
+        }
+        if (idle.isEmpty() == true && wakeup.isEmpty() == true) {
+            return;
+        }
+
+        // close/reopen on the worker pool (both block on the broker)
+        for(int i=0;i<idle.size();++i) {
+            final String ep_name = idle.get(i);
+            this.execute(new Runnable() {
+                @Override
+                public void run() {
+                    m_sessions.closeIdleSession(ep_name);
+                }
+            });
+        }
+        this.m_reaped.addAndGet(idle.size());
+        for(int i=0;i<wakeup.size();++i) {
+            final String ep_name = wakeup.get(i);
+            this.execute(new Runnable() {
+                @Override
+                public void run() {
+                    wakeup(ep_name);
+                }
+            });
+        }
+
+        // DEBUG
+        this.errorLogger().info("IdleSessionReaper: closing " + idle.size() + " idle session(s), waking " + wakeup.size() + ": " + this.metrics());
+    }
+
+    // reopen an idle session briefly so the broker can deliver any held commands
+    private void wakeup(String ep_name) {
+        if (this.reopen(ep_name) == true) {
+            this.m_wakeups.incrementAndGet();
+
+            // closed again after the linger period unless it sees traffic
+            this.m_open.replace(ep_name,System.currentTimeMillis() - this.m_idle_ms + this.m_linger_ms);
+        }
+    }
+
+    // run on the worker pool
+    private void execute(Runnable task) {
+        try {
+            this.m_manager.executor().execute(task);
+        }
+        catch (RejectedExecutionException ex) {
+            // no worker available: run inline
+            task.run();
+        }
+    }
+}
@@ -0,0 +1,190 @@
+/**
+ * @file    PendingConnectBuffer.java
+ * @brief   holds per-endpoint notifications while the endpoint waits for its admitted peer connection
+ * @author  Doug Anson
+ * @version 1.0
+ * @see
+ *
+ * Copyright 2015. ARM Ltd. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+
+package com.arm.connector.bridge.coordinator.processors.core;
+
+import com.arm.connector.bridge.coordinator.Orchestrator;
+import com.arm.connector.bridge.core.ErrorLogger;
+import com.arm.connector.bridge.transport.MQTTTransport;
+import java.util.ArrayDeque;
+import java.util.HashMap;
+import java.util.concurrent.atomic.AtomicLong;
+import org.fusesource.mqtt.client.QoS;
+
+/**
+ * Per-device connections are made through the connection admission queue, so an endpoint can be registered (and
+ * sending notifications) before its peer connection exists. Notifications for such an endpoint are held here (up to
+ * mqtt_connect_hold_max per endpoint, oldest dropped first) and sent in order once its connect completes.
+ * @author Doug Anson
+ */
+public class PendingConnectBuffer {
+    private static final int                        DEF_MAX_HELD = 100;
+
+    // a held notification
+    private static class Held {
+        private String  m_topic = null;
+        private String  m_message = null;
+        private QoS     m_qos = null;
+
+        // constructor
+        private Held(String topic,String message,QoS qos) {
+            this.m_topic = topic;
+            this.m_message = message;
+            this.m_qos = qos;
+        }
+    }
+
+    private Orchestrator                            m_manager = null;
+    private int                                     m_max_held = DEF_MAX_HELD;
+    private HashMap<String,ArrayDeque<Held>>        m_pending = null;
+
+    // metrics
+    private final AtomicLong                        m_held = new AtomicLong(0);
+    private final AtomicLong                        m_flushed = new AtomicLong(0);
+    private final AtomicLong                        m_dropped = new AtomicLong(0);
+
+    // constructor
+    public PendingConnectBuffer(Orchestrator manager,String suffix) {
+        this.m_manager = manager;
+        this.m_pending = new HashMap<>();
+        int max_held = manager.preferences().intValueOf("mqtt_connect_hold_max",suffix);
+        if (max_held > 0) {
+            this.m_max_held = max_held;
+        }
+    }
+
+    // get the error logger
+    private ErrorLogger errorLogger() {
+        return this.m_manager.errorLogger();
+    }
+
+    // the endpoint's connect has been queued
+    public synchronized void connecting(String ep_name) {
+        if (ep_name != null && this.m_pending.containsKey(ep_name) == false) {
+            this.m_pending.put(ep_name,new ArrayDeque<Held>());
+        }
+    }
+
+    // is the endpoint waiting for its connect?
+    public synchronized boolean isConnecting(String ep_name) {
+        return (ep_name != null && this.m_pending.containsKey(ep_name) == true);
+    }
+
+    /**
+     * hold a notification until the endpoint's connect completes
+     * @param ep_name
+     * @param topic
+     * @param message
+     * @param qos
+     * @return true if held (false if the endpoint is not waiting for a connect)
+     */
+    public boolean hold(String ep_name,String topic,String message,QoS qos) {
+        boolean dropped = false;
+        synchronized (this) {
+            ArrayDeque<Held> held = (ep_name != null) ? this.m_pending.get(ep_name) : null;
+            if (held == null) {
+                return false;
+            }
+            if (held.size() >= this.m_max_held) {
+                held.pollFirst();
+                dropped = true;
+            }
+            held.addLast(new Held(topic,message,qos));
+        }
+        this.m_held.incrementAndGet();
+        if (dropped == true) {
+            this.m_dropped.incrementAndGet();
+
+            // DEBUG
+            this.errorLogger().warning("PendingConnectBuffer: hold limit (" + this.m_max_held + ") reached for " + ep_name + "... dropped the oldest notification");
+        }
+        return true;
+    }
+
+    /**
+     * the endpoint's connect has run: send what was held (dropped if it did not connect). The endpoint keeps holding
+     * until the flush has drained, so nothing sent directly can overtake a held notification.
+     * @param ep_name
+     * @param mqtt the endpoint's transport (null if the connect failed)
+     */
+    public void connected(String ep_name,MQTTTransport mqtt) {
+        if (ep_name == null) {
+            return;
+        }
+        if (mqtt == null) {
+            ArrayDeque<Held> held = null;
+            synchronized (this) {
+                held = this.m_pending.remove(ep_name);
+            }
+            if (held != null && held.isEmpty() == false) {
+                this.m_dropped.addAndGet(held.size());
+
+                // DEBUG
+                this.errorLogger().warning("PendingConnectBuffer: connect failed for " + ep_name + "... dropped " + held.size() + " held notification(s)");
+            }
+            return;
+        }
+
+        int sent = 0;
+        while (true) {
+            // take what is held so far... the entry is removed only once nothing is left to send
+            ArrayDeque<Held> batch = null;
+            synchronized (this) {
+                ArrayDeque<Held> held = this.m_pending.get(ep_name);
+                if (held == null || held.isEmpty() == true) {
+                    this.m_pending.remove(ep_name);
+                    break;
+                }
+                batch = new ArrayDeque<>(held);
+                held.clear();
+            }
+            Held next = batch.pollFirst();
+            while (next != null) {
+                mqtt.sendMessage(next.m_topic,next.m_message,next.m_qos);
+                this.m_flushed.incrementAndGet();
+                ++sent;
+                next = batch.pollFirst();
+            }
+        }
+        if (sent > 0) {
+            // DEBUG
+            this.errorLogger().info("PendingConnectBuffer: sent " + sent + " held notification(s) for " + ep_name);
+        }
+    }
+
+    // the endpoint is gone
+    public void forget(String ep_name) {
+        ArrayDeque<Held> held = null;
+        synchronized (this) {
+            held = (ep_name != null) ? this.m_pending.remove(ep_name) : null;
+        }
+        if (held != null) {
+            this.m_dropped.addAndGet(held.size());
+        }
+    }
+
+    // hold metrics
+    public synchronized String metrics() {
+        return "connecting=" + this.m_pending.size() + " held=" + this.m_held.get() + " flushed=" + this.m_flushed.get() + " dropped=" + this.m_dropped.get();
+    }
+}
@@ -0,0 +1,137 @@
+/**
+ * @file    RegistrationFingerprints.java
+ * @brief   last-seen registration fingerprint per endpoint
+ * @author  Doug Anson
+ * @version 1.0
+ * @see
+ *
+ * Copyright 2015. ARM Ltd. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+
+package com.arm.connector.bridge.coordinator.processors.core;
+
+import com.arm.connector.bridge.core.BaseClass;
+import com.arm.connector.bridge.core.ErrorLogger;
+import com.arm.connector.bridge.preferences.PreferenceManager;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Fingerprint (endpoint type, resource set, obs flags) of the last registration seen for each endpoint.
+ * reg-updates whose fingerprint has not changed can be dropped without any outbound traffic.
+ * @author Doug Anson
+ */
+public class RegistrationFingerprints extends BaseClass {
+    private static final long                   FNV_OFFSET = 0xcbf29ce484222325L;
+    private static final long                   FNV_PRIME = 0x100000001b3L;
+
+    private ConcurrentHashMap<String,Long>      m_fingerprints = null;
+    private final AtomicLong                    m_unchanged = new AtomicLong(0);
+    private final AtomicLong                    m_changed = new AtomicLong(0);
+
+    // constructor
+    public RegistrationFingerprints(ErrorLogger error_logger, PreferenceManager preference_manager) {
+        super(error_logger,preference_manager);
+        this.m_fingerprints = new ConcurrentHashMap<>();
+    }
+
+    // is this registration (an entry from "registrations"/"reg-updates") the same as the last one we recorded?
+    public boolean isUnchanged(Map endpoint) {
+        String ep_name = (String)endpoint.get("ep");
+        Long previous = (ep_name != null) ? this.m_fingerprints.get(ep_name) : null;
+        boolean unchanged = false;
+        if (previous != null) {
+            // updates without a resource list carry nothing new for a known endpoint
+            unchanged = (endpoint.get("resources") == null || previous == RegistrationFingerprints.fingerprint(endpoint));
+        }
+        if (unchanged == true) {
+            this.m_unchanged.incrementAndGet();
+        }
+        else {
+            this.m_changed.incrementAndGet();
+        }
+        return unchanged;
+    }
+
+    // record the registration as the last one seen for its endpoint
+    public void record(Map endpoint) {
+        String ep_name = (String)endpoint.get("ep");
+        if (ep_name != null && endpoint.get("resources") != null) {
+            this.m_fingerprints.put(ep_name,RegistrationFingerprints.fingerprint(endpoint));
+        }
+    }
+
+    // forget an endpoint (de-registered)
+    public void remove(String ep_name) {
+        if (ep_name != null) {
+            this.m_fingerprints.remove(ep_name);
+        }
+    }
+
+    // number of endpoints we have fingerprints for
+    public int size() {
+        return this.m_fingerprints.size();
+    }
+
+    // fingerprint metrics
+    public String metrics() {
+        return "endpoints=" + this.size() + " unchanged=" + this.m_unchanged.get() + " changed=" + this.m_changed.get();
+    }
+
+    // compute the fingerprint: endpoint type plus an order-independent combination of (path, obs, rt) per resource
+    private static long fingerprint(Map endpoint) {
+        long resources_hash = 0;
+        int count = 0;
+        List resources = (List)endpoint.get("resources");
+        for(int i=0;resources != null && i<resources.size();++i) {
+            Object entry = resources.get(i);
+            if (entry instanceof Map) {
+                Map resource = (Map)entry;
+                long hash = RegistrationFingerprints.hash(FNV_OFFSET,resource.get("path"));
+                hash = RegistrationFingerprints.hash(hash,resource.get("obs"));
+                hash = RegistrationFingerprints.hash(hash,resource.get("rt"));
+                resources_hash += RegistrationFingerprints.mix(hash);
+                ++count;
+            }
+        }
+        long hash = RegistrationFingerprints.hash(FNV_OFFSET,endpoint.get("ept"));
+        return RegistrationFingerprints.mix(hash ^ resources_hash) + count;
+    }
+
+    // FNV-1a over the string form of a value (with a separator so adjacent fields cannot run together)
+    private static long hash(long hash,Object value) {
+        String str = (value != null) ? value.toString() : "";
+        for(int i=0;i<str.length();++i) {
+            hash ^= str.charAt(i);
+            hash *= FNV_PRIME;
+        }
+        hash ^= 0xff;
+        hash *= FNV_PRIME;
+        return hash;
+    }
+
+    // final avalanche so summed resource hashes stay well distributed
+    private static long mix(long hash) {
+        hash ^= (hash >>> 33);
+        hash *= 0xff51afd7ed558ccdL;
+        hash ^= (hash >>> 33);
+        hash *= 0xc4ceb9fe1a85ec53L;
+        hash ^= (hash >>> 33);
+        return hash;
+    }
+}
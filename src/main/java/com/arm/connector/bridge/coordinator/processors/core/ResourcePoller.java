@@ -0,0 +1,593 @@
+/**
+ * @file    ResourcePoller.java
+ * @brief   scheduled polling of non-observable endpoint resources
+ * @author  Doug Anson
+ * @version 1.0
+ * @see
+ *
+ * Copyright 2015. ARM Ltd. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+
+package com.arm.connector.bridge.coordinator.processors.core;
+
+import com.arm.connector.bridge.coordinator.Orchestrator;
+import com.arm.connector.bridge.core.ErrorLogger;
+import com.arm.connector.bridge.core.FanOut;
+import com.arm.connector.bridge.core.SharedResources;
+import com.arm.connector.bridge.core.TimerService;
+import com.arm.connector.bridge.core.Utils;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Polls configured non-observable resources (mds_poll_resources: "type:path:seconds;...", type "*" for any) across
+ * the fleet and publishes the values to the peers as if they were observations. Reads are scheduled on a hashed timer
+ * wheel with jitter (so registrations arriving together do not poll together) and issued in bounded, parallel batches.
+ * AsyncResponses to the reads are claimed by ID from the async-responses webhook.
+ * @author Doug Anson
+ */
+public class ResourcePoller {
+    private static final int                DEF_WHEEL_SIZE = 512;
+    private static final long               DEF_TICK_MS = 1000;
+    private static final int                DEF_JITTER_PCT = 10;
+    private static final int                DEF_BATCH_SIZE = 200;
+    private static final int                DEF_PARALLELISM = 8;
+    private static final long               DEF_READ_TIMEOUT_MS = 60000;
+
+    // target states
+    private static final int                IDLE = 0;
+    private static final int                QUEUED = 1;
+    private static final int                READING = 2;
+
+    private Orchestrator                    m_manager = null;
+    private HashMap<String,HashMap<String,Long>> m_rules = null;
+    private HashMap<String,HashMap<String,Target>> m_targets = null;
+    private ArrayList<Target>[]             m_wheel = null;
+    private int                             m_cursor = 0;
+    private ArrayDeque<Target>              m_due = null;
+    private ConcurrentHashMap<String,Target> m_reads = null;
+    private HashMap<String,Map>             m_early = null;
+    private int                             m_in_flight = 0;
+    private boolean                         m_batch_running = false;
+    private boolean                         m_stopped = false;
+    private TimerService.Timer              m_timer = null;
+    private Random                          m_random = null;
+    private long                            m_tick_ms = DEF_TICK_MS;
+    private int                             m_jitter_pct = DEF_JITTER_PCT;
+    private int                             m_batch_size = DEF_BATCH_SIZE;
+    private int                             m_parallelism = DEF_PARALLELISM;
+    private long                            m_read_timeout_ms = DEF_READ_TIMEOUT_MS;
+
+    // metrics
+    private final AtomicLong                m_reads_issued = new AtomicLong(0);
+    private final AtomicLong                m_published = new AtomicLong(0);
+    private final AtomicLong                m_skipped = new AtomicLong(0);
+    private final AtomicLong                m_timed_out = new AtomicLong(0);
+    private final AtomicLong                m_failed = new AtomicLong(0);
+
+    // a polled resource on one endpoint
+    private static class Target {
+        private String      m_ep_name = null;
+        private String      m_path = null;
+        private long        m_interval_ms = 0;
+        private int         m_rounds = 0;
+        private int         m_state = IDLE;
+        private long        m_read_ms = 0;
+        private boolean     m_cancelled = false;
+
+        // constructor
+        private Target(String ep_name,String path,long interval_ms) {
+            this.m_ep_name = ep_name;
+            this.m_path = path;
+            this.m_interval_ms = interval_ms;
+        }
+    }
+
+    // constructor
+    @SuppressWarnings("unchecked")
+    public ResourcePoller(Orchestrator manager) {
+        this.m_manager = manager;
+        this.m_targets = new HashMap<>();
+        this.m_due = new ArrayDeque<>();
+        this.m_reads = new ConcurrentHashMap<>();
+        this.m_early = new HashMap<>();
+        this.m_random = new Random();
+        this.m_wheel = new ArrayList[DEF_WHEEL_SIZE];
+        for(int i=0;i<this.m_wheel.length;++i) {
+            this.m_wheel[i] = new ArrayList<>();
+        }
+        this.m_rules = ResourcePoller.parseRules(manager.preferences().valueOf("mds_poll_resources"));
+        int tick_ms = manager.preferences().intValueOf("mds_poll_tick_ms");
+        if (tick_ms > 0) {
+            this.m_tick_ms = tick_ms;
+        }
+        int jitter_pct = manager.preferences().intValueOf("mds_poll_jitter_pct");
+        if (jitter_pct >= 0 && jitter_pct <= 50) {
+            this.m_jitter_pct = jitter_pct;
+        }
+        int batch_size = manager.preferences().intValueOf("mds_poll_batch_size");
+        if (batch_size > 0) {
+            this.m_batch_size = batch_size;
+        }
+        int parallelism = manager.preferences().intValueOf("mds_poll_parallelism");
+        if (parallelism > 0) {
+            this.m_parallelism = parallelism;
+        }
+        int max_tasks = SharedResources.getInstance().domainMaxTasks();
+        if (max_tasks > 0 && this.m_parallelism > max_tasks) {
+            // more would just wait in our domain's task quota
+            this.errorLogger().info("ResourcePoller: mds_poll_parallelism (" + this.m_parallelism + ") limited to bridge_domain_max_tasks (" + max_tasks + ")");
+            this.m_parallelism = max_tasks;
+        }
+        int read_timeout_ms = manager.preferences().intValueOf("mds_poll_read_timeout_ms");
+        if (read_timeout_ms > 0) {
+            this.m_read_timeout_ms = read_timeout_ms;
+        }
+    }
+
+    // get the error logger
+    private ErrorLogger errorLogger() {
+        return this.m_manager.errorLogger();
+    }
+
+    // is any polling configured?
+    public boolean isEnabled() {
+        return this.m_rules.isEmpty() == false;
+    }
+
+    // start the timer wheel
+    public synchronized void start() {
+        if (this.isEnabled() == true && this.m_timer == null && this.m_stopped == false && this.m_manager.timers() != null) {
+            this.m_timer = this.m_manager.timers().schedulePeriodic("resource-poller",new Runnable() {
+                @Override
+                public void run() {
+                    tick();
+                }
+            },this.m_tick_ms,this.m_tick_ms);
+
+            // DEBUG
+            this.errorLogger().info("ResourcePoller: polling " + this.m_rules + " (tick: " + this.m_tick_ms + "ms)");
+        }
+    }
+
+    // stop polling
+    public synchronized void stop() {
+        this.m_stopped = true;
+        if (this.m_timer != null) {
+            this.m_timer.cancel();
+            this.m_timer = null;
+        }
+        this.m_targets.clear();
+        this.m_due.clear();
+        this.m_reads.clear();
+        this.m_early.clear();
+        for(int i=0;i<this.m_wheel.length;++i) {
+            this.m_wheel[i].clear();
+        }
+    }
+
+    // add polls for the configured non-observable resources in a "registrations"/"reg-updates" message
+    public void registered(Map message,String key) {
+        List endpoints = (List)message.get(key);
+        for(int i=0;this.isEnabled() == true && endpoints != null && i<endpoints.size();++i) {
+            Map endpoint = (Map)endpoints.get(i);
+            String ep_name = (String)endpoint.get("ep");
+            List resources = (List)endpoint.get("resources");
+            if (ep_name != null && resources != null) {
+                // updates without a resource list leave the endpoint's polls as they are
+                this.updateTargets(ep_name,this.pollIntervals((String)endpoint.get("ept"),resources));
+            }
+        }
+    }
+
+    // stop polling de-registered endpoints
+    public synchronized void deregistered(String[] endpoints) {
+        for(int i=0;endpoints != null && i<endpoints.length;++i) {
+            HashMap<String,Target> targets = this.m_targets.remove(endpoints[i]);
+            if (targets != null) {
+                Iterator<Target> iterator = targets.values().iterator();
+                while (iterator.hasNext() == true) {
+                    iterator.next().m_cancelled = true;
+                }
+            }
+        }
+    }
+
+    // claim the AsyncResponses to our reads and publish their values as observations
+    public void processAsyncResponses(Map message) {
+        List responses = (List)message.get("async-responses");
+        ArrayList<Map> notifications = new ArrayList<>();
+        for(int i=0;responses != null && i<responses.size();++i) {
+            Map response = (Map)responses.get(i);
+            String id = (String)response.get("id");
+            Target target = null;
+            synchronized (this) {
+                if (id == null || (this.m_reads.isEmpty() == true && this.m_in_flight == 0)) {
+                    continue;
+                }
+                target = this.m_reads.remove(id);
+                if (target == null && this.m_in_flight > 0) {
+                    // may answer a GET that has not returned its async-response-id yet
+                    this.m_early.put(id,response);
+                }
+            }
+            if (target != null) {
+                this.completed(target,response,notifications);
+            }
+        }
+        this.publish(notifications);
+    }
+
+    // a read's AsyncResponse has arrived
+    private void completed(Target target,Map response,Collection<Map> notifications) {
+        this.idle(target);
+        Object status = response.get("status");
+        if (status != null && status.toString().equals("200") == true && response.get("payload") != null) {
+            notifications.add(this.notification(target,(String)response.get("payload"),response.get("ct"),response.get("max-age")));
+        }
+        else {
+            this.m_failed.incrementAndGet();
+        }
+    }
+
+    // number of polled resources
+    public synchronized int size() {
+        int count = 0;
+        Iterator<HashMap<String,Target>> iterator = this.m_targets.values().iterator();
+        while (iterator.hasNext() == true) {
+            count += iterator.next().size();
+        }
+        return count;
+    }
+
+    // poller metrics
+    public String metrics() {
+        int due = 0;
+        synchronized (this) {
+            due = this.m_due.size();
+        }
+        return "resources=" + this.size() + " due=" + due + " reading=" + this.m_reads.size() + " reads=" + this.m_reads_issued.get() + " published=" + this.m_published.get()
+                + " skipped=" + this.m_skipped.get() + " timed_out=" + this.m_timed_out.get() + " failed=" + this.m_failed.get();
+    }
+
+    // poll intervals (path -> ms) for an endpoint's configured, non-observable resources
+    private HashMap<String,Long> pollIntervals(String ep_type,List resources) {
+        HashMap<String,Long> intervals = new HashMap<>();
+        HashMap<String,Long> any = this.m_rules.get("*");
+        HashMap<String,Long> typed = (ep_type != null) ? this.m_rules.get(ep_type) : null;
+        for(int i=0;i<resources.size();++i) {
+            Map resource = (Map)resources.get(i);
+            String path = (String)resource.get("path");
+            Object obs = resource.get("obs");
+            if (path == null || (obs != null && obs.toString().equalsIgnoreCase("true") == true)) {
+                continue;
+            }
+            Long interval = (typed != null) ? typed.get(path) : null;
+            if (interval == null && any != null) {
+                interval = any.get(path);
+            }
+            if (interval != null) {
+                intervals.put(path,interval);
+            }
+        }
+        return intervals;
+    }
+
+    // reconcile an endpoint's polls with its current resources (existing polls keep their schedule)
+    private synchronized void updateTargets(String ep_name,HashMap<String,Long> intervals) {
+        if (this.m_stopped == true) {
+            return;
+        }
+        HashMap<String,Target> targets = this.m_targets.get(ep_name);
+        if (targets == null) {
+            if (intervals.isEmpty() == true) {
+                return;
+            }
+            targets = new HashMap<>();
+            this.m_targets.put(ep_name,targets);
+        }
+
+        // drop polls for resources no longer present (or whose interval changed)
+        Iterator<Map.Entry<String,Target>> iterator = targets.entrySet().iterator();
+        while (iterator.hasNext() == true) {
+            Target target = iterator.next().getValue();
+            Long interval = intervals.get(target.m_path);
+            if (interval == null || interval != target.m_interval_ms) {
+                target.m_cancelled = true;
+                iterator.remove();
+            }
+        }
+
+        // add new polls... the first read lands at a random point in the interval to spread the fleet out
+        for (Map.Entry<String,Long> entry : intervals.entrySet()) {
+            if (targets.containsKey(entry.getKey()) == false) {
+                Target target = new Target(ep_name,entry.getKey(),entry.getValue());
+                targets.put(entry.getKey(),target);
+                this.schedule(target,(long)(this.m_random.nextDouble() * target.m_interval_ms));
+            }
+        }
+        if (targets.isEmpty() == true) {
+            this.m_targets.remove(ep_name);
+        }
+    }
+
+    // place a target on the wheel delay_ms from now
+    private void schedule(Target target,long delay_ms) {
+        long ticks = Math.max(1,delay_ms / this.m_tick_ms);
+        target.m_rounds = (int)((ticks - 1) / this.m_wheel.length);
+        this.m_wheel[(int)((this.m_cursor + ticks) % this.m_wheel.length)].add(target);
+    }
+
+    // the next interval for a target, with jitter
+    private long nextDelay(Target target) {
+        long jitter = (target.m_interval_ms * this.m_jitter_pct) / 100;
+        if (jitter <= 0) {
+            return target.m_interval_ms;
+        }
+        return target.m_interval_ms - jitter + (long)(this.m_random.nextDouble() * 2 * jitter);
+    }
+
+    // advance the wheel one slot: queue the due targets and start a batch of reads
+    private void tick() {
+        synchronized (this) {
+            if (this.m_stopped == true) {
+                return;
+            }
+            this.m_cursor = (this.m_cursor + 1) % this.m_wheel.length;
+            ArrayList<Target> slot = this.m_wheel[this.m_cursor];
+            this.m_wheel[this.m_cursor] = new ArrayList<>();
+            for(int i=0;i<slot.size();++i) {
+                Target target = slot.get(i);
+                if (target.m_cancelled == true) {
+                    continue;
+                }
+                if (target.m_rounds > 0) {
+                    --target.m_rounds;
+                    this.m_wheel[this.m_cursor].add(target);
+                    continue;
+                }
+
+                // next read is scheduled now so the cadence does not drift with read latency
+                this.schedule(target,this.nextDelay(target));
+                if (target.m_state == IDLE) {
+                    target.m_state = QUEUED;
+                    this.m_due.add(target);
+                }
+                else {
+                    // previous read still outstanding or waiting
+                    this.m_skipped.incrementAndGet();
+                }
+            }
+        }
+        this.expireReads();
+        this.startBatch();
+    }
+
+    // run the next batch of reads on the worker pool (one batch at a time)
+    private void startBatch() {
+        final ArrayList<Target> batch = new ArrayList<>();
+        synchronized (this) {
+            if (this.m_batch_running == true || this.m_due.isEmpty() == true) {
+                return;
+            }
+            while (batch.size() < this.m_batch_size && this.m_due.isEmpty() == false) {
+                Target target = this.m_due.poll();
+                if (target.m_cancelled == false) {
+                    batch.add(target);
+                }
+            }
+            if (batch.isEmpty() == true) {
+                return;
+            }
+            this.m_batch_running = true;
+        }
+        try {
+            this.m_manager.executor().execute(new Runnable() {
+                @Override
+                public void run() {
+                    runBatch(batch);
+                }
+            });
+        }
+        catch (RejectedExecutionException ex) {
+            // no worker available: put the batch back for the next tick
+            synchronized (this) {
+                this.m_batch_running = false;
+                for(int i=batch.size()-1;i>=0;--i) {
+                    this.m_due.addFirst(batch.get(i));
+                }
+            }
+        }
+    }
+
+    // issue a batch of reads, at most m_parallelism at a time, and publish any synchronous values together once the last read is done
+    private void runBatch(ArrayList<Target> batch) {
+        final ConcurrentLinkedQueue<Map> notifications = new ConcurrentLinkedQueue<>();
+        FanOut.run(this.errorLogger(),"ResourcePoller",this.m_manager.executor(),batch,this.m_parallelism,new FanOut.Work<Target>() {
+            @Override
+            public void run(Target target) {
+                readTarget(target,notifications);
+            }
+        },new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    publish(new ArrayList<>(notifications));
+                }
+                finally {
+                    synchronized (ResourcePoller.this) {
+                        m_batch_running = false;
+                    }
+                }
+
+                // more due than one batch: keep going
+                startBatch();
+            }
+        });
+    }
+
+    // read a target of a batch
+    private void readTarget(Target target,ConcurrentLinkedQueue<Map> notifications) {
+        try {
+            this.read(target,notifications);
+        }
+        catch (Exception ex) {
+            // note but continue with the rest of the batch
+            this.m_failed.incrementAndGet();
+            this.idle(target);
+            this.errorLogger().warning("ResourcePoller: read of " + target.m_ep_name + target.m_path + " failed: " + ex.getMessage(),ex);
+        }
+    }
+
+    // GET a resource: AsyncResponses are remembered by ID, immediate values are collected for publication
+    private void read(Target target,ConcurrentLinkedQueue<Map> notifications) {
+        synchronized (this) {
+            target.m_state = READING;
+            target.m_read_ms = System.currentTimeMillis();
+            ++this.m_in_flight;
+        }
+        Map early = null;
+        try {
+            this.m_reads_issued.incrementAndGet();
+            String response = this.m_manager.processEndpointResourceOperation("GET",target.m_ep_name,target.m_path);
+            if (response == null || response.length() == 0) {
+                this.m_failed.incrementAndGet();
+                this.idle(target);
+                return;
+            }
+            if (response.contains("\"async-response-id\":") == true) {
+                Map parsed = null;
+                try {
+                    parsed = this.m_manager.getJSONParser().parseJson(response);
+                }
+                catch (Exception ex) {
+                    // silent
+                }
+                String id = (parsed != null) ? (String)parsed.get("async-response-id") : null;
+                if (id != null) {
+                    // register the read unless its AsyncResponse beat the GET's return
+                    synchronized (this) {
+                        early = this.m_early.remove(id);
+                        if (early == null) {
+                            this.m_reads.put(id,target);
+                        }
+                    }
+                }
+                else {
+                    this.m_failed.incrementAndGet();
+                    this.idle(target);
+                }
+            }
+            else {
+                notifications.add(this.notification(target,Utils.encodeCoAPPayload(response),null,null));
+                this.idle(target);
+            }
+        }
+        finally {
+            synchronized (this) {
+                // with no GET outstanding every read is registered: the rest were not ours
+                if (--this.m_in_flight == 0) {
+                    this.m_early.clear();
+                }
+            }
+        }
+        if (early != null) {
+            this.completed(target,early,notifications);
+        }
+    }
+
+    // give up on reads whose AsyncResponse never arrived
+    private void expireReads() {
+        long now = System.currentTimeMillis();
+        Iterator<Map.Entry<String,Target>> iterator = this.m_reads.entrySet().iterator();
+        while (iterator.hasNext() == true) {
+            Target target = iterator.next().getValue();
+            if ((now - target.m_read_ms) >= this.m_read_timeout_ms) {
+                iterator.remove();
+                this.m_timed_out.incrementAndGet();
+                this.idle(target);
+            }
+        }
+    }
+
+    // a target's read has completed
+    private synchronized void idle(Target target) {
+        target.m_state = IDLE;
+    }
+
+    // build a notification (as mDS would send it) for a polled value
+    private Map notification(Target target,String b64_payload,Object ct,Object max_age) {
+        HashMap<String,Object> notification = new HashMap<>();
+        notification.put("ep",target.m_ep_name);
+        notification.put("path",target.m_path);
+        notification.put("payload",b64_payload);
+        notification.put("ct",(ct != null) ? ct : "text/plain");
+        if (max_age != null) {
+            notification.put("max-age",max_age);
+        }
+        return notification;
+    }
+
+    // hand polled values to the peers as one notifications message
+    private void publish(List<Map> notifications) {
+        if (notifications.isEmpty() == false) {
+            HashMap<String,Object> message = new HashMap<>();
+            message.put("notifications",notifications);
+            this.m_manager.processNotification(message);
+            this.m_published.addAndGet(notifications.size());
+        }
+    }
+
+    // parse "type:path:seconds;..." into type -> (path -> interval ms)
+    private static HashMap<String,HashMap<String,Long>> parseRules(String config) {
+        HashMap<String,HashMap<String,Long>> rules = new HashMap<>();
+        if (config == null) {
+            return rules;
+        }
+        String[] entries = config.split(";");
+        for(int i=0;i<entries.length;++i) {
+            String[] fields = entries[i].trim().split(":");
+            if (fields.length != 3) {
+                continue;
+            }
+            try {
+                long interval_ms = Long.parseLong(fields[2].trim()) * 1000;
+                if (interval_ms > 0 && fields[0].trim().length() > 0 && fields[1].trim().startsWith("/") == true) {
+                    HashMap<String,Long> paths = rules.get(fields[0].trim());
+                    if (paths == null) {
+                        paths = new HashMap<>();
+                        rules.put(fields[0].trim(),paths);
+                    }
+                    paths.put(fields[1].trim(),interval_ms);
+                }
+            }
+            catch (NumberFormatException ex) {
+                // skip malformed entries
+            }
+        }
+        return rules;
+    }
+}
@@ -25,98 +25,219 @@ package com.arm.connector.bridge.coordinator.processors.core;
 
 import com.arm.connector.bridge.core.BaseClass;
 import com.arm.connector.bridge.core.ErrorLogger;
+import com.arm.connector.bridge.core.StateJournal;
 import com.arm.connector.bridge.preferences.PreferenceManager;
 import java.util.ArrayList;
 import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
 
 /**
- * mDS subscription list manager
+ * mDS subscription list manager (indexed by subscription, endpoint and endpoint type)
  * @author Doug Anson
  */
 public class SubscriptionList extends BaseClass {
-    private ArrayList<HashMap<String,String>> m_subscriptions = null;
-    private String m_non_domain = null;
+    private HashMap<String,Subscription>                    m_subscriptions = null;
+    private HashMap<String,HashMap<String,Subscription>>    m_by_endpoint = null;
+    private HashMap<String,HashSet<String>>                 m_by_ep_type = null;
+    private String                                          m_non_domain = null;
+    private StateJournal                                    m_journal = null;
+    private String                                          m_journal_table = null;
     
     // constructor
     public SubscriptionList(ErrorLogger error_logger, PreferenceManager preference_manager) {
         super(error_logger,preference_manager);
-        this.m_subscriptions = new ArrayList<>();
+        this.m_subscriptions = new HashMap<>();
+        this.m_by_endpoint = new HashMap<>();
+        this.m_by_ep_type = new HashMap<>();
         this.m_non_domain = this.preferences().valueOf("mds_def_domain");
     }
     
+    // restore our subscriptions from (and persist future changes to) the state journal
+    public synchronized void persistTo(StateJournal journal,String table) {
+        this.m_journal = journal;
+        this.m_journal_table = table;
+        if (journal != null && journal.enabled() == true) {
+            Map<String,String> saved = journal.table(table);
+            for (String value : saved.values()) {
+                String[] fields = StateJournal.unpack(value);
+                if (fields.length == 4) {
+                    this.addSubscription(fields[0],fields[1],fields[2],fields[3]);
+                }
+            }
+            
+            // DEBUG
+            this.errorLogger().info("SubscriptionList: restored " + this.m_subscriptions.size() + " subscriptions from " + table);
+        }
+    }
+    
     // add subscription
-    public void addSubscription(String domain,String endpoint,String ep_type,String uri) {
+    public synchronized void addSubscription(String domain,String endpoint,String ep_type,String uri) {
         domain = this.checkAndDefaultDomain(domain);
-        if (!this.containsSubscription(domain,endpoint,ep_type,uri)) {
+        String key = this.makeKey(domain,endpoint,ep_type,uri);
+        if (key != null && this.m_subscriptions.containsKey(key) == false) {
             this.errorLogger().info("Adding Subscription: " + domain + ":" + endpoint + ":" + ep_type + ":" + uri);
-            this.m_subscriptions.add(this.makeSubscription(domain, endpoint, ep_type, uri));
+            Subscription subscription = new Subscription(key,domain,endpoint,ep_type,uri);
+            this.m_subscriptions.put(key,subscription);
+            
+            // endpoint index
+            String ep_key = this.normalize(endpoint);
+            HashMap<String,Subscription> ep_subscriptions = this.m_by_endpoint.get(ep_key);
+            if (ep_subscriptions == null) {
+                ep_subscriptions = new HashMap<>();
+                this.m_by_endpoint.put(ep_key,ep_subscriptions);
+            }
+            ep_subscriptions.put(key,subscription);
+            
+            // endpoint type index
+            String type_key = this.normalize(ep_type);
+            HashSet<String> endpoints = this.m_by_ep_type.get(type_key);
+            if (endpoints == null) {
+                endpoints = new HashSet<>();
+                this.m_by_ep_type.put(type_key,endpoints);
+            }
+            endpoints.add(ep_key);
+            
+            // persist
+            if (this.m_journal != null) {
+                this.m_journal.put(this.m_journal_table,key,StateJournal.pack(domain,endpoint,ep_type,uri));
+            }
         }
     }
     
     // contains a given subscription?
-    public boolean containsSubscription(String domain,String endpoint,String ep_type,String uri) {
-        boolean has_subscription = false;
+    public synchronized boolean containsSubscription(String domain,String endpoint,String ep_type,String uri) {
         domain = this.checkAndDefaultDomain(domain);
-        HashMap<String,String> subscription = this.makeSubscription(domain, endpoint, ep_type, uri);
-        if (this.containsSubscription(subscription) >= 0) {
-            has_subscription = true;
-        }
-        
-        return has_subscription;
+        String key = this.makeKey(domain,endpoint,ep_type,uri);
+        return (key != null && this.m_subscriptions.containsKey(key) == true);
     }
     
     // remove a subscription
-    public void removeSubscription(String domain,String endpoint,String ep_type,String uri) {
+    public synchronized void removeSubscription(String domain,String endpoint,String ep_type,String uri) {
         domain = this.checkAndDefaultDomain(domain);
-        HashMap<String,String> subscription = this.makeSubscription(domain, endpoint, ep_type, uri);
-        int index = this.containsSubscription(subscription);
-        if (index >= 0) {
+        String key = this.makeKey(domain,endpoint,ep_type,uri);
+        Subscription subscription = (key != null) ? this.m_subscriptions.remove(key) : null;
+        if (subscription != null) {
             this.errorLogger().info("Removing Subscription: " + domain + ":" + endpoint + ":" + uri);
-            this.m_subscriptions.remove(index);
+            this.unindex(subscription);
         }
     }
     
-    // contains a given subscription?
-    private int containsSubscription(HashMap<String,String> subscription) {
-        int index = -1;
-        
-        for(int i=0;i<this.m_subscriptions.size() && index < 0;++i) {
-            if (this.sameSubscription(subscription,this.m_subscriptions.get(i))) {
-                index = i;
+    // remove all subscriptions for a given endpoint (the whole endpoint index entry goes at once)
+    public synchronized int removeEndpointSubscriptions(String endpoint) {
+        String ep_key = this.normalize(endpoint);
+        HashMap<String,Subscription> ep_subscriptions = this.m_by_endpoint.remove(ep_key);
+        if (ep_subscriptions == null) {
+            return 0;
+        }
+        HashSet<String> type_keys = new HashSet<>();
+        for (Subscription subscription : ep_subscriptions.values()) {
+            this.m_subscriptions.remove(subscription.m_key);
+            if (this.m_journal != null) {
+                this.m_journal.remove(this.m_journal_table,subscription.m_key);
+            }
+            type_keys.add(this.normalize(subscription.m_ep_type));
+        }
+        for (String type_key : type_keys) {
+            HashSet<String> endpoints = this.m_by_ep_type.get(type_key);
+            if (endpoints != null) {
+                endpoints.remove(ep_key);
+                if (endpoints.isEmpty() == true) {
+                    this.m_by_ep_type.remove(type_key);
+                }
             }
         }
         
-        return index;
+        // DEBUG
+        this.errorLogger().info("Removing Subscriptions: endpoint: " + endpoint + " count: " + ep_subscriptions.size());
+        return ep_subscriptions.size();
     }
     
-    // compare subscriptions
-    private boolean sameSubscription(HashMap<String,String> s1,HashMap<String,String> s2) {
-        boolean same_subscription = false;
-        
-        // compare contents...
-        if (s1.get("domain") != null && s2.get("domain") != null && s1.get("domain").equalsIgnoreCase(s2.get("domain"))) {
-            if (s1.get("endpoint") != null && s2.get("endpoint") != null && s1.get("endpoint").equalsIgnoreCase(s2.get("endpoint"))) {
-                if (s1.get("ep_type") != null && s2.get("ep_type") != null && s1.get("ep_type").equalsIgnoreCase(s2.get("ep_type"))) {
-                    if (s1.get("uri") != null && s2.get("uri") != null && s1.get("uri").equalsIgnoreCase(s2.get("uri"))) {
-                        // they are the same
-                        same_subscription = true;
-                    }
+    // get the subscribed URIs for a given endpoint
+    public synchronized List<String> endpointSubscriptionURIs(String endpoint) {
+        ArrayList<String> uris = new ArrayList<>();
+        HashMap<String,Subscription> ep_subscriptions = this.m_by_endpoint.get(this.normalize(endpoint));
+        if (ep_subscriptions != null) {
+            for (Subscription subscription : ep_subscriptions.values()) {
+                uris.add(subscription.m_uri);
+            }
+        }
+        return uris;
+    }
+    
+    // get the endpoints (names) having subscriptions for a given endpoint type
+    public synchronized List<String> endpointsOfType(String ep_type) {
+        ArrayList<String> endpoints = new ArrayList<>();
+        HashSet<String> ep_keys = this.m_by_ep_type.get(this.normalize(ep_type));
+        if (ep_keys != null) {
+            for (String ep_key : ep_keys) {
+                HashMap<String,Subscription> ep_subscriptions = this.m_by_endpoint.get(ep_key);
+                if (ep_subscriptions != null && ep_subscriptions.isEmpty() == false) {
+                    endpoints.add(ep_subscriptions.values().iterator().next().m_endpoint);
                 }
             }
         }
+        return endpoints;
+    }
+    
+    // number of subscriptions
+    public synchronized int size() {
+        return this.m_subscriptions.size();
+    }
+    
+    // drop a (removed) subscription from the journal and the secondary indexes
+    private void unindex(Subscription subscription) {
+        if (this.m_journal != null) {
+            this.m_journal.remove(this.m_journal_table,subscription.m_key);
+        }
+        
+        String ep_key = this.normalize(subscription.m_endpoint);
+        HashMap<String,Subscription> ep_subscriptions = this.m_by_endpoint.get(ep_key);
+        if (ep_subscriptions != null) {
+            ep_subscriptions.remove(subscription.m_key);
+            if (ep_subscriptions.isEmpty() == true) {
+                this.m_by_endpoint.remove(ep_key);
+            }
+        }
         
-        return same_subscription;
+        // the endpoint stays listed under its type while any of its subscriptions of that type remain
+        String type_key = this.normalize(subscription.m_ep_type);
+        HashSet<String> endpoints = this.m_by_ep_type.get(type_key);
+        if (endpoints != null && this.hasSubscriptionOfType(ep_subscriptions,type_key) == false) {
+            endpoints.remove(ep_key);
+            if (endpoints.isEmpty() == true) {
+                this.m_by_ep_type.remove(type_key);
+            }
+        }
     }
     
-    // make subscription entry 
-    private HashMap<String,String> makeSubscription(String domain,String endpoint,String ep_type,String uri) {
-        domain = this.checkAndDefaultDomain(domain);
-        HashMap<String,String> subscription = new HashMap<>();
-        subscription.put("domain", domain);
-        subscription.put("endpoint",endpoint);
-        subscription.put("ep_type",ep_type);
-        subscription.put("uri",uri);
-        return subscription;
+    // does an endpoint still have a subscription of the given (normalized) type?
+    private boolean hasSubscriptionOfType(HashMap<String,Subscription> ep_subscriptions,String type_key) {
+        if (ep_subscriptions != null) {
+            for (Subscription subscription : ep_subscriptions.values()) {
+                if (type_key.equals(this.normalize(subscription.m_ep_type)) == true) {
+                    return true;
+                }
+            }
+        }
+        return false;
+    }
+    
+    // make the (case insensitive) composite subscription key
+    private String makeKey(String domain,String endpoint,String ep_type,String uri) {
+        if (domain == null || endpoint == null || ep_type == null || uri == null) {
+            return null;
+        }
+        StringBuilder key = new StringBuilder(domain.length() + endpoint.length() + ep_type.length() + uri.length() + 3);
+        key.append(domain).append('\n').append(endpoint).append('\n').append(ep_type).append('\n').append(uri);
+        return key.toString().toLowerCase(Locale.ROOT);
+    }
+    
+    // normalize an index key
+    private String normalize(String value) {
+        return (value != null) ? value.toLowerCase(Locale.ROOT) : "";
     }
     
     // default domain
@@ -126,14 +247,12 @@ public class SubscriptionList extends BaseClass {
     }
     
     // get the endpoint type for a given endpoint
-    public String endpointTypeFromEndpointName(String endpoint) {
+    public synchronized String endpointTypeFromEndpointName(String endpoint) {
         String ep_type = null;
         
-        for(int i=0;i<this.m_subscriptions.size() && ep_type == null;++i) {
-            HashMap<String,String> subscription = this.m_subscriptions.get(i);
-            if (endpoint != null && endpoint.equalsIgnoreCase(subscription.get("endpoint")) == true) {
-                ep_type = subscription.get("ep_type");
-            }
+        HashMap<String,Subscription> ep_subscriptions = this.m_by_endpoint.get(this.normalize(endpoint));
+        if (endpoint != null && ep_subscriptions != null && ep_subscriptions.isEmpty() == false) {
+            ep_type = ep_subscriptions.values().iterator().next().m_ep_type;
         }
         
         // DEBUG
@@ -142,4 +261,23 @@ public class SubscriptionList extends BaseClass {
         // return the endpoint type
         return ep_type;
     }
+    
+    /**
+     * compact subscription entry (domain and endpoint type values are shared across entries)
+     */
+    private static class Subscription {
+        private final String m_key;
+        private final String m_domain;
+        private final String m_endpoint;
+        private final String m_ep_type;
+        private final String m_uri;
+        
+        Subscription(String key,String domain,String endpoint,String ep_type,String uri) {
+            this.m_key = key;
+            this.m_domain = domain.intern();
+            this.m_endpoint = endpoint;
+            this.m_ep_type = ep_type.intern();
+            this.m_uri = uri;
+        }
+    }
 }
@@ -115,8 +115,9 @@ public class StarterKitMQTTProcessor extends GenericMQTTProcessor implements Pee
         // disconnect it
         this.disconnect(clientID);
             
-        // remove the MQTT connection
+        // remove the MQTT connection... the next reg-update must set it up again
         this.remove(clientID);
+        this.m_registrations.remove(ep_name);
     }
     
     // do we have an existing MQTT Connection to this device?
@@ -258,11 +259,22 @@ public class StarterKitMQTTProcessor extends GenericMQTTProcessor implements Pee
         List notifications = (List)data.get("reg-updates");
         for(int i=0;notifications != null && i<notifications.size();++i) {
             Map entry = (Map)notifications.get(i);
+            
+            // same registration as last time (and still connected): nothing to do
+            if (this.hasMQTTConnection((String)entry.get("ep")) == true && this.m_registrations.isUnchanged(entry) == true) {
+                continue;
+            }
+            
             this.errorLogger().info("StarterKit: CoAP re-registration: " + entry);
             boolean existing_connection = this.hasMQTTConnection((String)entry.get("ep"));
             if (existing_connection == false) {
                 this.removeMQTTConnection((String)entry.get("ep"));
-                this.processRegistration(data,"reg-updates",true);
+                this.processRegistration(this.registrationOf(entry,"reg-updates"),"reg-updates",true);
+            }
+            
+            // remember this registration once the endpoint is connected
+            if (this.hasMQTTConnection((String)entry.get("ep")) == true) {
+                this.m_registrations.record(entry);
             }
         }
     }
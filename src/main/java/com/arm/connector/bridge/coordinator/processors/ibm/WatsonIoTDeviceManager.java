@@ -24,6 +24,7 @@ package com.arm.connector.bridge.coordinator.processors.ibm;
 
 import com.arm.connector.bridge.core.BaseClass;
 import com.arm.connector.bridge.core.ErrorLogger;
+import com.arm.connector.bridge.core.StateJournal;
 import com.arm.connector.bridge.core.Utils;
 import com.arm.connector.bridge.preferences.PreferenceManager;
 import com.arm.connector.bridge.transport.HttpTransport;
@@ -62,6 +63,8 @@ public class WatsonIoTDeviceManager extends BaseClass {
     private String m_suffix = null;
     
     private HashMap<String,String> m_device_types = null;
+    private StateJournal m_journal = null;
+    private String m_journal_table = null;
     
      // constructor
     public WatsonIoTDeviceManager(ErrorLogger logger,PreferenceManager preferences,HttpTransport http) {
@@ -169,6 +172,18 @@ public class WatsonIoTDeviceManager extends BaseClass {
         return (result != null && result.contains(this.m_watson_iot_gw_type_id) == true);
     }
     
+    // restore registered devices (and their types) from (and persist future changes to) the state journal
+    public void persistTo(StateJournal journal,String table) {
+        this.m_journal = journal;
+        this.m_journal_table = table;
+        if (journal != null && journal.enabled() == true) {
+            this.m_device_types.putAll(journal.table(table));
+            
+            // DEBUG
+            this.errorLogger().info("WatsonIoTDeviceManager: restored " + this.m_device_types.size() + " registered devices from " + table);
+        }
+    }
+    
     // get the associated device type from the device name
     public String getDeviceType(String device) {
         return this.m_device_types.get(device);
@@ -442,6 +457,12 @@ public class WatsonIoTDeviceManager extends BaseClass {
         // create the new device type
         String device_type = (String)message.get("ept");
         String device = (String)message.get("ep");
+        
+        // already registered (this run or restored from the state journal)... nothing to do
+        if (device_type != null && device_type.equals(this.m_device_types.get(device)) == true) {
+            this.errorLogger().info("registerNewDevice: " + device + " already registered (OK)");
+            return true;
+        }
         this.createGatewayDeviceType(device_type);
         
         // create the URL
@@ -466,7 +487,12 @@ public class WatsonIoTDeviceManager extends BaseClass {
         Boolean status = (result != null && result.length() > 0);
         
         // save off our device type if successful
-        this.m_device_types.put(device, device_type);
+        if (status == true && device_type != null) {
+            this.m_device_types.put(device, device_type);
+            if (this.m_journal != null) {
+                this.m_journal.put(this.m_journal_table,device,device_type);
+            }
+        }
         
         // return our status
         return status;
@@ -495,7 +521,12 @@ public class WatsonIoTDeviceManager extends BaseClass {
         Boolean status = (result != null && result.length() > 0);
         
         // delete our device type
-        if (status == true) this.m_device_types.remove(device);
+        if (status == true) {
+            this.m_device_types.remove(device);
+            if (this.m_journal != null) {
+                this.m_journal.remove(this.m_journal_table,device);
+            }
+        }
         
         // return our status
         return status;
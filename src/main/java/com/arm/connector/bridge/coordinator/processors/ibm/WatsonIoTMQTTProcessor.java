@@ -125,6 +125,7 @@ public class WatsonIoTMQTTProcessor extends GenericMQTTProcessor implements Tran
         
         // Watson IoT Device Manager - will initialize and update our WatsonIoT bindings/metadata
         this.m_watson_iot_device_manager = new WatsonIoTDeviceManager(this.orchestrator().errorLogger(),this.orchestrator().preferences(),this.m_suffix,http);
+        this.m_watson_iot_device_manager.persistTo(this.orchestrator().stateJournal(),this.stateTable("devices"));
         this.m_watson_iot_device_manager.updateWatsonIoTBindings(this.m_watson_iot_org_id, this.m_watson_iot_org_key);
         this.m_watson_iot_api_key = this.m_watson_iot_device_manager.updateUsernameBinding(this.m_watson_iot_api_key);
         this.m_watson_iot_auth_token = this.m_watson_iot_device_manager.updatePasswordBinding(this.m_watson_iot_auth_token);
@@ -191,8 +192,9 @@ public class WatsonIoTMQTTProcessor extends GenericMQTTProcessor implements Tran
             }
         }
         else {
-            // already connected
+            // already connected (e.g. by a background connect): make sure we are listening
             this.orchestrator().errorLogger().info("WatsonIoT: Already connected (OK)...");
+            this.mqtt().setOnReceiveListener(this);
         }
         
         // return our connection status
@@ -202,10 +204,17 @@ public class WatsonIoTMQTTProcessor extends GenericMQTTProcessor implements Tran
     
     // OVERRIDE: (Listening) Topics for WatsonIoT vs. stock MQTT...
     @Override
-    @SuppressWarnings("empty-statement")
     protected void subscribeToMQTTTopics() {
-        // do nothing... WatsonIoT will have "listenable" topics for the CoAP verbs via the CMD event type...
-        ;
+        // WatsonIoT will have "listenable" topics for the CoAP verbs via the CMD event type... re-listen for endpoints restored from the state journal
+        Map<String,String> endpoints = this.persistedEndpoints();
+        for (Map.Entry<String,String> endpoint : endpoints.entrySet()) {
+            this.subscribe(endpoint.getKey(),(endpoint.getValue().length() > 0) ? endpoint.getValue() : null);
+        }
+        
+        // DEBUG
+        if (endpoints.isEmpty() == false) {
+            this.errorLogger().info("WatsonIoT: resumed " + endpoints.size() + " endpoint(s) from saved state");
+        }
     }
     
     // RTI
@@ -309,12 +318,18 @@ public class WatsonIoTMQTTProcessor extends GenericMQTTProcessor implements Tran
         List notifications = (List)data.get("reg-updates");
         for(int i=0;notifications != null && i<notifications.size();++i) {
             Map entry = (Map)notifications.get(i);
+            
+            // same registration as last time (and still subscribed): nothing to do
+            if (this.hasSubscriptions((String)entry.get("ep")) == true && this.m_registrations.isUnchanged(entry) == true) {
+                continue;
+            }
+            
             // DEBUG
             // this.errorLogger().info("WatsonIoT: CoAP re-registration: " + entry);
             if (this.hasSubscriptions((String)entry.get("ep")) == false) {
                 // no subscriptions - so process as a new registration
                 this.errorLogger().info("WatsonIoT : CoAP re-registration: no subscriptions.. processing as new registration...");
-                this.processRegistration(data,"reg-updates");
+                this.processRegistration(this.registrationOf(entry,"reg-updates"),"reg-updates");
                 
                 /*
                 boolean do_register = this.unsubscribe((String)entry.get("ep"));
@@ -330,6 +345,11 @@ public class WatsonIoTMQTTProcessor extends GenericMQTTProcessor implements Tran
                 // already subscribed (OK)
                 this.errorLogger().info("WatsonIoT : CoAP re-registration: already subscribed (OK)");
             }
+            
+            // remember this registration once the endpoint is fully subscribed
+            if (this.hasSubscriptions((String)entry.get("ep")) == true) {
+                this.m_registrations.record(entry);
+            }
         }
     }
     
@@ -507,6 +527,7 @@ public class WatsonIoTMQTTProcessor extends GenericMQTTProcessor implements Tran
                     // get,put,post,delete enablement
                     this.m_watson_iot_endpoints.put(ep_name, topic_data);
                     this.subscribe_to_topics((Topic[])topic_data.get("topic_list"));
+                    this.persistEndpoint(ep_name,ep_type);
                 }
                 else {
                     this.orchestrator().errorLogger().warning("WatsonIoT: GET/PUT/POST/DELETE topic data NULL. GET/PUT/POST/DELETE disabled");
@@ -548,7 +569,11 @@ public class WatsonIoTMQTTProcessor extends GenericMQTTProcessor implements Tran
         }
         
         // clean up
-        if (ep_name != null) this.m_watson_iot_endpoints.remove(ep_name);
+        if (ep_name != null) {
+            this.m_watson_iot_endpoints.remove(ep_name);
+            this.m_registrations.remove(ep_name);
+            this.unpersistEndpoint(ep_name);
+        }
         
         // return the unsubscribe status
         return do_register;
@@ -640,6 +665,11 @@ public class WatsonIoTMQTTProcessor extends GenericMQTTProcessor implements Tran
             ep_name = this.getCoAPEndpointName(message);
         }
         
+        // writes to a sleeping queue-mode endpoint are held until it wakes
+        if (this.bufferCommand(ep_name,coap_verb,uri,topic,message) == true) {
+            return;
+        }
+        
         // dispatch the coap resource operation request (GET,PUT,POST,DELETE handled here)
         String response = this.orchestrator().processEndpointResourceOperation(coap_verb,ep_name,uri,value);
         
@@ -25,6 +25,7 @@ package com.arm.connector.bridge.coordinator.processors.ms;
 import com.arm.connector.bridge.coordinator.Orchestrator;
 import com.arm.connector.bridge.core.BaseClass;
 import com.arm.connector.bridge.core.ErrorLogger;
+import com.arm.connector.bridge.core.StateJournal;
 import com.arm.connector.bridge.preferences.PreferenceManager;
 import com.arm.connector.bridge.transport.HttpTransport;
 import java.util.HashMap;
@@ -45,6 +46,8 @@ public class IoTHubDeviceManager extends BaseClass {
     private String                                  m_iot_event_hub_add_device_json = null;
     private String                                  m_iot_event_hub_sas_token = null;
     private String                                  m_iot_event_hub_auth_qualifier = "SharedAccessSignature";
+    private StateJournal                            m_journal = null;
+    private String                                  m_journal_table = null;
     
      // constructor
     public IoTHubDeviceManager(ErrorLogger logger,PreferenceManager preferences,HttpTransport http,Orchestrator orchestrator) {
@@ -79,6 +82,21 @@ public class IoTHubDeviceManager extends BaseClass {
         this.m_iot_event_hub_sas_token = this.preferences().valueOf("iot_event_hub_sas_token",this.m_suffix).replace("SharedAccessSignature ", "").trim();
     }
     
+    // restore provisioned device details from (and persist future changes to) the state journal
+    public void persistTo(StateJournal journal,String table) {
+        this.m_journal = journal;
+        this.m_journal_table = table;
+        if (journal != null && journal.enabled() == true) {
+            Map<String,String> saved = journal.table(table);
+            for (Map.Entry<String,String> entry : saved.entrySet()) {
+                this.m_endpoint_details.put(entry.getKey(),StateJournal.unpackMap(entry.getValue()));
+            }
+            
+            // DEBUG
+            this.errorLogger().info("IoTHubDeviceManager: restored " + saved.size() + " provisioned devices from " + table);
+        }
+    }
+    
     // get the orchestrator
     private Orchestrator orchestrator() { return this.m_orchestrator; }
     
@@ -90,6 +108,12 @@ public class IoTHubDeviceManager extends BaseClass {
         String device_type = (String)message.get("ept");
         String device = (String)message.get("ep");
         
+        // already provisioned (this run or restored from the state journal)... nothing to do
+        if (this.getEndpointDetails(device) != null) {
+            this.errorLogger().info("registerNewDevice: " + device + " already provisioned (OK)");
+            return true;
+        }
+        
         // see if we already have a device...
         HashMap<String,String> ep = this.getDeviceDetails(device);
         if (ep != null) {
@@ -167,6 +191,9 @@ public class IoTHubDeviceManager extends BaseClass {
         
         // remove the endpoint details
         this.m_endpoint_details.remove(device);
+        if (this.m_journal != null) {
+            this.m_journal.remove(this.m_journal_table,device);
+        }
         
         // return our status
         return status;
@@ -340,6 +367,9 @@ public class IoTHubDeviceManager extends BaseClass {
 
             // save off the endpoint details
             this.m_endpoint_details.put(device,entry);
+            if (this.m_journal != null) {
+                this.m_journal.put(this.m_journal_table,device,StateJournal.packMap(entry));
+            }
         }
     }
     
@@ -25,7 +25,11 @@ package com.arm.connector.bridge.coordinator.processors.ms;
 
 import com.arm.connector.bridge.coordinator.processors.arm.GenericMQTTProcessor;
 import com.arm.connector.bridge.coordinator.Orchestrator;
+import com.arm.connector.bridge.coordinator.processors.core.IdleSessionReaper;
+import com.arm.connector.bridge.coordinator.processors.core.PendingConnectBuffer;
 import com.arm.connector.bridge.coordinator.processors.interfaces.PeerInterface;
+import com.arm.connector.bridge.core.ConnectionAdmissionQueue;
+import com.arm.connector.bridge.core.SharedResources;
 import com.arm.connector.bridge.core.Utils;
 import com.arm.connector.bridge.transport.HttpTransport;
 import com.arm.connector.bridge.transport.MQTTTransport;
@@ -42,7 +46,7 @@ import org.fusesource.mqtt.client.Topic;
  * MS IoTHub peer processor based on MQTT
  * @author Doug Anson
  */
-public class IoTHubMQTTProcessor extends GenericMQTTProcessor implements Transport.ReceiveListener, PeerInterface {
+public class IoTHubMQTTProcessor extends GenericMQTTProcessor implements Transport.ReceiveListener, PeerInterface, IdleSessionReaper.Sessions {
     public static int                               NUM_COAP_VERBS = 4;                                   // GET, PUT, POST, DELETE
     public static int                               NUM_COAP_TOPICS = 1;                                  // # of MQTT Topics for CoAP verbs
     
@@ -57,6 +61,8 @@ public class IoTHubMQTTProcessor extends GenericMQTTProcessor implements Transpo
     
     private HashMap<String,Object>                  m_iot_hub_endpoints = null;
     private HashMap<String,TransportReceiveThread>  m_mqtt_thread_list = null;
+    private IdleSessionReaper                       m_idle_sessions = null;
+    private PendingConnectBuffer                    m_pending_connects = null;
         
     // IoTHub Device Manager
     private IoTHubDeviceManager                     m_iot_hub_device_manager = null;
@@ -78,6 +84,10 @@ public class IoTHubMQTTProcessor extends GenericMQTTProcessor implements Transpo
         
         // initialize the listener thread map
         this.m_mqtt_thread_list = new HashMap<>();
+        
+        // idle endpoint sessions are closed and reopened on demand (if enabled)
+        this.m_idle_sessions = new IdleSessionReaper(this.orchestrator(),this.m_suffix,this);
+        this.m_pending_connects = new PendingConnectBuffer(this.orchestrator(),this.m_suffix);
                         
         // get our defaults
         this.m_iot_hub_name = this.orchestrator().preferences().valueOf("iot_event_hub_name",this.m_suffix);
@@ -91,6 +101,7 @@ public class IoTHubMQTTProcessor extends GenericMQTTProcessor implements Transpo
                          
         // IoTHub Device Manager - will initialize and update our IoTHub bindings/metadata
         this.m_iot_hub_device_manager = new IoTHubDeviceManager(this.orchestrator().errorLogger(),this.orchestrator().preferences(),this.m_suffix,http,this.orchestrator());
+        this.m_iot_hub_device_manager.persistTo(this.orchestrator().stateJournal(),this.stateTable("devices"));
                 
         // set the MQTT password template
         this.m_iot_hub_password_template = this.orchestrator().preferences().valueOf("iot_event_hub_mqtt_password",this.m_suffix).replace("__IOT_EVENT_HUB__",this.m_iot_hub_name);
@@ -111,27 +122,47 @@ public class IoTHubMQTTProcessor extends GenericMQTTProcessor implements Transpo
         return Utils.createHash(this.prefValue("iot_event_hub_sas_token",this.m_suffix));
     }
     
-    // OVERRIDE: initListener() needs to accomodate a MQTT connection for each endpoint
+    // OVERRIDE: initListener() needs to accomodate a MQTT connection for each endpoint... resume those restored from the state journal
     @Override
-    @SuppressWarnings("empty-statement")
     public void initListener() {
-        // do nothing...
-        ;
+        Map<String,String> endpoints = this.persistedEndpoints();
+        for (final Map.Entry<String,String> endpoint : endpoints.entrySet()) {
+            if (this.m_iot_hub_device_manager.getEndpointDetails(endpoint.getKey()) != null) {
+                // no recent activity yet: restored endpoints connect in journal order at the admission rate
+                this.admitConnection(endpoint.getKey(),(endpoint.getValue().length() > 0) ? endpoint.getValue() : null,0);
+            }
+            else {
+                // no provisioning details... it will be re-provisioned when it re-registers
+                unpersistEndpoint(endpoint.getKey());
+            }
+        }
+        
+        // DEBUG
+        if (endpoints.isEmpty() == false) {
+            this.errorLogger().info("IoTHub: resuming " + endpoints.size() + " endpoint(s) from saved state");
+        }
+    }
+    
+    // OVERRIDE: MQTT connections are per-endpoint and created on registration, so we are always ready
+    @Override
+    public boolean isListenerReady() {
+        return true;
     }
     
     // OVERRIDE: stopListener() needs to accomodate a MQTT connection for each endpoint
     @Override
     @SuppressWarnings("empty-statement")
     public void stopListener() {
-        // do nothing...
-        ;
+        // just stop closing idle sessions and expiring async responses...
+        this.m_idle_sessions.stop();
+        this.asyncResponseManager().stop();
     }
     
     // Connection to IoTHub MQTT vs. generic MQTT...
     private boolean connect(String ep_name) {
         // if not connected attempt
         if (!this.isConnected(ep_name)) {
-            if (this.mqtt(ep_name).connect(this.m_mqtt_host,this.m_mqtt_port,ep_name,this.m_use_clean_session)) {
+            if (this.mqtt(ep_name).connect(this.m_mqtt_host,this.m_mqtt_port,ep_name,this.useCleanSession())) {
                 this.orchestrator().errorLogger().info("IoTHub: Setting CoAP command listener...");
                 this.mqtt(ep_name).setOnReceiveListener(this);
                 this.orchestrator().errorLogger().info("IoTHub: connection completed successfully");
@@ -147,6 +178,40 @@ public class IoTHubMQTTProcessor extends GenericMQTTProcessor implements Transpo
         return this.isConnected(ep_name);
     }
     
+    // persistent sessions when idle sessions are closed... the broker holds commands sent while closed
+    private boolean useCleanSession() {
+        return (this.m_idle_sessions.isEnabled() == true) ? false : this.m_use_clean_session;
+    }
+    
+    // IdleSessionReaper.Sessions: close an idle endpoint session (its SSL context and stored messages are kept for a quick reopen)
+    @Override
+    public synchronized void closeIdleSession(String ep_name) {
+        if (this.m_idle_sessions.confirmIdle(ep_name) == false) {
+            // active (or reopened) since it was swept
+            return;
+        }
+        
+        // DEBUG
+        this.errorLogger().info("IoTHub: closing idle MQTT session for endpoint: " + ep_name);
+        if (this.m_mqtt_thread_list.get(ep_name) != null) {
+            this.m_mqtt_thread_list.get(ep_name).disconnect();
+            this.m_mqtt_thread_list.remove(ep_name);
+        }
+        if (this.mqtt(ep_name) != null) {
+            this.mqtt(ep_name).suspend();
+            this.remove(ep_name);
+        }
+    }
+    
+    // IdleSessionReaper.Sessions: reopen an idle endpoint session and restore its command subscriptions
+    @Override
+    public boolean reopenIdleSession(String ep_name) {
+        // DEBUG
+        this.errorLogger().info("IoTHub: reopening idle MQTT session for endpoint: " + ep_name);
+        this.subscribe(ep_name,null);
+        return this.isConnected(ep_name);
+    }
+    
     // OVERRIDE: process a mDS notification for IoTHub
     @Override
     public void processNotification(Map data) {
@@ -190,9 +255,29 @@ public class IoTHubMQTTProcessor extends GenericMQTTProcessor implements Transpo
             this.errorLogger().info("IoTHub: CoAP notification (STR): " + iot_event_hub_coap_json);
             this.errorLogger().info("IoTHub: CoAP notification (JSON): " + notification);
             
+            // note the activity first (keeps a session swept as idle from closing), then reopen it on demand if already closed
+            this.m_idle_sessions.touch(ep_name);
+            if (this.m_idle_sessions.isIdle(ep_name) == true) {
+                this.m_idle_sessions.reopen(ep_name);
+            }
+            
+            // still waiting for its admitted connect (or its held notifications are still being sent): hold it so it stays in order
+            String topic = this.customizeTopic(this.m_iot_hub_observe_notification_topic,ep_name,null);
+            if (this.m_pending_connects.isConnecting(ep_name) == true) {
+                if (this.mqtt(ep_name) == null && SharedResources.getInstance() != null) {
+                    // move it up the admission queue
+                    SharedResources.getInstance().connectionAdmission().bump(this.admissionKey(ep_name));
+                }
+                if (this.m_pending_connects.hold(ep_name,topic,iot_event_hub_coap_json,QoS.AT_MOST_ONCE) == true) {
+                    // DEBUG
+                    this.errorLogger().info("IoTHub: CoAP notification held until the endpoint connects");
+                    continue;
+                }
+            }
+            
             // send to IoTHub...
             if (this.mqtt(ep_name) != null) {
-                boolean status = this.mqtt(ep_name).sendMessage(this.customizeTopic(this.m_iot_hub_observe_notification_topic,ep_name,null),iot_event_hub_coap_json,QoS.AT_MOST_ONCE);           
+                boolean status = this.mqtt(ep_name).sendMessage(topic,iot_event_hub_coap_json,QoS.AT_MOST_ONCE);           
                 if (status == true) {
                     // not connected
                     this.errorLogger().info("IoTHub: CoAP notification sent. SUCCESS");
@@ -215,17 +300,28 @@ public class IoTHubMQTTProcessor extends GenericMQTTProcessor implements Transpo
         List notifications = (List)data.get("reg-updates");
         for(int i=0;notifications != null && i<notifications.size();++i) {
             Map entry = (Map)notifications.get(i);
+            
+            // same registration as last time (and still subscribed): nothing to do
+            if (this.hasSubscriptions((String)entry.get("ep")) == true && this.m_registrations.isUnchanged(entry) == true) {
+                continue;
+            }
+            
             // DEBUG
             // this.errorLogger().info("IoTHub : CoAP re-registration: " + entry);
             if (this.hasSubscriptions((String)entry.get("ep")) == false) {
                 // no subscriptions - so process as a new registration
                 this.errorLogger().info("IoTHub : CoAP re-registration: no subscriptions.. processing as new registration...");
-                this.processRegistration(data,"reg-updates");
+                this.processRegistration(this.registrationOf(entry,"reg-updates"),"reg-updates");
             }
             else {
                 // already subscribed (OK)
                 this.errorLogger().info("IoTHub : CoAP re-registration: already subscribed (OK)");
             }
+            
+            // remember this registration once the endpoint is fully subscribed
+            if (this.hasSubscriptions((String)entry.get("ep")) == true) {
+                this.m_registrations.record(entry);
+            }
         }
     }
     
@@ -305,8 +401,8 @@ public class IoTHubMQTTProcessor extends GenericMQTTProcessor implements Transpo
             try {
                 // subscribe for IoTHub as well..
                 this.errorLogger().info("processRegistration: calling subscribe(): " + endpoint);
-                this.subscribe((String)endpoint.get("ep"),(String)endpoint.get("ept"));
-                this.errorLogger().info("processRegistration: subscribe() completed");
+                this.admitConnection((String)endpoint.get("ep"),(String)endpoint.get("ept"),System.currentTimeMillis());
+                this.errorLogger().info("processRegistration: subscribe() queued for admission");
             }
             catch (Exception ex) {
                 this.errorLogger().warning("processRegistration: caught exception in subscribe(): " + endpoint,ex); 
@@ -386,6 +482,7 @@ public class IoTHubMQTTProcessor extends GenericMQTTProcessor implements Transpo
                     this.m_iot_hub_endpoints.remove(ep_name);
                     this.m_iot_hub_endpoints.put(ep_name,topic_data);
                     this.subscribe_to_topics(ep_name,(Topic[])topic_data.get("topic_list"));
+                    this.persistEndpoint(ep_name,ep_type);
                 }
                 else {
                     this.orchestrator().errorLogger().warning("IoTHub: GET/PUT/POST/DELETE topic data NULL. GET/PUT/POST/DELETE disabled");
@@ -433,6 +530,7 @@ public class IoTHubMQTTProcessor extends GenericMQTTProcessor implements Transpo
         
         // clean up
         if (ep_name != null) this.m_iot_hub_endpoints.remove(ep_name);
+        this.m_registrations.remove(ep_name);
         
         // return the unsubscribe status
         return unsubscribed;
@@ -549,6 +647,7 @@ public class IoTHubMQTTProcessor extends GenericMQTTProcessor implements Transpo
         // parse the topic to get the endpoint
         // format: devices/__EPNAME__/messages/devicebound/#
         String ep_name = this.getEndpointNameFromTopic(topic);
+        this.m_idle_sessions.touch(ep_name);
         
         // pull the CoAP Path URI from the message itself... its JSON... 
         // format: { "path":"/303/0/5850", "new_value":"0", "ep":"mbed-eth-observe", "coap_verb": "get" }
@@ -576,6 +675,11 @@ public class IoTHubMQTTProcessor extends GenericMQTTProcessor implements Transpo
             ep_name = this.getCoAPEndpointName(message);
         }
         
+        // writes to a sleeping queue-mode endpoint are held until it wakes
+        if (this.bufferCommand(ep_name,coap_verb,uri,topic,message) == true) {
+            return;
+        }
+        
         // dispatch the coap resource operation request
         String response = this.orchestrator().processEndpointResourceOperation(coap_verb,ep_name,uri,value);
         
@@ -695,6 +799,38 @@ public class IoTHubMQTTProcessor extends GenericMQTTProcessor implements Transpo
         return null;
     }
     
+    // our key for an endpoint in the connection admission queue
+    private String admissionKey(String ep_name) {
+        return "IoTHub:" + this.m_suffix + ":" + ep_name;
+    }
+    
+    // connect (and subscribe) the endpoint through the connection admission queue so that restarts and bulk registrations ramp up at the configured connect rate
+    private void admitConnection(final String ep_name,final String ep_type,long last_activity_ms) {
+        if (ep_name == null) {
+            return;
+        }
+        this.m_pending_connects.connecting(ep_name);
+        Runnable connect = new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    subscribe(ep_name,ep_type);
+                }
+                finally {
+                    // send the notifications held while we waited
+                    m_pending_connects.connected(ep_name,mqtt(ep_name));
+                }
+            }
+        };
+        ConnectionAdmissionQueue admission = (SharedResources.getInstance() != null) ? SharedResources.getInstance().connectionAdmission() : null;
+        if (admission != null) {
+            admission.admit(this.admissionKey(ep_name),last_activity_ms,connect);
+        }
+        else {
+            this.orchestrator().executor().execute(connect);
+        }
+    }
+    
     // validate the MQTT Connection
     private synchronized boolean validateMQTTConnection(String ep_name,String ep_type) {        
         // see if we already have a connection for this endpoint...
@@ -714,8 +850,8 @@ public class IoTHubMQTTProcessor extends GenericMQTTProcessor implements Transpo
             // create the device in IoTHub
             Boolean success = this.m_iot_hub_device_manager.registerNewDevice(message);
             
-            // if successful, validate (i.e. add...) an MQTT Connection
-            if (success == true) this.validateMQTTConnection((String)message.get("ep"),(String)message.get("ept"));
+            // if successful, add an MQTT Connection (via the connection admission queue)
+            if (success == true) this.admitConnection((String)message.get("ep"),(String)message.get("ept"),System.currentTimeMillis());
             
             // return status
             return success;
@@ -743,7 +879,10 @@ public class IoTHubMQTTProcessor extends GenericMQTTProcessor implements Transpo
             }
             
             // also remove MQTT Transport instance too...
+            this.m_idle_sessions.forget(device);
+            this.m_pending_connects.forget(device);
             this.disconnect(device);
+            this.unpersistEndpoint(device);
             
             // remove the device from IoTHub
             if (this.m_iot_hub_device_manager.deregisterDevice(device) == false) {
@@ -793,10 +932,15 @@ public class IoTHubMQTTProcessor extends GenericMQTTProcessor implements Transpo
                 listener.setOnReceiveListener(this);
                 this.m_mqtt_thread_list.put(ep_name,listener);
                 listener.start();
+                this.m_idle_sessions.opened(ep_name);
             } 
             else {
                 // unable to connect!
                 this.errorLogger().critical("IoTHub: Unable to connect to MQTT for endpoint: " + ep_name + " type: " + ep_type);
+                if (this.mqtt(ep_name) != null) {
+                    // no background retries for a dropped transport... the endpoint reconnects when next admitted
+                    this.mqtt(ep_name).disconnect(true);
+                }
                 this.remove(ep_name);
                 
                 // ensure we only have 1 thread/endpoint
@@ -0,0 +1,277 @@
+/**
+ * @file    ConnectionAdmissionQueue.java
+ * @brief   rate and concurrency limited admission of peer (cloud) connection attempts
+ * @author  Doug Anson
+ * @version 1.0
+ * @see
+ *
+ * Copyright 2015. ARM Ltd. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+
+package com.arm.connector.bridge.core;
+
+import com.arm.connector.bridge.preferences.PreferenceManager;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.PriorityQueue;
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Connection admission queue: connection attempts (initial device connects and reconnects after an outage) are started
+ * at no more than mqtt_connect_rate_per_sec with at most mqtt_connect_concurrency in progress, so a bridge restart or a
+ * broker outage ramps back up within the cloud's connect-rate limits instead of tripping them. Waiting attempts are
+ * ordered by their endpoint's most recent activity (newest first). Ramp progress and the estimated time to full
+ * connectivity are logged while a ramp is underway.
+ * @author Doug Anson
+ */
+public class ConnectionAdmissionQueue extends BaseClass {
+    private static final int                DEF_CONCURRENCY = 8;
+    private static final long               PROGRESS_LOG_MS = 5000;
+
+    private Executor                        m_workers = null;
+    private TimerService                    m_timers = null;
+    private double                          m_rate = 0;
+    private int                             m_concurrency = DEF_CONCURRENCY;
+    private PriorityQueue<Request>          m_queue = null;
+    private HashMap<String,Request>         m_queued = null;
+    private int                             m_running = 0;
+    private long                            m_sequence = 0;
+    private double                          m_next_admit_ms = 0;
+    private TimerService.Timer              m_timer = null;
+
+    // ramp tracking (a ramp runs from the first queued attempt until the queue is drained)
+    private long                            m_ramp_start_ms = 0;
+    private long                            m_ramp_total = 0;
+    private long                            m_ramp_done = 0;
+    private long                            m_last_report_ms = 0;
+
+    // metrics
+    private final AtomicLong                m_admitted = new AtomicLong(0);
+    private final AtomicLong                m_completed = new AtomicLong(0);
+    private final AtomicLong                m_connect_ms = new AtomicLong(0);
+
+    // a waiting connection attempt
+    private static class Request implements Comparable<Request> {
+        private String      m_key = null;
+        private Runnable    m_task = null;
+        private long        m_priority = 0;
+        private long        m_sequence = 0;
+
+        // constructor
+        private Request(String key,Runnable task,long priority,long sequence) {
+            this.m_key = key;
+            this.m_task = task;
+            this.m_priority = priority;
+            this.m_sequence = sequence;
+        }
+
+        // most recent activity first, then first come first served
+        @Override
+        public int compareTo(Request other) {
+            if (this.m_priority != other.m_priority) {
+                return (this.m_priority > other.m_priority) ? -1 : 1;
+            }
+            return (this.m_sequence < other.m_sequence) ? -1 : ((this.m_sequence > other.m_sequence) ? 1 : 0);
+        }
+    }
+
+    // constructor
+    public ConnectionAdmissionQueue(ErrorLogger error_logger,PreferenceManager preference_manager,Executor workers,TimerService timers) {
+        super(error_logger,preference_manager);
+        this.m_workers = workers;
+        this.m_timers = timers;
+        this.m_queue = new PriorityQueue<>();
+        this.m_queued = new HashMap<>();
+        int rate = this.prefIntValue("mqtt_connect_rate_per_sec");
+        if (rate > 0) {
+            this.m_rate = rate;
+        }
+        int concurrency = this.prefIntValue("mqtt_connect_concurrency");
+        if (concurrency > 0) {
+            this.m_concurrency = concurrency;
+        }
+    }
+
+    // is admission control enabled?
+    public boolean isEnabled() {
+        return (this.m_rate > 0);
+    }
+
+    /**
+     * queue a connection attempt (if disabled it is simply started on the worker pool)
+     * @param key identifies the connection... a newer attempt for a queued key replaces the waiting one
+     * @param last_activity_ms the endpoint's most recent activity (0 if unknown)
+     * @param task the (blocking) connection attempt
+     */
+    public void admit(String key,long last_activity_ms,Runnable task) {
+        if (this.isEnabled() == false) {
+            this.m_workers.execute(task);
+            return;
+        }
+        synchronized (this) {
+            Request request = this.m_queued.get(key);
+            if (request != null) {
+                // already waiting: take the newer attempt and the more recent activity
+                this.m_queue.remove(request);
+                request.m_task = task;
+                request.m_priority = Math.max(request.m_priority,last_activity_ms);
+            }
+            else {
+                if (this.m_queue.isEmpty() == true && this.m_running == 0) {
+                    // a new ramp
+                    this.m_ramp_start_ms = System.currentTimeMillis();
+                    this.m_ramp_total = 0;
+                    this.m_ramp_done = 0;
+                    this.m_last_report_ms = this.m_ramp_start_ms;
+                }
+                request = new Request(key,task,last_activity_ms,++this.m_sequence);
+                this.m_queued.put(key,request);
+                ++this.m_ramp_total;
+            }
+            this.m_queue.add(request);
+        }
+        this.pump();
+    }
+
+    // the endpoint is active now: move its waiting attempt (if any) ahead of the idle ones
+    public void bump(String key) {
+        synchronized (this) {
+            Request request = this.m_queued.get(key);
+            if (request != null) {
+                this.m_queue.remove(request);
+                request.m_priority = System.currentTimeMillis();
+                this.m_queue.add(request);
+            }
+        }
+    }
+
+    // is an attempt waiting for the key?
+    public synchronized boolean isQueued(String key) {
+        return this.m_queued.containsKey(key);
+    }
+
+    // admission metrics (with the estimated time to drain the current ramp)
+    public synchronized String metrics() {
+        return "queued=" + this.m_queue.size() + " running=" + this.m_running + " ramp=" + this.m_ramp_done + "/" + this.m_ramp_total
+                + " admitted=" + this.m_admitted.get() + " completed=" + this.m_completed.get() + " avg_connect_ms=" + this.averageConnectMs()
+                + " eta_secs=" + this.etaSecs();
+    }
+
+    // average duration of a connection attempt
+    private long averageConnectMs() {
+        long completed = this.m_completed.get();
+        return (completed > 0) ? this.m_connect_ms.get() / completed : 0;
+    }
+
+    // seconds until the waiting and running attempts are done: limited by our rate or by concurrency / connect time (caller holds our lock)
+    private long etaSecs() {
+        long remaining = this.m_queue.size() + this.m_running;
+        if (remaining == 0 || this.isEnabled() == false) {
+            return 0;
+        }
+        double per_sec = this.m_rate;
+        long avg_ms = this.averageConnectMs();
+        if (avg_ms > 0) {
+            per_sec = Math.min(per_sec,(this.m_concurrency * 1000.0) / avg_ms);
+        }
+        return (long)Math.ceil(remaining / per_sec);
+    }
+
+    // start as many waiting attempts as our rate and concurrency allow
+    private void pump() {
+        ArrayList<Request> start = new ArrayList<>();
+        synchronized (this) {
+            long now = System.currentTimeMillis();
+            long delay = 0;
+            while (this.m_queue.isEmpty() == false && this.m_running < this.m_concurrency) {
+                if (now < this.m_next_admit_ms) {
+                    // rate limited: come back when the next slot opens
+                    delay = (long)Math.ceil(this.m_next_admit_ms - now);
+                    break;
+                }
+                Request request = this.m_queue.poll();
+                this.m_queued.remove(request.m_key);
+                ++this.m_running;
+                this.m_next_admit_ms = Math.max(this.m_next_admit_ms,now) + (1000.0 / this.m_rate);
+                start.add(request);
+            }
+            if (delay > 0 && this.m_timer == null) {
+                this.m_timer = this.m_timers.schedule("connect-admission",new Runnable() {
+                    @Override
+                    public void run() {
+                        synchronized (ConnectionAdmissionQueue.this) {
+                            m_timer = null;
+                        }
+                        pump();
+                    }
+                },delay);
+            }
+        }
+        for(int i=0;i<start.size();++i) {
+            final Request request = start.get(i);
+            this.m_admitted.incrementAndGet();
+            try {
+                this.m_workers.execute(new Runnable() {
+                    @Override
+                    public void run() {
+                        attempt(request);
+                    }
+                });
+            }
+            catch (RejectedExecutionException ex) {
+                // worker pool is shutting down: run inline
+                this.attempt(request);
+            }
+        }
+    }
+
+    // run an admitted attempt
+    private void attempt(Request request) {
+        long started = System.currentTimeMillis();
+        try {
+            request.m_task.run();
+        }
+        catch (Exception ex) {
+            this.errorLogger().warning("ConnectionAdmissionQueue: connection attempt for " + request.m_key + " failed: " + ex.getMessage(),ex);
+        }
+        this.m_connect_ms.addAndGet(System.currentTimeMillis() - started);
+        this.m_completed.incrementAndGet();
+
+        String report = null;
+        synchronized (this) {
+            --this.m_running;
+            ++this.m_ramp_done;
+            long now = System.currentTimeMillis();
+            if (this.m_queue.isEmpty() == true && this.m_running == 0) {
+                if (this.m_ramp_total > 1) {
+                    report = "ConnectionAdmissionQueue: ramp complete: " + this.m_ramp_done + " connection(s) in " + (now - this.m_ramp_start_ms) + "ms";
+                }
+            }
+            else if ((now - this.m_last_report_ms) >= PROGRESS_LOG_MS) {
+                this.m_last_report_ms = now;
+                report = "ConnectionAdmissionQueue: ramp in progress: " + this.metrics();
+            }
+        }
+
+        // DEBUG
+        if (report != null) {
+            this.errorLogger().info(report);
+        }
+        this.pump();
+    }
+}
@@ -0,0 +1,125 @@
+/**
+ * @file    FanOut.java
+ * @brief   bounded, non-blocking fan-out of a batch of work items onto an executor
+ * @author  Doug Anson
+ * @version 1.0
+ * @see
+ *
+ * Copyright 2015. ARM Ltd. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+
+package com.arm.connector.bridge.core;
+
+import java.util.Collection;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Bounded fan-out: the items of a batch are worked by at most "parallelism" tasks (the caller plus helpers queued on
+ * an executor) and a completion runs on whichever task finishes last. The caller never waits for its helpers, so a
+ * caller holding a slot of the (quota limited) executor cannot starve or deadlock it.
+ * @author Doug Anson
+ */
+public class FanOut<T> {
+    /**
+     * Work on a single item
+     * @param <T>
+     */
+    public interface Work<T> {
+        public void run(T item);
+    }
+
+    private ErrorLogger                 m_error_logger = null;
+    private String                      m_name = null;
+    private ConcurrentLinkedQueue<T>    m_items = null;
+    private Work<T>                     m_work = null;
+    private Runnable                    m_done = null;
+    private final AtomicInteger         m_workers = new AtomicInteger(0);
+
+    // constructor
+    private FanOut(ErrorLogger error_logger,String name,Collection<T> items,Work<T> work,Runnable done) {
+        this.m_error_logger = error_logger;
+        this.m_name = name;
+        this.m_items = new ConcurrentLinkedQueue<>(items);
+        this.m_work = work;
+        this.m_done = done;
+    }
+
+    /**
+     * work a batch of items with bounded parallelism, without blocking for the helpers
+     * @param error_logger
+     * @param name used when logging failed items
+     * @param executor runs the helpers
+     * @param items
+     * @param parallelism most tasks working the batch at once (the caller included)
+     * @param work
+     * @param done run once every item has been worked (may be null)
+     */
+    public static <T> void run(ErrorLogger error_logger,String name,Executor executor,Collection<T> items,int parallelism,Work<T> work,Runnable done) {
+        final FanOut<T> fan_out = new FanOut<>(error_logger,name,items,work,done);
+        int workers = Math.max(1,Math.min(parallelism,items.size()));
+        fan_out.m_workers.set(workers);
+        for(int i=1;i<workers;++i) {
+            try {
+                executor.execute(new Runnable() {
+                    @Override
+                    public void run() {
+                        fan_out.drain();
+                    }
+                });
+            }
+            catch (RejectedExecutionException ex) {
+                // the remaining workers take its share
+                fan_out.finished();
+            }
+        }
+        fan_out.drain();
+    }
+
+    // work items until the batch is empty
+    private void drain() {
+        try {
+            T item = this.m_items.poll();
+            while (item != null) {
+                try {
+                    this.m_work.run(item);
+                }
+                catch (Exception ex) {
+                    // note but continue with the rest of the batch
+                    this.m_error_logger.warning(this.m_name + ": work item failed: " + ex.getMessage(),ex);
+                }
+                item = this.m_items.poll();
+            }
+        }
+        finally {
+            this.finished();
+        }
+    }
+
+    // a worker is done: the last one completes the batch
+    private void finished() {
+        if (this.m_workers.decrementAndGet() == 0 && this.m_done != null) {
+            try {
+                this.m_done.run();
+            }
+            catch (Exception ex) {
+                this.m_error_logger.warning(this.m_name + ": completion failed: " + ex.getMessage(),ex);
+            }
+        }
+    }
+}
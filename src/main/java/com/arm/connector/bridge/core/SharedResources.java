@@ -0,0 +1,311 @@
+/**
+ * @file    SharedResources.java
+ * @brief   process-wide resource container shared by all domains/accounts in the bridge
+ * @author  Doug Anson
+ * @version 1.0
+ * @see
+ *
+ * Copyright 2015. ARM Ltd. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+
+package com.arm.connector.bridge.core;
+
+import com.arm.connector.bridge.json.JSONGeneratorFactory;
+import com.arm.connector.bridge.preferences.PreferenceManager;
+import java.security.SecureRandom;
+import java.security.cert.X509Certificate;
+import java.util.HashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import javax.net.ssl.HostnameVerifier;
+import javax.net.ssl.SSLContext;
+import javax.net.ssl.SSLSession;
+import javax.net.ssl.SSLSocketFactory;
+import javax.net.ssl.TrustManager;
+import javax.net.ssl.X509TrustManager;
+
+/**
+ * Process-wide resources (worker pool, scheduler, SSL task pool, HTTPS context, JSON engine) borrowed by every DomainManager and Orchestrator
+ * @author Doug Anson
+ */
+public class SharedResources extends BaseClass {
+    private static final int                DEF_WORKER_THREADS = 16;
+    private static final int                DEF_SCHEDULER_THREADS = 2;
+    private static final int                DEF_SSL_TASK_THREADS = 2;
+    private static final int                DEF_DOMAIN_MAX_TASKS = 4;
+
+    private static SharedResources          m_me = null;
+
+    private ExecutorService                 m_workers = null;
+    private ExecutorService                 m_ssl_tasks = null;
+    private ScheduledExecutorService        m_scheduler = null;
+    private TimerService                    m_timers = null;
+    private ConnectionAdmissionQueue        m_connection_admission = null;
+    private SSLContext                      m_https_context = null;
+    private SSLSocketFactory                m_https_socket_factory = null;
+    private HostnameVerifier                m_https_hostname_verifier = null;
+    private JSONGeneratorFactory            m_json_factory = null;
+    private HashMap<String,DomainExecutor>  m_domain_executors = null;
+    private int                             m_domain_max_tasks = 0;
+
+    // instance factory
+    public static synchronized SharedResources getInstance(ErrorLogger error_logger,PreferenceManager preference_manager) {
+        if (SharedResources.m_me == null) {
+            SharedResources.m_me = new SharedResources(error_logger,preference_manager);
+        }
+        return SharedResources.m_me;
+    }
+
+    // get the (already created) instance
+    public static SharedResources getInstance() {
+        return SharedResources.m_me;
+    }
+
+    // constructor
+    private SharedResources(ErrorLogger error_logger,PreferenceManager preference_manager) {
+        super(error_logger,preference_manager);
+
+        // worker pool sizing
+        int num_workers = this.prefIntValue("bridge_worker_threads");
+        if (num_workers <= 0) {
+            num_workers = DEF_WORKER_THREADS;
+        }
+        int num_schedulers = this.prefIntValue("bridge_scheduler_threads");
+        if (num_schedulers <= 0) {
+            num_schedulers = DEF_SCHEDULER_THREADS;
+        }
+        this.m_domain_max_tasks = this.prefIntValue("bridge_domain_max_tasks");
+        if (this.m_domain_max_tasks <= 0) {
+            this.m_domain_max_tasks = DEF_DOMAIN_MAX_TASKS;
+        }
+
+        // create the shared pools
+        this.m_workers = Executors.newFixedThreadPool(num_workers,new NamedThreadFactory("bridge-worker"));
+        this.m_scheduler = Executors.newScheduledThreadPool(num_schedulers,new NamedThreadFactory("bridge-scheduler"));
+        
+        // SSL delegated (handshake) tasks get their own pool: blocking connects on the worker pool wait on them
+        int num_ssl_tasks = this.prefIntValue("mqtt_ssl_task_threads");
+        if (num_ssl_tasks <= 0) {
+            num_ssl_tasks = DEF_SSL_TASK_THREADS;
+        }
+        this.m_ssl_tasks = Executors.newFixedThreadPool(num_ssl_tasks,new NamedThreadFactory("mqtt-ssl-task"));
+        this.m_domain_executors = new HashMap<>();
+        this.m_timers = new TimerService(error_logger,preference_manager,this.m_scheduler,this.m_workers);
+
+        // peer connection attempts are admitted at a bounded rate/concurrency (restart and outage ramps)
+        this.m_connection_admission = new ConnectionAdmissionQueue(error_logger,preference_manager,this.m_workers,this.m_timers);
+
+        // JSON engine (already process-wide)
+        this.m_json_factory = JSONGeneratorFactory.getInstance();
+
+        // shared HTTPS context: a single socket factory lets HttpsURLConnection reuse kept-alive connections
+        this.m_https_context = this.createHttpsContext();
+        if (this.m_https_context != null) {
+            this.m_https_socket_factory = this.m_https_context.getSocketFactory();
+        }
+        this.m_https_hostname_verifier = new HostnameVerifier() {
+            @Override
+            public boolean verify(String hostname, SSLSession session) {
+                return true;
+            }
+        };
+
+        // DEBUG
+        this.errorLogger().info("SharedResources: workers: " + num_workers + " schedulers: " + num_schedulers + " SSL task threads: " + num_ssl_tasks + " per-domain task quota: " + this.m_domain_max_tasks);
+    }
+
+    // shared worker pool
+    public ExecutorService executor() {
+        return this.m_workers;
+    }
+
+    // SSL delegated task pool (MQTT handshakes)
+    public ExecutorService sslTaskExecutor() {
+        return this.m_ssl_tasks;
+    }
+
+    // shared scheduler
+    public ScheduledExecutorService scheduler() {
+        return this.m_scheduler;
+    }
+
+    // shared timer service (periodic/one-shot work on the shared scheduler)
+    public TimerService timers() {
+        return this.m_timers;
+    }
+
+    // shared connection admission queue (rate/concurrency limited peer connects)
+    public ConnectionAdmissionQueue connectionAdmission() {
+        return this.m_connection_admission;
+    }
+
+    // shared HTTPS context
+    public SSLContext httpsContext() {
+        return this.m_https_context;
+    }
+
+    // shared HTTPS socket factory (kept-alive connections are only reused for the same factory instance)
+    public SSLSocketFactory httpsSocketFactory() {
+        return this.m_https_socket_factory;
+    }
+
+    // shared HTTPS hostname verifier
+    public HostnameVerifier httpsHostnameVerifier() {
+        return this.m_https_hostname_verifier;
+    }
+
+    // shared JSON engine
+    public JSONGeneratorFactory jsonFactory() {
+        return this.m_json_factory;
+    }
+
+    // most tasks one domain/account may run at once on the worker pool
+    public int domainMaxTasks() {
+        return this.m_domain_max_tasks;
+    }
+
+    // get the quota-limited executor for a given domain/account
+    public synchronized Executor executorFor(String domain) {
+        String key = (domain != null) ? domain : "";
+        DomainExecutor executor = this.m_domain_executors.get(key);
+        if (executor == null) {
+            executor = new DomainExecutor(key,this.m_domain_max_tasks);
+            this.m_domain_executors.put(key,executor);
+        }
+        return executor;
+    }
+
+    // shutdown the shared pools
+    public void shutdown() {
+        this.m_scheduler.shutdownNow();
+        this.m_ssl_tasks.shutdownNow();
+        this.m_workers.shutdown();
+        try {
+            this.m_workers.awaitTermination(5,TimeUnit.SECONDS);
+        }
+        catch (InterruptedException ex) {
+            this.m_workers.shutdownNow();
+        }
+    }
+
+    // create the shared HTTPS context (trust model matches HttpTransport)
+    private SSLContext createHttpsContext() {
+        try {
+            TrustManager[] trustAllCerts = new TrustManager[]{new X509TrustManager(){
+                @Override
+                public X509Certificate[] getAcceptedIssuers(){return null;}
+                @Override
+                public void checkClientTrusted(X509Certificate[] certs, String authType){}
+                @Override
+                public void checkServerTrusted(X509Certificate[] certs, String authType){}
+            }};
+            SSLContext sc = SSLContext.getInstance("TLS");
+            sc.init(null, trustAllCerts, new SecureRandom());
+            return sc;
+        }
+        catch (Exception ex) {
+            this.errorLogger().warning("SharedResources: unable to create shared HTTPS context: " + ex.getMessage());
+        }
+        return null;
+    }
+
+    /**
+     * Executor that runs at most a fixed number of a domain's tasks on the shared pool at once
+     */
+    private class DomainExecutor implements Executor {
+        private final String                          m_domain;
+        private final int                             m_max_tasks;
+        private final AtomicInteger                   m_active = new AtomicInteger(0);
+        private final ConcurrentLinkedQueue<Runnable> m_pending = new ConcurrentLinkedQueue<>();
+
+        DomainExecutor(String domain,int max_tasks) {
+            this.m_domain = domain;
+            this.m_max_tasks = max_tasks;
+        }
+
+        @Override
+        public void execute(Runnable task) {
+            this.m_pending.add(task);
+            this.drain();
+        }
+
+        // start as many pending tasks as our quota allows
+        private void drain() {
+            while (this.m_pending.isEmpty() == false) {
+                int active = this.m_active.get();
+                if (active >= this.m_max_tasks) {
+                    return;
+                }
+                if (this.m_active.compareAndSet(active,active + 1) == true) {
+                    final Runnable task = this.m_pending.poll();
+                    if (task == null) {
+                        this.m_active.decrementAndGet();
+                        continue;
+                    }
+                    try {
+                        m_workers.execute(new Runnable() {
+                            @Override
+                            public void run() {
+                                try {
+                                    task.run();
+                                }
+                                catch (Exception ex) {
+                                    errorLogger().warning("SharedResources: task for domain '" + m_domain + "' failed: " + ex.getMessage(),ex);
+                                }
+                                finally {
+                                    m_active.decrementAndGet();
+                                    drain();
+                                }
+                            }
+                        });
+                    }
+                    catch (RejectedExecutionException ex) {
+                        // the worker pool is saturated or shut down: give the slot back and drop the task (logged)
+                        this.m_active.decrementAndGet();
+                        errorLogger().warning("SharedResources: task for domain '" + this.m_domain + "' rejected by the worker pool: " + ex.getMessage());
+                        return;
+                    }
+                }
+            }
+        }
+    }
+
+    /**
+     * Daemon thread factory with readable thread names
+     */
+    private static class NamedThreadFactory implements ThreadFactory {
+        private final String        m_prefix;
+        private final AtomicInteger m_count = new AtomicInteger(0);
+
+        NamedThreadFactory(String prefix) {
+            this.m_prefix = prefix;
+        }
+
+        @Override
+        public Thread newThread(Runnable r) {
+            Thread t = new Thread(r,this.m_prefix + "-" + this.m_count.incrementAndGet());
+            t.setDaemon(true);
+            return t;
+        }
+    }
+}
@@ -0,0 +1,531 @@
+/**
+ * @file    StateJournal.java
+ * @brief   checkpointed, crash-safe key/value journal for bridge warm restarts
+ * @author  Doug Anson
+ * @version 1.0
+ * @see
+ *
+ * Copyright 2015. ARM Ltd. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+
+package com.arm.connector.bridge.core;
+
+import com.arm.connector.bridge.preferences.PreferenceManager;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.zip.CRC32;
+
+/**
+ * State journal: named tables of string key/values persisted as an append-only journal plus periodic compacted snapshots.
+ * Both files are memory-mapped on load; a torn or corrupt journal tail is discarded. Disabled unless bridge_state_dir is set.
+ * @author Doug Anson
+ */
+public class StateJournal extends BaseClass {
+    private static final int                                DEF_FLUSH_MS = 1000;
+    private static final int                                DEF_CHECKPOINT_MS = 600000;
+    private static final int                                DEF_JOURNAL_MAX_BYTES = 16 * 1024 * 1024;
+    private static final int                                SNAPSHOT_MAGIC = 0x42534e50;
+    private static final byte                               OP_PUT = 1;
+    private static final byte                               OP_REMOVE = 2;
+    private static final Charset                            UTF8 = Charset.forName("UTF-8");
+
+    private String                                          m_name = null;
+    private File                                            m_snapshot_file = null;
+    private File                                            m_journal_file = null;
+    private RandomAccessFile                                m_journal = null;
+    private FileChannel                                     m_channel = null;
+    private HashMap<String,HashMap<String,String>>          m_tables = null;
+    private long                                            m_journal_bytes = 0;
+    private long                                            m_journal_max_bytes = DEF_JOURNAL_MAX_BYTES;
+    private boolean                                         m_dirty = false;
+    private boolean                                         m_checkpoint_pending = false;
+    private boolean                                         m_checkpointing = false;
+    private TimerService                                    m_timers = null;
+    private TimerService.Timer                              m_flush_timer = null;
+    private TimerService.Timer                              m_checkpoint_timer = null;
+
+    // constructor
+    public StateJournal(ErrorLogger error_logger,PreferenceManager preference_manager,TimerService timers,String name) {
+        super(error_logger,preference_manager);
+        this.m_name = name.replaceAll("[^A-Za-z0-9_.-]","_");
+        this.m_timers = timers;
+        this.m_tables = new HashMap<>();
+
+        // persistence is optional
+        String dir = this.prefValue("bridge_state_dir");
+        if (dir != null && dir.length() > 0) {
+            this.open(new File(dir));
+        }
+    }
+
+    // pack fields into a single journal value (each field is length-prefixed, null fields are preserved)
+    public static String pack(String... fields) {
+        StringBuilder packed = new StringBuilder();
+        for(int i=0;i<fields.length;++i) {
+            if (fields[i] == null) {
+                packed.append("-:");
+            }
+            else {
+                packed.append(fields[i].length()).append(':').append(fields[i]);
+            }
+        }
+        return packed.toString();
+    }
+
+    // unpack a journal value created by pack()
+    public static String[] unpack(String packed) {
+        ArrayList<String> fields = new ArrayList<>();
+        int index = 0;
+        while (packed != null && index < packed.length()) {
+            int colon = packed.indexOf(':',index);
+            if (colon < 0) {
+                throw new IllegalArgumentException("malformed packed value");
+            }
+            String length = packed.substring(index,colon);
+            if (length.equals("-") == true) {
+                fields.add(null);
+                index = colon + 1;
+            }
+            else {
+                int end = colon + 1 + Integer.parseInt(length);
+                fields.add(packed.substring(colon + 1,end));
+                index = end;
+            }
+        }
+        return fields.toArray(new String[fields.size()]);
+    }
+
+    // pack a string map into a single journal value
+    public static String packMap(Map<String,String> map) {
+        ArrayList<String> fields = new ArrayList<>();
+        for (Map.Entry<String,String> entry : map.entrySet()) {
+            fields.add(entry.getKey());
+            fields.add(entry.getValue());
+        }
+        return StateJournal.pack(fields.toArray(new String[fields.size()]));
+    }
+
+    // unpack a journal value created by packMap()
+    public static HashMap<String,String> unpackMap(String packed) {
+        String[] fields = StateJournal.unpack(packed);
+        HashMap<String,String> map = new HashMap<>();
+        for(int i=0;(i+1)<fields.length;i+=2) {
+            map.put(fields[i],fields[i+1]);
+        }
+        return map;
+    }
+
+    // are we persisting state?
+    public boolean enabled() {
+        return (this.m_channel != null);
+    }
+
+    // get a copy of a table's current contents
+    public synchronized Map<String,String> table(String table) {
+        HashMap<String,String> contents = this.m_tables.get(table);
+        return (contents != null) ? new HashMap<>(contents) : new HashMap<String,String>();
+    }
+
+    // record a key/value
+    public synchronized void put(String table,String key,String value) {
+        if (this.enabled() == true && key != null && value != null) {
+            String current = this.apply(OP_PUT,table,key,value);
+            if (value.equals(current) == false) {
+                this.append(OP_PUT,table,key,value);
+            }
+        }
+    }
+
+    // remove a key
+    public synchronized void remove(String table,String key) {
+        if (this.enabled() == true && key != null) {
+            if (this.apply(OP_REMOVE,table,key,null) != null) {
+                this.append(OP_REMOVE,table,key,"");
+            }
+        }
+    }
+
+    // write a compacted snapshot and truncate the journal (the snapshot is written outside the lock)
+    public void checkpoint() {
+        HashMap<String,HashMap<String,String>> tables = new HashMap<>();
+        long journal_mark = 0;
+        synchronized (this) {
+            this.m_checkpoint_pending = false;
+            if (this.enabled() == false || this.m_checkpointing == true) {
+                return;
+            }
+            this.m_checkpointing = true;
+            for (Map.Entry<String,HashMap<String,String>> table : this.m_tables.entrySet()) {
+                tables.put(table.getKey(),new HashMap<>(table.getValue()));
+            }
+            journal_mark = this.m_journal_bytes;
+        }
+
+        int num_entries = 0;
+        File tmp = new File(this.m_snapshot_file.getPath() + ".tmp");
+        try {
+            try (RandomAccessFile snapshot = new RandomAccessFile(tmp,"rw")) {
+                this.restrictAccess(tmp);
+                snapshot.setLength(0);
+                FileChannel channel = snapshot.getChannel();
+                ByteBuffer header = ByteBuffer.allocate(4);
+                header.putInt(SNAPSHOT_MAGIC);
+                header.flip();
+                this.write(channel,header);
+                for (Map.Entry<String,HashMap<String,String>> table : tables.entrySet()) {
+                    for (Map.Entry<String,String> entry : table.getValue().entrySet()) {
+                        this.write(channel,this.encode(OP_PUT,table.getKey(),entry.getKey(),entry.getValue()));
+                        ++num_entries;
+                    }
+                }
+                channel.force(true);
+            }
+
+            // atomically publish the snapshot and make the rename itself durable
+            Files.move(tmp.toPath(),this.m_snapshot_file.toPath(),StandardCopyOption.REPLACE_EXISTING,StandardCopyOption.ATOMIC_MOVE);
+            this.syncDirectory(this.m_snapshot_file.getParentFile());
+        }
+        catch (IOException ex) {
+            this.errorLogger().warning("StateJournal(" + this.m_name + "): snapshot failed: " + ex.getMessage(),ex);
+            synchronized (this) {
+                this.m_checkpointing = false;
+            }
+            return;
+        }
+
+        synchronized (this) {
+            try {
+                // drop the (now redundant) journal records the snapshot covers
+                this.truncateJournal(journal_mark);
+
+                // DEBUG
+                this.errorLogger().info("StateJournal(" + this.m_name + "): checkpoint complete: " + num_entries + " entries");
+            }
+            catch (IOException ex) {
+                this.errorLogger().warning("StateJournal(" + this.m_name + "): checkpoint failed: " + ex.getMessage(),ex);
+            }
+            finally {
+                this.m_checkpointing = false;
+            }
+        }
+    }
+
+    // drop journal records before the mark, keeping any appended while the snapshot was written (caller holds the lock)
+    private void truncateJournal(long mark) throws IOException {
+        if (this.enabled() == false) {
+            return;
+        }
+        long tail = this.m_journal_bytes - mark;
+        if (tail <= 0) {
+            this.m_channel.truncate(0);
+            this.m_channel.position(0);
+            this.m_channel.force(true);
+            this.m_journal_bytes = 0;
+            this.m_dirty = false;
+            return;
+        }
+
+        // copy the tail into a new journal and swap it in atomically
+        File tmp = new File(this.m_journal_file.getPath() + ".tmp");
+        try (RandomAccessFile journal = new RandomAccessFile(tmp,"rw")) {
+            this.restrictAccess(tmp);
+            journal.setLength(0);
+            FileChannel channel = journal.getChannel();
+            long copied = 0;
+            while (copied < tail) {
+                copied += this.m_channel.transferTo(mark + copied,tail - copied,channel);
+            }
+            channel.force(true);
+        }
+        this.m_journal.close();
+        this.m_channel = null;
+        try {
+            Files.move(tmp.toPath(),this.m_journal_file.toPath(),StandardCopyOption.REPLACE_EXISTING,StandardCopyOption.ATOMIC_MOVE);
+            this.syncDirectory(this.m_journal_file.getParentFile());
+        }
+        finally {
+            // reopen whichever journal is now in place
+            this.m_journal = new RandomAccessFile(this.m_journal_file,"rw");
+            this.m_channel = this.m_journal.getChannel();
+            this.m_journal_bytes = this.m_channel.size();
+            this.m_channel.position(this.m_journal_bytes);
+            this.m_dirty = false;
+        }
+    }
+
+    // fsync a directory so a rename into it survives a crash (not supported on every platform)
+    private void syncDirectory(File dir) {
+        if (dir == null) {
+            return;
+        }
+        try (FileChannel channel = FileChannel.open(dir.toPath(),StandardOpenOption.READ)) {
+            channel.force(true);
+        }
+        catch (IOException ex) {
+            // not supported here (e.g. Windows): the rename is as durable as the platform makes it
+        }
+    }
+
+    // checkpoint and close
+    public synchronized void close() {
+        if (this.enabled() == false) {
+            return;
+        }
+        if (this.m_flush_timer != null) {
+            this.m_flush_timer.cancel();
+            this.m_flush_timer = null;
+        }
+        if (this.m_checkpoint_timer != null) {
+            this.m_checkpoint_timer.cancel();
+            this.m_checkpoint_timer = null;
+        }
+        this.checkpoint();
+        try {
+            this.m_journal.close();
+        }
+        catch (IOException ex) {
+            this.errorLogger().warning("StateJournal(" + this.m_name + "): close failed: " + ex.getMessage());
+        }
+        this.m_journal = null;
+        this.m_channel = null;
+    }
+
+    // force journaled writes to disk
+    private synchronized void flush() {
+        if (this.enabled() == true && this.m_dirty == true) {
+            try {
+                this.m_channel.force(false);
+                this.m_dirty = false;
+            }
+            catch (IOException ex) {
+                this.errorLogger().warning("StateJournal(" + this.m_name + "): flush failed: " + ex.getMessage());
+            }
+        }
+    }
+
+    // open (and load) the snapshot and journal
+    private void open(File dir) {
+        try {
+            if (dir.exists() == false && dir.mkdirs() == false) {
+                throw new IOException("unable to create " + dir.getPath());
+            }
+            this.m_snapshot_file = new File(dir,this.m_name + ".snapshot");
+            this.m_journal_file = new File(dir,this.m_name + ".journal");
+
+            // load the snapshot then replay the journal over it
+            int num_snapshot = this.loadSnapshot();
+            this.m_journal = new RandomAccessFile(this.m_journal_file,"rw");
+            this.restrictAccess(this.m_journal_file);
+            this.m_channel = this.m_journal.getChannel();
+            long good = this.replay(this.m_channel,0);
+            if (good < this.m_channel.size()) {
+                // torn/corrupt tail from a crash: discard it
+                this.errorLogger().warning("StateJournal(" + this.m_name + "): discarding " + (this.m_channel.size() - good) + " bytes of incomplete journal");
+                this.m_channel.truncate(good);
+            }
+            this.m_channel.position(good);
+            this.m_journal_bytes = good;
+
+            // DEBUG
+            this.errorLogger().info("StateJournal(" + this.m_name + "): loaded " + num_snapshot + " snapshot entries, " + good + " journal bytes from " + dir.getPath());
+        }
+        catch (IOException ex) {
+            this.errorLogger().warning("StateJournal(" + this.m_name + "): unable to open state in " + dir.getPath() + ": " + ex.getMessage() + " (state will not persist)");
+            this.m_tables.clear();
+            this.m_channel = null;
+            return;
+        }
+
+        // group-commit flushes and periodic compaction
+        int flush_ms = this.prefIntValue("bridge_state_flush_ms");
+        int checkpoint_ms = this.prefIntValue("bridge_state_checkpoint_ms");
+        int max_bytes = this.prefIntValue("bridge_state_journal_max_bytes");
+        if (max_bytes > 0) {
+            this.m_journal_max_bytes = max_bytes;
+        }
+        if (this.m_timers != null) {
+            this.m_flush_timer = this.m_timers.schedulePeriodic("state-flush",new Runnable() {
+                @Override
+                public void run() {
+                    flush();
+                }
+            },(flush_ms > 0) ? flush_ms : DEF_FLUSH_MS,(flush_ms > 0) ? flush_ms : DEF_FLUSH_MS);
+            this.m_checkpoint_timer = this.m_timers.schedulePeriodic("state-checkpoint",new Runnable() {
+                @Override
+                public void run() {
+                    checkpoint();
+                }
+            },(checkpoint_ms > 0) ? checkpoint_ms : DEF_CHECKPOINT_MS,(checkpoint_ms > 0) ? checkpoint_ms : DEF_CHECKPOINT_MS);
+        }
+    }
+
+    // load the snapshot (if any)
+    private int loadSnapshot() throws IOException {
+        if (this.m_snapshot_file.exists() == false) {
+            return 0;
+        }
+        try (RandomAccessFile snapshot = new RandomAccessFile(this.m_snapshot_file,"r")) {
+            FileChannel channel = snapshot.getChannel();
+            if (channel.size() < 4) {
+                return 0;
+            }
+            MappedByteBuffer buffer = channel.map(FileChannel.MapMode.READ_ONLY,0,channel.size());
+            if (buffer.getInt() != SNAPSHOT_MAGIC) {
+                this.errorLogger().warning("StateJournal(" + this.m_name + "): ignoring unrecognized snapshot " + this.m_snapshot_file.getPath());
+                return 0;
+            }
+            this.replay(buffer);
+            int count = 0;
+            for (HashMap<String,String> table : this.m_tables.values()) {
+                count += table.size();
+            }
+            return count;
+        }
+    }
+
+    // replay a file from the given offset, returning the end of the last intact record
+    private long replay(FileChannel channel,long offset) throws IOException {
+        if (channel.size() <= offset) {
+            return offset;
+        }
+        MappedByteBuffer buffer = channel.map(FileChannel.MapMode.READ_ONLY,offset,channel.size() - offset);
+        return offset + this.replay(buffer);
+    }
+
+    // replay records from a buffer, returning the position after the last intact record
+    private int replay(ByteBuffer buffer) {
+        int good = buffer.position();
+        CRC32 crc = new CRC32();
+        while (buffer.remaining() >= 8) {
+            int length = buffer.getInt();
+            int checksum = buffer.getInt();
+            if (length <= 0 || length > buffer.remaining()) {
+                break;
+            }
+            byte[] payload = new byte[length];
+            buffer.get(payload);
+            crc.reset();
+            crc.update(payload,0,length);
+            if ((int)crc.getValue() != checksum) {
+                break;
+            }
+            try {
+                ByteBuffer record = ByteBuffer.wrap(payload);
+                byte op = record.get();
+                String table = this.readString(record);
+                String key = this.readString(record);
+                String value = this.readString(record);
+                this.apply(op,table,key,value);
+            }
+            catch (RuntimeException ex) {
+                break;
+            }
+            good = buffer.position();
+        }
+        return good;
+    }
+
+    // apply an operation to the in-memory tables, returning the previous value
+    private String apply(byte op,String table,String key,String value) {
+        HashMap<String,String> contents = this.m_tables.get(table);
+        if (op == OP_PUT) {
+            if (contents == null) {
+                contents = new HashMap<>();
+                this.m_tables.put(table,contents);
+            }
+            return contents.put(key,value);
+        }
+        return (contents != null) ? contents.remove(key) : null;
+    }
+
+    // append a record to the journal
+    private void append(byte op,String table,String key,String value) {
+        try {
+            ByteBuffer record = this.encode(op,table,key,value);
+            this.m_journal_bytes += record.remaining();
+            this.write(this.m_channel,record);
+            this.m_dirty = true;
+        }
+        catch (IOException ex) {
+            this.errorLogger().warning("StateJournal(" + this.m_name + "): journal write failed: " + ex.getMessage());
+        }
+
+        // compact in the background once the journal grows too large
+        if (this.m_journal_bytes > this.m_journal_max_bytes && this.m_checkpoint_pending == false && this.m_timers != null) {
+            this.m_checkpoint_pending = true;
+            this.m_timers.schedule("state-checkpoint",new Runnable() {
+                @Override
+                public void run() {
+                    checkpoint();
+                }
+            },0);
+        }
+    }
+
+    // encode a record: [length][crc32][op][table][key][value]
+    private ByteBuffer encode(byte op,String table,String key,String value) {
+        byte[] t = table.getBytes(UTF8);
+        byte[] k = key.getBytes(UTF8);
+        byte[] v = value.getBytes(UTF8);
+        int length = 1 + 4 + t.length + 4 + k.length + 4 + v.length;
+        ByteBuffer buffer = ByteBuffer.allocate(8 + length);
+        buffer.putInt(length);
+        buffer.putInt(0);
+        buffer.put(op);
+        buffer.putInt(t.length).put(t);
+        buffer.putInt(k.length).put(k);
+        buffer.putInt(v.length).put(v);
+        CRC32 crc = new CRC32();
+        crc.update(buffer.array(),8,length);
+        buffer.putInt(4,(int)crc.getValue());
+        buffer.flip();
+        return buffer;
+    }
+
+    // read a length-prefixed string
+    private String readString(ByteBuffer buffer) {
+        int length = buffer.getInt();
+        byte[] bytes = new byte[length];
+        buffer.get(bytes);
+        return new String(bytes,UTF8);
+    }
+
+    // write a buffer fully
+    private void write(FileChannel channel,ByteBuffer buffer) throws IOException {
+        while (buffer.hasRemaining() == true) {
+            channel.write(buffer);
+        }
+    }
+
+    // state may include device credentials: owner access only
+    private void restrictAccess(File file) {
+        file.setReadable(false,false);
+        file.setReadable(true,true);
+        file.setWritable(false,false);
+        file.setWritable(true,true);
+    }
+}
@@ -0,0 +1,244 @@
+/**
+ * @file    TimerService.java
+ * @brief   shared timer service for periodic and one-shot background work
+ * @author  Doug Anson
+ * @version 1.0
+ * @see
+ *
+ * Copyright 2015. ARM Ltd. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+
+package com.arm.connector.bridge.core;
+
+import com.arm.connector.bridge.preferences.PreferenceManager;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * Timer service: all periodic bridge work (validation sweeps, domain polls, receive polls, expiry) registers here
+ * instead of owning a sleeping thread. The scheduler only fires timers; the work itself runs on the worker pool.
+ * @author Doug Anson
+ */
+public class TimerService extends BaseClass {
+    private ScheduledExecutorService            m_scheduler = null;
+    private Executor                            m_workers = null;
+    private ConcurrentHashMap<String,TimerStats> m_stats = null;
+    private Timer                               m_metrics_timer = null;
+
+    // constructor
+    public TimerService(ErrorLogger error_logger,PreferenceManager preference_manager,ScheduledExecutorService scheduler,Executor workers) {
+        super(error_logger,preference_manager);
+        this.m_scheduler = scheduler;
+        this.m_workers = workers;
+        this.m_stats = new ConcurrentHashMap<>();
+
+        // optionally log our timer metrics periodically
+        int metrics_log_ms = this.prefIntValue("bridge_timer_metrics_log_ms");
+        if (metrics_log_ms > 0) {
+            this.m_metrics_timer = this.schedulePeriodic("timer-metrics",new Runnable() {
+                @Override
+                public void run() {
+                    logMetrics();
+                }
+            },metrics_log_ms,metrics_log_ms);
+        }
+    }
+
+    // schedule a one-shot timer
+    public Timer schedule(String name,Runnable task,long delay_ms) {
+        Timer timer = new Timer(name,task,0,this.stats(name));
+        timer.arm(delay_ms);
+        return timer;
+    }
+
+    // schedule a periodic timer (fixed delay between the end of one run and the start of the next)
+    public Timer schedulePeriodic(String name,Runnable task,long initial_delay_ms,long period_ms) {
+        Timer timer = new Timer(name,task,Math.max(1,period_ms),this.stats(name));
+        timer.arm(initial_delay_ms);
+        return timer;
+    }
+
+    // get the metrics for all timers: name -> runs/active/lateness/jitter
+    public Map<String,String> metrics() {
+        HashMap<String,String> metrics = new HashMap<>();
+        for (Map.Entry<String,TimerStats> entry : this.m_stats.entrySet()) {
+            metrics.put(entry.getKey(),entry.getValue().toString());
+        }
+        return metrics;
+    }
+
+    // log our timer metrics
+    private void logMetrics() {
+        for (Map.Entry<String,TimerStats> entry : this.m_stats.entrySet()) {
+            this.errorLogger().info("TimerService: " + entry.getKey() + ": " + entry.getValue().toString());
+        }
+    }
+
+    // get (or create) the stats bucket for a timer name
+    private TimerStats stats(String name) {
+        TimerStats stats = this.m_stats.get(name);
+        if (stats == null) {
+            this.m_stats.putIfAbsent(name,new TimerStats());
+            stats = this.m_stats.get(name);
+        }
+        return stats;
+    }
+
+    /**
+     * A cancellable timer handle
+     */
+    public class Timer implements Runnable {
+        private final String                m_name;
+        private final Runnable              m_task;
+        private final long                  m_period_ms;
+        private final TimerStats            m_timer_stats;
+        private final AtomicBoolean         m_cancelled = new AtomicBoolean(false);
+        private volatile ScheduledFuture<?> m_future = null;
+        private volatile long               m_expected_ns = 0;
+
+        Timer(String name,Runnable task,long period_ms,TimerStats stats) {
+            this.m_name = name;
+            this.m_task = task;
+            this.m_period_ms = period_ms;
+            this.m_timer_stats = stats;
+            this.m_timer_stats.activated();
+        }
+
+        // our name
+        public String name() {
+            return this.m_name;
+        }
+
+        // cancel the timer (a run already in progress completes)
+        public void cancel() {
+            if (this.m_cancelled.compareAndSet(false,true) == true) {
+                this.m_timer_stats.deactivated();
+                ScheduledFuture<?> future = this.m_future;
+                if (future != null) {
+                    future.cancel(false);
+                }
+            }
+        }
+
+        // cancelled?
+        public boolean isCancelled() {
+            return this.m_cancelled.get();
+        }
+
+        // arm the timer
+        private void arm(long delay_ms) {
+            if (this.m_cancelled.get() == false) {
+                try {
+                    this.m_expected_ns = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(Math.max(0,delay_ms));
+                    this.m_future = m_scheduler.schedule(this,Math.max(0,delay_ms),TimeUnit.MILLISECONDS);
+                }
+                catch (RejectedExecutionException ex) {
+                    // scheduler has been shut down
+                    this.cancel();
+                }
+            }
+        }
+
+        // fired by the scheduler: hand the work to the worker pool
+        @Override
+        public void run() {
+            if (this.m_cancelled.get() == true) {
+                return;
+            }
+            try {
+                m_workers.execute(new Runnable() {
+                    @Override
+                    public void run() {
+                        execute();
+                    }
+                });
+            }
+            catch (RejectedExecutionException ex) {
+                // worker pool has been shut down
+                this.cancel();
+            }
+        }
+
+        // run the task and re-arm if periodic
+        private void execute() {
+            if (this.m_cancelled.get() == true) {
+                return;
+            }
+            this.m_timer_stats.record(System.nanoTime() - this.m_expected_ns);
+            try {
+                this.m_task.run();
+            }
+            catch (Exception ex) {
+                errorLogger().warning("TimerService: timer '" + this.m_name + "' failed: " + ex.getMessage(),ex);
+            }
+            finally {
+                if (this.m_period_ms > 0) {
+                    this.arm(this.m_period_ms);
+                }
+                else if (this.m_cancelled.compareAndSet(false,true) == true) {
+                    // one-shot timers are done
+                    this.m_timer_stats.deactivated();
+                }
+            }
+        }
+    }
+
+    /**
+     * Aggregated lateness/jitter statistics for all timers sharing a name
+     */
+    private static class TimerStats {
+        private long    m_runs = 0;
+        private long    m_active = 0;
+        private long    m_total_lateness_ns = 0;
+        private long    m_max_lateness_ns = 0;
+        private long    m_last_lateness_ns = 0;
+        private long    m_total_jitter_ns = 0;
+
+        synchronized void activated() {
+            ++this.m_active;
+        }
+
+        synchronized void deactivated() {
+            --this.m_active;
+        }
+
+        // record how late a run started vs. when it was due
+        synchronized void record(long lateness_ns) {
+            lateness_ns = Math.max(0,lateness_ns);
+            if (this.m_runs > 0) {
+                this.m_total_jitter_ns += Math.abs(lateness_ns - this.m_last_lateness_ns);
+            }
+            ++this.m_runs;
+            this.m_total_lateness_ns += lateness_ns;
+            this.m_max_lateness_ns = Math.max(this.m_max_lateness_ns,lateness_ns);
+            this.m_last_lateness_ns = lateness_ns;
+        }
+
+        @Override
+        public synchronized String toString() {
+            long avg_lateness_us = (this.m_runs > 0) ? (this.m_total_lateness_ns / this.m_runs) / 1000 : 0;
+            long avg_jitter_us = (this.m_runs > 1) ? (this.m_total_jitter_ns / (this.m_runs - 1)) / 1000 : 0;
+            return "active=" + this.m_active + " runs=" + this.m_runs + " avg_lateness_us=" + avg_lateness_us + " max_lateness_us=" + (this.m_max_lateness_ns / 1000) + " avg_jitter_us=" + avg_jitter_us;
+        }
+    }
+}
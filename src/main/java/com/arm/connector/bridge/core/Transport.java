@@ -60,6 +60,19 @@ public abstract class Transport extends BaseClass {
      * main thread loop
      */
     public abstract boolean receiveAndProcess();
+    /**
+     * start event-driven receive (messages are delivered to the listener as they arrive)
+     * @return true if the transport supports and has started event-driven receive, false to poll receiveAndProcess()
+     */
+    public boolean startReceiving() {
+        return false;
+    }
+    /**
+     * stop event-driven receive
+     */
+    public void stopReceiving() {
+        // not supported by default
+    }
     /**
      * connect transport
      * @param host
@@ -24,14 +24,17 @@ package com.arm.connector.bridge.core;
 
 
 /**
- * Receive Thread for inbound message processing
+ * Receive driver for inbound message processing: event-driven when the transport supports it, otherwise a poller
+ * on the shared timer service (rather than its own thread)
  * @author Doug Anson
  */
-public class TransportReceiveThread extends Thread implements Transport.ReceiveListener {
+public class TransportReceiveThread implements Transport.ReceiveListener {
+    private static final int DEF_POLL_INTERVAL_MS = 250;
 
     private boolean m_running = false;
     private Transport m_transport = null;
     private Transport.ReceiveListener m_listener = null;
+    private TimerService.Timer m_timer = null;
 
     /**
      * Constructor
@@ -64,40 +67,56 @@ public class TransportReceiveThread extends Thread implements Transport.ReceiveL
      * disconnect
      */
     public void disconnect() {
+        this.stop();
         if (this.m_transport != null) {
             this.m_transport.disconnect();
         }
     }
 
     /**
-     * run method for the receive thread
+     * start receiving: event-driven if the transport supports it, otherwise poll the transport on the shared timer service
      */
-    @Override
-    public void run() {
+    public synchronized void start() {
         if (!this.m_running) {
             this.m_running = true;
-            this.listenerThreadLoop();
+            if (this.m_transport.startReceiving() == true) {
+                // messages are pushed to us as they arrive
+                return;
+            }
+            int poll_interval_ms = this.m_transport.preferences().intValueOf("mqtt_receive_poll_ms");
+            if (poll_interval_ms <= 0) {
+                poll_interval_ms = DEF_POLL_INTERVAL_MS;
+            }
+            this.m_timer = SharedResources.getInstance().timers().schedulePeriodic("mqtt-receive",new Runnable() {
+                @Override
+                public void run() {
+                    poll();
+                }
+            },0,poll_interval_ms);
+        }
+    }
+
+    /**
+     * stop polling
+     */
+    public synchronized void stop() {
+        this.m_running = false;
+        this.m_transport.stopReceiving();
+        if (this.m_timer != null) {
+            this.m_timer.cancel();
+            this.m_timer = null;
         }
     }
 
     /**
-     * main thread loop
+     * poll: receive and process whatever is pending (stops once the transport disconnects)
      */
-    @SuppressWarnings("empty-statement")
-    private void listenerThreadLoop() {
-        int sleep_time = ((this.m_transport.preferences().intValueOf("mqtt_receive_loop_sleep"))*1000);
-        while (this.m_running && this.m_transport.isConnected() == true) {
-            // receive and process...
+    private void poll() {
+        if (this.m_running && this.m_transport.isConnected() == true) {
             this.m_transport.receiveAndProcess();
-            
-            // sleep for a bit...
-            try {
-                Thread.sleep(sleep_time);
-            }
-            catch(InterruptedException ex) {
-                // silent
-                ;
-            }
+        }
+        else {
+            this.stop();
         }
     }
 
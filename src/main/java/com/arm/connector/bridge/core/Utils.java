@@ -25,8 +25,6 @@ package com.arm.connector.bridge.core;
 
 import java.io.BufferedReader;
 import java.io.ByteArrayInputStream;
-import java.io.File;
-import java.io.FileOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.InputStreamReader;
@@ -67,6 +65,7 @@ public class Utils {
     private static char[] hexArray = {'0', '1', '2', '3', '4', '5', '6', '7', '8', '9', 'A', 'B', 'C', 'D', 'E', 'F'};
     private static String __cache_hash = null;
     private static String _externalIPAddress = null;
+    private static X509Certificate _caCertificate = null;
 
     // get local timezone offset from UTC in milliseconds
     public static int getUTCOffset() {
@@ -260,6 +259,14 @@ public class Utils {
         return decoded;
     }
     
+    // encode a CoAP payload as Base64 (as mDS sends them)
+    public static String encodeCoAPPayload(String payload) {
+        if (payload == null) {
+            return null;
+        }
+        return new String(Base64.encodeBase64(payload.getBytes()));
+    }
+    
     // create a URL-safe Token
     public static String createURLSafeToken(String seed) {
         try {
@@ -386,8 +393,12 @@ public class Utils {
         return str.replace("\\n","");
     }
     
-    // Create CA Root certificate
+    // Create CA Root certificate (parsed once)
     public static X509Certificate createCACertificate(ErrorLogger logger) {
+        if (Utils._caCertificate != null) {
+            return Utils._caCertificate;
+        }
+        
         // Root CA for AWS IoT (5/6/2016)
         // https://www.symantec.com/content/en/us/enterprise/verisign/roots/VeriSign-Class%203-Public-Primary-Certification-Authority-G5.pem
         String pem =    "-----BEGIN CERTIFICATE-----" +
@@ -419,33 +430,13 @@ public class Utils {
                             "hnacRHr2lVz2XTIIM6RUthg/aFzyQkqFOFSDX9HoLPKsEdao7WNq" +
                         "-----END CERTIFICATE-----";
         
-        return Utils.createX509CertificateFromPEM(logger,pem,"X509");
+        Utils._caCertificate = Utils.createX509CertificateFromPEM(logger,pem,"X509");
+        return Utils._caCertificate;
     }
     
-    // create a Keystore
-    public static String createKeystore(ErrorLogger logger,String base,String sep,String filename,X509Certificate cert,PrivateKey priv_key,String pw) {
-        String basedir = base + File.separator + sep;
-        String keystore_filename = basedir + File.separator + filename;
-        
+    // create an in-memory Keystore holding our certificate chain and private key (null on failure)
+    public static KeyStore createKeystore(ErrorLogger logger,X509Certificate cert,PrivateKey priv_key,String pw) {
         try {
-            // first create the directory if it does not exist
-            File file = new File(basedir);
-            
-            // make the directories
-            logger.info("createKeystore: Making directories for keystore...");
-            file.mkdirs();
-            
-            // create the KeyStore
-            logger.info("createKeystore: Creating keystore: " + keystore_filename);
-            file = new File(keystore_filename);
-            if (file.createNewFile()){
-	        logger.info("createKeystore: keystore created:  " + keystore_filename);
-	    }
-            else {
-	        logger.warning("createKeystore: keystore already exists " + keystore_filename);
-	    }
-            
-            // store data into the keystore
             KeyStore ks = KeyStore.getInstance("JKS");
             ks.load(null,pw.toCharArray());
             
@@ -473,21 +464,12 @@ public class Utils {
             else {
                 logger.warning("createKeystore: certificate is NULL... not added to keystore");
             }
-
-            try (FileOutputStream fos = new FileOutputStream(keystore_filename)) {
-                // store away the keystore content
-                ks.store(fos,pw.toCharArray());
-                
-                // close
-                fos.flush();
-            }
+            return ks;
         }
         catch (IOException | KeyStoreException | NoSuchAlgorithmException | CertificateException ex) {
-            logger.warning("createKeystore: Unable to create keystore: " + keystore_filename,ex);
+            logger.warning("createKeystore: Unable to create in-memory keystore",ex);
         }
-       
-        // return the keystore filename
-        return keystore_filename;
+        return null;
     }
     
     // generate a keystore password
@@ -496,49 +478,6 @@ public class Utils {
         return base_pw;
     }
     
-    // remove the keystore from the filesystem
-    public static void deleteKeystore(ErrorLogger logger,String filename,String keystore_name) {
-        try {
-            // DEBUG
-            logger.info("deleteKeystore: deleting keystore: " + filename);
-            
-            // Delete the KeyStore
-            File file = new File(filename);
-            if(file.delete()){
-                // success
-                logger.info(file.getName() + " is deleted!");
-            }
-            else {
-                // failure
-                logger.warning("Delete operation is failed: " + filename);
-            }
-            
-            // Create the parent directory
-            String basedir = filename.replace("/" + keystore_name,"");
-            
-            // DEBUG
-            logger.info("deleteKeystore: deleting keystore parent directory: " + basedir);
-            
-            // Delete the Base Directory
-            file = new File(basedir);
-            if (file.isDirectory()) {
-                if (file.delete()) {
-                    // success
-                    logger.info(basedir + " is deleted!");
-                }
-                else {
-                    // failure
-                    logger.warning("Delete operation is failed : " + basedir);
-                }
-            }
-            
-        }
-        catch (Exception ex) {
-            // exception caught
-            logger.warning("deleteKeystore: Exception during deletion of keystore: " + filename,ex);
-        }
-    }
-    
     // Create X509Certificate from PEM
     static public X509Certificate createX509CertificateFromPEM(ErrorLogger logger,String pem, String cert_type) {
         try {
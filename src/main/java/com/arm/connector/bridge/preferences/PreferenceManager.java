@@ -41,12 +41,27 @@ public class PreferenceManager extends BaseClass {
     private String m_properties_file = null;
     
     private Properties m_config_properties = null;        // DB config properties
+    
+    private PreferenceManager m_parent = null;            // account scoped: shared process-wide preferences
+    private String m_account = null;                      // account scoped: mDC account name
  
     public PreferenceManager(ErrorLogger error_logger) {
         super(error_logger,null);
         this.m_properties_file = DEFAULT_PROPERTIES_FILE;
         this.readPreferencesFile();
     }
+    
+    // account scoped preferences: "key_<account>" overrides "key", otherwise the shared value is used
+    public PreferenceManager(PreferenceManager parent,String account) {
+        super(parent.errorLogger(),null);
+        this.m_parent = parent;
+        this.m_account = account;
+    }
+    
+    // get our account (null if not account scoped)
+    public String account() {
+        return this.m_account;
+    }
    
     public boolean booleanValueOf(String key) {
         return this.booleanValueOf(key,null);
@@ -98,7 +113,20 @@ public class PreferenceManager extends BaseClass {
     }
     
     public String valueOf(String key,String suffix) {
-        String value = this.m_config_properties.getProperty(this.createKey(key,suffix));
+        // account scoped lookups first look for an account specific override
+        if (this.m_account != null) {
+            String value = this.configProperties().getProperty(this.createKey(key,suffix) + "_" + this.m_account);
+            if (value != null) {
+                return value;
+            }
+            
+            // each account is accounted for internally as its own (non-mDS) default domain
+            if (key.equalsIgnoreCase("mds_def_domain") == true) {
+                return this.m_account;
+            }
+        }
+        
+        String value = this.configProperties().getProperty(this.createKey(key,suffix));
         
         // DEBUG
         //this.errorLogger().info("Preference: [" + this.createKey(key,suffix) + "] = [" + value + "]");
@@ -107,6 +135,14 @@ public class PreferenceManager extends BaseClass {
         return value;
     }
     
+    // account scoped preferences share the parent's properties
+    private Properties configProperties() {
+        if (this.m_parent != null) {
+            return this.m_parent.configProperties();
+        }
+        return this.m_config_properties;
+    }
+    
     private String createKey(String key,String suffix) {
         // default
         String full_key = key;
@@ -189,6 +225,10 @@ public class PreferenceManager extends BaseClass {
     }
     
     public void reload() {
+        if (this.m_parent != null) {
+            this.m_parent.reload();
+            return;
+        }
         this.m_config_properties = null;
         this.readPreferencesFile();
     }
@@ -26,6 +26,7 @@ package com.arm.connector.bridge.servlet;
 import com.arm.connector.bridge.coordinator.domains.DomainChecker;
 import com.arm.connector.bridge.coordinator.domains.DomainManager;
 import com.arm.connector.bridge.core.ErrorLogger;
+import com.arm.connector.bridge.core.SharedResources;
 import com.arm.connector.bridge.core.Utils;
 import com.arm.connector.bridge.preferences.PreferenceManager;
 import java.io.IOException;
@@ -48,12 +49,11 @@ public final class Manager {
     private ErrorLogger                     m_error_logger = null;
     private PreferenceManager               m_preference_manager = null;
     private HashMap<String,DomainManager>   m_domain_managers = null;
-    private Runnable                        m_domain_listener = null;
-    private Thread                          m_domain_listener_thread = null;
     private DomainChecker                   m_domain_checker = null;
     private String                          m_mds_version = null;
     private boolean                         m_mds_uses_domains = true;
     private String                          m_mds_gw_events_path = null;
+    private SharedResources                 m_shared_resources = null;
     
     // instance factory
     public static Manager getInstance(HttpServlet servlet) {
@@ -78,6 +78,9 @@ public final class Manager {
         // configure the error logger logging level
         this.m_error_logger.configureLoggingLevel(this.m_preference_manager);
         
+        // process-wide resources shared by every domain/account
+        this.m_shared_resources = SharedResources.getInstance(this.m_error_logger,this.m_preference_manager);
+        
         // Events URI...
         this.m_mds_gw_events_path = this.m_preference_manager.valueOf("mds_gw_events_path");
         
@@ -101,11 +104,17 @@ public final class Manager {
                 // allocate a domain checker
                 this.m_domain_checker = new DomainChecker(this.m_error_logger,this.m_preference_manager);
 
-                // start a listener to watch for new domains...
-                this.m_domain_listener = new DomainListener(this.preferences().valueOf("mds_address"),
-                                                            this.preferences().intValueOf("mds_domain_listener_sleep_interval_ms"));
-                this.m_domain_listener_thread = new Thread(this.m_domain_listener);
-                this.m_domain_listener_thread.start();
+                // start a (shared) timer to watch for new domains...
+                this.m_shared_resources.timers().schedulePeriodic("domain-listener",new Runnable() {
+                    @Override
+                    public void run() {
+                        // check for a new mDS domain
+                        checkForNewDomain();
+
+                        // initialize any listeners that are not already initialized..
+                        initListeners();
+                    }
+                },0,this.preferences().intValueOf("mds_domain_listener_sleep_interval_ms"));
             }
             else {
                 // just add the default configured mDS domain per the config file...
@@ -113,9 +122,35 @@ public final class Manager {
             }
         }
         else {
-            // no domains are used... (so we will account for a single domain using the non-domain value for internal accounting...)
-            this.addDomainManager(new DomainManager(this.m_error_logger,this.m_preference_manager,this.preferences().valueOf("mds_def_domain")));
+            String[] accounts = this.accountList();
+            if (accounts.length > 0) {
+                // multiple mDC accounts: each account gets its own chain (and webhook path) keyed by the account name
+                for(int i=0;i<accounts.length;++i) {
+                    this.errorLogger().info("Adding Domain Manager for mDC account: " + accounts[i]);
+                    this.addDomainManager(new DomainManager(this.m_error_logger,new PreferenceManager(this.m_preference_manager,accounts[i]),accounts[i]));
+                }
+            }
+            else {
+                // no domains are used... (so we will account for a single domain using the non-domain value for internal accounting...)
+                this.addDomainManager(new DomainManager(this.m_error_logger,this.m_preference_manager,this.preferences().valueOf("mds_def_domain")));
+            }
+        }
+    }
+    
+    // get the list of configured mDC accounts (if any)
+    private String[] accountList() {
+        ArrayList<String> accounts = new ArrayList<>();
+        String config = this.preferences().valueOf("mds_accounts");
+        if (config != null && config.length() > 0) {
+            String[] list = config.split(";");
+            for(int i=0;i<list.length;++i) {
+                String account = list[i].trim();
+                if (account.length() > 0 && accounts.contains(account) == false) {
+                    accounts.add(account);
+                }
+            }
         }
+        return accounts.toArray(new String[accounts.size()]);
     }
     
     public void initListeners() {
@@ -201,6 +236,10 @@ public final class Manager {
         return this.m_servlet;
     }
     
+    public SharedResources sharedResources() {
+        return this.m_shared_resources;
+    }
+    
     public ErrorLogger errorLogger() {
         return this.m_error_logger;
     }
@@ -221,41 +260,4 @@ public final class Manager {
             }
         }
     }
-    
-    public class DomainListener implements Runnable {
-		private final String  m_mds_ip_address;
-                private final int     m_sleep_interval_ms;
-                private boolean       m_do_loop;
- 
-		DomainListener(String mds_ip_address,int sleep_interval_ms) {
-                    this.m_mds_ip_address = mds_ip_address;
-                    this.m_sleep_interval_ms = sleep_interval_ms;
-                    this.m_do_loop = true;
-		}
- 
-		@Override
-                @SuppressWarnings("empty-statement")
-		public void run() {
-                    while(this.m_do_loop) {
-                        try {
-                            // check for a new mDS domain
-                            checkForNewDomain();
-                            
-                            // initialize any listeners that are not already initialized..
-                            initListeners();
-                            
-                            // sleep for a bit...
-                            Thread.sleep(this.m_sleep_interval_ms);
-                        }
-                        catch (InterruptedException ex) {
-                            // silent
-                            ;
-                        }
-                    }
-                }
-                    
-                public synchronized void stopListener() {
-                    this.m_do_loop = false;
-                }
-	}
 }
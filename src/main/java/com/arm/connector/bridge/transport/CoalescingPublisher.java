@@ -0,0 +1,182 @@
+/**
+ * @file    CoalescingPublisher.java
+ * @brief   latest-value coalescing publish stage for high-rate topics
+ * @author  Doug Anson
+ * @version 1.0
+ * @see
+ *
+ * Copyright 2015. ARM Ltd. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+
+package com.arm.connector.bridge.transport;
+
+import com.arm.connector.bridge.core.SharedResources;
+import com.arm.connector.bridge.core.TimerService;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.regex.Pattern;
+import org.fusesource.mqtt.client.QoS;
+
+/**
+ * Latest-value publish stage: messages for topics matching a configured pattern are held in a per-topic slot and
+ * sent on a fixed cadence. A newer value replaces one still waiting, so consumers get the newest state without every
+ * intermediate value. Topics that do not match (i.e. counters) are published as usual.
+ * @author Doug Anson
+ */
+public class CoalescingPublisher {
+    private MQTTTransport                   m_transport = null;
+    private List<Pattern>                   m_patterns = null;
+    private long                            m_flush_ms = 0;
+    private LinkedHashMap<String,Slot>      m_slots = null;
+    private TimerService.Timer              m_timer = null;
+
+    // metrics
+    private final AtomicLong                m_offered = new AtomicLong(0);
+    private final AtomicLong                m_coalesced = new AtomicLong(0);
+    private final AtomicLong                m_flushed = new AtomicLong(0);
+
+    // the latest value waiting for a topic
+    private static class Slot {
+        private String                      m_message = null;
+        private QoS                         m_qos = null;
+
+        // constructor
+        private Slot(String message,QoS qos) {
+            this.m_message = message;
+            this.m_qos = qos;
+        }
+    }
+
+    // constructor
+    private CoalescingPublisher(MQTTTransport transport,List<Pattern> patterns,long flush_ms) {
+        this.m_transport = transport;
+        this.m_patterns = patterns;
+        this.m_flush_ms = flush_ms;
+        this.m_slots = new LinkedHashMap<>();
+    }
+
+    // create a coalescing stage for a transport (null if no patterns or cadence are configured)
+    public static CoalescingPublisher create(MQTTTransport transport,String patterns,int flush_ms) {
+        List<Pattern> compiled = CoalescingPublisher.compile(patterns);
+        if (compiled.isEmpty() == true || flush_ms <= 0) {
+            return null;
+        }
+        return new CoalescingPublisher(transport,compiled,flush_ms);
+    }
+
+    /**
+     * offer a message: held (true) if its topic is coalesced, otherwise the caller sends it
+     * @param topic
+     * @param message
+     * @param qos
+     * @return true if the message was taken
+     */
+    public boolean offer(String topic,String message,QoS qos) {
+        if (topic == null || this.matches(topic) == false) {
+            return false;
+        }
+        this.m_offered.incrementAndGet();
+        synchronized (this) {
+            Slot slot = this.m_slots.get(topic);
+            if (slot != null) {
+                // an older value is still unsent: replace it
+                slot.m_message = message;
+                slot.m_qos = qos;
+                this.m_coalesced.incrementAndGet();
+            }
+            else {
+                this.m_slots.put(topic,new Slot(message,qos));
+            }
+
+            // arm the next flush (only while something is waiting)
+            if (this.m_timer == null && SharedResources.getInstance() != null) {
+                this.m_timer = SharedResources.getInstance().timers().schedule("mqtt-coalesce",new Runnable() {
+                    @Override
+                    public void run() {
+                        flush();
+                    }
+                },this.m_flush_ms);
+            }
+        }
+        return true;
+    }
+
+    // send the waiting values (in order of first arrival)
+    public void flush() {
+        LinkedHashMap<String,Slot> slots = null;
+        synchronized (this) {
+            slots = this.m_slots;
+            this.m_slots = new LinkedHashMap<>();
+            if (this.m_timer != null) {
+                this.m_timer.cancel();
+                this.m_timer = null;
+            }
+        }
+        for (Map.Entry<String,Slot> entry : slots.entrySet()) {
+            this.m_transport.sendNow(entry.getKey(),entry.getValue().m_message,entry.getValue().m_qos);
+            this.m_flushed.incrementAndGet();
+        }
+    }
+
+    // coalescing metrics
+    public String metrics() {
+        int waiting = 0;
+        synchronized (this) {
+            waiting = this.m_slots.size();
+        }
+        return "waiting=" + waiting + " offered=" + this.m_offered.get() + " coalesced=" + this.m_coalesced.get() + " flushed=" + this.m_flushed.get();
+    }
+
+    // does the topic match one of our patterns?
+    private boolean matches(String topic) {
+        for(int i=0;i<this.m_patterns.size();++i) {
+            if (this.m_patterns.get(i).matcher(topic).matches() == true) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    // compile semicolon separated topic patterns ("*" matches any run of characters, including "/")
+    private static List<Pattern> compile(String patterns) {
+        ArrayList<Pattern> compiled = new ArrayList<>();
+        if (patterns == null) {
+            return compiled;
+        }
+        String[] entries = patterns.split(";");
+        for(int i=0;i<entries.length;++i) {
+            String entry = entries[i].trim();
+            if (entry.length() == 0 || entry.equalsIgnoreCase("off") == true) {
+                continue;
+            }
+            StringBuilder regex = new StringBuilder();
+            String[] parts = entry.split("\\*",-1);
+            for(int j=0;j<parts.length;++j) {
+                if (j > 0) {
+                    regex.append(".*");
+                }
+                if (parts[j].length() > 0) {
+                    regex.append(Pattern.quote(parts[j]));
+                }
+            }
+            compiled.add(Pattern.compile(regex.toString()));
+        }
+        return compiled;
+    }
+}
@@ -25,6 +25,7 @@ package com.arm.connector.bridge.transport;
 
 import com.arm.connector.bridge.core.BaseClass;
 import com.arm.connector.bridge.core.ErrorLogger;
+import com.arm.connector.bridge.core.SharedResources;
 import com.arm.connector.bridge.preferences.PreferenceManager;
 import java.io.BufferedReader;
 import java.io.IOException;
@@ -43,6 +44,7 @@ import javax.net.ssl.HostnameVerifier;
 import javax.net.ssl.HttpsURLConnection;
 import javax.net.ssl.SSLContext;
 import javax.net.ssl.SSLSession;
+import javax.net.ssl.SSLSocketFactory;
 import javax.net.ssl.TrustManager;
 import javax.net.ssl.X509TrustManager;
 import org.apache.commons.codec.binary.Base64;
@@ -53,7 +55,7 @@ import org.apache.commons.codec.binary.Base64;
  * @author Doug Anson
  */
 public class HttpTransport extends BaseClass {
-    private int m_last_response_code = 0;
+    private ThreadLocal<Integer> m_last_response_code = new ThreadLocal<>();
     private String m_auth_qualifier_default = "bearer";
     private String m_auth_qualifier = this.m_auth_qualifier_default;
     private String m_basic_auth_qualifier = "Basic";
@@ -430,11 +432,15 @@ public class HttpTransport extends BaseClass {
         return value;
     }
     
+    // response codes are kept per calling thread so concurrent requests on a shared transport do not see each other's status
     private void saveResponseCode(int response_code) {
-        this.m_last_response_code = response_code;
+        this.m_last_response_code.set(response_code);
     }
     
-    public int getLastResponseCode() { return this.m_last_response_code; }
+    public int getLastResponseCode() { 
+        Integer response_code = this.m_last_response_code.get();
+        return (response_code != null) ? response_code : 0;
+    }
 
     // perform an authenticated HTML operation
     @SuppressWarnings("empty-statement")
@@ -449,42 +455,57 @@ public class HttpTransport extends BaseClass {
 
             // Http Connection and verb
             if (doSSL) {
-                // Create a trust manager that does not validate certificate chains
-                TrustManager[] trustAllCerts = new TrustManager[]{new X509TrustManager(){
-                    @Override
-                    public X509Certificate[] getAcceptedIssuers(){return null;}
-                    @Override
-                    public void checkClientTrusted(X509Certificate[] certs, String authType){}
-                    @Override
-                    public void checkServerTrusted(X509Certificate[] certs, String authType){}
-                }};
+                SSLSocketFactory sf = null;
+                HostnameVerifier hv = null;
+                
+                // use the process-wide HTTPS socket factory if we have one (allows kept-alive connections to be reused)
+                if (SharedResources.getInstance() != null) {
+                    sf = SharedResources.getInstance().httpsSocketFactory();
+                    hv = SharedResources.getInstance().httpsHostnameVerifier();
+                }
+                
+                if (sf == null) {
+                    // Create a trust manager that does not validate certificate chains
+                    TrustManager[] trustAllCerts = new TrustManager[]{new X509TrustManager(){
+                        @Override
+                        public X509Certificate[] getAcceptedIssuers(){return null;}
+                        @Override
+                        public void checkClientTrusted(X509Certificate[] certs, String authType){}
+                        @Override
+                        public void checkServerTrusted(X509Certificate[] certs, String authType){}
+                    }};
 
-                // Install the all-trusting trust manager
-                try {
-                    sc = SSLContext.getInstance("TLS");
-                    sc.init(null, trustAllCerts, new SecureRandom());
-                    HttpsURLConnection.setDefaultSSLSocketFactory(sc.getSocketFactory());
-                    HttpsURLConnection.setDefaultHostnameVerifier(new HostnameVerifier() {
+                    // Install the all-trusting trust manager
+                    try {
+                        sc = SSLContext.getInstance("TLS");
+                        sc.init(null, trustAllCerts, new SecureRandom());
+                        sf = sc.getSocketFactory();
+                        HttpsURLConnection.setDefaultSSLSocketFactory(sf);
+                        HttpsURLConnection.setDefaultHostnameVerifier(new HostnameVerifier() {
+                                @Override
+                                public boolean verify(String hostname, SSLSession session) {
+                                    return true;
+                                }
+                            });
+                    } catch (NoSuchAlgorithmException | KeyManagementException e) {
+                        // do nothing
+                        ;
+                    }
+                }
+                if (hv == null) {
+                    hv = new HostnameVerifier() {
                             @Override
                             public boolean verify(String hostname, SSLSession session) {
                                 return true;
                             }
-                        });
-                } catch (NoSuchAlgorithmException | KeyManagementException e) {
-                    // do nothing
-                    ;
+                        };
                 }
                 
                 // open the SSL connction
                 connection = (HttpsURLConnection)(url.openConnection());
                 ((HttpsURLConnection)connection).setRequestMethod(verb);
-                ((HttpsURLConnection)connection).setSSLSocketFactory(sc.getSocketFactory());
-                ((HttpsURLConnection)connection).setHostnameVerifier(new HostnameVerifier() {
-                            @Override
-                            public boolean verify(String hostname, SSLSession session) {
-                                return true;
-                            }
-                        });
+                ((HttpsURLConnection)connection).setSSLSocketFactory(sf);
+                ((HttpsURLConnection)connection).setHostnameVerifier(hv);
             }
             else {
                 connection = (HttpURLConnection)(url.openConnection()); 
@@ -0,0 +1,123 @@
+/**
+ * @file    MQTTPublishFuture.java
+ * @brief   completion of a pipelined MQTT publish
+ * @author  Doug Anson
+ * @version 1.0
+ * @see
+ *
+ * Copyright 2015. ARM Ltd. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+
+package com.arm.connector.bridge.transport;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+/**
+ * Completion of a pipelined MQTT publish: true once the broker has acknowledged it (PUBACK for QoS 1), false if it failed
+ * @author Doug Anson
+ */
+public class MQTTPublishFuture implements Future<Boolean> {
+    /**
+     * Notified once the publish completes (on the thread that completes it)
+     */
+    public interface Listener {
+        public void completed(boolean acked);
+    }
+
+    private final CountDownLatch    m_done = new CountDownLatch(1);
+    private volatile Boolean        m_acked = null;
+    private volatile Throwable      m_failure = null;
+    private Listener                m_listener = null;
+
+    // constructor
+    public MQTTPublishFuture() {
+    }
+
+    // already completed publish (i.e. an empty message or a publish that could not be started)
+    public static MQTTPublishFuture completed(boolean acked) {
+        MQTTPublishFuture future = new MQTTPublishFuture();
+        future.complete(acked,null);
+        return future;
+    }
+
+    // complete the publish (first completion wins)
+    void complete(boolean acked,Throwable failure) {
+        Listener listener = null;
+        synchronized (this) {
+            if (this.m_acked != null) {
+                return;
+            }
+            this.m_failure = failure;
+            this.m_acked = acked;
+            listener = this.m_listener;
+            this.m_listener = null;
+        }
+        this.m_done.countDown();
+        if (listener != null) {
+            listener.completed(acked);
+        }
+    }
+
+    // notify a listener once the publish completes (right away if it already has)... one listener per future
+    public void whenDone(Listener listener) {
+        synchronized (this) {
+            if (this.m_acked == null) {
+                this.m_listener = listener;
+                return;
+            }
+        }
+        listener.completed(this.m_acked);
+    }
+
+    // the failure, if the publish failed with one
+    public Throwable failure() {
+        return this.m_failure;
+    }
+
+    @Override
+    public boolean cancel(boolean may_interrupt) {
+        // a publish on the wire cannot be recalled
+        return false;
+    }
+
+    @Override
+    public boolean isCancelled() {
+        return false;
+    }
+
+    @Override
+    public boolean isDone() {
+        return (this.m_acked != null);
+    }
+
+    @Override
+    public Boolean get() throws InterruptedException, ExecutionException {
+        this.m_done.await();
+        return this.m_acked;
+    }
+
+    @Override
+    public Boolean get(long timeout, TimeUnit unit) throws InterruptedException, ExecutionException, TimeoutException {
+        if (this.m_done.await(timeout,unit) == false) {
+            throw new TimeoutException("MQTT publish not acknowledged within " + unit.toMillis(timeout) + "ms");
+        }
+        return this.m_acked;
+    }
+}
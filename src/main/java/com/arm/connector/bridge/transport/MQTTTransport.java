@@ -25,11 +25,12 @@ package com.arm.connector.bridge.transport;
 
 import com.arm.connector.bridge.core.Transport;
 import com.arm.connector.bridge.core.ErrorLogger;
+import com.arm.connector.bridge.core.SharedResources;
+import com.arm.connector.bridge.core.TimerService;
 import com.arm.connector.bridge.core.Utils;
 import com.arm.connector.bridge.preferences.PreferenceManager;
 import java.io.EOFException;
-import java.io.FileInputStream;
-import java.io.IOException;
+import java.io.File;
 import java.security.KeyManagementException;
 import java.security.KeyStore;
 import java.security.KeyStoreException;
@@ -40,6 +41,17 @@ import java.security.SecureRandom;
 import java.security.UnrecoverableKeyException;
 import java.security.cert.CertificateException;
 import java.security.cert.X509Certificate;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
 import javax.net.ssl.KeyManager;
 import javax.net.ssl.KeyManagerFactory;
 import javax.net.ssl.SSLContext;
@@ -48,6 +60,8 @@ import javax.net.ssl.TrustManagerFactory;
 import javax.net.ssl.X509TrustManager;
 import org.bouncycastle.jce.provider.BouncyCastleProvider;
 import org.fusesource.mqtt.client.BlockingConnection;
+import org.fusesource.mqtt.client.Callback;
+import org.fusesource.mqtt.client.FutureConnection;
 import org.fusesource.mqtt.client.MQTT;
 import org.fusesource.mqtt.client.QoS;
 import org.fusesource.mqtt.client.Topic;
@@ -60,13 +74,19 @@ import org.fusesource.mqtt.client.Topic;
 public class MQTTTransport extends Transport {
 
     private static MQTTTransport m_self = null;
+    
+    // PKI SSL contexts shared across transport instances (keyed by id and credentials) so re-created sessions skip the key setup
+    private static final int DEF_SSL_CONTEXT_CACHE_SIZE = 10000;
+    private static LinkedHashMap<String,SSLContext> m_ssl_contexts = null;
+    
+    // SSL context shared by non-PKI SSL sessions (no client identity... so sessions to the same host can be resumed by any of them)
+    private static SSLContext m_shared_ssl_context = null;
     private BlockingConnection m_connection = null;
     private byte[] m_qoses = null;
     private String m_suffix = null;
     private String m_username = null;
     private String m_password = null;
     private String m_host_url = null;
-    private int m_sleep_time = 0; 
     private String m_client_id = null;
  
     private String m_connect_host = null;
@@ -74,8 +94,7 @@ public class MQTTTransport extends Transport {
     private String m_connect_client_id = null;
     private boolean m_connect_clean_session = false;
     
-    private int m_num_retries = 0;
-    private int m_max_retries = 10;
+    private ReconnectionManager m_reconnector = null;
     private Topic[] m_subscribe_topics = null;
     private String[] m_unsubscribe_topics = null;
     private boolean m_forced_ssl = false;
@@ -85,16 +104,58 @@ public class MQTTTransport extends Transport {
     private String m_pki_pub_key = null;
     private String m_pki_cert = null;
     private SSLContext m_ssl_context = null;
+    private String m_ssl_context_key = null;
     
     private String m_keystore_pw = null;
-    private String m_base_dir = null;
-    private String m_keystore_filename = null;
-    private String m_keystore_basename = null;
     private X509Certificate m_cert = null;
     private PublicKey m_pubkey = null;
     private PrivateKey m_privkey = null;
     private boolean m_set_mqtt_version = true;
     
+    // event-driven receive
+    private FutureConnection m_future_connection = null;
+    private volatile boolean m_receiving = false;
+    private boolean m_receive_paused = false;
+    private boolean m_draining = false;
+    private int m_max_pending = 1000;
+    private final ConcurrentLinkedQueue<MQTTMessage> m_pending = new ConcurrentLinkedQueue<>();
+    
+    // pipelined publishing: up to m_publish_window unacknowledged publishes in flight
+    private int m_publish_window = 16;
+    private long m_publish_wait_ms = 30000;
+    private volatile Semaphore m_publish_permits = null;
+    private final AtomicLong m_published = new AtomicLong(0);
+    private final AtomicLong m_acked = new AtomicLong(0);
+    private final AtomicLong m_publish_failed = new AtomicLong(0);
+    private final AtomicInteger m_max_in_flight = new AtomicInteger(0);
+    
+    // latest-value coalescing for high-rate topics (null: disabled)
+    private CoalescingPublisher m_coalescer = null;
+    
+    // store-and-forward while the broker is unreachable (disabled unless mqtt_spool_dir is set)
+    private String m_spool_dir = null;
+    private StoreAndForwardQueue m_spool = null;
+    private final AtomicBoolean m_replaying = new AtomicBoolean(false);
+    private final ConcurrentLinkedQueue<FailedPublish> m_failed_publishes = new ConcurrentLinkedQueue<>();
+    private final AtomicBoolean m_restoring = new AtomicBoolean(false);
+    
+    // a publish that failed in flight (handed back to the spool in the order it was sent)
+    private static class FailedPublish {
+        private String  m_topic = null;
+        private String  m_message = null;
+        private QoS     m_qos = null;
+        
+        // constructor
+        private FailedPublish(String topic,String message,QoS qos) {
+            this.m_topic = topic;
+            this.m_message = message;
+            this.m_qos = qos;
+        }
+    }
+    
+    // most recent traffic (orders reconnects in the connection admission queue)
+    private volatile long m_last_activity_ms = 0;
+    
     /**
      * Instance Factory
      * @param error_logger
@@ -122,16 +183,12 @@ public class MQTTTransport extends Transport {
         this.m_ssl_context = null;
         this.m_host_url = null;
         this.m_suffix = suffix;
-        this.m_keystore_filename = null;
         this.m_set_mqtt_version = true;
         
         this.setUsername(this.prefValue("mqtt_username",this.m_suffix));
         this.setPassword(this.prefValue("mqtt_password",this.m_suffix));
-        this.m_max_retries = this.preferences().intValueOf("mqtt_connect_retries",this.m_suffix);
-        this.m_sleep_time = ((this.preferences().intValueOf("mqtt_receive_loop_sleep",this.m_suffix))*1000);
         this.m_keystore_pw = this.preferences().valueOf("mqtt_keystore_pw",this.m_suffix);
-        this.m_base_dir = this.preferences().valueOf("mqtt_keystore_basedir",this.m_suffix);
-        this.m_keystore_basename = this.preferences().valueOf("mqtt_keystore_basename",this.m_suffix);
+        this.init();
     }
 
     /**
@@ -146,16 +203,35 @@ public class MQTTTransport extends Transport {
         this.m_ssl_context = null;
         this.m_host_url = null;
         this.m_suffix = null;
-        this.m_keystore_filename = null;
         this.m_set_mqtt_version = true;
                 
         this.setUsername(this.prefValue("mqtt_username",this.m_suffix));
         this.setPassword(this.prefValue("mqtt_password",this.m_suffix));
-        this.m_max_retries = this.preferences().intValueOf("mqtt_connect_retries",this.m_suffix);
-        this.m_sleep_time = ((this.preferences().intValueOf("mqtt_receive_loop_sleep",this.m_suffix))*1000);
         this.m_keystore_pw = this.preferences().valueOf("mqtt_keystore_pw",this.m_suffix);
-        this.m_base_dir = this.preferences().valueOf("mqtt_keystore_basedir",this.m_suffix);
-        this.m_keystore_basename = this.preferences().valueOf("mqtt_keystore_basename",this.m_suffix);
+        this.init();
+    }
+    
+    // receive, publish window, coalescing, store-and-forward and reconnect setup (both constructors, after m_suffix is set)
+    private void init() {
+        int max_pending = this.preferences().intValueOf("mqtt_receive_max_pending",this.m_suffix);
+        if (max_pending > 0) {
+            this.m_max_pending = max_pending;
+        }
+        int publish_window = this.preferences().intValueOf("mqtt_publish_window",this.m_suffix);
+        if (publish_window > 0) {
+            this.m_publish_window = publish_window;
+        }
+        int publish_wait_ms = this.preferences().intValueOf("mqtt_publish_wait_ms",this.m_suffix);
+        if (publish_wait_ms > 0) {
+            this.m_publish_wait_ms = publish_wait_ms;
+        }
+        this.m_publish_permits = new Semaphore(this.m_publish_window);
+        this.m_coalescer = CoalescingPublisher.create(this,this.preferences().valueOf("mqtt_coalesce_topics",this.m_suffix),this.preferences().intValueOf("mqtt_coalesce_flush_ms",this.m_suffix));
+        this.m_spool_dir = this.preferences().valueOf("mqtt_spool_dir",this.m_suffix);
+        if (this.m_spool_dir != null && (this.m_spool_dir.length() == 0 || this.m_spool_dir.equalsIgnoreCase("off") == true)) {
+            this.m_spool_dir = null;
+        }
+        this.m_reconnector = this.createReconnectionManager();
     }
     
     // disable setting of MQTT version
@@ -201,41 +277,27 @@ public class MQTTTransport extends Transport {
     }
     
     // create the key manager
-    private KeyManager[] createKeyManager(String keyStoreType) {
-        KeyManager[] kms = null;
-        FileInputStream fs = null;
-       
+    private KeyManager[] createKeyManager(KeyStore ks) {
         try {
-            KeyManagerFactory   kmf = KeyManagerFactory.getInstance(KeyManagerFactory.getDefaultAlgorithm());
-            KeyStore ks = KeyStore.getInstance(keyStoreType);
-            fs = new FileInputStream(this.m_keystore_filename);
-            ks.load(fs, this.m_keystore_pw.toCharArray());
+            KeyManagerFactory kmf = KeyManagerFactory.getInstance(KeyManagerFactory.getDefaultAlgorithm());
             kmf.init(ks,this.m_keystore_pw.toCharArray());
-            kms = kmf.getKeyManagers();
+            return kmf.getKeyManagers();
         }
-        catch (NoSuchAlgorithmException | KeyStoreException | IOException | CertificateException | UnrecoverableKeyException ex) {
+        catch (NoSuchAlgorithmException | KeyStoreException | UnrecoverableKeyException ex) {
             this.errorLogger().warning("createKeyManager: Exception in creating the KeyManager list",ex);
         }
-        
-        try {
-            if (fs != null) fs.close();
-        }
-        catch (Exception ex) {
-            // silent
-        }
-        
-        return kms;
+        return null;
     }
     
     // create the trust manager
-    private TrustManager[] createTrustManager() {
+    private TrustManager[] createTrustManager(KeyStore ks) {
         TrustManager tm[] = new TrustManager[1];
-        tm[0] = new MQTTTrustManager(this.m_keystore_filename,this.m_keystore_pw);
+        tm[0] = new MQTTTrustManager(ks);
         return tm;
     }
     
-    // create keystore
-    private String initializeKeyStore(String id) {
+    // create our keystore (in memory... nothing is written to disk)
+    private KeyStore initializeKeyStore(String id) {
         // create our credentials
         this.m_cert = Utils.createX509CertificateFromPEM(this.errorLogger(),this.m_pki_cert,"X509");
         this.m_privkey = Utils.createPrivateKeyFromPEM(this.errorLogger(),this.m_pki_priv_key,"RSA");
@@ -247,25 +309,39 @@ public class MQTTTransport extends Transport {
         this.m_keystore_pw = Utils.generateKeystorePassword(this.m_keystore_pw,id);
 
         // create the keystore
-        return Utils.createKeystore(this.errorLogger(),this.m_base_dir,id,this.m_keystore_basename,this.m_cert,this.m_privkey,this.m_keystore_pw);
+        return Utils.createKeystore(this.errorLogger(),this.m_cert,this.m_privkey,this.m_keystore_pw);
     }
     
-    // initialize the SSL context
+    // initialize the SSL context (reusing a cached one for the same id and credentials)
     private boolean initializeSSLContext(String id) {
         try {
             // enable proper parsing of the PKCS#1 private key from AWS... not sure why they dont just send it as PKCS#8...
-            java.security.Security.addProvider(new BouncyCastleProvider());
+            MQTTTransport.registerSecurityProvider();
+            
+            // already built for these credentials?
+            this.m_ssl_context_key = id + "_" + Utils.createHash(this.m_pki_cert + "_" + this.m_pki_priv_key);
+            SSLContext cached = MQTTTransport.cachedSSLContext(this.m_ssl_context_key);
+            if (cached != null) {
+                // DEBUG
+                this.errorLogger().info("MQTTTransport: reusing cached SSL context for: " + id);
+                this.m_ssl_context = cached;
+                return true;
+            }
             
             // initialize the keystores...
-            this.m_keystore_filename = this.initializeKeyStore(id);
-            if (this.m_keystore_filename != null) {
+            KeyStore ks = this.initializeKeyStore(id);
+            if (ks != null) {
                 // create our SSL context - FYI: AWS IoT requires TLS v1.2
-                this.m_ssl_context = SSLContext.getInstance("TLSv1.2");
+                SSLContext ssl_context = SSLContext.getInstance("TLSv1.2");
                 
                 // initialize the SSL context with our KeyManager and our TrustManager
-                KeyManager km[] = this.createKeyManager("JKS");
-                TrustManager tm[] = this.createTrustManager();
-                this.m_ssl_context.init(km,tm,new SecureRandom());
+                KeyManager km[] = this.createKeyManager(ks);
+                TrustManager tm[] = this.createTrustManager(ks);
+                ssl_context.init(km,tm,new SecureRandom());
+                
+                // reconnects for this device resume its TLS session instead of a full handshake
+                this.m_ssl_context = this.resumable(ssl_context);
+                MQTTTransport.cacheSSLContext(this.m_ssl_context_key,this.m_ssl_context,this.prefIntValue("mqtt_ssl_context_cache_size",this.m_suffix));
                 return true;
             }
         }
@@ -275,6 +351,64 @@ public class MQTTTransport extends Transport {
         }
         return false;
     }
+    
+    // wrap an SSL context for session resumption (mqtt_tls_session_cache_size / mqtt_tls_session_timeout_secs)
+    private SSLContext resumable(SSLContext ssl_context) {
+        return ResumableSSLContext.wrap(ssl_context,this.prefIntValue("mqtt_tls_session_cache_size",this.m_suffix),this.prefIntValue("mqtt_tls_session_timeout_secs",this.m_suffix));
+    }
+    
+    // the SSL context shared by our non-PKI SSL sessions (null if it cannot be created... the MQTT client default is used)
+    private SSLContext sharedSSLContext() {
+        synchronized (MQTTTransport.class) {
+            if (MQTTTransport.m_shared_ssl_context == null) {
+                try {
+                    SSLContext ssl_context = SSLContext.getInstance("TLS");
+                    ssl_context.init(null,null,null);
+                    MQTTTransport.m_shared_ssl_context = this.resumable(ssl_context);
+                }
+                catch (NoSuchAlgorithmException | KeyManagementException ex) {
+                    this.errorLogger().warning("MQTTTransport: unable to create shared SSL context: " + ex.getMessage());
+                }
+            }
+            return MQTTTransport.m_shared_ssl_context;
+        }
+    }
+    
+    // register the BouncyCastle provider (once per JVM)
+    private static synchronized void registerSecurityProvider() {
+        if (java.security.Security.getProvider(BouncyCastleProvider.PROVIDER_NAME) == null) {
+            java.security.Security.addProvider(new BouncyCastleProvider());
+        }
+    }
+    
+    // look up a cached SSL context
+    private static synchronized SSLContext cachedSSLContext(String key) {
+        if (MQTTTransport.m_ssl_contexts != null) {
+            return MQTTTransport.m_ssl_contexts.get(key);
+        }
+        return null;
+    }
+    
+    // cache an SSL context (least recently used ones are dropped past max_size)
+    private static synchronized void cacheSSLContext(String key,SSLContext ssl_context,int max_size) {
+        if (MQTTTransport.m_ssl_contexts == null) {
+            final int limit = (max_size > 0) ? max_size : DEF_SSL_CONTEXT_CACHE_SIZE;
+            MQTTTransport.m_ssl_contexts = new LinkedHashMap<String,SSLContext>(16,0.75f,true) {
+                @Override
+                protected boolean removeEldestEntry(Map.Entry<String,SSLContext> eldest) {
+                    return (this.size() > limit);
+                }
+            };
+        }
+        MQTTTransport.m_ssl_contexts.put(key,ssl_context);
+    }
+    
+    // forget a cached SSL context (i.e. the device has been removed)
+    private static synchronized void evictSSLContext(String key) {
+        if (MQTTTransport.m_ssl_contexts != null && key != null) {
+            MQTTTransport.m_ssl_contexts.remove(key);
+        }
+    }
      
     // PUBLIC: Create the authentication hash
     public String createAuthenticationHash() {
@@ -360,9 +494,22 @@ public class MQTTTransport extends Transport {
      * @return
      */
     public boolean connect(String host, int port, String clientID,boolean clean_session) {
-        int sleep_time = this.prefIntValue("mqtt_retry_sleep",this.m_suffix);
-        int num_tries = this.prefIntValue("mqtt_connect_retries",this.m_suffix);
-        for(int i=0;i<num_tries && !this.m_connected; ++i) {
+        // one attempt on the caller's thread... any retries are the reconnection manager's (backoff, never blocking the caller)
+        boolean connected = this.connectOnce(host,port,clientID,clean_session);
+        if (connected == false) {
+            // keep trying in the background with these creds
+            this.m_connect_host = host;
+            this.m_connect_port = port;
+            this.m_connect_client_id = clientID;
+            this.m_connect_clean_session = clean_session;
+            this.connectionLost("initial connect failed");
+        }
+        return connected;
+    }
+    
+    // one connect attempt to the MQTT broker
+    private boolean connectOnce(String host, int port, String clientID,boolean clean_session) {
+        if (this.m_connected == false) {
             try {                
                 // MQTT endpoint 
                 MQTT endpoint = new MQTT();
@@ -381,6 +528,11 @@ public class MQTTTransport extends Transport {
                 // setup the hostname & port
                 endpoint.setHost(url);
                 
+                // SSL handshake tasks run on a small dedicated pool (never behind the blocking connects on the worker pool)
+                if (SharedResources.getInstance() != null) {
+                    endpoint.setBlockingExecutor(SharedResources.getInstance().sslTaskExecutor());
+                }
+                
                 // set the MQTT version
                 String mqtt_version = this.prefValue("mqtt_version",this.m_suffix);
                 if (mqtt_version != null && this.m_set_mqtt_version == true) {
@@ -395,6 +547,11 @@ public class MQTTTransport extends Transport {
                     endpoint.setSslContext(this.m_ssl_context);
                 }
                 else {
+                    // non-PKI SSL: share one session cache so connections to the same host resume TLS sessions
+                    if (url.startsWith("ssl://") == true && this.sharedSSLContext() != null) {
+                        endpoint.setSslContext(this.sharedSSLContext());
+                    }
+                    
                     // non-PKI: configure credentials
                     String username = this.getUsername();
                     String pw = this.getPassword();
@@ -434,22 +591,8 @@ public class MQTTTransport extends Transport {
                 if (trafficClass >= 0) {
                     endpoint.setTrafficClass(trafficClass);
                 }
-                int reconnectAttempts = this.prefIntValue("mqtt_reconnect_retries_max",this.m_suffix);
-                if (reconnectAttempts >= 0) {
-                    endpoint.setReconnectAttemptsMax(reconnectAttempts);
-                }
-                long reconnectDelay = (long)this.prefIntValue("mqtt_reconnect_delay",this.m_suffix);
-                if (reconnectDelay >= 0) {
-                    endpoint.setReconnectDelay(reconnectDelay);
-                }
-                long reconnectDelayMax = (long)this.prefIntValue("mqtt_reconnect_delay_max",this.m_suffix);
-                if (reconnectDelayMax >= 0) {
-                    endpoint.setReconnectDelayMax(reconnectDelayMax);
-                }
-                float backoffMultiplier = this.prefFloatValue("mqtt_backoff_multiplier",this.m_suffix);
-                if (backoffMultiplier >= 0) {
-                    endpoint.setReconnectBackOffMultiplier(backoffMultiplier);
-                }
+                // reconnects are ours (ReconnectionManager)... the client library must not race them with its own
+                endpoint.setReconnectAttemptsMax(0);
                 short keepAlive = (short)this.prefIntValue("mqtt_keep_alive",this.m_suffix);
                 if (keepAlive >= 0) {
                     endpoint.setKeepAlive(keepAlive);
@@ -461,19 +604,15 @@ public class MQTTTransport extends Transport {
                 try {
                     // connect MQTT...
                     this.m_endpoint = endpoint;
-                    this.m_connection = endpoint.blockingConnection();
+                    this.m_future_connection = endpoint.futureConnection();
+                    
+                    // a fresh publish window: permits held by the old connection's publishes are not carried over
+                    this.m_publish_permits = new Semaphore(this.m_publish_window);
+                    this.m_connection = new BlockingConnection(this.m_future_connection);
                     if (this.m_connection != null) {
-                        // attempt connection
+                        // attempt connection (blocks until the broker has acknowledged the CONNECT)
                         this.m_connection.connect();
 
-                        // sleep for a short bit...
-                        try {
-                            Thread.sleep(sleep_time);
-                        }
-                        catch (InterruptedException ex) {
-                            this.errorLogger().critical("MQTTTransport(connect): sleep interrupted",ex);
-                        }
-
                         // check our connection status
                         this.m_connected = this.m_connection.isConnected();
 
@@ -490,6 +629,12 @@ public class MQTTTransport extends Transport {
                             }
                             this.m_connect_client_id = this.m_client_id;
                             this.m_connect_clean_session = clean_session;
+                            this.m_reconnector.connected();
+                            
+                            // send anything stored while we were away (or left over from a previous run)
+                            if (this.spool() != null && this.spool().isEmpty() == false) {
+                                this.scheduleReplay();
+                            }
                         }
                         else {
                             this.errorLogger().warning("MQTTTransport: Connection to: " + url + " FAILED");
@@ -512,30 +657,12 @@ public class MQTTTransport extends Transport {
                     }
                     this.errorLogger().warning("MQTT: host: " + host);
                     this.errorLogger().warning("MQTT: port: " + port);
-                    
-                    // sleep for a short bit...
-                    try {
-                        Thread.sleep(sleep_time);
-                    }
-                    catch (InterruptedException ex2) {
-                        this.errorLogger().critical("MQTTTransport(connect): sleep interrupted",ex2);
-                    }
                 }
             }
             catch (Exception ex) {
                 this.errorLogger().critical("MQTTTransport(connect): Exception occured", ex);
                 this.m_connected = false;
             }
-            
-            // if we have not yet connected... sleep a bit more and retry...
-            if (this.m_connected == false) {
-                try {
-                    Thread.sleep(sleep_time);
-                }
-                catch (InterruptedException ex) {
-                    this.errorLogger().critical("MQTTTransport(retry): sleep interrupted",ex);
-                }
-            }
         }
         
         // return our connection status
@@ -543,7 +670,8 @@ public class MQTTTransport extends Transport {
     }
 
     /**
-     * Main handler for receiving and processing MQTT Messages (called repeatedly by TransportReceiveThread...)
+     * Main handler for receiving and processing MQTT Messages (called periodically by TransportReceiveThread...)
+     * Drains up to mqtt_receive_max_batch pending messages without blocking.
      * @return true - processed (or empty), false - failure
      */
     @Override
@@ -552,9 +680,15 @@ public class MQTTTransport extends Transport {
         //this.errorLogger().info("MQTTTransport: in receiveAndProcess()...");
         if (this.isConnected()) {
             try {
-                // receive the MQTT message and process it...
-                this.errorLogger().info("MQTTTransport: in receiveAndProcess(). Calling receiveAndProcessMessage()...");
-                this.receiveAndProcessMessage();
+                // receive the pending MQTT messages and process them...
+                int max_batch = this.prefIntValue("mqtt_receive_max_batch",this.m_suffix);
+                if (max_batch <= 0) {
+                    max_batch = 100;
+                }
+                int count = 0;
+                while (count < max_batch && this.isConnected() && this.receiveAndProcessMessage() != null) {
+                    ++count;
+                }
             }
             catch (Exception ex) {
                 // note
@@ -569,44 +703,222 @@ public class MQTTTransport extends Transport {
         }
     }
     
-    // reset our MQTT connection... sometimes it goes wonky...
-    private void resetConnection() {
+    /**
+     * Event-driven receive: each arriving message is acked and queued, and the queue is drained on the shared worker
+     * pool (one drain per connection at a time, so messages are delivered in arrival order). Enabled via mqtt_receive_event_driven.
+     * @return true if started, false if the caller should poll receiveAndProcess()
+     */
+    @Override
+    public boolean startReceiving() {
+        if (this.prefBoolValue("mqtt_receive_event_driven",this.m_suffix) == false || SharedResources.getInstance() == null) {
+            return false;
+        }
+        synchronized (this.m_pending) {
+            if (this.m_receiving == true) {
+                return true;
+            }
+            this.m_receiving = true;
+            this.m_receive_paused = false;
+        }
+        
+        // DEBUG
+        this.errorLogger().info("MQTTTransport: event-driven receive started (clientID: " + this.m_client_id + ")");
+        if (this.isConnected() == true) {
+            this.armReceive(this.m_future_connection);
+        }
+        return true;
+    }
+    
+    /**
+     * Stop event-driven receive (queued messages are still delivered)
+     */
+    @Override
+    public void stopReceiving() {
+        this.m_receiving = false;
+    }
+    
+    // ask the connection for the next message... the callback fires on the MQTT client's dispatch thread so it must not block
+    private void armReceive(final FutureConnection connection) {
+        if (connection == null || this.m_receiving == false || connection != this.m_future_connection) {
+            return;
+        }
+        connection.receive().then(new Callback<org.fusesource.mqtt.client.Message>() {
+            @Override
+            public void onSuccess(org.fusesource.mqtt.client.Message received) {
+                MQTTMessage message = new MQTTMessage(received);
+                message.ack();
+                boolean rearm = true;
+                synchronized (m_pending) {
+                    m_pending.add(message);
+                    if (m_pending.size() >= m_max_pending) {
+                        // listener is falling behind: stop taking messages until the queue drains
+                        m_receive_paused = true;
+                        rearm = false;
+                    }
+                }
+                scheduleDrain();
+                if (rearm == true) {
+                    armReceive(connection);
+                }
+            }
+
+            @Override
+            public void onFailure(Throwable ex) {
+                if (m_receiving == true && connection == m_future_connection) {
+                    receiveFailed(ex);
+                }
+            }
+        });
+    }
+    
+    // drain the queued messages on the worker pool (unless a drain is already running)
+    private void scheduleDrain() {
+        synchronized (this.m_pending) {
+            if (this.m_draining == true || this.m_pending.isEmpty() == true) {
+                return;
+            }
+            this.m_draining = true;
+        }
         try {
-            // disconnect()...
-            ++this.m_num_retries;
-            this.disconnect(false);
-            
-            // sleep a bit
-            Thread.sleep(this.m_sleep_time);
+            SharedResources.getInstance().executor().execute(new Runnable() {
+                @Override
+                public void run() {
+                    drain();
+                }
+            });
+        }
+        catch (RejectedExecutionException ex) {
+            // no worker available: retry shortly
+            synchronized (this.m_pending) {
+                this.m_draining = false;
+            }
+            SharedResources.getInstance().timers().schedule("mqtt-receive-drain",new Runnable() {
+                @Override
+                public void run() {
+                    scheduleDrain();
+                }
+            },50);
+        }
+    }
+    
+    // deliver queued messages to our listener in arrival order
+    private void drain() {
+        MQTTMessage message = this.m_pending.poll();
+        while (message != null) {
+            this.m_last_activity_ms = System.currentTimeMillis();
+            try {
+                if (this.m_listener != null) {
+                    this.m_listener.onMessageReceive(message.getTopic(),message.getMessage());
+                }
+                else {
+                    // no listener
+                    this.errorLogger().critical("receiveMessage: Not processing message: " + message + ". Listener is NULL");
+                }
+            }
+            catch (Exception ex) {
+                // note but keep draining
+                this.errorLogger().warning("MQTTTransport: listener failed on message: " + message + ": " + ex.getMessage(),ex);
+            }
             
-            // reconnect()...
-            if (this.reconnect() == true) {
-                // DEBUG
-                this.errorLogger().info("resetConnection: SUCCESS.");
-                    
-                // reconnected OK...
-                this.m_num_retries = 0;
-                
-                // resubscribe
-                if (this.m_subscribe_topics != null) {
-                    // DEBUG
-                    this.errorLogger().info("resetConnection: SUCCESS. re-subscribing...");
-                    this.subscribe(this.m_subscribe_topics);
+            // resume receiving once we are back under half of the limit
+            boolean resume = false;
+            synchronized (this.m_pending) {
+                if (this.m_receive_paused == true && this.m_pending.size() < (this.m_max_pending / 2)) {
+                    this.m_receive_paused = false;
+                    resume = true;
                 }
             }
-            else {
-                // DEBUG
-                this.errorLogger().info("resetConnection: FAILURE num_tries = " + this.m_num_retries);
+            if (resume == true) {
+                this.armReceive(this.m_future_connection);
             }
+            message = this.m_pending.poll();
         }
-        catch (Exception ex) {
-            this.errorLogger().info("resetConnection: Exception: " + ex.getMessage(),ex);
+        synchronized (this.m_pending) {
+            this.m_draining = false;
+        }
+        
+        // catch anything queued as we finished
+        this.scheduleDrain();
+    }
+    
+    // the connection failed under event-driven receive: reconnect in the background (receive resumes once reconnected)
+    private void receiveFailed(Throwable ex) {
+        this.errorLogger().warning("receiveMessage: unable to receive message: " + ex.getMessage());
+        this.connectionLost("receive failed");
+    }
+    
+    // our connection is broken: hand it to the reconnection manager (never blocks the caller)
+    private void connectionLost(String reason) {
+        if (this.m_connect_host != null) {
+            this.m_reconnector.connectionLost(reason);
+        }
+    }
+    
+    // create our reconnection manager (exponential backoff from mqtt_reconnect_min_ms up to mqtt_reconnect_max_ms, with jitter)
+    private ReconnectionManager createReconnectionManager() {
+        double multiplier = this.prefFloatValue("mqtt_backoff_multiplier",this.m_suffix);
+        return new ReconnectionManager(this.errorLogger(),this,
+                this.prefIntValue("mqtt_reconnect_min_ms",this.m_suffix),
+                this.prefIntValue("mqtt_reconnect_max_ms",this.m_suffix),
+                (multiplier >= 1.0) ? multiplier : 2.0,
+                this.prefIntValue("mqtt_reconnect_jitter_pct",this.m_suffix),
+                this.prefIntValue("mqtt_reconnect_max_attempts",this.m_suffix));
+    }
+    
+    // one reconnect attempt with our cached creds (called by the reconnection manager on a worker)
+    boolean reconnectOnce() {
+        this.disconnect(false);
+        if (this.m_connect_host != null) {
+            return this.connectOnce(this.m_connect_host,this.m_connect_port,this.m_connect_client_id,this.m_connect_clean_session);
+        }
+        
+        // no initial connect() has succeeded... so no cached creds available
+        this.errorLogger().warning("reconnect: unable to reconnect() prior to initial connect() success...");
+        return false;
+    }
+    
+    // reconnected: restore our subscriptions and resume receiving (stored messages are replayed by connect())
+    void onReconnected() {
+        if (this.m_subscribe_topics != null) {
+            // DEBUG
+            this.errorLogger().info("MQTTTransport: reconnected. re-subscribing...");
+            this.subscribe(this.m_subscribe_topics);
+        }
+        else if (this.m_unsubscribe_topics != null) {
+            this.unsubscribe(this.m_unsubscribe_topics);
         }
+        if (this.m_receiving == true) {
+            this.errorLogger().info("receiveMessage: resuming event-driven receive after reconnect...");
+            this.armReceive(this.m_future_connection);
+        }
+    }
+    
+    /**
+     * Connection state listeners (i.e. to pause work while the broker is unreachable)
+     * @param listener
+     */
+    public void addConnectionListener(ReconnectionManager.Listener listener) {
+        this.m_reconnector.addListener(listener);
+    }
+    
+    // remove a connection state listener
+    public void removeConnectionListener(ReconnectionManager.Listener listener) {
+        this.m_reconnector.removeListener(listener);
     }
     
-    // have we exceeded our retry count?
-    private Boolean retriesExceeded() {
-        return (this.m_num_retries >= this.m_max_retries);
+    // our connection state
+    public ReconnectionManager.State connectionState() {
+        return this.m_reconnector.state();
+    }
+    
+    // is the reconnection manager (still) trying to connect us?
+    public boolean isReconnecting() {
+        return this.m_reconnector.isReconnecting();
+    }
+
+    // when this connection last carried traffic (0 if never)
+    public long lastActivity() {
+        return this.m_last_activity_ms;
     }
 
     // subscribe to specific topics 
@@ -625,19 +937,17 @@ public class MQTTTransport extends Transport {
                 this.errorLogger().info("MQTTTransport: Subscribed to  " + list.length + " SUCCESSFULLY");
             }
             catch (Exception ex) {
-                if (this.retriesExceeded()) {
-                    // unable to subscribe to topic (final)
-                    this.errorLogger().critical("MQTTTransport: unable to subscribe to topic (final)", ex);
-                }
-                else {
-                    // unable to subscribe to topic
-                    this.errorLogger().warning("MQTTTransport: unable to subscribe to topic (" + this.m_num_retries + " of " + this.m_max_retries + ")", ex);
-
-                    // attempt reset
-                    this.resetConnection();
-                }
+                // unable to subscribe to topic... subscribed again once reconnected
+                this.errorLogger().warning("MQTTTransport: unable to subscribe to topic. Reconnecting...", ex);
+                this.connectionLost("subscribe failed");
             }
         }
+        else if (this.m_reconnector.isReconnecting() == true) {
+            // subscribed once reconnected
+            this.m_subscribe_topics = list;
+            this.m_unsubscribe_topics = null;
+            this.errorLogger().info("MQTTTransport: reconnecting... will subscribe to " + list.length + " topics once reconnected");
+        }
         else {
             // unable to subscribe - not connected... 
             this.errorLogger().warning("MQTTTransport: unable to subscribe. Connection is missing and/or NULL");
@@ -654,20 +964,9 @@ public class MQTTTransport extends Transport {
                 //this.errorLogger().info("MQTTTransport: Unsubscribed from TOPIC(s): " + list.length);
             }
             catch (Exception ex) {
-                if (this.retriesExceeded()) {
-                    // unable to unsubscribe from topic (final)
-                    this.errorLogger().critical("MQTTTransport: unable to unsubscribe from topic (final)", ex);
-                }
-                else {
-                    // unable to subscribe to topic
-                    this.errorLogger().warning("MQTTTransport: unable to unsubscribe to topic (" + this.m_num_retries + " of " + this.m_max_retries + ")", ex);
-
-                    // attempt reset
-                    this.resetConnection();
-
-                    // recall
-                    this.unsubscribe(list);
-                }
+                // unable to unsubscribe from topic... unsubscribed again once reconnected
+                this.errorLogger().warning("MQTTTransport: unable to unsubscribe from topic. Reconnecting...", ex);
+                this.connectionLost("unsubscribe failed");
             }
         }
         else {
@@ -694,61 +993,62 @@ public class MQTTTransport extends Transport {
      * @return send status
      */
     public boolean sendMessage(String topic,String message,QoS qos) {
+        // high-rate topics: only the latest value is sent, on the coalescing cadence
+        if (this.m_coalescer != null && message != null && this.m_coalescer.offer(topic,message,qos) == true) {
+            return true;
+        }
+        return this.sendNow(topic,message,qos);
+    }
+    
+    // publish a MQTT message now (bypasses coalescing)
+    boolean sendNow(String topic,String message,QoS qos) {
         boolean sent = false;
-        if (this.m_connection.isConnected() == true && message != null) {
+        
+        // store-and-forward: while disconnected (or still replaying) messages queue behind those already stored... callers never wait on a reconnect
+        StoreAndForwardQueue spool = this.spool();
+        if (spool != null && message != null && (this.isConnected() == false || spool.isEmpty() == false)) {
+            sent = spool.append(topic,message,qos);
+            this.scheduleReplay();
+            return sent;
+        }
+        
+        if (this.isConnected() == true && message != null) {
             try {
                 // DEBUG
                 this.errorLogger().info("sendMessage: message: " + message + " Topic: " + topic);
-                this.m_connection.publish(topic, message.getBytes(), qos, false);
+                sent = this.publishConnected(topic,message,qos);
                 
                 // DEBUG
-                this.errorLogger().info("sendMessage(MQTT): message sent. SUCCESS");
-                sent = true;
+                if (sent == true) {
+                    this.errorLogger().info("sendMessage(MQTT): message sent. SUCCESS");
+                }
             }
             catch (EOFException ex) {
-                if (this.retriesExceeded()) {
-                    // unable to send (EOF) - final
-                    this.errorLogger().critical("sendMessage:EOF on message send... resetting MQTT (final): " + message, ex);
+                if (spool != null) {
+                    // queue it and reconnect in the background
+                    this.errorLogger().warning("sendMessage:EOF on message send... queueing and reconnecting MQTT: " + message);
+                    sent = spool.append(topic,message,qos);
+                    this.connectionLost("EOF on send");
                 }
                 else {
-                    // unable to send (EOF) - final
-                    this.errorLogger().warning("sendMessage:EOF on message send... resetting MQTT (" + this.m_num_retries + " of " + this.m_max_retries + "): " + message, ex);
-
-                    // reset the connection
-                    this.resetConnection();
-
-                    // resend
-                    if (this.m_connection.isConnected() == true) {
-                        this.errorLogger().info("sendMessage: retrying send() after EOF/reconnect....");
-                        sent = this.sendMessage(topic,message,qos);
-                    }
-                    else {
-                        // unable to send (not connected)
-                        this.errorLogger().warning("sendMessage: NOT CONNECTED after EOF/reconnect. Unable to send message: " + message);
-                    }
+                    // unable to send (EOF)... reconnect in the background
+                    this.errorLogger().warning("sendMessage:EOF on message send... reconnecting MQTT. Unable to send message: " + message, ex);
+                    this.connectionLost("EOF on send");
                 }
             }
             catch (Exception ex) {
-                // unable to send (general fault)
+                // unable to send (general fault)... store it if we can and reconnect in the background
                 this.errorLogger().critical("sendMessage: unable to send message: " + message, ex);
+                if (spool != null) {
+                    sent = spool.append(topic,message,qos);
+                }
+                this.connectionLost("send failed");
             }
         }
         else if (message != null) {
             // unable to send (not connected)
             this.errorLogger().warning("sendMessage: NOT CONNECTED. Unable to send message: " + message);
-            
-            // reset the connection
-            this.resetConnection();
-
-            // resend
-            if (this.m_connection.isConnected() == true) {
-                this.errorLogger().info("sendMessage: retrying send() after EOF/reconnect....");
-                sent = this.sendMessage(topic,message,qos);
-            }
-            else {
-                // unable to send (not connected)
-                this.errorLogger().warning("sendMessage: NOT CONNECTED after EOF/reconnect. Unable to send message: " + message);
-            }
+            this.connectionLost("not connected on send");
         }
         else {
             // unable to send (empty message)
@@ -760,11 +1060,337 @@ public class MQTTTransport extends Transport {
         return sent;
     }
     
-    // get the next MQTT message
+    // publish on the live connection: pipelined (window > 1) only with a spool to take back failed publishes... without
+    // one we wait for the acknowledgement, so a reported send is never silently lost
+    private boolean publishConnected(String topic,String message,QoS qos) throws Exception {
+        this.m_last_activity_ms = System.currentTimeMillis();
+        if (this.m_publish_window > 1 && this.spool() != null) {
+            // pipelined: we wait only for room in the window... the broker acknowledgement completes the future
+            MQTTPublishFuture future = this.publish(topic,message,qos);
+            return (future.isDone() == false || future.get() == true);
+        }
+        
+        // one at a time: wait for the acknowledgement
+        this.m_connection.publish(topic, message.getBytes(), qos, false);
+        return true;
+    }
+    
+    // our store-and-forward queue, opened on first use under the client ID (null if disabled)
+    private synchronized StoreAndForwardQueue spool() {
+        if (this.m_spool == null && this.m_spool_dir != null) {
+            String name = (this.m_connect_client_id != null) ? this.m_connect_client_id : this.m_client_id;
+            if (name == null || name.length() == 0) {
+                name = (this.m_suffix != null) ? "mqtt-" + this.m_suffix : "mqtt";
+            }
+            int segment_bytes = this.prefIntValue("mqtt_spool_segment_bytes",this.m_suffix);
+            if (segment_bytes <= 0) {
+                segment_bytes = 1048576;
+            }
+            long max_bytes = this.prefIntValue("mqtt_spool_max_bytes",this.m_suffix);
+            if (max_bytes <= 0) {
+                max_bytes = 64L * 1048576;
+            }
+            long max_age_ms = this.prefIntValue("mqtt_spool_max_age_ms",this.m_suffix);
+            File dir = new File(this.m_spool_dir,name.replaceAll("[^A-Za-z0-9._-]","_"));
+            this.m_spool = new StoreAndForwardQueue(this.errorLogger(),dir,segment_bytes,max_bytes,max_age_ms);
+        }
+        return this.m_spool;
+    }
+    
+    // reconnect (if needed) and replay the stored messages on the worker pool... at most one replay at a time
+    private void scheduleReplay() {
+        if (SharedResources.getInstance() == null || this.m_replaying.compareAndSet(false,true) == false) {
+            return;
+        }
+        this.continueReplay(null,null);
+    }
+    
+    // on the worker pool: take the acknowledged records of the last batch out of the spool, then send the next batch
+    private void continueReplay(final List<StoreAndForwardQueue.Record> acked,final Runnable then) {
+        try {
+            SharedResources.getInstance().executor().execute(new Runnable() {
+                @Override
+                public void run() {
+                    try {
+                        StoreAndForwardQueue spool = spool();
+                        for(int i=0;acked != null && spool != null && i<acked.size();++i) {
+                            spool.remove(acked.get(i));
+                        }
+                        if (then != null) {
+                            then.run();
+                        }
+                        else {
+                            replay();
+                        }
+                    }
+                    catch (RuntimeException ex) {
+                        errorLogger().warning("MQTTTransport: replay failed: " + ex.getMessage(),ex);
+                        m_replaying.set(false);
+                    }
+                }
+            });
+        }
+        catch (RejectedExecutionException ex) {
+            // shutting down... the records stay stored
+            this.m_replaying.set(false);
+        }
+    }
+    
+    // reconnect if needed, then send the next window's worth of stored messages (the acknowledgements continue the replay)
+    private void replay() {
+        StoreAndForwardQueue spool = this.spool();
+        if (spool == null) {
+            this.m_replaying.set(false);
+            return;
+        }
+        if (this.isConnected() == false) {
+            // connect() replays once we are reconnected
+            this.m_replaying.set(false);
+            this.connectionLost("not connected on replay");
+            return;
+        }
+        
+        List<StoreAndForwardQueue.Record> records = spool.peek(Math.max(1,this.m_publish_window));
+        if (records.isEmpty() == true) {
+            // DEBUG
+            this.errorLogger().info("MQTTTransport: replay done: " + spool.metrics());
+            this.m_replaying.set(false);
+            
+            // catch anything stored as we finished
+            if (this.isConnected() == true && spool.isEmpty() == false) {
+                this.scheduleReplay();
+            }
+            return;
+        }
+        
+        // DEBUG
+        this.errorLogger().info("MQTTTransport: replaying " + records.size() + " of " + spool.size() + " stored message(s)...");
+        this.replayBatch(records);
+    }
+    
+    // publish a batch of stored records without waiting: each leaves the spool once the broker acknowledges it, and the
+    // last completion (or the mqtt_publish_wait_ms timeout) continues the replay or hands a failure to the reconnect
+    private void replayBatch(final List<StoreAndForwardQueue.Record> records) {
+        final boolean[] acked = new boolean[records.size()];
+        final AtomicInteger pending = new AtomicInteger(records.size());
+        final AtomicBoolean failed = new AtomicBoolean(false);
+        final AtomicBoolean finished = new AtomicBoolean(false);
+        final TimerService.Timer[] timeout = { null };
+        final Runnable finish = new Runnable() {
+            @Override
+            public void run() {
+                if (finished.compareAndSet(false,true) == false) {
+                    return;
+                }
+                if (timeout[0] != null) {
+                    timeout[0].cancel();
+                }
+                ArrayList<StoreAndForwardQueue.Record> done = new ArrayList<>();
+                synchronized (acked) {
+                    for(int i=0;i<acked.length;++i) {
+                        if (acked[i] == true) {
+                            done.add(records.get(i));
+                        }
+                    }
+                }
+                if (failed.get() == false) {
+                    continueReplay(done,null);
+                    return;
+                }
+                
+                // the rest stay stored... reconnect and resume from the first unacknowledged record
+                continueReplay(done,new Runnable() {
+                    @Override
+                    public void run() {
+                        m_replaying.set(false);
+                        connectionLost("replay failed");
+                        errorLogger().info("MQTTTransport: replay interrupted: " + spool().metrics());
+                    }
+                });
+            }
+        };
+        timeout[0] = SharedResources.getInstance().timers().schedule("mqtt-replay-timeout",new Runnable() {
+            @Override
+            public void run() {
+                if (finished.get() == false) {
+                    errorLogger().warning("MQTTTransport: replayed messages not acknowledged within " + m_publish_wait_ms + "ms");
+                    failed.set(true);
+                    finish.run();
+                }
+            }
+        },this.m_publish_wait_ms);
+        
+        for(int i=0;i<records.size();++i) {
+            final int index = i;
+            StoreAndForwardQueue.Record record = records.get(i);
+            this.replayPublish(record.topic(),record.message(),record.qos()).whenDone(new MQTTPublishFuture.Listener() {
+                @Override
+                public void completed(boolean ok) {
+                    if (ok == true) {
+                        synchronized (acked) {
+                            acked[index] = true;
+                        }
+                    }
+                    else {
+                        failed.set(true);
+                    }
+                    if (pending.decrementAndGet() == 0) {
+                        finish.run();
+                    }
+                }
+            });
+        }
+    }
+    
+    // publish a stored message... completed when the broker acknowledges it (a failure must not store it again)
+    private MQTTPublishFuture replayPublish(String topic,String message,QoS qos) {
+        this.m_last_activity_ms = System.currentTimeMillis();
+        return this.publish(topic,message,qos,false);
+    }
+    
+    /**
+     * Pipelined publish: waits (up to mqtt_publish_wait_ms) only for room in the in-flight window
+     * @param topic
+     * @param message
+     * @param qos
+     * @return future completed with true when the broker acknowledges the publish, false if it fails
+     */
+    public MQTTPublishFuture publish(String topic,String message,QoS qos) {
+        return this.publish(topic,message,qos,true);
+    }
+    
+    // pipelined publish... a failed publish drops the connection and (if restore is set) goes back to the spool
+    private MQTTPublishFuture publish(final String topic,String message,final QoS qos,final boolean restore) {
+        if (message == null) {
+            return MQTTPublishFuture.completed(true);
+        }
+        final FutureConnection connection = this.m_future_connection;
+        if (connection == null || this.isConnected() == false) {
+            this.m_publish_failed.incrementAndGet();
+            return MQTTPublishFuture.completed(false);
+        }
+        
+        // wait for room in this connection's window
+        final Semaphore permits = this.m_publish_permits;
+        try {
+            if (permits.tryAcquire(this.m_publish_wait_ms,TimeUnit.MILLISECONDS) == false) {
+                this.m_publish_failed.incrementAndGet();
+                this.errorLogger().warning("MQTTTransport: publish window full for " + this.m_publish_wait_ms + "ms. Not sending message: " + message);
+                return MQTTPublishFuture.completed(false);
+            }
+        }
+        catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+            this.m_publish_failed.incrementAndGet();
+            return MQTTPublishFuture.completed(false);
+        }
+        int in_flight = this.m_publish_window - permits.availablePermits();
+        int max_in_flight = this.m_max_in_flight.get();
+        while (in_flight > max_in_flight && this.m_max_in_flight.compareAndSet(max_in_flight,in_flight) == false) {
+            max_in_flight = this.m_max_in_flight.get();
+        }
+        
+        // publish... the acknowledgement (or failure) arrives on the connection's dispatch queue
+        final MQTTPublishFuture future = new MQTTPublishFuture();
+        final String sent_message = message;
+        try {
+            this.m_published.incrementAndGet();
+            connection.publish(topic,message.getBytes(),qos,false).then(new Callback<Void>() {
+                @Override
+                public void onSuccess(Void value) {
+                    permits.release();
+                    m_acked.incrementAndGet();
+                    future.complete(true,null);
+                }
+
+                @Override
+                public void onFailure(Throwable ex) {
+                    permits.release();
+                    m_publish_failed.incrementAndGet();
+                    errorLogger().warning("MQTTTransport: publish failed: " + ex.getMessage() + " message: " + sent_message);
+                    future.complete(false,ex);
+                    
+                    // we are on the connection's dispatch queue: the spool and the reconnect are handled on the worker pool
+                    publishFailed((restore == true) ? new FailedPublish(topic,sent_message,qos) : null);
+                }
+            });
+        }
+        catch (Exception ex) {
+            permits.release();
+            this.m_publish_failed.incrementAndGet();
+            future.complete(false,ex);
+        }
+        return future;
+    }
+    
+    // an in-flight publish failed: queue it (if it is to be restored) and hand the restore and reconnect to the worker pool
+    private void publishFailed(FailedPublish failed) {
+        if (failed != null) {
+            this.m_failed_publishes.add(failed);
+        }
+        if (SharedResources.getInstance() == null || this.m_restoring.compareAndSet(false,true) == false) {
+            return;
+        }
+        try {
+            SharedResources.getInstance().executor().execute(new Runnable() {
+                @Override
+                public void run() {
+                    restoreFailedPublishes();
+                }
+            });
+        }
+        catch (RejectedExecutionException ex) {
+            // shutting down
+            this.restoreFailedPublishes();
+        }
+    }
+    
+    // put failed publishes back at the head of the spool (in the order they were sent) and reconnect
+    private void restoreFailedPublishes() {
+        try {
+            StoreAndForwardQueue spool = this.spool();
+            FailedPublish failed = this.m_failed_publishes.poll();
+            while (failed != null) {
+                if (spool != null) {
+                    spool.requeue(failed.m_topic,failed.m_message,failed.m_qos);
+                }
+                else {
+                    this.errorLogger().warning("MQTTTransport: no store-and-forward spool... failed publish dropped: " + failed.m_message);
+                }
+                failed = this.m_failed_publishes.poll();
+            }
+        }
+        finally {
+            this.m_restoring.set(false);
+        }
+        
+        // catch anything that failed as we finished
+        if (this.m_failed_publishes.isEmpty() == false) {
+            this.publishFailed(null);
+        }
+        this.connectionLost("publish failed");
+    }
+    
+    /**
+     * Publish metrics
+     * @return window size, in-flight and completion counts
+     */
+    public String metrics() {
+        int in_flight = this.m_publish_window - this.m_publish_permits.availablePermits();
+        return "window=" + this.m_publish_window + " in_flight=" + in_flight + " max_in_flight=" + this.m_max_in_flight.get() + " published=" + this.m_published.get()
+                + " acked=" + this.m_acked.get() + " failed=" + this.m_publish_failed.get() + ((this.m_coalescer != null) ? " coalescing: " + this.m_coalescer.metrics() : "")
+                + ((this.m_spool != null) ? " spool: " + this.m_spool.metrics() : "") + " reconnect: " + this.m_reconnector.metrics()
+                + " tls: " + ResumableSSLContext.metrics();
+    }
+    
+    // get the next MQTT message (null if none is pending)
     private MQTTMessage getNextMessage() throws Exception {
         MQTTMessage message = null;
-        message = new MQTTMessage(this.m_connection.receive());
-        message.ack();
+        org.fusesource.mqtt.client.Message received = this.m_connection.receive(0,TimeUnit.MILLISECONDS);
+        if (received != null) {
+            message = new MQTTMessage(received);
+            message.ack();
+        }
         return message;
     }
 
@@ -778,39 +1404,24 @@ public class MQTTTransport extends Transport {
             // DEBUG
             //this.errorLogger().info("receiveMessage: getting next MQTT message...");
             message = this.getNextMessage();
+            if (message != null) {
+                this.m_last_activity_ms = System.currentTimeMillis();
+            }
             if (this.m_listener != null && message != null) {
                 // call the registered listener to process the received message
                 this.errorLogger().info("receiveMessage: processing message: " + message);
                 //this.errorLogger().info("receiveAndProcessMessage(MQTT Transport): Topic: " + message.getTopic() + " message: " + message.getMessage());
                 this.m_listener.onMessageReceive(message.getTopic(),message.getMessage());
             }
-            else if (this.m_listener != null) {
+            else if (message != null) {
                 // no listener
                 this.errorLogger().critical("receiveMessage: Not processing message: " + message + ". Listener is NULL");
             }
-            else {
-                // no message
-                this.errorLogger().critical("receiveMessage: Not processing NULL message");
-            }
         }
         catch (Exception ex) {
-            if (this.retriesExceeded()) {
-                // unable to receiveMessage - final
-                this.errorLogger().critical("receiveMessage: unable to receive message (final)", ex);
-            }
-            else {
-                // unable to receiveMessage - final
-                this.errorLogger().critical("receiveMessage: unable to receive message (" + this.m_num_retries + " of " + this.m_max_retries + "): " + ex.getMessage(), ex);
-
-                // reset the connection
-                this.resetConnection();
-
-                // re-receive
-                if (this.isConnected()) {
-                    this.errorLogger().info("receiveMessage: retrying receive() after EOF/reconnect...");
-                    this.receiveAndProcessMessage();
-                }
-            }
+            // unable to receiveMessage... reconnect in the background (the receive thread polls again once reconnected)
+            this.errorLogger().warning("receiveMessage: unable to receive message: " + ex.getMessage(), ex);
+            this.connectionLost("receive failed");
         }
         return message;
     }
@@ -820,9 +1431,37 @@ public class MQTTTransport extends Transport {
      */
     @Override
     public void disconnect() {
+        this.stopReceiving();
+        
+        // send any latest values still waiting
+        if (this.m_coalescer != null && this.isConnected() == true) {
+            this.m_coalescer.flush();
+        }
         this.disconnect(true);
     }
     
+    /**
+     * Close an idle session: like disconnect() but the cached SSL context and any stored messages are kept so the
+     * session can be reopened quickly (a new transport for the same client ID replays them)
+     */
+    public void suspend() {
+        this.stopReceiving();
+        if (this.m_coalescer != null && this.isConnected() == true) {
+            this.m_coalescer.flush();
+        }
+        this.m_reconnector.close();
+        this.closeSpool();
+        this.disconnect(false);
+    }
+    
+    // close our store-and-forward queue (stored messages stay on disk for the next session with this client ID)
+    private synchronized void closeSpool() {
+        if (this.m_spool != null) {
+            this.m_spool.close();
+            this.m_spool = null;
+        }
+    }
+    
     // Disconnect from MQTT broker
     public void disconnect(boolean clear_creds) {
         // DEBUG
@@ -840,32 +1479,23 @@ public class MQTTTransport extends Transport {
         }
         
         // DEBUG
-        this.errorLogger().info("MQTT: disconnected from MQTT Broker. Cleaning up...");
+        this.errorLogger().info("MQTT: disconnected from MQTT Broker. Cleaning up... (publish: " + this.metrics() + ")");
         
         // clean up...
         super.disconnect();
         this.m_endpoint = null;
         this.m_connection = null;
+        this.m_future_connection = null;
         
-        // clear the cached creds 
+        // clear the cached creds (stored messages stay on disk for the next session with this client ID)
         if (clear_creds == true) {
+            this.m_reconnector.close();
+            this.closeSpool();
             this.m_connect_host = null;
             this.m_connect_port = 0;
             this.m_connect_client_id = null;
-            Utils.deleteKeystore(this.errorLogger(),this.m_keystore_filename,this.m_keystore_basename);
-            this.m_keystore_filename = null;
-        }
-    }
-    
-    private boolean reconnect() {
-        if (this.m_connect_host != null) {
-            // attempt reconnect with cached creds...
-            return this.connect(this.m_connect_host,this. m_connect_port, this.m_connect_client_id, this.m_connect_clean_session);
-        }
-        else {
-            // no initial connect() has succeeded... so no cached creds available
-            this.errorLogger().warning("reconnect: unable to reconnect() prior to initial connect() success...");
-            return false;
+            MQTTTransport.evictSSLContext(this.m_ssl_context_key);
+            this.m_ssl_context_key = null;
         }
     }
     
@@ -900,29 +1530,21 @@ public class MQTTTransport extends Transport {
     // Internal MQTT Trust manager
     class MQTTTrustManager implements X509TrustManager { 
         private KeyStore m_keystore = null;
-        private String  m_keystore_filename = null;
-        private String  m_keystore_pw = null;
         
         // constructor
-        public MQTTTrustManager(String keystore_filename,String pw) {
+        public MQTTTrustManager(KeyStore keystore) {
             super();
-            this.m_keystore_filename = keystore_filename;
-            this.m_keystore_pw = pw;
+            this.m_keystore = keystore;
             this.initializeTrustManager();
         }
         
         // intialize the Trust Manager
         private void initializeTrustManager() {
             try {
-                KeyStore myTrustStore;
-                try (FileInputStream myKeys = new FileInputStream(this.m_keystore_filename)) {
-                    myTrustStore = KeyStore.getInstance(KeyStore.getDefaultType());
-                    myTrustStore.load(myKeys, this.m_keystore_pw.toCharArray());
-                }
                 TrustManagerFactory tmf = TrustManagerFactory.getInstance(TrustManagerFactory.getDefaultAlgorithm());
-                tmf.init(myTrustStore);
+                tmf.init(this.m_keystore);
             }
-            catch (KeyStoreException | IOException | NoSuchAlgorithmException | CertificateException ex) {
+            catch (KeyStoreException | NoSuchAlgorithmException ex) {
                 errorLogger().warning("MQTTTrustManager:initializeTrustManager: FAILED to initialize",ex);
             }
         }
@@ -0,0 +1,292 @@
+/**
+ * @file    ReconnectionManager.java
+ * @brief   MQTT connection state and background reconnects with jittered exponential backoff
+ * @author  Doug Anson
+ * @version 1.0
+ * @see
+ *
+ * Copyright 2015. ARM Ltd. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+
+package com.arm.connector.bridge.transport;
+
+import com.arm.connector.bridge.core.ErrorLogger;
+import com.arm.connector.bridge.core.SharedResources;
+import com.arm.connector.bridge.core.TimerService;
+import java.util.Random;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Owns the connection state of one MQTTTransport. Any path that finds the connection broken reports it via
+ * connectionLost() and returns right away... reconnect attempts are spaced by an exponential backoff with random
+ * jitter so that connections dropped together (i.e. a broker blip) do not all come back at the same instant, and
+ * then run through the shared ConnectionAdmissionQueue at the configured connect rate. Listeners are told of every
+ * state change.
+ * @author Doug Anson
+ */
+public class ReconnectionManager {
+    // connection states
+    public enum State {
+        DISCONNECTED,       // never connected, or given up
+        CONNECTED,          // connected to the broker
+        WAITING,            // lost... next attempt is scheduled
+        CONNECTING,         // reconnect attempt in progress
+        CLOSED              // shut down by the owner... no reconnects
+    }
+
+    /**
+     * Connection state listener (called on the thread making the change... must not block)
+     */
+    public interface Listener {
+        public void onConnectionStateChange(MQTTTransport transport,State previous,State current);
+    }
+
+    private ErrorLogger                                 m_error_logger = null;
+    private MQTTTransport                               m_transport = null;
+    private long                                        m_min_ms = 0;
+    private long                                        m_max_ms = 0;
+    private double                                      m_multiplier = 2.0;
+    private int                                         m_jitter_pct = 0;
+    private int                                         m_max_attempts = 0;
+    private final Random                                m_random = new Random();
+    private final CopyOnWriteArrayList<Listener>        m_listeners = new CopyOnWriteArrayList<>();
+
+    private State                                       m_state = State.DISCONNECTED;
+    private int                                         m_attempts = 0;
+    private TimerService.Timer                          m_timer = null;
+
+    // metrics
+    private final AtomicLong                            m_lost = new AtomicLong(0);
+    private final AtomicLong                            m_reconnects = new AtomicLong(0);
+    private final AtomicLong                            m_failed_attempts = new AtomicLong(0);
+
+    // constructor
+    public ReconnectionManager(ErrorLogger error_logger,MQTTTransport transport,long min_ms,long max_ms,double multiplier,int jitter_pct,int max_attempts) {
+        this.m_error_logger = error_logger;
+        this.m_transport = transport;
+        this.m_min_ms = (min_ms > 0) ? min_ms : 1000;
+        this.m_max_ms = (max_ms > 0) ? Math.max(max_ms,this.m_min_ms) : Math.max(60000,this.m_min_ms);
+        this.m_multiplier = (multiplier >= 1.0) ? multiplier : 2.0;
+        this.m_jitter_pct = Math.max(0,Math.min(100,jitter_pct));
+        this.m_max_attempts = Math.max(0,max_attempts);
+    }
+
+    // add a connection state listener
+    public void addListener(Listener listener) {
+        if (listener != null) {
+            this.m_listeners.addIfAbsent(listener);
+        }
+    }
+
+    // remove a connection state listener
+    public void removeListener(Listener listener) {
+        this.m_listeners.remove(listener);
+    }
+
+    // our current state
+    public synchronized State state() {
+        return this.m_state;
+    }
+
+    // is a reconnect pending or in progress?
+    public synchronized boolean isReconnecting() {
+        return (this.m_state == State.WAITING || this.m_state == State.CONNECTING);
+    }
+
+    // the transport has connected (initial connect or a successful attempt)
+    public void connected() {
+        State previous = null;
+        synchronized (this) {
+            previous = this.m_state;
+            this.m_state = State.CONNECTED;
+            this.m_attempts = 0;
+            this.cancelTimer();
+        }
+        this.notifyListeners(previous,State.CONNECTED);
+    }
+
+    /**
+     * the connection was found broken (or could not be made): schedule a reconnect (no-op if one is already pending, or if closed)
+     * @param reason
+     */
+    public void connectionLost(String reason) {
+        State previous = null;
+        synchronized (this) {
+            if (this.m_state != State.CONNECTED && this.m_state != State.DISCONNECTED) {
+                return;
+            }
+            previous = this.m_state;
+            this.m_state = State.WAITING;
+            this.m_attempts = 0;
+        }
+        this.m_lost.incrementAndGet();
+
+        // DEBUG
+        this.errorLogger().warning("ReconnectionManager: connection lost (" + reason + ")... reconnecting in the background");
+        this.notifyListeners(previous,State.WAITING);
+        this.scheduleAttempt();
+    }
+
+    // stop reconnecting (the owner is disconnecting for good)
+    public void close() {
+        State previous = null;
+        synchronized (this) {
+            previous = this.m_state;
+            this.m_state = State.CLOSED;
+            this.cancelTimer();
+        }
+        if (previous != State.CLOSED) {
+            this.notifyListeners(previous,State.CLOSED);
+        }
+    }
+
+    // reconnect metrics
+    public synchronized String metrics() {
+        return "state=" + this.m_state + " attempts=" + this.m_attempts + " lost=" + this.m_lost.get() + " reconnects=" + this.m_reconnects.get() + " failed_attempts=" + this.m_failed_attempts.get();
+    }
+
+    // backoff before the next attempt: min * multiplier^attempts (capped at max) less up to jitter_pct percent
+    private long nextDelay(int attempts) {
+        double delay = this.m_min_ms * Math.pow(this.m_multiplier,attempts);
+        long capped = (long)Math.min(delay,(double)this.m_max_ms);
+        long jitter = (long)(capped * (this.m_jitter_pct / 100.0) * this.m_random.nextDouble());
+        return Math.max(1,capped - jitter);
+    }
+
+    // arm the timer for the next attempt
+    private void scheduleAttempt() {
+        if (SharedResources.getInstance() == null) {
+            return;
+        }
+        long delay = 0;
+        synchronized (this) {
+            if (this.m_state != State.WAITING) {
+                return;
+            }
+            delay = this.nextDelay(this.m_attempts);
+            this.cancelTimer();
+            this.m_timer = SharedResources.getInstance().timers().schedule("mqtt-reconnect",new Runnable() {
+                @Override
+                public void run() {
+                    startAttempt();
+                }
+            },delay);
+        }
+
+        // DEBUG
+        this.errorLogger().info("ReconnectionManager: next reconnect attempt in " + delay + "ms");
+    }
+
+    // hand the attempt to the connection admission queue (blocking connect + handshake)... after a broker outage every
+    // connection comes back through it at the configured connect rate, most recently active first
+    private void startAttempt() {
+        try {
+            String key = "reconnect:" + System.identityHashCode(this.m_transport);
+            SharedResources.getInstance().connectionAdmission().admit(key,this.m_transport.lastActivity(),new Runnable() {
+                @Override
+                public void run() {
+                    attempt();
+                }
+            });
+        }
+        catch (RejectedExecutionException ex) {
+            // no worker available: back off and try again
+            this.scheduleAttempt();
+        }
+    }
+
+    // one reconnect attempt
+    private void attempt() {
+        synchronized (this) {
+            if (this.m_state != State.WAITING) {
+                return;
+            }
+            this.m_state = State.CONNECTING;
+            this.m_timer = null;
+        }
+        this.notifyListeners(State.WAITING,State.CONNECTING);
+
+        boolean connected = false;
+        try {
+            connected = this.m_transport.reconnectOnce();
+        }
+        catch (Exception ex) {
+            this.errorLogger().warning("ReconnectionManager: exception during reconnect: " + ex.getMessage());
+        }
+
+        if (connected == true) {
+            // the transport called connected()... re-establish the session state
+            this.m_reconnects.incrementAndGet();
+            this.errorLogger().info("ReconnectionManager: reconnected.");
+            this.m_transport.onReconnected();
+            return;
+        }
+
+        // failed: back off again (or give up)
+        this.m_failed_attempts.incrementAndGet();
+        State next = State.WAITING;
+        int attempts = 0;
+        synchronized (this) {
+            if (this.m_state != State.CONNECTING) {
+                // closed (or connected by someone else) in the meantime
+                return;
+            }
+            attempts = ++this.m_attempts;
+            if (this.m_max_attempts > 0 && attempts >= this.m_max_attempts) {
+                next = State.DISCONNECTED;
+            }
+            this.m_state = next;
+        }
+        this.notifyListeners(State.CONNECTING,next);
+        if (next == State.DISCONNECTED) {
+            this.errorLogger().critical("ReconnectionManager: unable to reconnect after " + attempts + " attempts (final)");
+        }
+        else {
+            this.errorLogger().info("ReconnectionManager: reconnect attempt " + attempts + " failed");
+            this.scheduleAttempt();
+        }
+    }
+
+    // cancel any pending attempt (caller holds our lock)
+    private void cancelTimer() {
+        if (this.m_timer != null) {
+            this.m_timer.cancel();
+            this.m_timer = null;
+        }
+    }
+
+    // tell our listeners
+    private void notifyListeners(State previous,State current) {
+        if (previous == current) {
+            return;
+        }
+        for (Listener listener : this.m_listeners) {
+            try {
+                listener.onConnectionStateChange(this.m_transport,previous,current);
+            }
+            catch (Exception ex) {
+                this.errorLogger().warning("ReconnectionManager: listener failed: " + ex.getMessage());
+            }
+        }
+    }
+
+    // our error logger
+    private ErrorLogger errorLogger() {
+        return this.m_error_logger;
+    }
+}
@@ -0,0 +1,452 @@
+/**
+ * @file    ResumableSSLContext.java
+ * @brief   SSLContext wrapper with a tuned client session cache and handshake/resumption metrics
+ * @author  Doug Anson
+ * @version 1.0
+ * @see
+ *
+ * Copyright 2015. ARM Ltd. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+
+package com.arm.connector.bridge.transport;
+
+import java.io.IOException;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.net.InetAddress;
+import java.net.Socket;
+import java.nio.ByteBuffer;
+import java.security.KeyManagementException;
+import java.security.SecureRandom;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.BiFunction;
+import javax.net.ssl.HandshakeCompletedEvent;
+import javax.net.ssl.HandshakeCompletedListener;
+import javax.net.ssl.KeyManager;
+import javax.net.ssl.SSLContext;
+import javax.net.ssl.SSLContextSpi;
+import javax.net.ssl.SSLEngine;
+import javax.net.ssl.SSLEngineResult;
+import javax.net.ssl.SSLException;
+import javax.net.ssl.SSLParameters;
+import javax.net.ssl.SSLServerSocketFactory;
+import javax.net.ssl.SSLSession;
+import javax.net.ssl.SSLSessionContext;
+import javax.net.ssl.SSLSocket;
+import javax.net.ssl.SSLSocketFactory;
+import javax.net.ssl.TrustManager;
+
+/**
+ * SSLContext wrapper for MQTT connections: the client session cache is sized and timed so that reconnects to the same
+ * host:port resume the previous TLS session (abbreviated handshake) instead of doing a full one. Engines and sockets
+ * created through it are instrumented so the process-wide handshake count, handshake time and resumption ratio can be
+ * reported (socket handshakes are timed from socket creation, so they include the TCP connect when the factory makes it).
+ * A handshake counts as resumed when it completes with a session ID already seen for that peer.
+ * @author Doug Anson
+ */
+public class ResumableSSLContext extends SSLContext {
+    // process-wide handshake metrics
+    private static final AtomicLong m_handshakes = new AtomicLong(0);
+    private static final AtomicLong m_resumed = new AtomicLong(0);
+    private static final AtomicLong m_handshake_ms = new AtomicLong(0);
+
+    // session IDs already seen, per peer (bounded, oldest dropped first)
+    private static final int                        MAX_SEEN_SESSIONS = 4096;
+    private static final Map<String,Boolean>        m_seen_sessions = new LinkedHashMap<String,Boolean>(16,0.75f,true) {
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<String,Boolean> eldest) {
+            return this.size() > MAX_SEEN_SESSIONS;
+        }
+    };
+
+    // constructor
+    private ResumableSSLContext(SSLContext delegate) {
+        super(new Spi(delegate),delegate.getProvider(),delegate.getProtocol());
+    }
+
+    /**
+     * wrap an initialized SSLContext... the wrapper shares the delegate's client session cache, which is resized in place
+     * @param delegate
+     * @param cache_size client sessions kept (0 = no limit, negative = JSSE default)
+     * @param timeout_secs how long a cached session may be resumed (negative = JSSE default)
+     * @return
+     */
+    public static SSLContext wrap(SSLContext delegate,int cache_size,int timeout_secs) {
+        SSLSessionContext sessions = delegate.getClientSessionContext();
+        if (sessions != null) {
+            if (cache_size >= 0) {
+                sessions.setSessionCacheSize(cache_size);
+            }
+            if (timeout_secs >= 0) {
+                sessions.setSessionTimeout(timeout_secs);
+            }
+        }
+        return new ResumableSSLContext(delegate);
+    }
+
+    // handshake metrics
+    public static String metrics() {
+        long handshakes = ResumableSSLContext.m_handshakes.get();
+        long resumed = ResumableSSLContext.m_resumed.get();
+        long avg_ms = (handshakes > 0) ? ResumableSSLContext.m_handshake_ms.get() / handshakes : 0;
+        int ratio_pct = (handshakes > 0) ? (int)((resumed * 100) / handshakes) : 0;
+        return "handshakes=" + handshakes + " resumed=" + resumed + " resumption=" + ratio_pct + "% avg_handshake_ms=" + avg_ms;
+    }
+
+    // did the handshake complete with a session we have already seen for this peer? (creation times are not reliable under TLS 1.3)
+    private static boolean resumed(SSLSession session) {
+        byte[] id = (session != null) ? session.getId() : null;
+        if (id == null || id.length == 0) {
+            return false;
+        }
+        StringBuilder key = new StringBuilder();
+        key.append(session.getPeerHost()).append(':').append(session.getPeerPort()).append('/');
+        for(int i=0;i<id.length;++i) {
+            key.append(Character.forDigit((id[i] >> 4) & 0xf,16)).append(Character.forDigit(id[i] & 0xf,16));
+        }
+        synchronized (ResumableSSLContext.m_seen_sessions) {
+            return (ResumableSSLContext.m_seen_sessions.put(key.toString(),Boolean.TRUE) != null);
+        }
+    }
+
+    // record a completed handshake
+    private static void handshakeCompleted(long elapsed_ms,SSLSession session) {
+        boolean resumed = ResumableSSLContext.resumed(session);
+        ResumableSSLContext.m_handshakes.incrementAndGet();
+        ResumableSSLContext.m_handshake_ms.addAndGet(elapsed_ms);
+        if (resumed == true) {
+            ResumableSSLContext.m_resumed.incrementAndGet();
+        }
+    }
+
+    // delegating SPI... engines are wrapped, everything else passes through
+    private static class Spi extends SSLContextSpi {
+        private SSLContext      m_delegate = null;
+
+        // constructor
+        private Spi(SSLContext delegate) {
+            this.m_delegate = delegate;
+        }
+
+        @Override
+        protected void engineInit(KeyManager[] km,TrustManager[] tm,SecureRandom random) throws KeyManagementException {
+            this.m_delegate.init(km,tm,random);
+        }
+
+        @Override
+        protected SSLSocketFactory engineGetSocketFactory() {
+            return new InstrumentedSocketFactory(this.m_delegate.getSocketFactory());
+        }
+
+        @Override
+        protected SSLServerSocketFactory engineGetServerSocketFactory() {
+            return this.m_delegate.getServerSocketFactory();
+        }
+
+        @Override
+        protected SSLEngine engineCreateSSLEngine() {
+            return new InstrumentedEngine(this.m_delegate.createSSLEngine());
+        }
+
+        @Override
+        protected SSLEngine engineCreateSSLEngine(String host,int port) {
+            // host and port select the cached session to resume
+            return new InstrumentedEngine(this.m_delegate.createSSLEngine(host,port));
+        }
+
+        @Override
+        protected SSLSessionContext engineGetServerSessionContext() {
+            return this.m_delegate.getServerSessionContext();
+        }
+
+        @Override
+        protected SSLSessionContext engineGetClientSessionContext() {
+            return this.m_delegate.getClientSessionContext();
+        }
+    }
+
+    // SSLSocketFactory whose sockets report each completed handshake (and whether it resumed an existing session)
+    private static class InstrumentedSocketFactory extends SSLSocketFactory {
+        private SSLSocketFactory    m_factory = null;
+
+        // constructor
+        private InstrumentedSocketFactory(SSLSocketFactory factory) {
+            this.m_factory = factory;
+        }
+
+        // listen for the socket's handshakes
+        private Socket instrument(Socket socket) {
+            if (socket instanceof SSLSocket) {
+                final long[] started_ms = { System.currentTimeMillis() };
+                ((SSLSocket)socket).addHandshakeCompletedListener(new HandshakeCompletedListener() {
+                    @Override
+                    public void handshakeCompleted(HandshakeCompletedEvent event) {
+                        long now = System.currentTimeMillis();
+                        ResumableSSLContext.handshakeCompleted(now - started_ms[0],event.getSession());
+                        started_ms[0] = now;
+                    }
+                });
+            }
+            return socket;
+        }
+
+        @Override
+        public String[] getDefaultCipherSuites() {
+            return this.m_factory.getDefaultCipherSuites();
+        }
+
+        @Override
+        public String[] getSupportedCipherSuites() {
+            return this.m_factory.getSupportedCipherSuites();
+        }
+
+        @Override
+        public Socket createSocket() throws IOException {
+            return this.instrument(this.m_factory.createSocket());
+        }
+
+        @Override
+        public Socket createSocket(Socket socket,String host,int port,boolean auto_close) throws IOException {
+            return this.instrument(this.m_factory.createSocket(socket,host,port,auto_close));
+        }
+
+        @Override
+        public Socket createSocket(String host,int port) throws IOException {
+            return this.instrument(this.m_factory.createSocket(host,port));
+        }
+
+        @Override
+        public Socket createSocket(String host,int port,InetAddress local_host,int local_port) throws IOException {
+            return this.instrument(this.m_factory.createSocket(host,port,local_host,local_port));
+        }
+
+        @Override
+        public Socket createSocket(InetAddress host,int port) throws IOException {
+            return this.instrument(this.m_factory.createSocket(host,port));
+        }
+
+        @Override
+        public Socket createSocket(InetAddress address,int port,InetAddress local_address,int local_port) throws IOException {
+            return this.instrument(this.m_factory.createSocket(address,port,local_address,local_port));
+        }
+    }
+
+    // SSLEngine that times each handshake and notes whether it resumed an existing session (every SSLEngine method is delegated)
+    private static class InstrumentedEngine extends SSLEngine {
+        private SSLEngine       m_engine = null;
+        private long            m_started_ms = 0;
+
+        // constructor
+        private InstrumentedEngine(SSLEngine engine) {
+            super(engine.getPeerHost(),engine.getPeerPort());
+            this.m_engine = engine;
+        }
+
+        // a handshake is underway: note when it started
+        private void started() {
+            if (this.m_started_ms == 0) {
+                this.m_started_ms = System.currentTimeMillis();
+            }
+        }
+
+        // check the result for a finished handshake
+        private SSLEngineResult check(SSLEngineResult result) {
+            if (result.getHandshakeStatus() == SSLEngineResult.HandshakeStatus.FINISHED && this.m_started_ms > 0) {
+                ResumableSSLContext.handshakeCompleted(System.currentTimeMillis() - this.m_started_ms,this.m_engine.getSession());
+                this.m_started_ms = 0;
+            }
+            else if (result.getHandshakeStatus() != SSLEngineResult.HandshakeStatus.NOT_HANDSHAKING) {
+                this.started();
+            }
+            return result;
+        }
+
+        @Override
+        public SSLEngineResult wrap(ByteBuffer[] srcs,int offset,int length,ByteBuffer dst) throws SSLException {
+            return this.check(this.m_engine.wrap(srcs,offset,length,dst));
+        }
+
+        @Override
+        public SSLEngineResult unwrap(ByteBuffer src,ByteBuffer[] dsts,int offset,int length) throws SSLException {
+            return this.check(this.m_engine.unwrap(src,dsts,offset,length));
+        }
+
+        @Override
+        public void beginHandshake() throws SSLException {
+            this.started();
+            this.m_engine.beginHandshake();
+        }
+
+        @Override
+        public Runnable getDelegatedTask() {
+            return this.m_engine.getDelegatedTask();
+        }
+
+        @Override
+        public void closeInbound() throws SSLException {
+            this.m_engine.closeInbound();
+        }
+
+        @Override
+        public boolean isInboundDone() {
+            return this.m_engine.isInboundDone();
+        }
+
+        @Override
+        public void closeOutbound() {
+            this.m_engine.closeOutbound();
+        }
+
+        @Override
+        public boolean isOutboundDone() {
+            return this.m_engine.isOutboundDone();
+        }
+
+        @Override
+        public String[] getSupportedCipherSuites() {
+            return this.m_engine.getSupportedCipherSuites();
+        }
+
+        @Override
+        public String[] getEnabledCipherSuites() {
+            return this.m_engine.getEnabledCipherSuites();
+        }
+
+        @Override
+        public void setEnabledCipherSuites(String[] suites) {
+            this.m_engine.setEnabledCipherSuites(suites);
+        }
+
+        @Override
+        public String[] getSupportedProtocols() {
+            return this.m_engine.getSupportedProtocols();
+        }
+
+        @Override
+        public String[] getEnabledProtocols() {
+            return this.m_engine.getEnabledProtocols();
+        }
+
+        @Override
+        public void setEnabledProtocols(String[] protocols) {
+            this.m_engine.setEnabledProtocols(protocols);
+        }
+
+        @Override
+        public SSLSession getSession() {
+            return this.m_engine.getSession();
+        }
+
+        @Override
+        public SSLEngineResult.HandshakeStatus getHandshakeStatus() {
+            return this.m_engine.getHandshakeStatus();
+        }
+
+        @Override
+        public void setUseClientMode(boolean mode) {
+            this.m_engine.setUseClientMode(mode);
+        }
+
+        @Override
+        public boolean getUseClientMode() {
+            return this.m_engine.getUseClientMode();
+        }
+
+        @Override
+        public void setNeedClientAuth(boolean need) {
+            this.m_engine.setNeedClientAuth(need);
+        }
+
+        @Override
+        public boolean getNeedClientAuth() {
+            return this.m_engine.getNeedClientAuth();
+        }
+
+        @Override
+        public void setWantClientAuth(boolean want) {
+            this.m_engine.setWantClientAuth(want);
+        }
+
+        @Override
+        public boolean getWantClientAuth() {
+            return this.m_engine.getWantClientAuth();
+        }
+
+        @Override
+        public void setEnableSessionCreation(boolean flag) {
+            this.m_engine.setEnableSessionCreation(flag);
+        }
+
+        @Override
+        public boolean getEnableSessionCreation() {
+            return this.m_engine.getEnableSessionCreation();
+        }
+
+        @Override
+        public SSLParameters getSSLParameters() {
+            return this.m_engine.getSSLParameters();
+        }
+
+        @Override
+        public void setSSLParameters(SSLParameters params) {
+            this.m_engine.setSSLParameters(params);
+        }
+
+        @Override
+        public SSLSession getHandshakeSession() {
+            return this.m_engine.getHandshakeSession();
+        }
+
+        // the ALPN accessors below arrived after our 1.7 source level: they override on runtimes that have them and delegate reflectively
+        public String getApplicationProtocol() {
+            return (String)this.delegate("getApplicationProtocol",new Class<?>[0]);
+        }
+
+        public String getHandshakeApplicationProtocol() {
+            return (String)this.delegate("getHandshakeApplicationProtocol",new Class<?>[0]);
+        }
+
+        public void setHandshakeApplicationProtocolSelector(BiFunction<SSLEngine,List<String>,String> selector) {
+            this.delegate("setHandshakeApplicationProtocolSelector",new Class<?>[] { BiFunction.class },selector);
+        }
+
+        @SuppressWarnings("unchecked")
+        public BiFunction<SSLEngine,List<String>,String> getHandshakeApplicationProtocolSelector() {
+            return (BiFunction<SSLEngine,List<String>,String>)this.delegate("getHandshakeApplicationProtocolSelector",new Class<?>[0]);
+        }
+
+        // invoke a method on the wrapped engine by name
+        private Object delegate(String name,Class<?>[] types,Object... args) {
+            try {
+                Method method = SSLEngine.class.getMethod(name,types);
+                return method.invoke(this.m_engine,args);
+            }
+            catch (InvocationTargetException ex) {
+                if (ex.getCause() instanceof RuntimeException) {
+                    throw (RuntimeException)ex.getCause();
+                }
+                throw new IllegalStateException(ex.getCause());
+            }
+            catch (NoSuchMethodException | IllegalAccessException ex) {
+                // only called by runtimes that declare the method
+                throw new UnsupportedOperationException(name,ex);
+            }
+        }
+    }
+}
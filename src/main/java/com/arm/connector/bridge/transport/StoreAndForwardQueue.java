@@ -0,0 +1,483 @@
+/**
+ * @file    StoreAndForwardQueue.java
+ * @brief   disk-backed outbound queue for MQTT messages sent while the broker is unreachable
+ * @author  Doug Anson
+ * @version 1.0
+ * @see
+ *
+ * Copyright 2015. ARM Ltd. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+
+package com.arm.connector.bridge.transport;
+
+import com.arm.connector.bridge.core.ErrorLogger;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicLong;
+import org.fusesource.mqtt.client.QoS;
+
+/**
+ * Store-and-forward queue: messages are appended to memory-mapped segment files and replayed in order once the broker
+ * is reachable again. Replayed records are marked consumed in place, so a restart only replays what was never sent.
+ * The queue is bounded by total size (the oldest segment is dropped) and by message age (stale messages are skipped).
+ * Record layout: [int length][long created ms][int qos][int topic length][topic][int message length][message]
+ * (a negative length marks a consumed record, zero marks the end of the segment). Messages that were sent but failed
+ * in flight are re-queued in memory ahead of the stored records so they are replayed first. Appends are forced to disk
+ * before they are reported stored; acknowledgements may arrive in any order (each record is marked consumed in place).
+ * @author Doug Anson
+ */
+public class StoreAndForwardQueue {
+    private static final String             SEGMENT_PREFIX = "segment-";
+    private static final String             SEGMENT_SUFFIX = ".dat";
+
+    private ErrorLogger                     m_error_logger = null;
+    private File                            m_dir = null;
+    private int                             m_segment_bytes = 0;
+    private int                             m_max_segments = 0;
+    private long                            m_max_age_ms = 0;
+    private ArrayDeque<Segment>             m_segments = null;
+    private ArrayDeque<Record>              m_requeued = null;
+    private long                            m_next_segment = 0;
+    private long                            m_dropped_below = 0;
+    private long                            m_count = 0;
+
+    // metrics
+    private final AtomicLong                m_stored = new AtomicLong(0);
+    private final AtomicLong                m_replayed = new AtomicLong(0);
+    private final AtomicLong                m_dropped = new AtomicLong(0);
+    private final AtomicLong                m_expired = new AtomicLong(0);
+
+    /**
+     * A queued message
+     */
+    public static class Record {
+        private String      m_topic = null;
+        private String      m_message = null;
+        private QoS         m_qos = null;
+        private Segment     m_segment = null;
+        private int         m_pos = 0;
+
+        // constructor
+        private Record(String topic,String message,QoS qos,Segment segment,int pos) {
+            this.m_topic = topic;
+            this.m_message = message;
+            this.m_qos = qos;
+            this.m_segment = segment;
+            this.m_pos = pos;
+        }
+
+        // topic
+        public String topic() {
+            return this.m_topic;
+        }
+
+        // message
+        public String message() {
+            return this.m_message;
+        }
+
+        // QoS
+        public QoS qos() {
+            return this.m_qos;
+        }
+    }
+
+    // one memory-mapped segment file
+    private static class Segment {
+        private long                m_sequence = 0;
+        private File                m_file = null;
+        private RandomAccessFile    m_raf = null;
+        private MappedByteBuffer    m_buffer = null;
+        private int                 m_read_pos = 0;
+        private int                 m_write_pos = 0;
+        private int                 m_live = 0;
+        private boolean             m_closed = false;
+
+        // map (creating if needed) a segment file
+        private Segment(long sequence,File file,int size) throws IOException {
+            this.m_sequence = sequence;
+            this.m_file = file;
+            this.m_raf = new RandomAccessFile(file,"rw");
+            this.m_buffer = this.m_raf.getChannel().map(FileChannel.MapMode.READ_WRITE,0,Math.max(size,(int)this.m_raf.length()));
+        }
+
+        // recover our read/write positions and live count from the records on disk
+        private void recover() {
+            int pos = 0;
+            boolean leading = true;
+            while (pos + 4 <= this.m_buffer.capacity()) {
+                int length = this.m_buffer.getInt(pos);
+                int size = Math.abs(length);
+                if (length == 0 || pos + 4 + size > this.m_buffer.capacity()) {
+                    break;
+                }
+                if (length > 0) {
+                    ++this.m_live;
+                    leading = false;
+                }
+                pos += 4 + size;
+                if (leading == true) {
+                    this.m_read_pos = pos;
+                }
+            }
+            this.m_write_pos = pos;
+        }
+
+        // room for a record of this many bytes (plus its length and the end marker)?
+        private boolean fits(int size) {
+            return (this.m_write_pos + 4 + size + 4 <= this.m_buffer.capacity());
+        }
+
+        // unmap and close
+        private void close() {
+            this.m_closed = true;
+            try {
+                this.m_raf.close();
+            }
+            catch (IOException ex) {
+                // silent
+            }
+        }
+    }
+
+    // constructor: open (recovering any records left from a previous run) the queue in the given directory
+    public StoreAndForwardQueue(ErrorLogger error_logger,File dir,int segment_bytes,long max_bytes,long max_age_ms) {
+        this.m_error_logger = error_logger;
+        this.m_dir = dir;
+        this.m_segment_bytes = segment_bytes;
+        this.m_max_segments = (int)Math.max(1,max_bytes / segment_bytes);
+        this.m_max_age_ms = max_age_ms;
+        this.m_segments = new ArrayDeque<>();
+        this.m_requeued = new ArrayDeque<>();
+        this.recover();
+    }
+
+    // get the error logger
+    private ErrorLogger errorLogger() {
+        return this.m_error_logger;
+    }
+
+    // is anything queued?
+    public synchronized boolean isEmpty() {
+        return (this.m_count == 0);
+    }
+
+    // number of queued messages
+    public synchronized long size() {
+        return this.m_count;
+    }
+
+    // queue metrics
+    public String metrics() {
+        int segments = 0;
+        synchronized (this) {
+            segments = this.m_segments.size();
+        }
+        return "queued=" + this.size() + " segments=" + segments + " stored=" + this.m_stored.get() + " replayed=" + this.m_replayed.get()
+                + " dropped=" + this.m_dropped.get() + " expired=" + this.m_expired.get();
+    }
+
+    // append a message (false if it could not be stored)
+    public synchronized boolean append(String topic,String message,QoS qos) {
+        byte[] topic_bytes = topic.getBytes(StandardCharsets.UTF_8);
+        byte[] message_bytes = message.getBytes(StandardCharsets.UTF_8);
+        int size = 8 + 4 + 4 + topic_bytes.length + 4 + message_bytes.length;
+        if (4 + size + 4 > this.m_segment_bytes) {
+            this.errorLogger().warning("StoreAndForwardQueue: message too large to queue (" + size + " bytes) for topic: " + topic);
+            return false;
+        }
+        try {
+            Segment tail = this.m_segments.peekLast();
+            if (tail == null || tail.fits(size) == false) {
+                tail = this.addSegment();
+            }
+            MappedByteBuffer buffer = tail.m_buffer;
+            int pos = tail.m_write_pos + 4;
+            buffer.putLong(pos,System.currentTimeMillis());
+            buffer.putInt(pos + 8,qos.ordinal());
+            buffer.putInt(pos + 12,topic_bytes.length);
+            this.put(buffer,pos + 16,topic_bytes);
+            buffer.putInt(pos + 16 + topic_bytes.length,message_bytes.length);
+            this.put(buffer,pos + 20 + topic_bytes.length,message_bytes);
+
+            // publish the record by writing its length last (after terminating the segment past it)... and make it durable
+            buffer.putInt(tail.m_write_pos + 4 + size,0);
+            buffer.putInt(tail.m_write_pos,size);
+            buffer.force();
+            tail.m_write_pos += 4 + size;
+            ++tail.m_live;
+            ++this.m_count;
+            this.m_stored.incrementAndGet();
+            return true;
+        }
+        catch (IOException ex) {
+            this.errorLogger().warning("StoreAndForwardQueue: unable to queue message for topic: " + topic + ": " + ex.getMessage(),ex);
+            return false;
+        }
+    }
+
+    /**
+     * re-queue a message that failed in flight ahead of the stored ones (call in the order the messages were sent)
+     * @param topic
+     * @param message
+     * @param qos
+     */
+    public synchronized void requeue(String topic,String message,QoS qos) {
+        this.m_requeued.addLast(new Record(topic,message,qos,null,0));
+        ++this.m_count;
+    }
+
+    // the oldest queued message (stale messages are skipped)... null if none
+    public synchronized Record peek() {
+        Record requeued = this.m_requeued.peekFirst();
+        return (requeued != null) ? requeued : this.peekStored();
+    }
+
+    // the oldest stored message (stale messages are skipped)... null if none
+    private Record peekStored() {
+        Segment head = this.head();
+        while (head != null) {
+            if (this.isStale(head,head.m_read_pos) == true) {
+                this.m_expired.incrementAndGet();
+                this.consume(head);
+                head = this.head();
+                continue;
+            }
+            return this.read(head,head.m_read_pos);
+        }
+        return null;
+    }
+
+    // up to max of the oldest queued messages, in order (nothing is consumed... remove() each one as it is acknowledged)
+    public synchronized List<Record> peek(int max) {
+        ArrayList<Record> records = new ArrayList<>();
+        Iterator<Record> requeued = this.m_requeued.iterator();
+        while (requeued.hasNext() == true && records.size() < max) {
+            records.add(requeued.next());
+        }
+        Record first = this.peekStored();
+        if (first == null || records.size() >= max) {
+            return records;
+        }
+        Iterator<Segment> iterator = this.m_segments.iterator();
+        while (iterator.hasNext() == true && records.size() < max) {
+            Segment segment = iterator.next();
+            int pos = (segment == first.m_segment) ? first.m_pos : segment.m_read_pos;
+            if (segment.m_sequence < first.m_segment.m_sequence) {
+                continue;
+            }
+            while (pos + 4 <= segment.m_buffer.capacity() && records.size() < max) {
+                int length = segment.m_buffer.getInt(pos);
+                if (length == 0) {
+                    break;
+                }
+                if (length > 0 && this.isStale(segment,pos) == false) {
+                    records.add(this.read(segment,pos));
+                }
+                pos += 4 + Math.abs(length);
+            }
+        }
+        return records;
+    }
+
+    // is the record at the given position older than our max age?
+    private boolean isStale(Segment segment,int pos) {
+        long created = segment.m_buffer.getLong(pos + 4);
+        return (this.m_max_age_ms > 0 && (System.currentTimeMillis() - created) > this.m_max_age_ms);
+    }
+
+    // read the record at the given position
+    private Record read(Segment segment,int pos) {
+        MappedByteBuffer buffer = segment.m_buffer;
+        int start = pos + 4;
+        int qos = buffer.getInt(start + 8);
+        int topic_length = buffer.getInt(start + 12);
+        String topic = this.get(buffer,start + 16,topic_length);
+        int message_length = buffer.getInt(start + 16 + topic_length);
+        String message = this.get(buffer,start + 20 + topic_length,message_length);
+        QoS[] levels = QoS.values();
+        return new Record(topic,message,levels[Math.max(0,Math.min(levels.length - 1,qos))],segment,pos);
+    }
+
+    // a message returned by peek() has been acknowledged (in any order... records already dropped or consumed are ignored)
+    public synchronized void remove(Record record) {
+        if (record.m_segment == null) {
+            if (this.m_requeued.remove(record) == true) {
+                --this.m_count;
+                this.m_replayed.incrementAndGet();
+            }
+            return;
+        }
+        if (record.m_segment.m_sequence < this.m_dropped_below || record.m_segment.m_closed == true) {
+            // its segment was dropped by the size cap (or fully consumed) since it was peeked
+            return;
+        }
+        Segment head = this.head();
+        while (head != null && (head != record.m_segment || head.m_read_pos < record.m_pos) && this.isStale(head,head.m_read_pos) == true) {
+            // skipped by peek(max) as stale
+            this.m_expired.incrementAndGet();
+            this.consume(head);
+            head = this.head();
+        }
+        int length = record.m_segment.m_buffer.getInt(record.m_pos);
+        if (length > 0) {
+            // mark it consumed in place... head() steps over consumed records
+            record.m_segment.m_buffer.putInt(record.m_pos,-length);
+            --record.m_segment.m_live;
+            --this.m_count;
+            this.m_replayed.incrementAndGet();
+            this.head();
+        }
+    }
+
+    // close the segment files (records stay on disk... re-queued messages are stored behind them first)
+    public synchronized void close() {
+        Record record = this.m_requeued.pollFirst();
+        while (record != null) {
+            --this.m_count;
+            this.append(record.m_topic,record.m_message,record.m_qos);
+            record = this.m_requeued.pollFirst();
+        }
+        Iterator<Segment> iterator = this.m_segments.iterator();
+        while (iterator.hasNext() == true) {
+            iterator.next().close();
+        }
+        this.m_segments.clear();
+        this.m_count = 0;
+    }
+
+    // the segment holding the oldest live record (fully consumed segments are deleted)
+    private Segment head() {
+        Segment head = this.m_segments.peekFirst();
+        while (head != null) {
+            // skip over consumed records
+            int length = (head.m_read_pos + 4 <= head.m_buffer.capacity()) ? head.m_buffer.getInt(head.m_read_pos) : 0;
+            while (length < 0) {
+                head.m_read_pos += 4 + (-length);
+                length = (head.m_read_pos + 4 <= head.m_buffer.capacity()) ? head.m_buffer.getInt(head.m_read_pos) : 0;
+            }
+            if (length > 0) {
+                return head;
+            }
+
+            // segment drained
+            this.m_segments.pollFirst();
+            this.deleteSegment(head);
+            head = this.m_segments.peekFirst();
+        }
+        return null;
+    }
+
+    // mark the head record of a segment consumed
+    private void consume(Segment head) {
+        int length = head.m_buffer.getInt(head.m_read_pos);
+        head.m_buffer.putInt(head.m_read_pos,-length);
+        head.m_read_pos += 4 + length;
+        --head.m_live;
+        --this.m_count;
+    }
+
+    // start a new tail segment (dropping the oldest if we are at our size cap)
+    private Segment addSegment() throws IOException {
+        if (this.m_segments.size() >= this.m_max_segments) {
+            Segment oldest = this.m_segments.pollFirst();
+            this.m_dropped.addAndGet(oldest.m_live);
+            this.m_count -= oldest.m_live;
+            this.m_dropped_below = Math.max(this.m_dropped_below,oldest.m_sequence + 1);
+            this.deleteSegment(oldest);
+
+            // DEBUG
+            this.errorLogger().warning("StoreAndForwardQueue: size cap reached in " + this.m_dir + ". Dropped " + oldest.m_live + " oldest message(s)");
+        }
+        if (this.m_dir.exists() == false && this.m_dir.mkdirs() == false) {
+            throw new IOException("unable to create " + this.m_dir);
+        }
+        long sequence = this.m_next_segment++;
+        Segment segment = new Segment(sequence,new File(this.m_dir,String.format("%s%012d%s",SEGMENT_PREFIX,sequence,SEGMENT_SUFFIX)),this.m_segment_bytes);
+        this.m_segments.addLast(segment);
+        return segment;
+    }
+
+    // close and remove a segment file
+    private void deleteSegment(Segment segment) {
+        segment.close();
+        if (segment.m_file.delete() == false) {
+            this.errorLogger().warning("StoreAndForwardQueue: unable to delete " + segment.m_file);
+        }
+    }
+
+    // re-open the segments left by a previous run (in sequence order)
+    private void recover() {
+        File[] files = this.m_dir.listFiles();
+        if (files == null) {
+            return;
+        }
+        Arrays.sort(files);
+        for(int i=0;i<files.length;++i) {
+            String name = files[i].getName();
+            if (name.startsWith(SEGMENT_PREFIX) == false || name.endsWith(SEGMENT_SUFFIX) == false) {
+                continue;
+            }
+            try {
+                long sequence = Long.parseLong(name.substring(SEGMENT_PREFIX.length(),name.length() - SEGMENT_SUFFIX.length()));
+                Segment segment = new Segment(sequence,files[i],this.m_segment_bytes);
+                segment.recover();
+                if (segment.m_live > 0) {
+                    this.m_segments.addLast(segment);
+                    this.m_count += segment.m_live;
+                }
+                else {
+                    this.deleteSegment(segment);
+                }
+                this.m_next_segment = Math.max(this.m_next_segment,sequence + 1);
+            }
+            catch (IOException | NumberFormatException ex) {
+                this.errorLogger().warning("StoreAndForwardQueue: unable to recover " + files[i] + ": " + ex.getMessage());
+            }
+        }
+
+        // DEBUG
+        if (this.m_count > 0) {
+            this.errorLogger().info("StoreAndForwardQueue: recovered " + this.m_count + " queued message(s) from " + this.m_dir);
+        }
+    }
+
+    // write bytes at an absolute position
+    private void put(MappedByteBuffer buffer,int pos,byte[] bytes) {
+        ByteBuffer target = buffer.duplicate();
+        target.position(pos);
+        target.put(bytes);
+    }
+
+    // read a UTF-8 string at an absolute position
+    private String get(MappedByteBuffer buffer,int pos,int length) {
+        byte[] bytes = new byte[length];
+        ByteBuffer source = buffer.duplicate();
+        source.position(pos);
+        source.get(bytes);
+        return new String(bytes,StandardCharsets.UTF_8);
+    }
+}